@@ -0,0 +1,163 @@
+package com.peregrine.sling.auth.header;
+
+/*-
+ * #%L
+ * peregrinecms-com-peregrine-sling-auth-header
+ * %%
+ * Copyright (C) 2020 headwire inc.
+ * %%
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+
+import org.apache.jackrabbit.oak.spi.security.authentication.external.basic.DefaultSyncConfig;
+import org.apache.jackrabbit.oak.spi.security.authentication.external.impl.DefaultSyncHandler;
+
+import javax.servlet.http.HttpServletRequest;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Fixtures of the benchmarks on top of the shared test {@link Fixtures}: requests as sent by mod_auth_openidc and a
+ * sync handler set up like the <code>DefaultSyncHandler</code> in peregrine-auth-header-configuration.json.
+ */
+final class BenchmarkFixtures
+{
+    static final String SHARED_SECRET = "benchmark-secret";
+
+    /** Headers that are not profile claims, as sent by a browser through the proxy. */
+    private static final String[][] BROWSER_HEADERS = {
+            { "Host", "www.example.com" },
+            { "User-Agent", "Mozilla/5.0 (Windows NT 10.0; Win64; x64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/85.0.4183.121 Safari/537.36" },
+            { "Accept", "text/html,application/xhtml+xml,application/xml;q=0.9,image/webp,image/apng,*/*;q=0.8" },
+            { "Accept-Encoding", "gzip, deflate, br" },
+            { "Accept-Language", "en-US,en;q=0.9,de;q=0.8" },
+            { "Cache-Control", "max-age=0" },
+            { "Connection", "keep-alive" },
+            { "Cookie", "mod_auth_openidc_session=0b8b3ad2-6b7a-4c4e-9f0f-3f1b2e7ad0a1; _ga=GA1.2.1234567890.1600000000" },
+            { "Referer", "https://www.example.com/content/site/index.html" },
+            { "Sec-Fetch-Dest", "document" },
+            { "Sec-Fetch-Mode", "navigate" },
+            { "Sec-Fetch-Site", "same-origin" },
+            { "Sec-Fetch-User", "?1" },
+            { "Upgrade-Insecure-Requests", "1" },
+            { "X-Forwarded-For", "203.0.113.17, 10.0.0.4" },
+            { "X-Forwarded-Host", "www.example.com" },
+            { "X-Forwarded-Proto", "https" },
+            { "X-Forwarded-Port", "443" },
+            { "X-Real-IP", "203.0.113.17" },
+            { "X-Request-Id", "5f2b7c3e-8d4a-4f0e-a1b2-c3d4e5f60718" },
+            { "OIDC_access_token", "ya29.a0AfH6SMBx3e1d9f8c7b6a5d4c3b2a1f0e9d8c7b6a5f4e3d2c1b0a9f8e7d6c5b4a3f2e1d0c9b8a7f6e5d4c3b2a1" },
+            { "OIDC_access_token_expires", "1602000000" },
+    };
+
+    private BenchmarkFixtures()
+    {
+    }
+
+    static HeaderAuthenticationHandlerConfig handlerConfig(final boolean identityCache)
+    {
+        Map<String, Object> values = new HashMap<>();
+        values.put("header_auth_shared_secret", SHARED_SECRET);
+        values.put("header_auth_identity_cache_enabled", identityCache);
+        return Fixtures.config(HeaderAuthenticationHandlerConfig.class, values);
+    }
+
+    static HeaderAuthenticationHandler handler(final boolean identityCache)
+    {
+        HeaderAuthenticationHandler handler = new HeaderAuthenticationHandler();
+        handler.activate(handlerConfig(identityCache), null);
+        return handler;
+    }
+
+    /**
+     * @return The headers of a request for the given user: {@link #BROWSER_HEADERS}, the proxy headers and the
+     * number of <code>OIDC_CLAIM_*</code> profile headers requested.
+     */
+    static Map<String, String> headers(final String userId, final int profileHeaders)
+    {
+        Map<String, String> headers = new LinkedHashMap<>();
+        for (String[] header : BROWSER_HEADERS)
+        {
+            headers.put(header[0], header[1]);
+        }
+        headers.put(HeaderAuthenticationHandlerConfig.HEADER_AUTH_SHARED_SECRET_HEADER, SHARED_SECRET);
+        headers.put(HeaderAuthenticationHandlerConfig.DEFAULT_HEADER_AUTH_REMOTE_USER_HEADER, userId);
+        headers.put("OIDC_CLAIM_sub", Integer.toHexString(userId.hashCode()));
+        headers.put("OIDC_CLAIM_email", userId);
+        headers.put("OIDC_CLAIM_email_verified", "true");
+        headers.put("OIDC_CLAIM_name", "Benchmark User " + userId);
+        headers.put("OIDC_CLAIM_given_name", "Benchmark");
+        headers.put("OIDC_CLAIM_family_name", "User");
+        headers.put("OIDC_CLAIM_locale", "en");
+        headers.put("OIDC_CLAIM_picture", "https://lh3.googleusercontent.com/a-/AOh14Gh" + userId.hashCode() + "=s96-c");
+        for (int i = headers.size(); i < BROWSER_HEADERS.length + 2 + profileHeaders; i++)
+        {
+            headers.put("OIDC_CLAIM_custom_" + i, "value-" + i);
+        }
+        return headers;
+    }
+
+    static String userId(final int index)
+    {
+        return "user" + index + "@example.com";
+    }
+
+    /**
+     * @return A request that only supports the methods used by the authentication handler.
+     */
+    static HttpServletRequest request(final Map<String, String> headers)
+    {
+        return (HttpServletRequest) Proxy.newProxyInstance(BenchmarkFixtures.class.getClassLoader(),
+                new Class<?>[] { HttpServletRequest.class }, (proxy, method, args) -> {
+                    switch (method.getName())
+                    {
+                        case "getHeader":
+                            return headers.get((String) args[0]);
+                        case "getHeaderNames":
+                            return Collections.enumeration(headers.keySet());
+                        case "getRemoteAddr":
+                            return "10.0.0.4";
+                        case "getRequestURI":
+                        case "getPathInfo":
+                            return "/content/site/index.html";
+                        case "getContextPath":
+                            return "";
+                        case "hashCode":
+                            return System.identityHashCode(proxy);
+                        case "equals":
+                            return proxy == args[0];
+                        default:
+                            return null;
+                    }
+                });
+    }
+
+    static DefaultSyncHandler syncHandler()
+    {
+        DefaultSyncConfig config = new DefaultSyncConfig();
+        config.setName("default");
+        config.user().setPathPrefix("tenants");
+        config.user().setAutoMembership("all_tenants");
+        config.user().setPropertyMapping(Collections.singletonMap("preferences/firstLogin", "firstLogin"));
+        return new DefaultSyncHandler(config);
+    }
+}
@@ -0,0 +1,125 @@
+package com.peregrine.sling.auth.header;
+
+/*-
+ * #%L
+ * peregrinecms-com-peregrine-sling-auth-header
+ * %%
+ * Copyright (C) 2020 headwire inc.
+ * %%
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+
+import org.apache.sling.auth.core.spi.AuthenticationInfo;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.servlet.http.HttpServletRequest;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link HeaderAuthenticationHandler#extractCredentials}, which covers the shared secret check,
+ * <code>isValidUsername</code> and <code>createCredentials</code>.
+ *
+ * <ul>
+ *     <li><code>warmUser</code>: the same user on every request</li>
+ *     <li><code>rotatingUsers</code>: requests cycle through <code>users</code> distinct users. With more users than
+ *     the identity cache holds, every request is a cold user.</li>
+ *     <li><code>parallelUsers</code>: <code>rotatingUsers</code> on 8 threads</li>
+ * </ul>
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ExtractCredentialsBenchmark
+{
+    @Param({ "false", "true" })
+    public boolean identityCache;
+
+    /** 8 claims give about 32 headers per request, 24 claims about 48. */
+    @Param({ "8", "24" })
+    public int profileHeaders;
+
+    @Param({ "1000", "100000" })
+    public int users;
+
+    private HeaderAuthenticationHandler handler;
+    private HttpServletRequest warmRequest;
+    private HttpServletRequest[] requests;
+
+    @Setup
+    public void setUp()
+    {
+        handler = BenchmarkFixtures.handler(identityCache);
+        warmRequest = request(0);
+        requests = new HttpServletRequest[users];
+        for (int i = 0; i < users; i++)
+        {
+            requests[i] = request(i);
+        }
+    }
+
+    private HttpServletRequest request(final int user)
+    {
+        return BenchmarkFixtures.request(BenchmarkFixtures.headers(BenchmarkFixtures.userId(user), profileHeaders));
+    }
+
+    @State(Scope.Thread)
+    public static class Cursor
+    {
+        private int next = (int) (Thread.currentThread().getId() * 7919);
+
+        HttpServletRequest next(final HttpServletRequest[] requests)
+        {
+            next = (next + 1) % requests.length;
+            return requests[next];
+        }
+    }
+
+    @Benchmark
+    public AuthenticationInfo warmUser()
+    {
+        return handler.extractCredentials(warmRequest, null);
+    }
+
+    @Benchmark
+    public AuthenticationInfo rotatingUsers(final Cursor cursor)
+    {
+        return handler.extractCredentials(cursor.next(requests), null);
+    }
+
+    @Benchmark
+    @Threads(8)
+    public AuthenticationInfo parallelUsers(final Cursor cursor)
+    {
+        return handler.extractCredentials(cursor.next(requests), null);
+    }
+}
@@ -0,0 +1,604 @@
+package com.peregrine.sling.auth.header;
+
+/*-
+ * #%L
+ * peregrinecms-com-peregrine-sling-auth-header
+ * %%
+ * Copyright (C) 2020 headwire inc.
+ * %%
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+
+import org.apache.jackrabbit.api.security.user.UserManager;
+import org.apache.jackrabbit.oak.api.ContentSession;
+import org.apache.jackrabbit.oak.api.Root;
+import org.apache.jackrabbit.oak.plugins.document.DocumentNodeStore;
+import org.apache.jackrabbit.oak.plugins.document.DocumentNodeStoreBuilder;
+import org.apache.jackrabbit.oak.plugins.document.memory.MemoryDocumentStore;
+import org.apache.jackrabbit.oak.security.authentication.user.LoginModuleImpl;
+import org.apache.jackrabbit.oak.spi.security.authentication.external.SyncHandler;
+import org.apache.sling.auth.core.spi.AuthenticationInfo;
+
+import javax.jcr.Credentials;
+import javax.security.auth.login.AppConfigurationEntry;
+import javax.security.auth.login.Configuration;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * End-to-end load test of a header login: {@link HeaderAuthenticationHandler#extractCredentials} on a simulated
+ * mod_auth_openidc request, followed by a repository login through JAAS with the {@link HeaderExternalLoginModule}
+ * ahead of the Oak default login module, like in Sling. The repository is in-memory and the sync handler is set up
+ * like in peregrine-auth-header-configuration.json.
+ * <p>
+ * With <code>clusterNodes</code> above 1, each node is a DocumentNodeStore with its own sync service, all sharing an
+ * in-memory document store, and clients are spread across the nodes like behind a load balancer. Combined with
+ * <code>newUserRequests</code>, this reproduces the race of a new user's parallel requests across cluster nodes.
+ *
+ * <pre>
+ * java -cp target/benchmarks.jar com.peregrine.sling.auth.header.LoadTest \
+ *     --threads=32 --duration=60 --users=10000 --newUserRatio=0.2 --report=load.json \
+ *     --sync.header_sync_batch_enabled=true
+ * </pre>
+ *
+ * Options:
+ * <ul>
+ *     <li><code>threads</code>: number of concurrent clients (16)</li>
+ *     <li><code>warmup</code>: seconds of load before measuring (5)</li>
+ *     <li><code>duration</code>: seconds of measured load (30)</li>
+ *     <li><code>users</code>: number of returning users created before the run (10000)</li>
+ *     <li><code>newUserRatio</code>: share of requests by users that do not exist yet (0.1)</li>
+ *     <li><code>profileHeaders</code>: number of <code>OIDC_CLAIM_*</code> headers per request (8)</li>
+ *     <li><code>newUserRequests</code>: number of parallel requests of each new user, like a page and its assets
+ *     (1)</li>
+ *     <li><code>clusterNodes</code>: number of DocumentNodeStore cluster nodes, or 1 for a single in-memory
+ *     repository (1)</li>
+ *     <li><code>asyncDelay</code>: background read and write delay of the DocumentNodeStores in milliseconds
+ *     (1000, like the DocumentNodeStore default)</li>
+ *     <li><code>report</code>: path of the JSON report (load-test.json)</li>
+ *     <li><code>handler.&lt;attribute&gt;</code> and <code>sync.&lt;attribute&gt;</code>: overrides of the
+ *     {@link HeaderAuthenticationHandlerConfig} and {@link HeaderUserSyncServiceConfig} attributes</li>
+ * </ul>
+ */
+public final class LoadTest
+{
+    private static final String APP_NAME = "jackrabbit.oak";
+    private static final String NEW_USER_PREFIX = "new-";
+
+    private static volatile HeaderExternalIdentityProvider identityProvider;
+    private static volatile SyncHandler syncHandler;
+    private static final ThreadLocal<Node> CURRENT_NODE = new ThreadLocal<>();
+
+    private final int threads;
+    private final long warmupNanos;
+    private final long durationNanos;
+    private final int users;
+    private final double newUserRatio;
+    private final int profileHeaders;
+    private final int newUserRequests;
+    private final int clusterNodes;
+    private final int asyncDelay;
+    private final String report;
+    private final Map<String, Object> handlerConfig = new HashMap<>();
+    private final Map<String, Object> syncConfig = new HashMap<>();
+
+    private Node[] nodes;
+    private HeaderAuthenticationHandler handler;
+    private final AtomicInteger newUserLogins = new AtomicInteger();
+    private final Set<String> loggedInNewUsers = ConcurrentHashMap.newKeySet();
+    private final LongAdder errors = new LongAdder();
+    private volatile boolean measuring;
+    private volatile boolean running = true;
+
+    private LoadTest(final Map<String, String> options)
+    {
+        threads = Integer.parseInt(options.getOrDefault("threads", "16"));
+        warmupNanos = TimeUnit.SECONDS.toNanos(Long.parseLong(options.getOrDefault("warmup", "5")));
+        durationNanos = TimeUnit.SECONDS.toNanos(Long.parseLong(options.getOrDefault("duration", "30")));
+        users = Integer.parseInt(options.getOrDefault("users", "10000"));
+        newUserRatio = Double.parseDouble(options.getOrDefault("newUserRatio", "0.1"));
+        profileHeaders = Integer.parseInt(options.getOrDefault("profileHeaders", "8"));
+        newUserRequests = Integer.parseInt(options.getOrDefault("newUserRequests", "1"));
+        clusterNodes = Integer.parseInt(options.getOrDefault("clusterNodes", "1"));
+        asyncDelay = Integer.parseInt(options.getOrDefault("asyncDelay", "1000"));
+        report = options.getOrDefault("report", "load-test.json");
+
+        handlerConfig.put("header_auth_shared_secret", BenchmarkFixtures.SHARED_SECRET);
+        for (Map.Entry<String, String> option : options.entrySet())
+        {
+            if (option.getKey().startsWith("handler."))
+            {
+                put(handlerConfig, HeaderAuthenticationHandlerConfig.class, option.getKey().substring(8), option.getValue());
+            }
+            else if (option.getKey().startsWith("sync."))
+            {
+                put(syncConfig, HeaderUserSyncServiceConfig.class, option.getKey().substring(5), option.getValue());
+            }
+        }
+    }
+
+    public static void main(final String[] args) throws Exception
+    {
+        final Map<String, String> options = new LinkedHashMap<>();
+        for (String arg : args)
+        {
+            final int separator = arg.indexOf('=');
+            if (!arg.startsWith("--") || separator < 0)
+            {
+                throw new IllegalArgumentException("Expected --option=value but got: " + arg);
+            }
+            options.put(arg.substring(2, separator), arg.substring(separator + 1));
+        }
+        new LoadTest(options).run();
+    }
+
+    private void run() throws Exception
+    {
+        identityProvider = Fixtures.identityProvider(Collections.emptyMap());
+        syncHandler = BenchmarkFixtures.syncHandler();
+        nodes = createNodes();
+        handler = new HeaderAuthenticationHandler();
+        handler.activate(Fixtures.config(HeaderAuthenticationHandlerConfig.class, handlerConfig), null);
+        Configuration.setConfiguration(new JaasConfiguration());
+
+        System.out.printf("Creating %d returning users%n", users);
+        createReturningUsers();
+
+        final Client[] clients = new Client[threads];
+        final Thread[] clientThreads = new Thread[threads];
+        for (int i = 0; i < threads; i++)
+        {
+            clients[i] = new Client(nodes[i % nodes.length]);
+            clientThreads[i] = new Thread(clients[i], "load-test-client-" + i);
+            clientThreads[i].start();
+        }
+
+        System.out.printf("Warming up for %d s with %d clients%n", TimeUnit.NANOSECONDS.toSeconds(warmupNanos), threads);
+        TimeUnit.NANOSECONDS.sleep(warmupNanos);
+        for (Node node : nodes)
+        {
+            node.syncService.resetCounters();
+        }
+        measuring = true;
+        final long start = System.nanoTime();
+        System.out.printf("Measuring for %d s%n", TimeUnit.NANOSECONDS.toSeconds(durationNanos));
+        TimeUnit.NANOSECONDS.sleep(durationNanos);
+        measuring = false;
+        final long elapsed = System.nanoTime() - start;
+        running = false;
+        for (Thread thread : clientThreads)
+        {
+            thread.join();
+        }
+
+        final List<String> userIds = returningUserIds();
+        userIds.addAll(loggedInNewUsers);
+        final int missingUsers = countMissingUsers(userIds);
+
+        final String json = report(clients, elapsed, missingUsers);
+        Files.write(Paths.get(report), json.getBytes(StandardCharsets.UTF_8));
+        System.out.println(json);
+        for (Node node : nodes)
+        {
+            node.close();
+        }
+        if (missingUsers > 0)
+        {
+            throw new IllegalStateException(missingUsers + " of " + userIds.size() + " logged in users do not exist");
+        }
+    }
+
+    private Node[] createNodes()
+    {
+        final Node[] created = new Node[clusterNodes];
+        if (clusterNodes == 1)
+        {
+            created[0] = new Node(new Fixtures.Repository(), null, Fixtures.syncService(syncConfig));
+            return created;
+        }
+
+        final MemoryDocumentStore documentStore = new MemoryDocumentStore();
+        for (int i = 0; i < clusterNodes; i++)
+        {
+            final DocumentNodeStore nodeStore = DocumentNodeStoreBuilder.newDocumentNodeStoreBuilder()
+                    .setDocumentStore(documentStore)
+                    .setClusterId(i + 1)
+                    .setAsyncDelay(asyncDelay)
+                    .build();
+            created[i] = new Node(new Fixtures.Repository(nodeStore), nodeStore, Fixtures.syncService(syncConfig));
+            // Make the initial content visible to the next node
+            nodeStore.runBackgroundOperations();
+        }
+        return created;
+    }
+
+    private void createReturningUsers() throws Exception
+    {
+        final Node node = nodes[0];
+        final HeaderUserSyncService syncService = node.syncService;
+        final UserSynchronizer synchronizer = new UserSynchronizer(identityProvider, syncHandler, syncService,
+                node.repository.contentRepository, node.repository.securityProvider);
+        try (ContentSession session = node.repository.login())
+        {
+            final Root root = session.getLatestRoot();
+            final UserManager userManager = node.repository.userManager(root);
+            for (int i = 0; i < users; i++)
+            {
+                final HeaderCredentials credentials = (HeaderCredentials) handler.extractCredentials(
+                        BenchmarkFixtures.request(BenchmarkFixtures.headers(BenchmarkFixtures.userId(i),
+                                profileHeaders)), null).get("user.jcr.credentials");
+                synchronizer.sync(root, userManager, credentials, syncService.getProfileFingerprint(credentials),
+                        false);
+            }
+        }
+        syncService.invalidateAll();
+        for (Node each : nodes)
+        {
+            if (each.nodeStore != null)
+            {
+                each.nodeStore.runBackgroundOperations();
+            }
+        }
+
+        final int missingUsers = countMissingUsers(returningUserIds());
+        if (missingUsers > 0)
+        {
+            throw new IllegalStateException(missingUsers + " of " + users + " returning users were not created");
+        }
+    }
+
+    private List<String> returningUserIds()
+    {
+        final List<String> userIds = new ArrayList<>(users);
+        for (int i = 0; i < users; i++)
+        {
+            userIds.add(BenchmarkFixtures.userId(i));
+        }
+        return userIds;
+    }
+
+    /**
+     * Counts the users that do not exist in the repository, as seen by the first node once all nodes have written
+     * their changes. A load test whose logins fail to sync would otherwise only measure the failure path.
+     */
+    private int countMissingUsers(final List<String> userIds) throws Exception
+    {
+        for (Node node : nodes)
+        {
+            if (node.nodeStore != null)
+            {
+                node.nodeStore.runBackgroundOperations();
+            }
+        }
+        if (nodes[0].nodeStore != null)
+        {
+            nodes[0].nodeStore.runBackgroundOperations();
+        }
+
+        int missing = 0;
+        try (ContentSession session = nodes[0].repository.login())
+        {
+            final UserManager userManager = nodes[0].repository.userManager(session.getLatestRoot());
+            for (String userId : userIds)
+            {
+                if (userManager.getAuthorizable(userId) == null)
+                {
+                    missing++;
+                }
+            }
+        }
+        return missing;
+    }
+
+    /**
+     * Logs in a user the way Sling does: credentials from the authentication handler, then a repository login.
+     */
+    private void login(final Node node, final String userId) throws Exception
+    {
+        final AuthenticationInfo authInfo = handler.extractCredentials(
+                BenchmarkFixtures.request(BenchmarkFixtures.headers(userId, profileHeaders)), null);
+        if (authInfo == null)
+        {
+            throw new IllegalStateException("No credentials for " + userId);
+        }
+        final Credentials credentials = (Credentials) authInfo.get("user.jcr.credentials");
+        node.repository.contentRepository.login(credentials, null).close();
+    }
+
+    private String nextUserId()
+    {
+        final ThreadLocalRandom random = ThreadLocalRandom.current();
+        if (random.nextDouble() < newUserRatio)
+        {
+            return NEW_USER_PREFIX + BenchmarkFixtures.userId(newUserLogins.getAndIncrement() / newUserRequests);
+        }
+        return BenchmarkFixtures.userId(random.nextInt(users));
+    }
+
+    private String report(final Client[] clients, final long elapsedNanos, final int missingUsers)
+    {
+        int count = 0;
+        for (Client client : clients)
+        {
+            count += client.count;
+        }
+        final long[] latencies = new long[count];
+        int offset = 0;
+        for (Client client : clients)
+        {
+            System.arraycopy(client.latencies, 0, latencies, offset, client.count);
+            offset += client.count;
+        }
+        Arrays.sort(latencies);
+
+        final double seconds = elapsedNanos / 1e9;
+        long syncs = 0;
+        long retries = 0;
+        long failures = 0;
+        long contended = 0;
+        long leasesClaimed = 0;
+        long leasesLost = 0;
+        long leaseTimeouts = 0;
+        final Map<String, Long> results = new TreeMap<>();
+        for (Node node : nodes)
+        {
+            final HeaderUserSyncService syncService = node.syncService;
+            syncs += syncService.getSyncCount();
+            retries += syncService.getCommitRetryCount();
+            failures += syncService.getSyncFailureCount();
+            contended += syncService.getContendedSyncCount();
+            leasesClaimed += syncService.getClusterLeaseClaimedCount();
+            leasesLost += syncService.getClusterLeaseLostCount();
+            leaseTimeouts += syncService.getClusterLeaseWaitTimeoutCount();
+            syncService.getSyncResultCounts().forEach((status, statusCount) -> results.merge(status, statusCount, Long::sum));
+        }
+
+        final StringBuilder json = new StringBuilder("{\n");
+        json.append("  \"threads\": ").append(threads).append(",\n");
+        json.append("  \"clusterNodes\": ").append(clusterNodes).append(",\n");
+        json.append("  \"durationSeconds\": ").append(format(seconds)).append(",\n");
+        json.append("  \"returningUsers\": ").append(users).append(",\n");
+        json.append("  \"newUserRatio\": ").append(format(newUserRatio)).append(",\n");
+        json.append("  \"newUserRequests\": ").append(newUserRequests).append(",\n");
+        json.append("  \"profileHeaders\": ").append(profileHeaders).append(",\n");
+        json.append("  \"handlerConfig\": ").append(toJson(handlerConfig)).append(",\n");
+        json.append("  \"syncConfig\": ").append(toJson(syncConfig)).append(",\n");
+        json.append("  \"requests\": ").append(count).append(",\n");
+        json.append("  \"errors\": ").append(errors.sum()).append(",\n");
+        json.append("  \"missingUsers\": ").append(missingUsers).append(",\n");
+        json.append("  \"throughputPerSecond\": ").append(format(count / seconds)).append(",\n");
+        json.append("  \"latencyMillis\": {");
+        json.append("\"p50\": ").append(format(percentile(latencies, 0.5))).append(", ");
+        json.append("\"p99\": ").append(format(percentile(latencies, 0.99))).append(", ");
+        json.append("\"p999\": ").append(format(percentile(latencies, 0.999))).append(", ");
+        json.append("\"max\": ").append(format(percentile(latencies, 1))).append("},\n");
+        json.append("  \"syncs\": ").append(syncs).append(",\n");
+        json.append("  \"syncFailures\": ").append(failures).append(",\n");
+        json.append("  \"commitRetries\": ").append(retries).append(",\n");
+        json.append("  \"commitConflictRate\": ").append(format(syncs == 0 ? 0 : retries / (double) syncs)).append(",\n");
+        json.append("  \"contendedSyncs\": ").append(contended).append(",\n");
+        json.append("  \"clusterLeases\": {\"claimed\": ").append(leasesClaimed).append(", \"lost\": ")
+                .append(leasesLost).append(", \"waitTimeouts\": ").append(leaseTimeouts).append("},\n");
+        json.append("  \"syncResults\": ").append(toJson(results)).append("\n");
+        json.append("}\n");
+        return json.toString();
+    }
+
+    private static double percentile(final long[] sorted, final double percentile)
+    {
+        if (sorted.length == 0)
+        {
+            return 0;
+        }
+        final int index = (int) Math.ceil(percentile * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))] / 1e6;
+    }
+
+    private static String format(final double value)
+    {
+        return String.format(Locale.ROOT, "%.3f", value);
+    }
+
+    private static String toJson(final Map<String, ?> values)
+    {
+        final StringBuilder json = new StringBuilder("{");
+        for (Map.Entry<String, ?> entry : values.entrySet())
+        {
+            if (json.length() > 1)
+            {
+                json.append(", ");
+            }
+            json.append('"').append(entry.getKey()).append("\": ");
+            if (entry.getValue() instanceof Number || entry.getValue() instanceof Boolean)
+            {
+                json.append(entry.getValue());
+            }
+            else
+            {
+                json.append('"').append(entry.getValue()).append('"');
+            }
+        }
+        return json.append('}').toString();
+    }
+
+    /**
+     * Converts a command line value to the return type of the configuration attribute.
+     */
+    private static void put(final Map<String, Object> config, final Class<?> type, final String attribute,
+                            final String value)
+    {
+        try
+        {
+            final Method method = type.getMethod(attribute);
+            final Class<?> returnType = method.getReturnType();
+            if (returnType == boolean.class)
+            {
+                config.put(attribute, Boolean.parseBoolean(value));
+            }
+            else if (returnType == int.class)
+            {
+                config.put(attribute, Integer.parseInt(value));
+            }
+            else if (returnType == long.class)
+            {
+                config.put(attribute, Long.parseLong(value));
+            }
+            else if (returnType == String[].class)
+            {
+                config.put(attribute, value.split(","));
+            }
+            else
+            {
+                config.put(attribute, value);
+            }
+        } catch (NoSuchMethodException e)
+        {
+            throw new IllegalArgumentException("Unknown attribute " + attribute + " of " + type.getSimpleName());
+        }
+    }
+
+    /**
+     * A client sending requests back to back and recording their latency while measuring.
+     */
+    private final class Client implements Runnable
+    {
+        final Node node;
+        long[] latencies = new long[1 << 16];
+        int count;
+
+        Client(final Node node)
+        {
+            this.node = node;
+        }
+
+        @Override
+        public void run()
+        {
+            CURRENT_NODE.set(node);
+            while (running)
+            {
+                final String userId = nextUserId();
+                final long start = System.nanoTime();
+                try
+                {
+                    login(node, userId);
+                } catch (Exception e)
+                {
+                    if (measuring)
+                    {
+                        errors.increment();
+                    }
+                    continue;
+                }
+                if (userId.startsWith(NEW_USER_PREFIX))
+                {
+                    loggedInNewUsers.add(userId);
+                }
+                if (measuring)
+                {
+                    if (count == latencies.length)
+                    {
+                        latencies = Arrays.copyOf(latencies, count * 2);
+                    }
+                    latencies[count++] = System.nanoTime() - start;
+                }
+            }
+        }
+    }
+
+    /**
+     * The JAAS configuration of Sling: the header login module, followed by the Oak default login module which
+     * completes the pre-authenticated login.
+     */
+    private static final class JaasConfiguration extends Configuration
+    {
+        @Override
+        public AppConfigurationEntry[] getAppConfigurationEntry(final String name)
+        {
+            if (!APP_NAME.equals(name))
+            {
+                return null;
+            }
+            return new AppConfigurationEntry[] {
+                    new AppConfigurationEntry(HarnessLoginModule.class.getName(),
+                            AppConfigurationEntry.LoginModuleControlFlag.SUFFICIENT, Collections.emptyMap()),
+                    new AppConfigurationEntry(LoginModuleImpl.class.getName(),
+                            AppConfigurationEntry.LoginModuleControlFlag.REQUIRED, Collections.emptyMap())
+            };
+        }
+    }
+
+    /**
+     * A cluster node: a repository with its own sync service, like a Sling instance.
+     */
+    private static final class Node
+    {
+        final Fixtures.Repository repository;
+        final DocumentNodeStore nodeStore;
+        final HeaderUserSyncService syncService;
+
+        Node(final Fixtures.Repository repository, final DocumentNodeStore nodeStore,
+             final HeaderUserSyncService syncService)
+        {
+            this.repository = repository;
+            this.nodeStore = nodeStore;
+            this.syncService = syncService;
+        }
+
+        void close()
+        {
+            syncService.deactivate();
+            if (nodeStore != null)
+            {
+                nodeStore.dispose();
+            }
+        }
+    }
+
+    /**
+     * JAAS instantiates login modules with their default constructor, so this module takes the services from the
+     * harness, like {@link HeaderLoginModuleFactory} does in OSGi. The sync service is the one of the node the
+     * logging in client is bound to.
+     */
+    public static final class HarnessLoginModule extends HeaderExternalLoginModule
+    {
+        public HarnessLoginModule()
+        {
+            super(identityProvider, syncHandler, CURRENT_NODE.get().syncService);
+        }
+    }
+}
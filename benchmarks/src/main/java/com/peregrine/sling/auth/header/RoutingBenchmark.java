@@ -0,0 +1,105 @@
+package com.peregrine.sling.auth.header;
+
+/*-
+ * #%L
+ * peregrinecms-com-peregrine-sling-auth-header
+ * %%
+ * Copyright (C) 2020 headwire inc.
+ * %%
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares choosing the tenant of a request path with the {@link PathPrefixIndex} of
+ * {@link HeaderAuthenticationRouter} to checking every path prefix in turn, as with one authentication handler per
+ * tenant. The paths belong to the tenants in turn, so the scan goes half way through the prefixes on average.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RoutingBenchmark
+{
+    @Param({ "1", "100", "10000" })
+    public int tenants;
+
+    private String[] prefixes;
+    private String[] paths;
+    private PathPrefixIndex<String> index;
+    private int next;
+
+    @Setup
+    public void setUp()
+    {
+        final Map<String, String> values = new LinkedHashMap<>();
+        prefixes = new String[tenants];
+        paths = new String[tenants];
+        for (int i = 0; i < tenants; i++)
+        {
+            prefixes[i] = "/content/tenant-" + i;
+            paths[i] = prefixes[i] + "/pages/section/index.html";
+            values.put(prefixes[i], prefixes[i]);
+        }
+        index = PathPrefixIndex.compile(values);
+    }
+
+    private String nextPath()
+    {
+        next = (next + 1) % paths.length;
+        return paths[next];
+    }
+
+    @Benchmark
+    public String prefixIndex()
+    {
+        return index.find(nextPath());
+    }
+
+    @Benchmark
+    public String linearScan()
+    {
+        final String path = nextPath();
+        for (String prefix : prefixes)
+        {
+            if (path.startsWith(prefix) && (path.length() == prefix.length() || path.charAt(prefix.length()) == '/'))
+            {
+                return prefix;
+            }
+        }
+        return null;
+    }
+}
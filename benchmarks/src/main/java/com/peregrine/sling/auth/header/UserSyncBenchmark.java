@@ -0,0 +1,180 @@
+package com.peregrine.sling.auth.header;
+
+/*-
+ * #%L
+ * peregrinecms-com-peregrine-sling-auth-header
+ * %%
+ * Copyright (C) 2020 headwire inc.
+ * %%
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+
+import org.apache.jackrabbit.api.security.user.UserManager;
+import org.apache.jackrabbit.oak.api.ContentSession;
+import org.apache.jackrabbit.oak.api.Root;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Measures the user sync performed by {@link HeaderExternalLoginModule} against an in-memory Oak repository.
+ *
+ * <ul>
+ *     <li><code>coldUser</code>: every invocation creates a new user</li>
+ *     <li><code>warmUser</code>: every invocation logs in one of <code>warmUsers</code> existing users</li>
+ *     <li><code>parallelColdUsers</code> and <code>parallelWarmUsers</code>: the same on 8 threads</li>
+ * </ul>
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class UserSyncBenchmark
+{
+    @Param({ "false", "true" })
+    public boolean syncCache;
+
+    @Param({ "1000" })
+    public int warmUsers;
+
+    private Fixtures.Repository repository;
+    private UserSynchronizer synchronizer;
+    private HeaderCredentials[] warmCredentials;
+    private final AtomicInteger coldUsers = new AtomicInteger();
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception
+    {
+        repository = new Fixtures.Repository();
+
+        Map<String, Object> config = new HashMap<>();
+        config.put("header_sync_cache_enabled", syncCache);
+        synchronizer = repository.synchronizer(Fixtures.identityProvider(Collections.emptyMap()),
+                BenchmarkFixtures.syncHandler(), Fixtures.syncService(config));
+
+        warmCredentials = new HeaderCredentials[warmUsers];
+        try (ContentSession session = repository.login())
+        {
+            Root root = session.getLatestRoot();
+            UserManager userManager = repository.userManager(root);
+            for (int i = 0; i < warmUsers; i++)
+            {
+                warmCredentials[i] = credentials("warm-" + BenchmarkFixtures.userId(i));
+                synchronizer.sync(root, userManager, warmCredentials[i], null, false);
+            }
+        }
+
+        // Measure syncs of users that exist, not of a repository rejecting them
+        try (ContentSession session = repository.login())
+        {
+            UserManager userManager = repository.userManager(session.getLatestRoot());
+            for (HeaderCredentials credentials : warmCredentials)
+            {
+                if (userManager.getAuthorizable(credentials.getUserId()) == null)
+                {
+                    throw new IllegalStateException("Warm user was not created: " + credentials.getUserId());
+                }
+            }
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Session
+    {
+        ContentSession contentSession;
+        Root root;
+        UserManager userManager;
+        int next;
+
+        @Setup(Level.Trial)
+        public void setUp(final UserSyncBenchmark benchmark) throws Exception
+        {
+            contentSession = benchmark.repository.login();
+            root = contentSession.getLatestRoot();
+            userManager = benchmark.repository.userManager(root);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws Exception
+        {
+            contentSession.close();
+        }
+    }
+
+    @Benchmark
+    public void coldUser(final Session session) throws Exception
+    {
+        HeaderCredentials credentials = credentials(
+                "cold-" + BenchmarkFixtures.userId(coldUsers.incrementAndGet()));
+        synchronizer.sync(session.root, session.userManager, credentials, null, false);
+    }
+
+    @Benchmark
+    public void warmUser(final Session session) throws Exception
+    {
+        session.next = (session.next + 1) % warmCredentials.length;
+        synchronizer.sync(session.root, session.userManager, warmCredentials[session.next], null, false);
+    }
+
+    @Benchmark
+    @Threads(8)
+    public void parallelColdUsers(final Session session) throws Exception
+    {
+        coldUser(session);
+    }
+
+    @Benchmark
+    @Threads(8)
+    public void parallelWarmUsers(final Session session) throws Exception
+    {
+        warmUser(session);
+    }
+
+    private static HeaderCredentials credentials(final String userId)
+    {
+        Map<String, Object> profile = new HashMap<>();
+        for (Map.Entry<String, String> header : BenchmarkFixtures.headers(userId, 8).entrySet())
+        {
+            if (header.getKey().startsWith("OIDC_CLAIM_"))
+            {
+                profile.put(header.getKey(), header.getValue());
+            }
+        }
+        return new HeaderCredentials(userId, profile);
+    }
+}
@@ -0,0 +1,115 @@
+package com.peregrine.sling.auth.header;
+
+/*-
+ * #%L
+ * peregrinecms-com-peregrine-sling-auth-header
+ * %%
+ * Copyright (C) 2020 headwire inc.
+ * %%
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * Compares the whitelist checks of the authentication handler with plain regular expressions: the profile header name
+ * whitelist over all headers of a request, and the username whitelist.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ValidationBenchmark
+{
+    private String[] headerNames;
+    private String[] usernames;
+
+    private Pattern headerPattern;
+    private Pattern usernamePattern;
+    private CompiledMatcher headerMatcher;
+    private CompiledMatcher usernameMatcher;
+
+    @Setup
+    public void setUp()
+    {
+        headerNames = BenchmarkFixtures.headers(BenchmarkFixtures.userId(0), 24).keySet().toArray(new String[0]);
+        usernames = new String[1000];
+        for (int i = 0; i < usernames.length; i++)
+        {
+            usernames[i] = BenchmarkFixtures.userId(i);
+        }
+
+        headerPattern = Pattern.compile(HeaderAuthenticationHandlerConfig.DEFAULT_HEADER_AUTH_USER_PROFILE_HEADER_WHITELIST);
+        usernamePattern = Pattern.compile(HeaderAuthenticationHandlerConfig.DEFAULT_HEADER_AUTH_USERNAME_WHITELIST);
+        headerMatcher = CompiledMatcher.compile(HeaderAuthenticationHandlerConfig.DEFAULT_HEADER_AUTH_USER_PROFILE_HEADER_WHITELIST,
+                HeaderAuthenticationHandlerConfig.DEFAULT_HEADER_AUTH_VALIDATION_MEMO_SIZE);
+        usernameMatcher = CompiledMatcher.compile(HeaderAuthenticationHandlerConfig.DEFAULT_HEADER_AUTH_USERNAME_WHITELIST);
+    }
+
+    @Benchmark
+    public void headerNamesRegex(final Blackhole blackhole)
+    {
+        for (String headerName : headerNames)
+        {
+            blackhole.consume(headerPattern.matcher(headerName).matches());
+        }
+    }
+
+    @Benchmark
+    public void headerNamesCompiled(final Blackhole blackhole)
+    {
+        for (String headerName : headerNames)
+        {
+            blackhole.consume(headerMatcher.matches(headerName));
+        }
+    }
+
+    @Benchmark
+    public void usernamesRegex(final Blackhole blackhole)
+    {
+        for (String username : usernames)
+        {
+            blackhole.consume(usernamePattern.matcher(username).matches());
+        }
+    }
+
+    @Benchmark
+    public void usernamesCompiled(final Blackhole blackhole)
+    {
+        for (String username : usernames)
+        {
+            blackhole.consume(usernameMatcher.matches(username));
+        }
+    }
+}
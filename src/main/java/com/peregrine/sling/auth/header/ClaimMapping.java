@@ -0,0 +1,566 @@
+package com.peregrine.sling.auth.header;
+
+/*-
+ * #%L
+ * peregrinecms-com-peregrine-sling-auth-header
+ * %%
+ * Copyright (C) 2020 headwire inc.
+ * %%
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.jackrabbit.oak.commons.json.JsopReader;
+import org.apache.jackrabbit.oak.commons.json.JsopTokenizer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.DateTimeException;
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Arrays;
+import java.util.GregorianCalendar;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Maps the claims of a user profile to typed external user properties. The rules are parsed once into a plan keyed by
+ * claim name; applying the plan is a single pass over the profile with one map lookup per claim.
+ * <p>
+ * A rule has the form <code>property=claim[;option...]</code>, like the <code>user.propertyMapping</code> of the sync
+ * handler. Options:
+ * <ul>
+ *     <li><code>type=string|long|double|boolean|date</code>: converts the value. Dates are ISO-8601 date-times or
+ *     seconds since the epoch, as used by OpenID Connect.</li>
+ *     <li><code>split=SEPARATOR</code>: splits a multi-valued claim into a multi-valued property. With
+ *     <code>split=json</code>, the claim holds a JSON array.</li>
+ *     <li><code>json=NAME[.NAME...]</code>: reads a sub-claim of a claim that holds a JSON object, such as
+ *     <code>address</code>.</li>
+ * </ul>
+ * For example <code>profile/updated=OIDC_CLAIM_updated_at;type=date</code> or
+ * <code>profile/city=OIDC_CLAIM_address;json=locality</code>. A claim may be the source of several rules. Claims
+ * without a rule are either dropped or kept, with the configured prefix stripped from their name.
+ * <p>
+ * Multi-valued claims such as groups or entitlements can hold thousands of entries. They are split in a single pass
+ * over the value, without regular expressions, into a compact list backed by an array. Blank and duplicate entries
+ * are dropped, and string entries are interned in a bounded pool shared by all users, since the same entries recur
+ * across users.
+ */
+final class ClaimMapping
+{
+    private static final Logger logger = LoggerFactory.getLogger(ClaimMapping.class);
+
+    /** The identity mapping: all claims are kept with their name and string value. */
+    static final ClaimMapping NONE = new ClaimMapping(Collections.emptyMap(), "", true, 0);
+
+    private static final String JSON_ARRAY_SEPARATOR = "json";
+
+    private final Map<String, Rule[]> rulesByClaim;
+    private final String stripPrefix;
+    private final boolean keepUnmapped;
+    private final int internMaxSize;
+    private final ConcurrentHashMap<String, String> interned = new ConcurrentHashMap<>();
+
+    private ClaimMapping(final Map<String, Rule[]> rulesByClaim, final String stripPrefix, final boolean keepUnmapped,
+                         final int internMaxSize)
+    {
+        this.rulesByClaim = rulesByClaim;
+        this.stripPrefix = stripPrefix;
+        this.keepUnmapped = keepUnmapped;
+        this.internMaxSize = internMaxSize;
+    }
+
+    /**
+     * @param rules The mapping rules.
+     * @param stripPrefix Prefix removed from the names of unmapped claims, may be empty.
+     * @param keepUnmapped <code>true</code> to keep claims without a rule.
+     * @param internMaxSize Maximum number of interned entries of multi-valued claims, or 0 to disable interning.
+     * @throws IllegalArgumentException if a rule is invalid.
+     */
+    static ClaimMapping compile(final String[] rules, final String stripPrefix, final boolean keepUnmapped,
+                                final int internMaxSize)
+    {
+        final Map<String, List<Rule>> compiled = new HashMap<>();
+        for (String rule : rules)
+        {
+            if (StringUtils.isBlank(rule))
+            {
+                continue;
+            }
+            final Rule parsed = Rule.parse(rule.trim());
+            compiled.computeIfAbsent(parsed.claim, claim -> new ArrayList<>()).add(parsed);
+        }
+
+        final Map<String, Rule[]> rulesByClaim = new HashMap<>();
+        for (Map.Entry<String, List<Rule>> entry : compiled.entrySet())
+        {
+            rulesByClaim.put(entry.getKey(), entry.getValue().toArray(new Rule[0]));
+        }
+        return new ClaimMapping(rulesByClaim, StringUtils.defaultString(stripPrefix), keepUnmapped,
+                Math.max(0, internMaxSize));
+    }
+
+    /**
+     * @return <code>true</code> if the mapping returns every profile unchanged.
+     */
+    boolean isIdentity()
+    {
+        return rulesByClaim.isEmpty() && stripPrefix.isEmpty() && keepUnmapped;
+    }
+
+    /**
+     * @return The properties for the given profile. Values that cannot be converted are left out.
+     */
+    Map<String, ?> apply(final Map<String, ?> profile)
+    {
+        if (isIdentity())
+        {
+            return profile;
+        }
+
+        final Map<String, Object> properties = new HashMap<>(profile.size() * 4 / 3 + 1);
+        for (Map.Entry<String, ?> entry : profile.entrySet())
+        {
+            final Object value = entry.getValue();
+            if (value == null)
+            {
+                continue;
+            }
+
+            final Rule[] rules = rulesByClaim.get(entry.getKey());
+            if (rules != null)
+            {
+                for (Rule rule : rules)
+                {
+                    final Object converted = rule.apply(value.toString(), this);
+                    if (converted != null)
+                    {
+                        properties.put(rule.property, converted);
+                    }
+                }
+            }
+            else if (keepUnmapped)
+            {
+                final String claim = entry.getKey();
+                properties.put(claim.startsWith(stripPrefix) && claim.length() > stripPrefix.length()
+                        ? claim.substring(stripPrefix.length()) : claim, value);
+            }
+        }
+        return properties;
+    }
+
+    /**
+     * @return The pooled instance of the value. Once the pool is full, new values are returned as they are.
+     */
+    String intern(final String value)
+    {
+        if (internMaxSize == 0)
+        {
+            return value;
+        }
+
+        final String pooled = interned.get(value);
+        if (pooled != null)
+        {
+            return pooled;
+        }
+        if (interned.size() < internMaxSize)
+        {
+            final String previous = interned.putIfAbsent(value, value);
+            return previous != null ? previous : value;
+        }
+        return value;
+    }
+
+    /**
+     * @return The number of interned entries.
+     */
+    int getInternedCount()
+    {
+        return interned.size();
+    }
+
+    @Override
+    public String toString()
+    {
+        final List<Rule> rules = new ArrayList<>();
+        for (Rule[] claimRules : rulesByClaim.values())
+        {
+            Collections.addAll(rules, claimRules);
+        }
+        return "ClaimMapping" + rules;
+    }
+
+    /**
+     * The conversion of a claim value.
+     */
+    enum Type
+    {
+        STRING
+        {
+            @Override
+            Object convert(final String value)
+            {
+                return value;
+            }
+        },
+        LONG
+        {
+            @Override
+            Object convert(final String value)
+            {
+                return Long.valueOf(value);
+            }
+        },
+        DOUBLE
+        {
+            @Override
+            Object convert(final String value)
+            {
+                return Double.valueOf(value);
+            }
+        },
+        BOOLEAN
+        {
+            @Override
+            Object convert(final String value)
+            {
+                if ("true".equalsIgnoreCase(value) || "false".equalsIgnoreCase(value))
+                {
+                    return Boolean.valueOf(value);
+                }
+                throw new IllegalArgumentException("Not a boolean: " + value);
+            }
+        },
+        DATE
+        {
+            @Override
+            Object convert(final String value)
+            {
+                final Instant instant = StringUtils.isNumeric(value)
+                        ? Instant.ofEpochSecond(Long.parseLong(value))
+                        : OffsetDateTime.parse(value).toInstant();
+                return GregorianCalendar.from(instant.atZone(ZoneOffset.UTC));
+            }
+        };
+
+        /**
+         * @throws IllegalArgumentException if the value cannot be converted.
+         * @throws DateTimeException if a date cannot be parsed or is out of range.
+         */
+        abstract Object convert(String value);
+    }
+
+    /**
+     * A compiled rule.
+     */
+    private static final class Rule
+    {
+        private final String property;
+        private final String claim;
+        private final Type type;
+        private final String separator;
+        private final String[] jsonPath;
+
+        private Rule(final String property, final String claim, final Type type, final String separator,
+                     final String[] jsonPath)
+        {
+            this.property = property;
+            this.claim = claim;
+            this.type = type;
+            this.separator = separator;
+            this.jsonPath = jsonPath;
+        }
+
+        static Rule parse(final String rule)
+        {
+            final String[] parts = StringUtils.split(rule, ';');
+            final int equals = parts.length > 0 ? parts[0].indexOf('=') : -1;
+            if (equals <= 0 || equals == parts[0].length() - 1)
+            {
+                throw new IllegalArgumentException("Invalid claim mapping, expected property=claim: " + rule);
+            }
+
+            Type type = Type.STRING;
+            String separator = null;
+            String[] jsonPath = null;
+            for (int i = 1; i < parts.length; i++)
+            {
+                final String option = parts[i].trim();
+                if (option.startsWith("type="))
+                {
+                    try
+                    {
+                        type = Type.valueOf(option.substring(5).trim().toUpperCase(Locale.ROOT));
+                    } catch (IllegalArgumentException e)
+                    {
+                        throw new IllegalArgumentException("Invalid type in claim mapping: " + rule);
+                    }
+                }
+                else if (option.startsWith("split=") && option.length() > 6)
+                {
+                    separator = parts[i].substring(parts[i].indexOf('=') + 1);
+                }
+                else if (option.startsWith("json=") && option.length() > 5)
+                {
+                    jsonPath = StringUtils.split(option.substring(5).trim(), '.');
+                }
+                else
+                {
+                    throw new IllegalArgumentException("Invalid option '" + option + "' in claim mapping: " + rule);
+                }
+            }
+
+            return new Rule(parts[0].substring(0, equals).trim(), parts[0].substring(equals + 1).trim(), type,
+                    separator, jsonPath);
+        }
+
+        /**
+         * @return The converted value, a list of converted values for a split claim, or <code>null</code> if the
+         * value cannot be converted.
+         */
+        Object apply(final String value, final ClaimMapping mapping)
+        {
+            try
+            {
+                final String claimValue = jsonPath != null ? readJson(value, jsonPath) : value;
+                if (claimValue == null)
+                {
+                    return null;
+                }
+                if (separator == null)
+                {
+                    return type.convert(claimValue);
+                }
+
+                final Values values = new Values(type, mapping);
+                if (JSON_ARRAY_SEPARATOR.equals(separator))
+                {
+                    readJsonArray(claimValue, values);
+                }
+                else
+                {
+                    split(claimValue, separator, values);
+                }
+                return values.toList();
+            } catch (IllegalArgumentException | DateTimeException e)
+            {
+                logger.debug("Cannot map claim: '{}' to property: '{}': {}", claim, property, e.getMessage());
+                return null;
+            }
+        }
+
+        /**
+         * Adds the trimmed entries between the separators in one pass over the value.
+         */
+        private static void split(final String value, final String separator, final Values values)
+        {
+            final int length = value.length();
+            int start = 0;
+            while (start <= length)
+            {
+                int end = value.indexOf(separator, start);
+                if (end < 0)
+                {
+                    end = length;
+                }
+
+                int from = start;
+                int to = end;
+                while (from < to && Character.isWhitespace(value.charAt(from)))
+                {
+                    from++;
+                }
+                while (to > from && Character.isWhitespace(value.charAt(to - 1)))
+                {
+                    to--;
+                }
+                if (from < to)
+                {
+                    values.add(value.substring(from, to));
+                }
+                start = end + separator.length();
+            }
+        }
+
+        /**
+         * Adds the scalar entries of a JSON array. Nested arrays and objects are skipped.
+         */
+        private static void readJsonArray(final String json, final Values values)
+        {
+            final JsopTokenizer tokenizer = new JsopTokenizer(json);
+            tokenizer.read('[');
+            if (tokenizer.matches(']'))
+            {
+                return;
+            }
+            do
+            {
+                final int token = tokenizer.read();
+                switch (token)
+                {
+                    case JsopReader.STRING:
+                    case JsopReader.NUMBER:
+                        values.add(tokenizer.getToken().trim());
+                        break;
+                    case JsopReader.TRUE:
+                        values.add("true");
+                        break;
+                    case JsopReader.FALSE:
+                        values.add("false");
+                        break;
+                    case '[':
+                    case '{':
+                        skipNested(tokenizer, token);
+                        break;
+                    default:
+                        break;
+                }
+            } while (tokenizer.matches(','));
+            tokenizer.read(']');
+        }
+
+        /**
+         * Skips the rest of a nested array or object whose opening token was just read.
+         */
+        private static void skipNested(final JsopTokenizer tokenizer, final int open)
+        {
+            final int close = open == '[' ? ']' : '}';
+            if (tokenizer.matches(close))
+            {
+                return;
+            }
+            do
+            {
+                if (open == '{')
+                {
+                    tokenizer.readString();
+                    tokenizer.read(':');
+                }
+                tokenizer.readRawValue();
+            } while (tokenizer.matches(','));
+            tokenizer.read(close);
+        }
+
+        /**
+         * @return The scalar value at the given path of a JSON object, or <code>null</code> if there is none.
+         */
+        private static String readJson(final String json, final String[] path)
+        {
+            final JsopTokenizer tokenizer = new JsopTokenizer(json);
+            for (int depth = 0; depth < path.length; depth++)
+            {
+                if (!tokenizer.matches('{'))
+                {
+                    return null;
+                }
+                boolean found = false;
+                if (!tokenizer.matches('}'))
+                {
+                    do
+                    {
+                        final String name = tokenizer.readString();
+                        tokenizer.read(':');
+                        if (name.equals(path[depth]))
+                        {
+                            found = true;
+                            break;
+                        }
+                        tokenizer.readRawValue();
+                    } while (tokenizer.matches(','));
+                }
+                if (!found)
+                {
+                    return null;
+                }
+            }
+
+            switch (tokenizer.read())
+            {
+                case JsopReader.STRING:
+                case JsopReader.NUMBER:
+                    return tokenizer.getToken();
+                case JsopReader.TRUE:
+                    return "true";
+                case JsopReader.FALSE:
+                    return "false";
+                default:
+                    return null;
+            }
+        }
+
+        @Override
+        public String toString()
+        {
+            return property + "=" + claim + ";type=" + type.name().toLowerCase(Locale.ROOT)
+                    + (separator != null ? ";split=" + separator : "")
+                    + (jsonPath != null ? ";json=" + String.join(".", jsonPath) : "");
+        }
+    }
+
+    /**
+     * Collects the distinct entries of a multi-valued claim into an array.
+     */
+    private static final class Values
+    {
+        private final Type type;
+        private final ClaimMapping mapping;
+        private final Set<String> seen = new HashSet<>();
+        private Object[] values = new Object[16];
+        private int count;
+
+        private Values(final Type type, final ClaimMapping mapping)
+        {
+            this.type = type;
+            this.mapping = mapping;
+        }
+
+        /**
+         * @throws IllegalArgumentException if the entry cannot be converted.
+         */
+        void add(final String entry)
+        {
+            if (entry.isEmpty() || !seen.add(entry))
+            {
+                return;
+            }
+            if (count == values.length)
+            {
+                values = Arrays.copyOf(values, count * 2);
+            }
+            values[count++] = type == Type.STRING ? mapping.intern(entry) : type.convert(entry);
+        }
+
+        /**
+         * @return A fixed-size list backed by an array of the exact size.
+         */
+        List<Object> toList()
+        {
+            return Arrays.asList(Arrays.copyOf(values, count));
+        }
+    }
+}
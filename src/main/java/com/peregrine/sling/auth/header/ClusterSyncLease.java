@@ -0,0 +1,252 @@
+package com.peregrine.sling.auth.header;
+
+/*-
+ * #%L
+ * peregrinecms-com-peregrine-sling-auth-header
+ * %%
+ * Copyright (C) 2020 headwire inc.
+ * %%
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+
+import org.apache.jackrabbit.JcrConstants;
+import org.apache.jackrabbit.oak.api.CommitFailedException;
+import org.apache.jackrabbit.oak.api.PropertyState;
+import org.apache.jackrabbit.oak.api.Root;
+import org.apache.jackrabbit.oak.api.Tree;
+import org.apache.jackrabbit.oak.api.Type;
+import org.apache.jackrabbit.oak.spi.nodetype.NodeTypeConstants;
+import org.apache.jackrabbit.util.Text;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Coordinates the first sync of a user across the nodes of a cluster sharing a DocumentNodeStore. The striped locks
+ * of {@link HeaderUserSyncService} only coordinate the threads of one JVM; requests of a new user spread across
+ * nodes by the load balancer would still race to create it and fail their commits.
+ * <p>
+ * Before syncing a new user, a node claims a lease: it adds a node for the user below {@link #LEASES_PATH} and
+ * commits it. Concurrent additions of the same node conflict, so only one node's commit succeeds. The other nodes
+ * wait for the winner: they refresh until the user exists, the lease is gone or expired, or the wait times out, and
+ * then carry on with the user as they find it, syncing it locally if it is still missing. The wait is capped at a
+ * fraction of the lease TTL, so a stuck lease holder delays logins for less than its lease lasts. The winner removes
+ * the lease after its sync; a lease left behind by a crashed node expires and can be taken over.
+ */
+final class ClusterSyncLease
+{
+    private final Logger logger = LoggerFactory.getLogger(ClusterSyncLease.class);
+
+    static final String LEASES_PATH = "/var/header-auth/sync-leases";
+    private static final String OWNER_PROPERTY = "owner";
+    private static final String EXPIRES_PROPERTY = "expires";
+    private static final int MAX_WAIT_TTL_DIVISOR = 4;
+
+    private final String owner = UUID.randomUUID().toString();
+    private final long ttlMillis;
+    private final long waitMillis;
+    private final long pollMillis;
+
+    private final LongAdder claimed = new LongAdder();
+    private final LongAdder lost = new LongAdder();
+    private final LongAdder waitTimeouts = new LongAdder();
+
+    /**
+     * @param ttlMillis Time after which an unreleased lease may be taken over.
+     * @param waitMillis Maximum time to wait for the node holding a lease. Capped at a quarter of the TTL.
+     * @param pollMillis Time between two checks while waiting.
+     */
+    ClusterSyncLease(final long ttlMillis, final long waitMillis, final long pollMillis)
+    {
+        this.ttlMillis = ttlMillis;
+        this.waitMillis = Math.min(waitMillis, ttlMillis / MAX_WAIT_TTL_DIVISOR);
+        this.pollMillis = Math.max(1, pollMillis);
+    }
+
+    /**
+     * Claims the lease of the user. The root must not have pending changes; they would be committed with the claim.
+     *
+     * @return <code>true</code> if this node holds the lease now and must release it after the sync,
+     * <code>false</code> if another node holds it.
+     */
+    boolean claim(final Root root, final String userId)
+    {
+        final long now = System.currentTimeMillis();
+        final Tree leases = getOrAddTree(root, LEASES_PATH);
+        final Tree lease = leases.getChild(Text.escapeIllegalJcrChars(userId));
+        final Tree claim;
+        if (lease.exists())
+        {
+            if (isHeld(lease, now))
+            {
+                lost.increment();
+                return false;
+            }
+            logger.debug("Taking over expired sync lease of user: '{}' from: {}", userId, getOwner(lease));
+            claim = lease;
+        }
+        else
+        {
+            claim = leases.addChild(lease.getName());
+            claim.setProperty(JcrConstants.JCR_PRIMARYTYPE, NodeTypeConstants.NT_OAK_UNSTRUCTURED, Type.NAME);
+        }
+        claim.setProperty(OWNER_PROPERTY, owner);
+        claim.setProperty(EXPIRES_PROPERTY, now + ttlMillis);
+
+        try
+        {
+            root.commit();
+            claimed.increment();
+            return true;
+        } catch (CommitFailedException e)
+        {
+            // Another node claimed the lease at the same time
+            logger.debug("Lost sync lease of user: '{}': {}", userId, e.getMessage());
+            root.refresh();
+            lost.increment();
+            return false;
+        }
+    }
+
+    /**
+     * Waits until the user was synced by the node holding its lease, or until the lease is released, expires or the
+     * wait deadline passes. The root is refreshed on every check.
+     *
+     * @param isSynced Checks whether the user exists in the refreshed root.
+     * @return <code>true</code> if the user was synced by the node holding the lease, <code>false</code> if the caller
+     * has to sync it locally.
+     */
+    boolean awaitRelease(final Root root, final String userId, final BooleanSupplier isSynced)
+    {
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(waitMillis);
+        long remaining;
+        while ((remaining = deadline - System.nanoTime()) > 0)
+        {
+            try
+            {
+                Thread.sleep(Math.min(pollMillis, Math.max(1, TimeUnit.NANOSECONDS.toMillis(remaining))));
+            } catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+
+            root.refresh();
+            if (isSynced.getAsBoolean())
+            {
+                return true;
+            }
+            final Tree lease = root.getTree(LEASES_PATH).getChild(Text.escapeIllegalJcrChars(userId));
+            if (!lease.exists() || !isHeld(lease, System.currentTimeMillis()))
+            {
+                return false;
+            }
+        }
+        waitTimeouts.increment();
+        logger.debug("Timed out waiting for the sync lease of user: '{}'. Syncing it locally.", userId);
+        return false;
+    }
+
+    /**
+     * Removes the lease of the user if this node still holds it. Pending changes of the root are discarded.
+     */
+    void release(final Root root, final String userId)
+    {
+        root.refresh();
+        final Tree lease = root.getTree(LEASES_PATH).getChild(Text.escapeIllegalJcrChars(userId));
+        if (!lease.exists() || !owner.equals(getOwner(lease)))
+        {
+            return;
+        }
+        lease.remove();
+        try
+        {
+            root.commit();
+        } catch (CommitFailedException e)
+        {
+            // The lease expires on its own
+            logger.debug("Could not release sync lease of user: '{}': {}", userId, e.getMessage());
+            root.refresh();
+        }
+    }
+
+    long getClaimedCount()
+    {
+        return claimed.sum();
+    }
+
+    /**
+     * @return The number of claims that found the lease held by another node.
+     */
+    long getLostCount()
+    {
+        return lost.sum();
+    }
+
+    long getWaitTimeoutCount()
+    {
+        return waitTimeouts.sum();
+    }
+
+    void resetStats()
+    {
+        claimed.reset();
+        lost.reset();
+        waitTimeouts.reset();
+    }
+
+    private static boolean isHeld(final Tree lease, final long now)
+    {
+        final PropertyState expires = lease.getProperty(EXPIRES_PROPERTY);
+        return expires != null && expires.getValue(Type.LONG) > now;
+    }
+
+    private static String getOwner(final Tree lease)
+    {
+        final PropertyState owner = lease.getProperty(OWNER_PROPERTY);
+        return owner != null ? owner.getValue(Type.STRING) : null;
+    }
+
+    /**
+     * Gets the tree at the given path, adding missing trees as <code>oak:Unstructured</code>, which unlike
+     * <code>nt:unstructured</code> keeps no child order, so that leases of different users never conflict.
+     */
+    private static Tree getOrAddTree(final Root root, final String path)
+    {
+        Tree tree = root.getTree("/");
+        for (String name : Text.explode(path, '/'))
+        {
+            final Tree child = tree.getChild(name);
+            if (child.exists())
+            {
+                tree = child;
+            }
+            else
+            {
+                tree = tree.addChild(name);
+                tree.setProperty(JcrConstants.JCR_PRIMARYTYPE, NodeTypeConstants.NT_OAK_UNSTRUCTURED, Type.NAME);
+            }
+        }
+        return tree;
+    }
+}
@@ -0,0 +1,183 @@
+package com.peregrine.sling.auth.header;
+
+/*-
+ * #%L
+ * peregrinecms-com-peregrine-sling-auth-header
+ * %%
+ * Copyright (C) 2020 headwire inc.
+ * %%
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+/**
+ * A whitelist pattern compiled for the request path. It gives exactly the same answer as
+ * <code>Pattern.compile(regex).matcher(input).matches()</code>, but:
+ * <ul>
+ *     <li>patterns of the form <code>^LITERAL(.+)$</code> or <code>^LITERAL(.*)$</code> (anchors optional) are
+ *     checked with a prefix comparison instead of the regex engine</li>
+ *     <li>decisions are optionally memoized in a bounded map. Once the map is full, new inputs are evaluated but not
+ *     remembered, so the memo is only used for low-cardinality inputs such as header names.</li>
+ * </ul>
+ */
+final class CompiledMatcher
+{
+    private final Pattern pattern;
+    private final String literalPrefix;
+    private final boolean requireSuffix;
+    private final ConcurrentHashMap<String, Boolean> memo;
+    private final int memoSize;
+
+    private CompiledMatcher(final Pattern pattern, final String literalPrefix, final boolean requireSuffix,
+                            final int memoSize)
+    {
+        this.pattern = pattern;
+        this.literalPrefix = literalPrefix;
+        this.requireSuffix = requireSuffix;
+        this.memoSize = memoSize;
+        this.memo = memoSize > 0 ? new ConcurrentHashMap<>() : null;
+    }
+
+    /**
+     * Compiles a pattern without memoization, for attacker-controlled, high-cardinality inputs such as usernames and
+     * group ids, which would fill up a memo with junk.
+     */
+    static CompiledMatcher compile(final String regex)
+    {
+        return compile(regex, 0);
+    }
+
+    /**
+     * @param regex The whitelist pattern.
+     * @param memoSize Maximum number of memoized decisions, or 0 to disable memoization. Only meant for inputs drawn
+     * from a small set, such as header names: once the memo is full it is never updated again.
+     */
+    static CompiledMatcher compile(final String regex, final int memoSize)
+    {
+        final Pattern pattern = Pattern.compile(regex);
+
+        int start = regex.startsWith("^") ? 1 : 0;
+        int end = regex.endsWith("$") && !regex.endsWith("\\$") ? regex.length() - 1 : regex.length();
+        final String body = regex.substring(Math.min(start, end), end);
+
+        String prefix = null;
+        boolean requireSuffix = false;
+        if (body.endsWith("(.+)") || body.endsWith("(.*)"))
+        {
+            prefix = body.substring(0, body.length() - 4);
+            requireSuffix = body.endsWith("(.+)");
+        }
+        else if (body.endsWith(".+") || body.endsWith(".*"))
+        {
+            prefix = body.substring(0, body.length() - 2);
+            requireSuffix = body.endsWith(".+");
+        }
+
+        return new CompiledMatcher(pattern, isLiteral(prefix) ? prefix : null, requireSuffix, memoSize);
+    }
+
+    boolean matches(final String input)
+    {
+        if (memo == null)
+        {
+            return evaluate(input);
+        }
+
+        final Boolean memoized = memo.get(input);
+        if (memoized != null)
+        {
+            return memoized;
+        }
+
+        final boolean matches = evaluate(input);
+        if (memo.size() < memoSize)
+        {
+            memo.put(input, matches);
+        }
+        return matches;
+    }
+
+    /**
+     * @return <code>true</code> if the prefix fast path is used for this pattern.
+     */
+    boolean isLiteralPrefix()
+    {
+        return literalPrefix != null;
+    }
+
+    private boolean evaluate(final String input)
+    {
+        if (literalPrefix == null)
+        {
+            return pattern.matcher(input).matches();
+        }
+
+        if (!input.startsWith(literalPrefix))
+        {
+            return false;
+        }
+
+        final int length = input.length();
+        if (requireSuffix && length == literalPrefix.length())
+        {
+            return false;
+        }
+
+        // Without DOTALL, '.' matches anything but a line terminator
+        for (int i = literalPrefix.length(); i < length; i++)
+        {
+            if (isLineTerminator(input.charAt(i)))
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isLiteral(final String prefix)
+    {
+        if (prefix == null)
+        {
+            return false;
+        }
+
+        for (int i = 0; i < prefix.length(); i++)
+        {
+            final char c = prefix.charAt(i);
+            if (!((c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') || c == '_' || c == '-'))
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isLineTerminator(final char c)
+    {
+        return c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029';
+    }
+
+    @Override
+    public String toString()
+    {
+        return pattern.pattern();
+    }
+}
@@ -0,0 +1,395 @@
+package com.peregrine.sling.auth.header;
+
+/*-
+ * #%L
+ * peregrinecms-com-peregrine-sling-auth-header
+ * %%
+ * Copyright (C) 2020 headwire inc.
+ * %%
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * An append-only journal of authentication and sync events, written as JSON Lines. Recording an event never blocks
+ * and never does I/O: events are offered to a bounded, lock-free ring buffer and written by a single daemon thread.
+ * When the ring is full the event is dropped and counted, so a slow disk cannot slow down logins.
+ * <p>
+ * The file is rotated when it exceeds the max size: <code>journal.jsonl</code> becomes <code>journal.jsonl.1</code>,
+ * <code>journal.jsonl.1</code> becomes <code>journal.jsonl.2</code> and so on, and the oldest file is deleted.
+ * See {@link EventJournalTool} to dump or aggregate the files.
+ */
+final class EventJournal implements Runnable
+{
+    private final Logger logger = LoggerFactory.getLogger(EventJournal.class);
+
+    static final String EXTRACT = "extract";
+    static final String SYNC = "sync";
+    static final String RETRY = "retry";
+    static final String SKIP = "skip";
+
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+    private static final int MAX_CAPACITY = 1 << 20;
+    private static final int WRITE_BUFFER_SIZE = 1 << 16;
+
+    private final Path file;
+    private final long maxFileSize;
+    private final int maxFiles;
+
+    private final AtomicReferenceArray<Event> ring;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();
+    private volatile long head;
+
+    private final Thread thread;
+    private volatile boolean running = true;
+    private final LongAdder written = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final StringBuilder line = new StringBuilder(256);
+    private Writer writer;
+    private long fileSize;
+
+    /**
+     * @param file The current journal file. Missing parent directories are created.
+     * @param maxFileSize Size in bytes after which the file is rotated.
+     * @param maxFiles Number of rotated files kept in addition to the current file.
+     * @param capacity Number of events buffered for the writer, rounded up to a power of two.
+     */
+    EventJournal(final Path file, final long maxFileSize, final int maxFiles, final int capacity)
+    {
+        this.file = file;
+        this.maxFileSize = maxFileSize;
+        this.maxFiles = Math.max(0, maxFiles);
+        final int size = Integer.highestOneBit(Math.min(MAX_CAPACITY, Math.max(2, capacity)) * 2 - 1);
+        this.ring = new AtomicReferenceArray<>(size);
+        this.mask = size - 1;
+        this.thread = new Thread(this, "header-event-journal");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    void recordExtraction(final String outcome, final String userId, final String source)
+    {
+        offer(new Event(EXTRACT, userId, outcome, source, 0, -1, null));
+    }
+
+    void recordSync(final String userId, final String outcome, final int attempt, final long commitNanos,
+                    final String error)
+    {
+        offer(new Event(SYNC, userId, outcome, null, attempt, commitNanos, error));
+    }
+
+    void recordRetry(final String userId, final int attempt, final long commitNanos, final String error)
+    {
+        offer(new Event(RETRY, userId, null, null, attempt, commitNanos, error));
+    }
+
+    void recordSkip(final String userId, final String reason)
+    {
+        offer(new Event(SKIP, userId, reason, null, 0, -1, null));
+    }
+
+    /**
+     * Adds the event to the ring unless it is full. Any number of threads may call this concurrently.
+     */
+    private void offer(final Event event)
+    {
+        if (!running)
+        {
+            return;
+        }
+
+        long sequence;
+        do
+        {
+            sequence = tail.get();
+            if (sequence - head > mask)
+            {
+                dropped.increment();
+                return;
+            }
+        } while (!tail.compareAndSet(sequence, sequence + 1));
+        ring.lazySet((int) sequence & mask, event);
+        if (sequence - head == mask >>> 1)
+        {
+            // Wake the writer early from its idle pause when a burst fills half of the ring
+            LockSupport.unpark(thread);
+        }
+    }
+
+    /**
+     * Takes the next event off the ring. Only called by the writer thread.
+     *
+     * @return The next event, or <code>null</code> if the ring is empty or the next event is not published yet.
+     */
+    private Event poll()
+    {
+        final long sequence = head;
+        final int index = (int) sequence & mask;
+        final Event event = ring.get(index);
+        if (event != null)
+        {
+            ring.lazySet(index, null);
+            head = sequence + 1;
+        }
+        return event;
+    }
+
+    /**
+     * Stops the writer after it wrote the buffered events.
+     */
+    void close()
+    {
+        running = false;
+        LockSupport.unpark(thread);
+        try
+        {
+            thread.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void run()
+    {
+        try
+        {
+            open();
+            while (running || tail.get() != head)
+            {
+                final Event event = poll();
+                if (event == null)
+                {
+                    // Flush when idle, so that the file is complete whenever no events are pending
+                    writer.flush();
+                    if (tail.get() == head)
+                    {
+                        LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+                    }
+                    continue;
+                }
+                write(event);
+            }
+            writer.flush();
+        } catch (IOException e)
+        {
+            logger.error("Error writing event journal: {}. Journal stopped.", file, e);
+            running = false;
+        } finally
+        {
+            closeWriter();
+        }
+    }
+
+    private void write(final Event event) throws IOException
+    {
+        line.setLength(0);
+        event.appendJson(line);
+        line.append('\n');
+        writer.append(line);
+        written.increment();
+        // The journal is mostly ASCII, so the char count is close enough to the byte count for rotation
+        fileSize += line.length();
+        if (fileSize >= maxFileSize)
+        {
+            rotate();
+        }
+    }
+
+    private void open() throws IOException
+    {
+        final Path parent = file.toAbsolutePath().getParent();
+        if (parent != null)
+        {
+            Files.createDirectories(parent);
+        }
+        fileSize = Files.exists(file) ? Files.size(file) : 0;
+        writer = new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(file, StandardOpenOption.CREATE,
+                StandardOpenOption.APPEND), StandardCharsets.UTF_8), WRITE_BUFFER_SIZE);
+    }
+
+    private void rotate() throws IOException
+    {
+        writer.close();
+        if (maxFiles == 0)
+        {
+            Files.delete(file);
+        }
+        else
+        {
+            Files.deleteIfExists(rotated(maxFiles));
+            for (int i = maxFiles - 1; i >= 1; i--)
+            {
+                if (Files.exists(rotated(i)))
+                {
+                    Files.move(rotated(i), rotated(i + 1), StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+            Files.move(file, rotated(1), StandardCopyOption.REPLACE_EXISTING);
+        }
+        open();
+    }
+
+    private Path rotated(final int index)
+    {
+        return file.resolveSibling(file.getFileName() + "." + index);
+    }
+
+    private void closeWriter()
+    {
+        if (writer != null)
+        {
+            try
+            {
+                writer.close();
+            } catch (IOException e)
+            {
+                logger.debug("Error closing event journal: {}", file, e);
+            }
+        }
+    }
+
+    Path getFile()
+    {
+        return file;
+    }
+
+    long getWrittenCount()
+    {
+        return written.sum();
+    }
+
+    /**
+     * @return The number of events dropped because the ring was full.
+     */
+    long getDroppedCount()
+    {
+        return dropped.sum();
+    }
+
+    int getPendingCount()
+    {
+        return (int) (tail.get() - head);
+    }
+
+    /**
+     * A journal event. Fields that do not apply to the type are left out of the JSON.
+     */
+    private static final class Event
+    {
+        private final long time = System.currentTimeMillis();
+        private final String type;
+        private final String userId;
+        private final String outcome;
+        private final String source;
+        private final int attempt;
+        private final long commitNanos;
+        private final String error;
+
+        private Event(final String type, final String userId, final String outcome, final String source,
+                      final int attempt, final long commitNanos, final String error)
+        {
+            this.type = type;
+            this.userId = userId;
+            this.outcome = outcome;
+            this.source = source;
+            this.attempt = attempt;
+            this.commitNanos = commitNanos;
+            this.error = error;
+        }
+
+        void appendJson(final StringBuilder json)
+        {
+            json.append("{\"ts\":").append(time).append(",\"type\":\"").append(type).append('"');
+            appendString(json, "user", userId);
+            appendString(json, "outcome", outcome);
+            appendString(json, "source", source);
+            if (attempt > 0)
+            {
+                json.append(",\"attempt\":").append(attempt);
+            }
+            if (commitNanos >= 0)
+            {
+                json.append(",\"commitMicros\":").append(TimeUnit.NANOSECONDS.toMicros(commitNanos));
+            }
+            appendString(json, "error", error);
+            json.append('}');
+        }
+
+        private static void appendString(final StringBuilder json, final String name, final String value)
+        {
+            if (value == null)
+            {
+                return;
+            }
+            json.append(",\"").append(name).append("\":\"");
+            for (int i = 0; i < value.length(); i++)
+            {
+                final char c = value.charAt(i);
+                switch (c)
+                {
+                    case '"':
+                        json.append("\\\"");
+                        break;
+                    case '\\':
+                        json.append("\\\\");
+                        break;
+                    case '\n':
+                        json.append("\\n");
+                        break;
+                    case '\r':
+                        json.append("\\r");
+                        break;
+                    case '\t':
+                        json.append("\\t");
+                        break;
+                    default:
+                        if (c < 0x20)
+                        {
+                            json.append(String.format("\\u%04x", (int) c));
+                        }
+                        else
+                        {
+                            json.append(c);
+                        }
+                }
+            }
+            json.append('"');
+        }
+    }
+}
@@ -0,0 +1,453 @@
+package com.peregrine.sling.auth.header;
+
+/*-
+ * #%L
+ * peregrinecms-com-peregrine-sling-auth-header
+ * %%
+ * Copyright (C) 2020 headwire inc.
+ * %%
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Command line tool to dump or aggregate the files written by {@link EventJournal}. It only needs the JDK, so it runs
+ * with the bundle jar alone, e.g. on a copy of the journal:
+ * <pre>
+ * java -cp peregrinecms-com-peregrine-sling-auth-header-&lt;version&gt;.jar \
+ *     com.peregrine.sling.auth.header.EventJournalTool stats --type=sync logs/header-auth-journal.jsonl
+ * </pre>
+ * Commands:
+ * <ul>
+ *     <li><code>dump</code>: prints the matching events</li>
+ *     <li><code>stats</code>: prints the count of the matching events by type and outcome, the commit latency of
+ *     syncs and retries, and the users with the most retries and failures</li>
+ * </ul>
+ * Filters: <code>--type=</code>, <code>--user=</code>, <code>--outcome=</code>, and <code>--since=</code> and
+ * <code>--until=</code> as ISO-8601 instants or epoch milliseconds. <code>--top=</code> sets the number of users
+ * listed by <code>stats</code> (10). A journal file is read together with its rotated files, oldest first.
+ */
+public final class EventJournalTool
+{
+    private static final String USAGE = "Usage: EventJournalTool dump|stats [--type=T] [--user=U] [--outcome=O] "
+            + "[--since=INSTANT] [--until=INSTANT] [--top=N] FILE...";
+
+    private final Map<String, String> filters = new HashMap<>();
+    private long since = Long.MIN_VALUE;
+    private long until = Long.MAX_VALUE;
+    private int top = 10;
+
+    private EventJournalTool()
+    {
+    }
+
+    public static void main(final String[] args) throws IOException
+    {
+        if (args.length < 2 || !("dump".equals(args[0]) || "stats".equals(args[0])))
+        {
+            System.err.println(USAGE);
+            System.exit(2);
+        }
+
+        final EventJournalTool tool = new EventJournalTool();
+        final List<Path> files = new ArrayList<>();
+        for (String arg : Arrays.asList(args).subList(1, args.length))
+        {
+            if (arg.startsWith("--"))
+            {
+                tool.option(arg);
+            }
+            else
+            {
+                files.addAll(withRotatedFiles(Paths.get(arg)));
+            }
+        }
+
+        if ("dump".equals(args[0]))
+        {
+            tool.dump(files, System.out);
+        }
+        else
+        {
+            tool.stats(files, System.out);
+        }
+    }
+
+    private void option(final String arg)
+    {
+        final int equals = arg.indexOf('=');
+        if (equals < 0)
+        {
+            throw new IllegalArgumentException("Invalid option: " + arg + "\n" + USAGE);
+        }
+        final String name = arg.substring(2, equals);
+        final String value = arg.substring(equals + 1);
+        switch (name)
+        {
+            case "type":
+            case "user":
+            case "outcome":
+                filters.put(name, value);
+                break;
+            case "since":
+                since = parseInstant(value);
+                break;
+            case "until":
+                until = parseInstant(value);
+                break;
+            case "top":
+                top = Integer.parseInt(value);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown option: " + arg + "\n" + USAGE);
+        }
+    }
+
+    private void dump(final List<Path> files, final PrintStream out) throws IOException
+    {
+        for (Path file : files)
+        {
+            try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8))
+            {
+                String line;
+                while ((line = reader.readLine()) != null)
+                {
+                    final Map<String, String> event = parse(line);
+                    if (event != null && matches(event))
+                    {
+                        out.println(line);
+                    }
+                }
+            }
+        }
+    }
+
+    private void stats(final List<Path> files, final PrintStream out) throws IOException
+    {
+        final Map<String, Long> counts = new TreeMap<>();
+        final Map<String, Latencies> commitLatencies = new TreeMap<>();
+        final Map<String, Long> troubledUsers = new HashMap<>();
+        long first = Long.MAX_VALUE;
+        long last = Long.MIN_VALUE;
+        long total = 0;
+        long invalid = 0;
+
+        for (Path file : files)
+        {
+            try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8))
+            {
+                String line;
+                while ((line = reader.readLine()) != null)
+                {
+                    final Map<String, String> event = parse(line);
+                    if (event == null)
+                    {
+                        invalid++;
+                        continue;
+                    }
+                    if (!matches(event))
+                    {
+                        continue;
+                    }
+
+                    total++;
+                    final long time = Long.parseLong(event.getOrDefault("ts", "0"));
+                    first = Math.min(first, time);
+                    last = Math.max(last, time);
+                    final String type = event.getOrDefault("type", "?");
+                    counts.merge(type + " " + event.getOrDefault("outcome", "-"), 1L, Long::sum);
+
+                    final String micros = event.get("commitMicros");
+                    if (micros != null)
+                    {
+                        commitLatencies.computeIfAbsent(type, t -> new Latencies()).add(Long.parseLong(micros));
+                    }
+
+                    final String user = event.get("user");
+                    if (user != null && (EventJournal.RETRY.equals(type) || "FAILED".equals(event.get("outcome"))))
+                    {
+                        troubledUsers.merge(user, 1L, Long::sum);
+                    }
+                }
+            }
+        }
+
+        out.println("events: " + total + (invalid > 0 ? " (" + invalid + " invalid lines)" : ""));
+        if (total > 0)
+        {
+            out.println("from: " + Instant.ofEpochMilli(first) + " to: " + Instant.ofEpochMilli(last));
+        }
+        out.println();
+        out.println("count by type and outcome:");
+        counts.forEach((key, count) -> out.printf("  %-32s %10d%n", key, count));
+
+        if (!commitLatencies.isEmpty())
+        {
+            out.println();
+            out.println("commit latency (ms):");
+            out.printf("  %-10s %10s %10s %10s %10s %10s%n", "type", "count", "p50", "p99", "p99.9", "max");
+            for (Map.Entry<String, Latencies> entry : commitLatencies.entrySet())
+            {
+                final long[] sorted = entry.getValue().sorted();
+                out.printf("  %-10s %10d %10.2f %10.2f %10.2f %10.2f%n", entry.getKey(), sorted.length,
+                        percentile(sorted, 0.5), percentile(sorted, 0.99), percentile(sorted, 0.999),
+                        sorted[sorted.length - 1] / 1000d);
+            }
+        }
+
+        if (!troubledUsers.isEmpty())
+        {
+            out.println();
+            out.println("users with the most retries and failures:");
+            troubledUsers.entrySet().stream()
+                    .sorted(Map.Entry.<String, Long>comparingByValue().reversed())
+                    .limit(top)
+                    .forEach(entry -> out.printf("  %-48s %10d%n", entry.getKey(), entry.getValue()));
+        }
+    }
+
+    private boolean matches(final Map<String, String> event)
+    {
+        for (Map.Entry<String, String> filter : filters.entrySet())
+        {
+            if (!filter.getValue().equals(event.get(filter.getKey())))
+            {
+                return false;
+            }
+        }
+        if (since != Long.MIN_VALUE || until != Long.MAX_VALUE)
+        {
+            final long time = Long.parseLong(event.getOrDefault("ts", "0"));
+            return time >= since && time < until;
+        }
+        return true;
+    }
+
+    /**
+     * @return The value at the given percentile of the sorted microseconds, in milliseconds.
+     */
+    private static double percentile(final long[] sorted, final double percentile)
+    {
+        final int index = (int) Math.ceil(percentile * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))] / 1000d;
+    }
+
+    private static long parseInstant(final String value)
+    {
+        return value.chars().allMatch(Character::isDigit) ? Long.parseLong(value) : Instant.parse(value).toEpochMilli();
+    }
+
+    /**
+     * @return The rotated files of the journal file, oldest first, followed by the file itself.
+     */
+    private static List<Path> withRotatedFiles(final Path file)
+    {
+        final List<Path> files = new ArrayList<>();
+        final String name = file.getFileName().toString();
+        if (!name.matches(".*\\.\\d+"))
+        {
+            int index = 1;
+            while (Files.exists(file.resolveSibling(name + "." + index)))
+            {
+                index++;
+            }
+            for (int i = index - 1; i >= 1; i--)
+            {
+                files.add(file.resolveSibling(name + "." + i));
+            }
+        }
+        files.add(file);
+        return files;
+    }
+
+    /**
+     * Parses a journal line: a flat JSON object with string and number values.
+     *
+     * @return The values by name, or <code>null</code> if the line is not such an object, e.g. a line cut off by a
+     * crash.
+     */
+    static Map<String, String> parse(final String line)
+    {
+        final Map<String, String> values = new LinkedHashMap<>();
+        final int[] position = { skipWhitespace(line, 0) };
+        if (position[0] >= line.length() || line.charAt(position[0]) != '{')
+        {
+            return null;
+        }
+        position[0] = skipWhitespace(line, position[0] + 1);
+        if (position[0] < line.length() && line.charAt(position[0]) == '}')
+        {
+            return values;
+        }
+
+        while (position[0] < line.length())
+        {
+            final String name = readString(line, position);
+            position[0] = skipWhitespace(line, position[0]);
+            if (name == null || position[0] >= line.length() || line.charAt(position[0]) != ':')
+            {
+                return null;
+            }
+            position[0] = skipWhitespace(line, position[0] + 1);
+
+            final String value;
+            if (position[0] < line.length() && line.charAt(position[0]) == '"')
+            {
+                value = readString(line, position);
+            }
+            else
+            {
+                final int start = position[0];
+                while (position[0] < line.length() && ",} \t".indexOf(line.charAt(position[0])) < 0)
+                {
+                    position[0]++;
+                }
+                value = line.substring(start, position[0]);
+            }
+            if (value == null)
+            {
+                return null;
+            }
+            values.put(name, value);
+
+            position[0] = skipWhitespace(line, position[0]);
+            if (position[0] >= line.length())
+            {
+                return null;
+            }
+            final char next = line.charAt(position[0]);
+            position[0] = skipWhitespace(line, position[0] + 1);
+            if (next == '}')
+            {
+                return values;
+            }
+            if (next != ',')
+            {
+                return null;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Reads the string starting at the position and moves the position past its closing quote.
+     */
+    private static String readString(final String line, final int[] position)
+    {
+        int i = position[0];
+        if (i >= line.length() || line.charAt(i) != '"')
+        {
+            return null;
+        }
+
+        final StringBuilder value = new StringBuilder();
+        for (i++; i < line.length(); i++)
+        {
+            final char c = line.charAt(i);
+            if (c == '"')
+            {
+                position[0] = i + 1;
+                return value.toString();
+            }
+            if (c != '\\')
+            {
+                value.append(c);
+                continue;
+            }
+            if (++i >= line.length())
+            {
+                return null;
+            }
+            final char escaped = line.charAt(i);
+            switch (escaped)
+            {
+                case 'n':
+                    value.append('\n');
+                    break;
+                case 'r':
+                    value.append('\r');
+                    break;
+                case 't':
+                    value.append('\t');
+                    break;
+                case 'u':
+                    if (i + 4 >= line.length())
+                    {
+                        return null;
+                    }
+                    value.append((char) Integer.parseInt(line.substring(i + 1, i + 5), 16));
+                    i += 4;
+                    break;
+                default:
+                    value.append(escaped);
+            }
+        }
+        return null;
+    }
+
+    private static int skipWhitespace(final String line, final int start)
+    {
+        int i = start;
+        while (i < line.length() && Character.isWhitespace(line.charAt(i)))
+        {
+            i++;
+        }
+        return i;
+    }
+
+    /**
+     * A growable array of latencies in microseconds.
+     */
+    private static final class Latencies
+    {
+        private long[] values = new long[64];
+        private int count;
+
+        void add(final long micros)
+        {
+            if (count == values.length)
+            {
+                values = Arrays.copyOf(values, count * 2);
+            }
+            values[count++] = micros;
+        }
+
+        long[] sorted()
+        {
+            final long[] sorted = Arrays.copyOf(values, count);
+            Arrays.sort(sorted);
+            return sorted;
+        }
+    }
+}
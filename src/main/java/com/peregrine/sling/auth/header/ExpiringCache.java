@@ -0,0 +1,219 @@
+package com.peregrine.sling.auth.header;
+
+/*-
+ * #%L
+ * peregrinecms-com-peregrine-sling-auth-header
+ * %%
+ * Copyright (C) 2020 headwire inc.
+ * %%
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiPredicate;
+
+/**
+ * A small concurrent cache bounded by size and time-to-live. Reads never lock. When the cache grows past its maximum
+ * size, one thread purges the expired entries and then evicts arbitrary entries until the size is down to a low
+ * watermark an eighth below the maximum. Evicting in batches keeps the cost of a full cache under churn at a constant
+ * per insert instead of a walk of the whole map; puts that find an eviction in progress do not wait for it, so the
+ * size may briefly exceed the maximum by the number of concurrent writers. Hit, miss and eviction counts are tracked
+ * for monitoring.
+ *
+ * @param <K> key type
+ * @param <V> value type
+ */
+final class ExpiringCache<K, V>
+{
+    private final ConcurrentHashMap<K, Entry<V>> entries = new ConcurrentHashMap<>();
+    private final int maxSize;
+    private final int lowWatermark;
+    private final long ttlNanos;
+    private final AtomicBoolean evicting = new AtomicBoolean();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    ExpiringCache(final int maxSize, final long ttl, final TimeUnit unit)
+    {
+        if (maxSize <= 0)
+        {
+            throw new IllegalArgumentException("maxSize must be greater than 0");
+        }
+        this.maxSize = maxSize;
+        this.lowWatermark = maxSize - Math.max(1, maxSize / 8);
+        this.ttlNanos = unit.toNanos(ttl);
+    }
+
+    /**
+     * @return The cached value or <code>null</code> if there is no live entry for the key.
+     */
+    V get(final K key)
+    {
+        final Entry<V> entry = entries.get(key);
+        if (entry == null)
+        {
+            misses.increment();
+            return null;
+        }
+
+        if (entry.isExpired(System.nanoTime()))
+        {
+            if (entries.remove(key, entry))
+            {
+                evictions.increment();
+            }
+            misses.increment();
+            return null;
+        }
+
+        hits.increment();
+        return entry.value;
+    }
+
+    void put(final K key, final V value)
+    {
+        put(key, value, ttlNanos);
+    }
+
+    /**
+     * Adds an entry that expires after the given time or the time-to-live of the cache, whichever is sooner.
+     */
+    void put(final K key, final V value, final long ttl, final TimeUnit unit)
+    {
+        put(key, value, Math.min(unit.toNanos(ttl), ttlNanos));
+    }
+
+    private void put(final K key, final V value, final long entryTtlNanos)
+    {
+        entries.put(key, new Entry<>(value, System.nanoTime() + entryTtlNanos));
+        if (entries.size() > maxSize && evicting.compareAndSet(false, true))
+        {
+            try
+            {
+                evict();
+            } finally
+            {
+                evicting.set(false);
+            }
+        }
+    }
+
+    void invalidate(final K key)
+    {
+        entries.remove(key);
+    }
+
+    void invalidateAll()
+    {
+        entries.clear();
+    }
+
+    /**
+     * Removes every entry whose key and value match the predicate. This walks the whole cache and is meant for
+     * infrequent invalidation, not for the request path.
+     */
+    void invalidateIf(final BiPredicate<? super K, ? super V> predicate)
+    {
+        entries.entrySet().removeIf(entry -> predicate.test(entry.getKey(), entry.getValue().value));
+    }
+
+    int size()
+    {
+        return entries.size();
+    }
+
+    long getHitCount()
+    {
+        return hits.sum();
+    }
+
+    long getMissCount()
+    {
+        return misses.sum();
+    }
+
+    long getEvictionCount()
+    {
+        return evictions.sum();
+    }
+
+    void resetStats()
+    {
+        hits.reset();
+        misses.reset();
+        evictions.reset();
+    }
+
+    @Override
+    public String toString()
+    {
+        return "ExpiringCache{size=" + size() + ", hits=" + getHitCount() + ", misses=" + getMissCount()
+                + ", evictions=" + getEvictionCount() + "}";
+    }
+
+    /**
+     * Purges the expired entries, then evicts arbitrary entries down to the low watermark. Called by one thread at a
+     * time.
+     */
+    private void evict()
+    {
+        final long now = System.nanoTime();
+        final Iterator<Map.Entry<K, Entry<V>>> iterator = entries.entrySet().iterator();
+        while (iterator.hasNext())
+        {
+            if (iterator.next().getValue().isExpired(now))
+            {
+                iterator.remove();
+                evictions.increment();
+            }
+        }
+
+        final Iterator<K> keys = entries.keySet().iterator();
+        while (entries.size() > lowWatermark && keys.hasNext())
+        {
+            keys.next();
+            keys.remove();
+            evictions.increment();
+        }
+    }
+
+    private static final class Entry<V>
+    {
+        private final V value;
+        private final long expiresAt;
+
+        private Entry(final V value, final long expiresAt)
+        {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+
+        private boolean isExpired(final long now)
+        {
+            return now - expiresAt >= 0;
+        }
+    }
+}
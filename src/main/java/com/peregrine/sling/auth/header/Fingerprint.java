@@ -0,0 +1,140 @@
+package com.peregrine.sling.auth.header;
+
+/*-
+ * #%L
+ * peregrinecms-com-peregrine-sling-auth-header
+ * %%
+ * Copyright (C) 2020 headwire inc.
+ * %%
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+
+import java.util.Map;
+
+/**
+ * Compact, allocation-free 64-bit fingerprints (FNV-1a) for header values. These are used to detect changes and to
+ * build cache keys; they are <b>not</b> a substitute for a cryptographic digest.
+ */
+final class Fingerprint
+{
+    static final long EMPTY = 0L;
+
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private Fingerprint()
+    {
+    }
+
+    /**
+     * @return The FNV-1a hash of the given value, or {@link #EMPTY} if it is <code>null</code>.
+     */
+    static long of(final CharSequence value)
+    {
+        if (value == null)
+        {
+            return EMPTY;
+        }
+
+        long hash = FNV_OFFSET_BASIS;
+        for (int i = 0; i < value.length(); i++)
+        {
+            final char c = value.charAt(i);
+            hash = (hash ^ (c & 0xff)) * FNV_PRIME;
+            hash = (hash ^ (c >>> 8)) * FNV_PRIME;
+        }
+        return hash;
+    }
+
+    /**
+     * Adds a name/value pair to a running fingerprint. The combination is order-independent so the result does not
+     * depend on the order in which the container enumerates request headers.
+     */
+    static long add(final long fingerprint, final String name, final String value)
+    {
+        return fingerprint + mix(of(name) * 31 + of(value));
+    }
+
+    /**
+     * @return The order-independent fingerprint of all entries in the map.
+     */
+    static long of(final Map<String, ?> values)
+    {
+        long fingerprint = EMPTY;
+        if (values != null)
+        {
+            for (Map.Entry<String, ?> entry : values.entrySet())
+            {
+                final Object value = entry.getValue();
+                fingerprint = add(fingerprint, entry.getKey(), value == null ? null : value.toString());
+            }
+        }
+        return fingerprint;
+    }
+
+    /**
+     * @return The order-independent fingerprint of all values, each paired with the given name.
+     */
+    static long of(final String name, final Iterable<String> values)
+    {
+        long fingerprint = EMPTY;
+        if (values != null)
+        {
+            for (String value : values)
+            {
+                fingerprint = add(fingerprint, name, value);
+            }
+        }
+        return fingerprint;
+    }
+
+    /**
+     * @return The fingerprint as a fixed-width hex string, suitable for storing as a repository property.
+     */
+    static String toHex(final long fingerprint)
+    {
+        final String hex = Long.toHexString(fingerprint);
+        return "0000000000000000".substring(hex.length()) + hex;
+    }
+
+    /**
+     * @return The fingerprint of a hex string created by {@link #toHex(long)}, or {@link #EMPTY} if it is not valid.
+     */
+    static long fromHex(final String hex)
+    {
+        try
+        {
+            return hex != null ? Long.parseUnsignedLong(hex, 16) : EMPTY;
+        } catch (NumberFormatException e)
+        {
+            return EMPTY;
+        }
+    }
+
+    private static long mix(long value)
+    {
+        // MurmurHash3 finalizer, spreads the pair hash before it is summed
+        value ^= value >>> 33;
+        value *= 0xff51afd7ed558ccdL;
+        value ^= value >>> 33;
+        value *= 0xc4ceb9fe1a85ec53L;
+        value ^= value >>> 33;
+        return value;
+    }
+}
@@ -0,0 +1,402 @@
+package com.peregrine.sling.auth.header;
+
+/*-
+ * #%L
+ * peregrinecms-com-peregrine-sling-auth-header
+ * %%
+ * Copyright (C) 2020 headwire inc.
+ * %%
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.component.annotations.ReferenceCardinality;
+import org.osgi.service.component.annotations.ReferencePolicy;
+
+import java.util.Map;
+import java.util.function.ToLongFunction;
+
+/**
+ * Exposes the counters, timers and cache statistics of {@link HeaderAuthenticationHandler} and
+ * {@link HeaderUserSyncService} as an MBean. The service is registered with the JMX whiteboard under
+ * {@value #OBJECT_NAME}. The handler statistics are summed over all tenants.
+ */
+@Component(
+        service = HeaderAuthMonitorMBean.class,
+        property = {
+                "jmx.objectname=" + HeaderAuthMonitor.OBJECT_NAME
+        }
+)
+public class HeaderAuthMonitor implements HeaderAuthMonitorMBean
+{
+    public static final String OBJECT_NAME = "com.peregrine.sling.auth.header:type=HeaderAuthMonitor";
+
+    @Reference
+    private HeaderAuthenticationRouter router;
+
+    @Reference
+    private HeaderUserSyncService syncService;
+
+    @Reference(cardinality = ReferenceCardinality.OPTIONAL, policy = ReferencePolicy.DYNAMIC)
+    private volatile HeaderEventJournal eventJournal;
+
+    @Override
+    public long getAcceptedCount()
+    {
+        return sum(HeaderAuthenticationHandler::getAcceptedCount);
+    }
+
+    @Override
+    public long getRejectedSecretCount()
+    {
+        return sum(HeaderAuthenticationHandler::getRejectedSecretCount);
+    }
+
+    @Override
+    public long getRejectedUsernameCount()
+    {
+        return sum(HeaderAuthenticationHandler::getRejectedUsernameCount);
+    }
+
+    @Override
+    public long getTicketAcceptedCount()
+    {
+        return sum(HeaderAuthenticationHandler::getTicketAcceptedCount);
+    }
+
+    @Override
+    public long getRejectedTokenCount()
+    {
+        return sum(HeaderAuthenticationHandler::getRejectedTokenCount);
+    }
+
+    @Override
+    public long getThrottledCount()
+    {
+        return sum(HeaderAuthenticationHandler::getThrottledCount);
+    }
+
+    @Override
+    public long getOversizedProfileValueCount()
+    {
+        return sum(HeaderAuthenticationHandler::getOversizedProfileValueCount);
+    }
+
+    @Override
+    public String[] getTenantPathPrefixes()
+    {
+        return router.getPathPrefixes();
+    }
+
+    @Override
+    public long getJournalWrittenCount()
+    {
+        final HeaderEventJournal journal = eventJournal;
+        return journal != null ? journal.getWrittenCount() : 0;
+    }
+
+    @Override
+    public long getJournalDroppedCount()
+    {
+        final HeaderEventJournal journal = eventJournal;
+        return journal != null ? journal.getDroppedCount() : 0;
+    }
+
+    @Override
+    public int getJournalPendingCount()
+    {
+        final HeaderEventJournal journal = eventJournal;
+        return journal != null ? journal.getPendingCount() : 0;
+    }
+
+    @Override
+    public long getExtractionCount()
+    {
+        return sum(HeaderAuthenticationHandler::getExtractionCount);
+    }
+
+    @Override
+    public double getExtractionMeanMillis()
+    {
+        double total = 0;
+        long count = 0;
+        for (HeaderAuthenticationHandler handler : router.getHandlers())
+        {
+            total += handler.getExtractionMeanMillis() * handler.getExtractionCount();
+            count += handler.getExtractionCount();
+        }
+        return count == 0 ? 0 : total / count;
+    }
+
+    @Override
+    public double getExtractionMaxMillis()
+    {
+        double max = 0;
+        for (HeaderAuthenticationHandler handler : router.getHandlers())
+        {
+            max = Math.max(max, handler.getExtractionMaxMillis());
+        }
+        return max;
+    }
+
+    @Override
+    public int getIdentityCacheSize()
+    {
+        return (int) sum(HeaderAuthenticationHandler::getIdentityCacheSize);
+    }
+
+    @Override
+    public long getIdentityCacheHitCount()
+    {
+        return sum(HeaderAuthenticationHandler::getIdentityCacheHitCount);
+    }
+
+    @Override
+    public long getIdentityCacheMissCount()
+    {
+        return sum(HeaderAuthenticationHandler::getIdentityCacheMissCount);
+    }
+
+    @Override
+    public long getIdentityCacheEvictionCount()
+    {
+        return sum(HeaderAuthenticationHandler::getIdentityCacheEvictionCount);
+    }
+
+    @Override
+    public int getTokenCacheSize()
+    {
+        return (int) sum(HeaderAuthenticationHandler::getTokenCacheSize);
+    }
+
+    @Override
+    public long getTokenCacheHitCount()
+    {
+        return sum(HeaderAuthenticationHandler::getTokenCacheHitCount);
+    }
+
+    @Override
+    public long getTokenCacheMissCount()
+    {
+        return sum(HeaderAuthenticationHandler::getTokenCacheMissCount);
+    }
+
+    @Override
+    public int getNegativeCacheSize()
+    {
+        return (int) sum(HeaderAuthenticationHandler::getNegativeCacheSize);
+    }
+
+    @Override
+    public long getNegativeCacheHitCount()
+    {
+        return sum(HeaderAuthenticationHandler::getNegativeCacheHitCount);
+    }
+
+    @Override
+    public int getRateLimitSourceCount()
+    {
+        return (int) sum(HeaderAuthenticationHandler::getRateLimitSourceCount);
+    }
+
+    @Override
+    public long getSyncCount()
+    {
+        return syncService.getSyncCount();
+    }
+
+    @Override
+    public double getSyncMeanMillis()
+    {
+        return syncService.getSyncMeanMillis();
+    }
+
+    @Override
+    public double getSyncMaxMillis()
+    {
+        return syncService.getSyncMaxMillis();
+    }
+
+    @Override
+    public long getSyncFailureCount()
+    {
+        return syncService.getSyncFailureCount();
+    }
+
+    @Override
+    public Map<String, Long> getSyncResultCounts()
+    {
+        return syncService.getSyncResultCounts();
+    }
+
+    @Override
+    public long getCommitRetryCount()
+    {
+        return syncService.getCommitRetryCount();
+    }
+
+    @Override
+    public long getContendedSyncCount()
+    {
+        return syncService.getContendedSyncCount();
+    }
+
+    @Override
+    public long getPiggybackedSyncCount()
+    {
+        return syncService.getPiggybackedSyncCount();
+    }
+
+    @Override
+    public long getClusterLeaseClaimedCount()
+    {
+        return syncService.getClusterLeaseClaimedCount();
+    }
+
+    @Override
+    public long getClusterLeaseLostCount()
+    {
+        return syncService.getClusterLeaseLostCount();
+    }
+
+    @Override
+    public long getClusterLeaseWaitTimeoutCount()
+    {
+        return syncService.getClusterLeaseWaitTimeoutCount();
+    }
+
+    @Override
+    public int getSyncedUserCacheSize()
+    {
+        return syncService.getSyncedUserCacheSize();
+    }
+
+    @Override
+    public long getSyncedUserCacheHitCount()
+    {
+        return syncService.getSyncedUserCacheHitCount();
+    }
+
+    @Override
+    public long getSyncedUserCacheMissCount()
+    {
+        return syncService.getSyncedUserCacheMissCount();
+    }
+
+    @Override
+    public long getSyncedUserCacheEvictionCount()
+    {
+        return syncService.getSyncedUserCacheEvictionCount();
+    }
+
+    @Override
+    public long getAsyncSubmittedCount()
+    {
+        return syncService.getAsyncSubmittedCount();
+    }
+
+    @Override
+    public long getAsyncRejectedCount()
+    {
+        return syncService.getAsyncRejectedCount();
+    }
+
+    @Override
+    public long getAsyncFailedCount()
+    {
+        return syncService.getAsyncFailedCount();
+    }
+
+    @Override
+    public int getAsyncQueueDepth()
+    {
+        return syncService.getAsyncQueueDepth();
+    }
+
+    @Override
+    public double getAsyncMeanLatencyMillis()
+    {
+        return syncService.getAsyncMeanLatencyMillis();
+    }
+
+    @Override
+    public long getBatchCount()
+    {
+        return syncService.getBatchCount();
+    }
+
+    @Override
+    public double getMeanBatchSize()
+    {
+        return syncService.getMeanBatchSize();
+    }
+
+    @Override
+    public long getBatchCoalescedCount()
+    {
+        return syncService.getBatchCoalescedCount();
+    }
+
+    @Override
+    public double getMeanBatchCommitLatencyMillis()
+    {
+        return syncService.getMeanBatchCommitLatencyMillis();
+    }
+
+    @Override
+    public void resetCounters()
+    {
+        for (HeaderAuthenticationHandler handler : router.getHandlers())
+        {
+            handler.resetCounters();
+        }
+        syncService.resetCounters();
+    }
+
+    @Override
+    public void invalidateUser(final String userId)
+    {
+        for (HeaderAuthenticationHandler handler : router.getHandlers())
+        {
+            handler.invalidateIdentity(userId);
+        }
+        syncService.invalidate(userId);
+    }
+
+    @Override
+    public void invalidateAllUsers()
+    {
+        for (HeaderAuthenticationHandler handler : router.getHandlers())
+        {
+            handler.invalidateAllIdentities();
+        }
+        syncService.invalidateAll();
+    }
+
+    private long sum(final ToLongFunction<HeaderAuthenticationHandler> counter)
+    {
+        long sum = 0;
+        for (HeaderAuthenticationHandler handler : router.getHandlers())
+        {
+            sum += counter.applyAsLong(handler);
+        }
+        return sum;
+    }
+}
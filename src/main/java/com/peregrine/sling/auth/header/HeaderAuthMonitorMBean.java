@@ -0,0 +1,161 @@
+package com.peregrine.sling.auth.header;
+
+/*-
+ * #%L
+ * peregrinecms-com-peregrine-sling-auth-header
+ * %%
+ * Copyright (C) 2020 headwire inc.
+ * %%
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+
+import java.util.Map;
+
+/**
+ * Management interface of {@link HeaderAuthMonitor}. Timings are in milliseconds.
+ */
+public interface HeaderAuthMonitorMBean
+{
+    long getAcceptedCount();
+
+    long getRejectedSecretCount();
+
+    long getRejectedUsernameCount();
+
+    long getTicketAcceptedCount();
+
+    long getRejectedTokenCount();
+
+    long getThrottledCount();
+
+    long getOversizedProfileValueCount();
+
+    /**
+     * @return The path prefixes of the configured tenants, highest ranking first.
+     */
+    String[] getTenantPathPrefixes();
+
+    long getJournalWrittenCount();
+
+    /**
+     * @return The number of journal events dropped because the journal writer fell behind.
+     */
+    long getJournalDroppedCount();
+
+    int getJournalPendingCount();
+
+    long getExtractionCount();
+
+    double getExtractionMeanMillis();
+
+    double getExtractionMaxMillis();
+
+    int getIdentityCacheSize();
+
+    long getIdentityCacheHitCount();
+
+    long getIdentityCacheMissCount();
+
+    long getIdentityCacheEvictionCount();
+
+    int getTokenCacheSize();
+
+    long getTokenCacheHitCount();
+
+    long getTokenCacheMissCount();
+
+    int getNegativeCacheSize();
+
+    long getNegativeCacheHitCount();
+
+    /**
+     * @return The number of clients tracked by the rate limit.
+     */
+    int getRateLimitSourceCount();
+
+    long getSyncCount();
+
+    double getSyncMeanMillis();
+
+    double getSyncMaxMillis();
+
+    long getSyncFailureCount();
+
+    /**
+     * @return The number of sync results by <code>SyncResult.Status</code> name.
+     */
+    Map<String, Long> getSyncResultCounts();
+
+    long getCommitRetryCount();
+
+    long getContendedSyncCount();
+
+    long getPiggybackedSyncCount();
+
+    long getClusterLeaseClaimedCount();
+
+    long getClusterLeaseLostCount();
+
+    long getClusterLeaseWaitTimeoutCount();
+
+    int getSyncedUserCacheSize();
+
+    long getSyncedUserCacheHitCount();
+
+    long getSyncedUserCacheMissCount();
+
+    long getSyncedUserCacheEvictionCount();
+
+    long getAsyncSubmittedCount();
+
+    long getAsyncRejectedCount();
+
+    long getAsyncFailedCount();
+
+    int getAsyncQueueDepth();
+
+    double getAsyncMeanLatencyMillis();
+
+    long getBatchCount();
+
+    double getMeanBatchSize();
+
+    /**
+     * @return The number of logins of a new user that joined the pending batch entry of the same user.
+     */
+    long getBatchCoalescedCount();
+
+    double getMeanBatchCommitLatencyMillis();
+
+    /**
+     * Resets all counters and timers of the authentication handlers and the sync service.
+     */
+    void resetCounters();
+
+    /**
+     * Drops the cached identities and the synced state of a user, so that its next request is validated and synced
+     * again.
+     */
+    void invalidateUser(String userId);
+
+    /**
+     * Drops the cached identities and the synced state of all users.
+     */
+    void invalidateAllUsers();
+}
@@ -32,6 +32,10 @@ import org.apache.sling.auth.core.spi.DefaultAuthenticationFeedbackHandler;
 import org.osgi.service.component.ComponentContext;
 import org.osgi.service.component.annotations.Component;
 import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Deactivate;
+import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.component.annotations.ReferenceCardinality;
+import org.osgi.service.component.annotations.ReferencePolicy;
 import org.osgi.service.metatype.annotations.Designate;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -40,32 +44,87 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.Cookie;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
 import java.util.Enumeration;
-import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
-import java.util.regex.Pattern;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 
 import static com.peregrine.sling.auth.header.HeaderAuthenticationHandlerConfig.HEADER_AUTH_SHARED_SECRET_HEADER;
 
+/**
+ * Authenticates the requests of one tenant, i.e. one factory configuration with its own path prefix, shared secret,
+ * headers and whitelists. The instances are not registered with Sling directly: {@link HeaderAuthenticationRouter}
+ * hands each request to the instance with the longest path prefix covering it.
+ */
 @Component(
-        service = AuthenticationHandler.class,
-        property = {
-                AuthenticationHandler.PATH_PROPERTY + "=/"
-        },
+        service = HeaderAuthenticationHandler.class,
         immediate = true
 )
-@Designate(ocd = HeaderAuthenticationHandlerConfig.class)
+@Designate(ocd = HeaderAuthenticationHandlerConfig.class, factory = true)
 public class HeaderAuthenticationHandler extends DefaultAuthenticationFeedbackHandler implements AuthenticationHandler
 {
     private final Logger logger = LoggerFactory.getLogger(HeaderAuthenticationHandler.class);
 
     public static final String AUTH_TYPE = "HEADER";
+
+    private static final String AUTH_INFO_CREDENTIALS = "user.jcr.credentials";
+
+    /** Number of profile header pairs the capture array is sized for; mod_auth_openidc sends about a dozen claims. */
+    private static final int INITIAL_PROFILE_ENTRIES = 16;
+    /** Separator of the entries of multi-valued profile values, as joined by mod_auth_openidc. */
+    private static final String PROFILE_VALUE_SEPARATORS = ",";
+
+    private static final String BEARER_PREFIX = "Bearer ";
+    private static final String JOURNAL_ACCEPTED = "ACCEPTED";
+    private static final String JOURNAL_CACHED = "CACHED";
+    private static final String JOURNAL_TICKET = "TICKET";
  
+    private String pathPrefix = PathPrefixIndex.ROOT;
     private String loginCookie;
     private String remoteUserHeader;
     private String sharedSecret;
-    private Pattern usernameWhitelist;
-    private Pattern userProfileHeaderWhitelist;
+    private CompiledMatcher usernameWhitelist;
+    private CompiledMatcher userProfileHeaderWhitelist;
+    private String[] reservedUsernames;
+    private String groupsHeader;
+    private String groupsSeparator;
+    private CompiledMatcher groupWhitelist;
+    private ExpiringCache<IdentityKey, HeaderCredentials> identityCache;
+    private ReauthTicket reauthTicket;
+    private String ticketCookie;
+    private boolean ticketSecure;
+    private JwtVerifier jwtVerifier;
+    private String jwtHeader;
+    private String jwtUsernameClaim;
+    private String jwtClaimPrefix;
+    private ExpiringCache<ByteBuffer, HeaderCredentials> tokenCache;
+    private ExpiringCache<Object, RejectionLog.Reason> negativeCache;
+    private SourceRateLimiter rateLimiter;
+    private String rateLimitClientHeader;
+    private RejectionLog rejectionLog;
+
+    @Reference(cardinality = ReferenceCardinality.OPTIONAL, policy = ReferencePolicy.DYNAMIC)
+    private volatile HeaderEventJournal eventJournal;
+    private int profileValueMaxLength;
+    private boolean truncateOversizedValues;
+
+    private final LatencyTimer extractionTimer = new LatencyTimer();
+    private final LongAdder accepted = new LongAdder();
+    private final LongAdder rejectedSecrets = new LongAdder();
+    private final LongAdder rejectedUsernames = new LongAdder();
+    private final LongAdder ticketLogins = new LongAdder();
+    private final LongAdder rejectedTokens = new LongAdder();
+    private final LongAdder throttled = new LongAdder();
+    private final LongAdder oversizedValues = new LongAdder();
 
     /**
      * Checks the request for the presence of two request headers: the remote user and shared secret. If either are
@@ -77,6 +136,19 @@ public class HeaderAuthenticationHandler extends DefaultAuthenticationFeedbackHa
      * to us. When this occurs, this handler creates a custom credential using the remote user name and sets the
      * pre-authentication marker.
      *
+     * When the identity cache is enabled, a request whose remote user, shared secret and user profile headers match a
+     * previously validated request reuses the credentials created for it.
+     *
+     * When re-auth tickets are enabled, a request carrying a valid ticket for its remote user and user profile headers
+     * skips the validation and gets credentials that are not synced again.
+     *
+     * In JWT mode, the identity and user profile are read from the claims of a signed JWT header instead. Verified
+     * tokens are cached until they expire.
+     *
+     * Rejections are logged in rate-limited summaries. Optionally, repeated rejections are answered from a negative
+     * cache, and clients sending too many bad requests have their next bad requests turned away before any further
+     * header is processed. Requests with a valid shared secret or token are never limited.
+     *
      * @return A valid AuthenticationInfo object with a credential object set and pre-authentication marker set.
      */
     @Override
@@ -84,27 +156,249 @@ public class HeaderAuthenticationHandler extends DefaultAuthenticationFeedbackHa
     {
         if (handleAuthRequest(request))
         {
-            final String username = request.getHeader(remoteUserHeader);
-            final String sharedSecret = request.getHeader(HEADER_AUTH_SHARED_SECRET_HEADER);
+            final long start = System.nanoTime();
+            try
+            {
+                return jwtVerifier != null ? extractJwtCredentials(request) : extractHeaderCredentials(request);
+            } finally
+            {
+                extractionTimer.recordSince(start);
+            }
+        }
+
+        return null;
+    }
+
+    private AuthenticationInfo extractHeaderCredentials(final HttpServletRequest request)
+    {
+        final String username = request.getHeader(remoteUserHeader);
+        final String sharedSecret = request.getHeader(HEADER_AUTH_SHARED_SECRET_HEADER);
+
+        logger.trace("extractCredentials called");
+
+        final boolean validSharedSecret = isValidSharedSecret(sharedSecret);
+        if (!validSharedSecret && isThrottled(request))
+        {
+            return null;
+        }
 
-            logger.trace("extractCredentials called");
-            if (isValidSharedSecret(sharedSecret) && isValidUsername(username))
+        final long secretDigest = Fingerprint.of(sharedSecret);
+        IdentityKey rejectionKey = null;
+        if (negativeCache != null)
+        {
+            rejectionKey = new IdentityKey(username, secretDigest, Fingerprint.EMPTY);
+            final RejectionLog.Reason rejection = negativeCache.get(rejectionKey);
+            if (rejection != null)
             {
-                logger.debug("Creating credentials and setting pre-authentication marker for user: '{}'", username);
-                final AuthenticationInfo authenticationInfo = new AuthenticationInfo(AUTH_TYPE, username);
-                authenticationInfo.put("user.jcr.credentials", new HeaderCredentials(username, getUserProfileFromHeader(request)));
-                return authenticationInfo;
+                reject(rejection, username, request);
+                return null;
             }
-            else
+        }
+
+        final long profileFingerprint = reauthTicket != null || identityCache != null
+                ? getUserProfileFingerprint(request)
+                : Fingerprint.EMPTY;
+
+        if (reauthTicket != null && sharedSecret.equals(this.sharedSecret) &&
+                reauthTicket.verify(getCookie(request, ticketCookie), username, profileFingerprint,
+                        System.currentTimeMillis()))
+        {
+            logger.trace("Using re-auth ticket for user: '{}'", username);
+            accepted.increment();
+            ticketLogins.increment();
+            journal(JOURNAL_TICKET, username, request);
+            return createAuthenticationInfo(HeaderCredentials.ticketed(username));
+        }
+
+        IdentityKey identityKey = null;
+        if (identityCache != null)
+        {
+            identityKey = new IdentityKey(username, secretDigest, profileFingerprint);
+            final HeaderCredentials cachedCredentials = identityCache.get(identityKey);
+            if (cachedCredentials != null && sharedSecret.equals(this.sharedSecret))
             {
-                final String invalidCause = !isValidSharedSecret(sharedSecret) ? "secret" : "username";
-                logger.warn("Invalid {} for remote user: '{}'", invalidCause, username);
+                logger.trace("Using cached credentials for user: '{}'", username);
+                accepted.increment();
+                journal(JOURNAL_CACHED, username, request);
+                return createAuthenticationInfo(cachedCredentials);
             }
         }
 
+        final RejectionLog.Reason rejection = !validSharedSecret ? RejectionLog.Reason.SECRET
+                : !isValidUsername(username) ? RejectionLog.Reason.USERNAME
+                : null;
+        if (rejection == null)
+        {
+            logger.debug("Creating credentials and setting pre-authentication marker for user: '{}'", username);
+            final HeaderCredentials credentials = createCredentials(username, request);
+            if (identityKey != null)
+            {
+                identityCache.put(identityKey, credentials);
+            }
+            accepted.increment();
+            journal(JOURNAL_ACCEPTED, username, request);
+            return createAuthenticationInfo(credentials);
+        }
+
+        reject(rejection, username, request);
+        if (rejectionKey != null)
+        {
+            negativeCache.put(rejectionKey, rejection);
+        }
         return null;
     }
 
+    private AuthenticationInfo extractJwtCredentials(final HttpServletRequest request)
+    {
+        String token = request.getHeader(jwtHeader);
+        if (token.startsWith(BEARER_PREFIX))
+        {
+            token = token.substring(BEARER_PREFIX.length()).trim();
+        }
+        if (token.length() > JwtVerifier.MAX_TOKEN_LENGTH)
+        {
+            logger.debug("Invalid token: too long");
+            if (!isThrottled(request))
+            {
+                reject(RejectionLog.Reason.TOKEN, null, request);
+            }
+            return null;
+        }
+
+        final ByteBuffer tokenDigest = jwtVerifier.digest(token);
+        final HeaderCredentials cachedCredentials = tokenCache.get(tokenDigest);
+        if (cachedCredentials != null)
+        {
+            logger.trace("Using verified token for user: '{}'", cachedCredentials.getUserId());
+            accepted.increment();
+            journal(JOURNAL_CACHED, cachedCredentials.getUserId(), request);
+            return createAuthenticationInfo(cachedCredentials);
+        }
+        if (isThrottled(request))
+        {
+            return null;
+        }
+        if (negativeCache != null)
+        {
+            final RejectionLog.Reason rejection = negativeCache.get(tokenDigest);
+            if (rejection != null)
+            {
+                reject(rejection, null, request);
+                return null;
+            }
+        }
+
+        final long now = System.currentTimeMillis();
+        final JwtVerifier.Token verifiedToken;
+        try
+        {
+            verifiedToken = jwtVerifier.verify(token, now);
+        } catch (IllegalArgumentException e)
+        {
+            logger.debug("Invalid token: {}", e.getMessage());
+            reject(RejectionLog.Reason.TOKEN, null, request);
+            if (negativeCache != null)
+            {
+                negativeCache.put(tokenDigest, RejectionLog.Reason.TOKEN);
+            }
+            return null;
+        }
+
+        final Object username = verifiedToken.getClaims().get(jwtUsernameClaim);
+        if (!(username instanceof String) || !isValidUsername((String) username))
+        {
+            reject(RejectionLog.Reason.USERNAME, String.valueOf(username), request);
+            if (negativeCache != null)
+            {
+                negativeCache.put(tokenDigest, RejectionLog.Reason.USERNAME);
+            }
+            return null;
+        }
+
+        logger.debug("Creating credentials and setting pre-authentication marker for token of user: '{}'", username);
+        final HeaderCredentials credentials = createCredentials((String) username, verifiedToken.getClaims());
+        tokenCache.put(tokenDigest, credentials, verifiedToken.getExpiresAt() - now, TimeUnit.MILLISECONDS);
+        accepted.increment();
+        journal(JOURNAL_ACCEPTED, credentials.getUserId(), request);
+        return createAuthenticationInfo(credentials);
+    }
+
+    /**
+     * Checks the rate limit for a request that is about to be rejected, and counts and logs it if its client used up
+     * its bucket. Valid requests are never checked, so they are not limited.
+     *
+     * @return <code>true</code> if the request is throttled.
+     */
+    private boolean isThrottled(final HttpServletRequest request)
+    {
+        if (rateLimiter == null || !rateLimiter.isLimited(getClientAddress(request), System.nanoTime()))
+        {
+            return false;
+        }
+        throttled.increment();
+        rejectionLog.record(RejectionLog.Reason.THROTTLED, null, request.getRemoteAddr());
+        journal(RejectionLog.Reason.THROTTLED.name(), null, request);
+        return true;
+    }
+
+    /**
+     * @return The address of the client the rate limit is keyed on: the last address of the configured client
+     * address header, which the trusted proxy in front appends, or else the remote address of the connection.
+     */
+    private String getClientAddress(final HttpServletRequest request)
+    {
+        if (rateLimitClientHeader != null)
+        {
+            final String forwarded = request.getHeader(rateLimitClientHeader);
+            if (forwarded != null)
+            {
+                final String address = forwarded.substring(forwarded.lastIndexOf(',') + 1).trim();
+                if (!address.isEmpty())
+                {
+                    return address;
+                }
+            }
+        }
+        return request.getRemoteAddr();
+    }
+
+    /**
+     * Counts and logs a rejected request, and charges its client if the rate limit is enabled.
+     */
+    private void reject(final RejectionLog.Reason reason, final String username, final HttpServletRequest request)
+    {
+        switch (reason)
+        {
+            case SECRET:
+                rejectedSecrets.increment();
+                break;
+            case USERNAME:
+                rejectedUsernames.increment();
+                break;
+            default:
+                rejectedTokens.increment();
+                break;
+        }
+        if (rateLimiter != null)
+        {
+            rateLimiter.charge(getClientAddress(request), System.nanoTime());
+        }
+        rejectionLog.record(reason, username, request.getRemoteAddr());
+        journal(reason.name(), username, request);
+    }
+
+    /**
+     * Records the decision about the request in the event journal, if there is one.
+     */
+    private void journal(final String outcome, final String username, final HttpServletRequest request)
+    {
+        final HeaderEventJournal journal = eventJournal;
+        if (journal != null)
+        {
+            journal.recordExtraction(outcome, username, request.getRemoteAddr());
+        }
+    }
+
     /**
      * This implementation does not require support for requesting credentials. It will always return
      # <code>false</code>. 
@@ -117,15 +411,48 @@ public class HeaderAuthenticationHandler extends DefaultAuthenticationFeedbackHa
 
     @Override
     public void dropCredentials(HttpServletRequest request, HttpServletResponse response) throws IOException
+    {
+        dropCookies(response, new HashSet<>());
+    }
+
+    /**
+     * Deletes the login cookie and the re-auth ticket cookie, unless a cookie of the same name and path was already
+     * deleted for another tenant.
+     *
+     * @param deleted The names and paths of the cookies deleted in the response so far. Updated by this call.
+     */
+    void dropCookies(final HttpServletResponse response, final Set<String> deleted)
     {
         // If there is a login cookie specified, delete it.
-        if (StringUtils.isNotBlank(loginCookie))
+        if (StringUtils.isNotBlank(loginCookie) && deleted.add(loginCookie + ";/"))
         {
             Cookie cookie = new Cookie(loginCookie, "");
             cookie.setMaxAge(0);
             cookie.setPath("/");
             response.addCookie(cookie);
          }
+
+        if (reauthTicket != null && deleted.add(ticketCookie + ";" + pathPrefix))
+        {
+            setTicketCookie(response, "", 0);
+        }
+    }
+
+    /**
+     * Issues a re-auth ticket after a header login that was not itself based on a ticket, if tickets are enabled.
+     */
+    @Override
+    public boolean authenticationSucceeded(HttpServletRequest request, HttpServletResponse response, AuthenticationInfo authInfo)
+    {
+        final Object credentials = authInfo.get(AUTH_INFO_CREDENTIALS);
+        if (reauthTicket != null && credentials instanceof HeaderCredentials &&
+                !((HeaderCredentials) credentials).isTicketed())
+        {
+            final String ticket = reauthTicket.issue(((HeaderCredentials) credentials).getUserId(),
+                    getUserProfileFingerprint(request), System.currentTimeMillis());
+            setTicketCookie(response, ticket, TimeUnit.MILLISECONDS.toSeconds(reauthTicket.getTtlMillis()));
+        }
+        return super.authenticationSucceeded(request, response, authInfo);
     }
 
     @Override
@@ -138,12 +465,325 @@ public class HeaderAuthenticationHandler extends DefaultAuthenticationFeedbackHa
     @Activate
     protected void activate(HeaderAuthenticationHandlerConfig config, ComponentContext componentContext)
     {
-        logger.debug("Activating Header Authentication Handler");
+        this.pathPrefix = PathPrefixIndex.normalize(config.header_auth_path_prefix());
+        logger.debug("Activating Header Authentication Handler for path prefix: {}", pathPrefix);
         this.loginCookie = config.header_auth_login_cookie();
         this.remoteUserHeader = config.header_auth_remote_user_header();
         this.sharedSecret = config.header_auth_shared_secret();
-        this.usernameWhitelist = Pattern.compile(config.header_auth_username_whitelist());
-        this.userProfileHeaderWhitelist = Pattern.compile(config.header_auth_user_profile_header_whitelist());
+        this.usernameWhitelist = CompiledMatcher.compile(config.header_auth_username_whitelist());
+        this.userProfileHeaderWhitelist = CompiledMatcher.compile(config.header_auth_user_profile_header_whitelist(),
+                config.header_auth_validation_memo_size());
+        this.reservedUsernames = config.header_auth_reserved_usernames() != null
+                ? config.header_auth_reserved_usernames()
+                : new String[0];
+        this.groupsHeader = StringUtils.trimToNull(config.header_auth_groups_header());
+        this.groupsSeparator = StringUtils.defaultIfEmpty(config.header_auth_groups_separator(),
+                HeaderAuthenticationHandlerConfig.DEFAULT_HEADER_AUTH_GROUPS_SEPARATOR);
+        this.groupWhitelist = CompiledMatcher.compile(config.header_auth_group_whitelist());
+        this.profileValueMaxLength = Math.max(0, config.header_auth_profile_value_max_length());
+        this.truncateOversizedValues = HeaderAuthenticationHandlerConfig.HEADER_AUTH_PROFILE_VALUE_OVERSIZED_TRUNCATE
+                .equalsIgnoreCase(StringUtils.trim(config.header_auth_profile_value_oversized()));
+        this.reauthTicket = config.header_auth_ticket_enabled() && !config.header_auth_jwt_enabled()
+                ? new ReauthTicket(sharedSecret, TimeUnit.SECONDS.toMillis(config.header_auth_ticket_ttl()))
+                : null;
+        this.ticketCookie = config.header_auth_ticket_cookie();
+        this.ticketSecure = config.header_auth_ticket_secure();
+        this.identityCache = config.header_auth_identity_cache_enabled()
+                ? new ExpiringCache<>(config.header_auth_identity_cache_max_size(),
+                        config.header_auth_identity_cache_ttl(), TimeUnit.SECONDS)
+                : null;
+        this.jwtHeader = config.header_auth_jwt_header();
+        this.jwtUsernameClaim = config.header_auth_jwt_username_claim();
+        this.jwtClaimPrefix = StringUtils.defaultString(config.header_auth_jwt_claim_prefix());
+        this.jwtVerifier = config.header_auth_jwt_enabled()
+                ? new JwtVerifier(readJwks(config), StringUtils.trimToNull(config.header_auth_jwt_issuer()),
+                        StringUtils.trimToNull(config.header_auth_jwt_audience()),
+                        TimeUnit.SECONDS.toMillis(config.header_auth_jwt_clock_skew()))
+                : null;
+        this.tokenCache = jwtVerifier != null
+                ? new ExpiringCache<>(config.header_auth_jwt_cache_max_size(), Long.MAX_VALUE, TimeUnit.NANOSECONDS)
+                : null;
+        this.rejectionLog = new RejectionLog(logger, config.header_auth_rejection_log_interval(), TimeUnit.SECONDS);
+        this.negativeCache = config.header_auth_negative_cache_enabled()
+                ? new ExpiringCache<>(config.header_auth_negative_cache_max_size(),
+                        config.header_auth_negative_cache_ttl(), TimeUnit.SECONDS)
+                : null;
+        this.rateLimiter = config.header_auth_rate_limit_enabled()
+                ? new SourceRateLimiter(config.header_auth_rate_limit_rate(), config.header_auth_rate_limit_burst(),
+                        config.header_auth_rate_limit_max_sources())
+                : null;
+        this.rateLimitClientHeader = StringUtils.isNotBlank(config.header_auth_rate_limit_client_header())
+                ? config.header_auth_rate_limit_client_header().trim()
+                : null;
+    }
+
+    private static String readJwks(final HeaderAuthenticationHandlerConfig config)
+    {
+        if (StringUtils.isNotBlank(config.header_auth_jwt_jwks()))
+        {
+            return config.header_auth_jwt_jwks();
+        }
+        if (StringUtils.isBlank(config.header_auth_jwt_jwks_file()))
+        {
+            throw new IllegalArgumentException("JWT mode requires a JWKS or a JWKS file");
+        }
+        try
+        {
+            return new String(Files.readAllBytes(Paths.get(config.header_auth_jwt_jwks_file().trim())),
+                    StandardCharsets.UTF_8);
+        } catch (IOException e)
+        {
+            throw new IllegalArgumentException("Cannot read JWKS file: " + config.header_auth_jwt_jwks_file(), e);
+        }
+    }
+
+    @Deactivate
+    protected void deactivate()
+    {
+        if (identityCache != null)
+        {
+            logger.debug("Deactivating Header Authentication Handler with identity cache: {}", identityCache);
+            identityCache.invalidateAll();
+        }
+        if (tokenCache != null)
+        {
+            tokenCache.invalidateAll();
+        }
+        if (rejectionLog != null)
+        {
+            rejectionLog.flush();
+        }
+    }
+
+    /**
+     * @return The normalized path prefix of the requests this handler authenticates.
+     */
+    public String getPathPrefix()
+    {
+        return pathPrefix;
+    }
+
+    /**
+     * @return The identity cache or <code>null</code> if it is disabled.
+     */
+    ExpiringCache<IdentityKey, HeaderCredentials> getIdentityCache()
+    {
+        return identityCache;
+    }
+
+    /**
+     * Removes all cached identities of the given user so that its next request is validated again.
+     */
+    public void invalidateIdentity(final String username)
+    {
+        if (identityCache != null)
+        {
+            identityCache.invalidateIf((key, credentials) -> key.username.equals(username));
+        }
+        if (negativeCache != null)
+        {
+            negativeCache.invalidateIf((key, rejection) ->
+                    key instanceof IdentityKey && ((IdentityKey) key).username.equals(username));
+        }
+        if (tokenCache != null)
+        {
+            tokenCache.invalidateIf((key, credentials) -> credentials.getUserId().equals(username));
+        }
+    }
+
+    public void invalidateAllIdentities()
+    {
+        if (identityCache != null)
+        {
+            identityCache.invalidateAll();
+        }
+        if (negativeCache != null)
+        {
+            negativeCache.invalidateAll();
+        }
+        if (tokenCache != null)
+        {
+            tokenCache.invalidateAll();
+        }
+    }
+
+    public long getAcceptedCount()
+    {
+        return accepted.sum();
+    }
+
+    public long getRejectedSecretCount()
+    {
+        return rejectedSecrets.sum();
+    }
+
+    public long getRejectedUsernameCount()
+    {
+        return rejectedUsernames.sum();
+    }
+
+    /**
+     * @return The number of requests accepted because of a valid re-auth ticket.
+     */
+    public long getTicketAcceptedCount()
+    {
+        return ticketLogins.sum();
+    }
+
+    /**
+     * @return The number of JWTs rejected as malformed, wrongly signed, expired or for the wrong issuer or audience.
+     */
+    public long getRejectedTokenCount()
+    {
+        return rejectedTokens.sum();
+    }
+
+    /**
+     * @return The number of requests turned away because their source sent too many rejected requests.
+     */
+    public long getThrottledCount()
+    {
+        return throttled.sum();
+    }
+
+    /**
+     * @return The number of profile values that were dropped or truncated because they exceeded the max length.
+     */
+    public long getOversizedProfileValueCount()
+    {
+        return oversizedValues.sum();
+    }
+
+    public int getNegativeCacheSize()
+    {
+        return negativeCache != null ? negativeCache.size() : 0;
+    }
+
+    public long getNegativeCacheHitCount()
+    {
+        return negativeCache != null ? negativeCache.getHitCount() : 0;
+    }
+
+    public int getRateLimitSourceCount()
+    {
+        return rateLimiter != null ? rateLimiter.size() : 0;
+    }
+
+    public long getExtractionCount()
+    {
+        return extractionTimer.getCount();
+    }
+
+    public double getExtractionMeanMillis()
+    {
+        return extractionTimer.getMeanMillis();
+    }
+
+    public double getExtractionMaxMillis()
+    {
+        return extractionTimer.getMaxMillis();
+    }
+
+    public int getIdentityCacheSize()
+    {
+        return identityCache != null ? identityCache.size() : 0;
+    }
+
+    public long getIdentityCacheHitCount()
+    {
+        return identityCache != null ? identityCache.getHitCount() : 0;
+    }
+
+    public long getIdentityCacheMissCount()
+    {
+        return identityCache != null ? identityCache.getMissCount() : 0;
+    }
+
+    public long getIdentityCacheEvictionCount()
+    {
+        return identityCache != null ? identityCache.getEvictionCount() : 0;
+    }
+
+    public int getTokenCacheSize()
+    {
+        return tokenCache != null ? tokenCache.size() : 0;
+    }
+
+    public long getTokenCacheHitCount()
+    {
+        return tokenCache != null ? tokenCache.getHitCount() : 0;
+    }
+
+    public long getTokenCacheMissCount()
+    {
+        return tokenCache != null ? tokenCache.getMissCount() : 0;
+    }
+
+    /**
+     * Resets all counters and timers. Cached identities are kept.
+     */
+    public void resetCounters()
+    {
+        extractionTimer.reset();
+        accepted.reset();
+        rejectedSecrets.reset();
+        rejectedUsernames.reset();
+        ticketLogins.reset();
+        rejectedTokens.reset();
+        throttled.reset();
+        oversizedValues.reset();
+        if (identityCache != null)
+        {
+            identityCache.resetStats();
+        }
+        if (tokenCache != null)
+        {
+            tokenCache.resetStats();
+        }
+        if (negativeCache != null)
+        {
+            negativeCache.resetStats();
+        }
+    }
+
+    private AuthenticationInfo createAuthenticationInfo(final HeaderCredentials credentials)
+    {
+        final AuthenticationInfo authenticationInfo = new AuthenticationInfo(AUTH_TYPE, credentials.getUserId());
+        authenticationInfo.put(AUTH_INFO_CREDENTIALS, credentials);
+        return authenticationInfo;
+    }
+
+    /**
+     * Sets the re-auth ticket cookie. The header is written by hand because the servlet API in use cannot set the
+     * HttpOnly flag. The cookie is scoped to the path prefix, so that the tickets of different tenants do not
+     * overwrite each other.
+     */
+    private void setTicketCookie(final HttpServletResponse response, final String value, final long maxAgeSeconds)
+    {
+        final StringBuilder cookie = new StringBuilder(ticketCookie).append('=').append(value)
+                .append("; Max-Age=").append(maxAgeSeconds)
+                .append("; Path=").append(pathPrefix).append("; HttpOnly; SameSite=Lax");
+        if (ticketSecure)
+        {
+            cookie.append("; Secure");
+        }
+        response.addHeader("Set-Cookie", cookie.toString());
+    }
+
+    private static String getCookie(final HttpServletRequest request, final String name)
+    {
+        final Cookie[] cookies = request.getCookies();
+        if (cookies != null)
+        {
+            for (Cookie cookie : cookies)
+            {
+                if (name.equals(cookie.getName()))
+                {
+                    return cookie.getValue();
+                }
+            }
+        }
+        return null;
     }
 
     /**
@@ -155,6 +795,10 @@ public class HeaderAuthenticationHandler extends DefaultAuthenticationFeedbackHa
      */
     private boolean handleAuthRequest(final HttpServletRequest request)
     {
+        if (jwtVerifier != null)
+        {
+            return (request != null) && StringUtils.isNotEmpty(request.getHeader(jwtHeader));
+        }
         return (request != null) &&
                 StringUtils.isNotEmpty(request.getHeader(HEADER_AUTH_SHARED_SECRET_HEADER)) &&
                 StringUtils.isNotEmpty(request.getHeader(remoteUserHeader));
@@ -168,12 +812,7 @@ public class HeaderAuthenticationHandler extends DefaultAuthenticationFeedbackHa
      */
     private boolean isValidSharedSecret(final String clientSharedSecret)
     {
-        if (clientSharedSecret != null && clientSharedSecret.equals(this.sharedSecret)) {
-            return true;
-        }
-
-        logger.warn("Shared keys do not match. This is either a configuration error or a malicious request");
-        return false;
+        return clientSharedSecret != null && clientSharedSecret.equals(this.sharedSecret);
     }
 
     /**
@@ -185,30 +824,256 @@ public class HeaderAuthenticationHandler extends DefaultAuthenticationFeedbackHa
     private boolean isValidUsername(final String username)
     {
         return StringUtils.isNotBlank(username) &&
-            !"admin".equalsIgnoreCase(username) &&
-            usernameWhitelist.matcher(username).matches();
+            !isReservedUsername(username) &&
+            usernameWhitelist.matches(username);
+    }
+
+    private boolean isReservedUsername(final String username)
+    {
+        for (String reservedUsername : reservedUsernames)
+        {
+            if (reservedUsername.equalsIgnoreCase(username))
+            {
+                return true;
+            }
+        }
+        return false;
     }
 
     /**
-     * Gets user profile information from request headers.
+     * Creates the credentials with the user profile captured from the request headers in a single pass, as
+     * name/value pairs. The profile map is built by the credentials if and when the user is synced.
      *
+     * @param username
      * @param request
-     * @return A map containing each profile data point as a key in the map.
+     * @return The credentials of the user.
      */
-    private Map<String, Object> getUserProfileFromHeader(final HttpServletRequest request)
+    private HeaderCredentials createCredentials(final String username, final HttpServletRequest request)
     {
-        Map<String, Object> userProfile = new HashMap<String, Object>();
+        String[] profileEntries = new String[INITIAL_PROFILE_ENTRIES * 2];
+        int count = 0;
 
         Enumeration headers = request.getHeaderNames();
         while(headers.hasMoreElements())
         {
             String header = (String) headers.nextElement();
-            if (StringUtils.isNoneBlank(header) && userProfileHeaderWhitelist.matcher(header).matches())
+            if (StringUtils.isNoneBlank(header) && userProfileHeaderWhitelist.matches(header))
             {
-                userProfile.put(header, request.getHeader(header));
+                final String value = limitProfileValue(header, request.getHeader(header), PROFILE_VALUE_SEPARATORS);
+                if (value == null)
+                {
+                    continue;
+                }
+                if (count * 2 == profileEntries.length)
+                {
+                    profileEntries = Arrays.copyOf(profileEntries, profileEntries.length * 2);
+                }
+                profileEntries[count * 2] = header;
+                profileEntries[count * 2 + 1] = value;
+                count++;
             }
         }
 
-        return userProfile;
+        return new HeaderCredentials(username, profileEntries, count, getGroupsFromHeader(request));
+    }
+
+    /**
+     * Creates the credentials with the user profile taken from the claims of a verified token. Claim names are
+     * prefixed like the profile headers of mod_auth_openidc and filtered by the same whitelist; array claims are
+     * joined with commas, as mod_auth_openidc does.
+     *
+     * @param username
+     * @param claims
+     * @return The credentials of the user.
+     */
+    @SuppressWarnings("unchecked")
+    private HeaderCredentials createCredentials(final String username, final Map<String, Object> claims)
+    {
+        final String[] profileEntries = new String[claims.size() * 2];
+        int count = 0;
+        String groups = null;
+
+        for (Map.Entry<String, Object> claim : claims.entrySet())
+        {
+            final String name = jwtClaimPrefix + claim.getKey();
+            final String value = claim.getValue() instanceof List
+                    ? String.join(",", (List<String>) claim.getValue())
+                    : claim.getValue().toString();
+            if (name.equals(groupsHeader))
+            {
+                groups = value;
+            }
+            if (userProfileHeaderWhitelist.matches(name))
+            {
+                final String limited = limitProfileValue(name, value, PROFILE_VALUE_SEPARATORS);
+                if (limited == null)
+                {
+                    continue;
+                }
+                profileEntries[count * 2] = name;
+                profileEntries[count * 2 + 1] = limited;
+                count++;
+            }
+        }
+
+        return new HeaderCredentials(username, profileEntries, count,
+                groupsHeader != null ? limitGroups(groups) : null);
+    }
+
+    /**
+     * Applies the max length to a profile value, so that huge claims are not copied into the profile and stored with
+     * the user. A value is truncated at the last separator within the max length, so that a multi-valued value keeps
+     * only complete entries; a value without a separator there is dropped.
+     *
+     * @param separators The characters separating the entries of a multi-valued value.
+     * @return The value, the truncated value or <code>null</code> if the value is to be dropped.
+     */
+    private String limitProfileValue(final String name, final String value, final String separators)
+    {
+        if (value == null || profileValueMaxLength == 0 || value.length() <= profileValueMaxLength)
+        {
+            return value;
+        }
+
+        oversizedValues.increment();
+        if (truncateOversizedValues)
+        {
+            for (int end = profileValueMaxLength; end > 0; end--)
+            {
+                if (separators.indexOf(value.charAt(end)) >= 0)
+                {
+                    logger.debug("Profile value of: '{}' has {} characters, more than the max length: {}. "
+                            + "Truncating it to {}.", name, value.length(), profileValueMaxLength, end);
+                    return value.substring(0, end);
+                }
+            }
+        }
+        logger.debug("Profile value of: '{}' has {} characters, more than the max length: {}. Dropping it.", name,
+                value.length(), profileValueMaxLength);
+        return null;
+    }
+
+    /**
+     * Gets the group ids from the groups header. Group ids that do not match the group whitelist are ignored.
+     *
+     * @param request
+     * @return The group ids, or <code>null</code> if no groups header is configured.
+     */
+    private Set<String> getGroupsFromHeader(final HttpServletRequest request)
+    {
+        if (groupsHeader == null)
+        {
+            return null;
+        }
+        return limitGroups(request.getHeader(groupsHeader));
+    }
+
+    /**
+     * Applies the max length of profile values to the value of the groups header before it is parsed.
+     *
+     * @return The group ids, or <code>null</code> if the value is dropped, in which case the group memberships of the
+     * user are left unchanged rather than removed.
+     */
+    private Set<String> limitGroups(final String value)
+    {
+        final String limited = limitProfileValue(groupsHeader, value, groupsSeparator);
+        return limited != null || value == null ? parseGroups(limited) : null;
+    }
+
+    /**
+     * @param value The value of the groups header, may be <code>null</code>.
+     * @return The group ids in the value that match the group whitelist.
+     */
+    private Set<String> parseGroups(final String value)
+    {
+        final Set<String> groups = new LinkedHashSet<>();
+        for (String group : StringUtils.split(StringUtils.defaultString(value), groupsSeparator))
+        {
+            final String groupId = group.trim();
+            if (groupId.isEmpty())
+            {
+                continue;
+            }
+            if (groupWhitelist.matches(groupId))
+            {
+                groups.add(groupId);
+            }
+            else
+            {
+                logger.warn("Ignoring invalid group: '{}'", groupId);
+            }
+        }
+        return groups;
+    }
+
+    /**
+     * Computes an order-independent fingerprint of the user profile headers without copying them.
+     *
+     * @param request
+     * @return The fingerprint of all whitelisted user profile headers and the groups header.
+     */
+    private long getUserProfileFingerprint(final HttpServletRequest request)
+    {
+        long fingerprint = Fingerprint.EMPTY;
+
+        Enumeration headers = request.getHeaderNames();
+        while(headers.hasMoreElements())
+        {
+            String header = (String) headers.nextElement();
+            if (StringUtils.isNoneBlank(header) && userProfileHeaderWhitelist.matches(header))
+            {
+                fingerprint = Fingerprint.add(fingerprint, header, request.getHeader(header));
+            }
+        }
+
+        if (groupsHeader != null)
+        {
+            fingerprint = Fingerprint.add(fingerprint, groupsHeader, request.getHeader(groupsHeader));
+        }
+
+        return fingerprint;
+    }
+
+    /**
+     * Identity cache key: the remote user, a digest of the presented shared secret and the user profile fingerprint.
+     */
+    static final class IdentityKey
+    {
+        private final String username;
+        private final long secretDigest;
+        private final long profileFingerprint;
+
+        IdentityKey(final String username, final long secretDigest, final long profileFingerprint)
+        {
+            this.username = username;
+            this.secretDigest = secretDigest;
+            this.profileFingerprint = profileFingerprint;
+        }
+
+        @Override
+        public boolean equals(final Object o)
+        {
+            if (this == o)
+            {
+                return true;
+            }
+            if (!(o instanceof IdentityKey))
+            {
+                return false;
+            }
+            final IdentityKey other = (IdentityKey) o;
+            return secretDigest == other.secretDigest &&
+                    profileFingerprint == other.profileFingerprint &&
+                    username.equals(other.username);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            int result = username.hashCode();
+            result = 31 * result + Long.hashCode(secretDigest);
+            result = 31 * result + Long.hashCode(profileFingerprint);
+            return result;
+        }
     }
 }
@@ -30,15 +30,41 @@ import org.osgi.service.metatype.annotations.AttributeType;
 import org.osgi.service.metatype.annotations.ObjectClassDefinition;
 import org.osgi.service.metatype.annotations.Option;
 
-@ObjectClassDefinition(name = "Header Authentication Handler Configuration", description = "Configuration options for the Header Authentication Handler.")
+@ObjectClassDefinition(name = "Header Authentication Handler Configuration", description = "Configuration options for the Header Authentication Handler. Create one configuration per tenant, each with its own path prefix.")
 public @interface HeaderAuthenticationHandlerConfig
 {
 
+    public static final String DEFAULT_HEADER_AUTH_PATH_PREFIX = "/";
     public static final String DEFAULT_HEADER_AUTH_LOGIN_COOKIE = "mod_auth_openidc_session";
     public static final String DEFAULT_HEADER_AUTH_REMOTE_USER_HEADER = "REMOTE_USER";
 	public static final String HEADER_AUTH_SHARED_SECRET_HEADER = "X-Auth-Header-Shared-Secret";
     public static final String DEFAULT_HEADER_AUTH_USERNAME_WHITELIST = "^[A-Za-z0-9+_.-]+@(.+)$";
     public static final String DEFAULT_HEADER_AUTH_USER_PROFILE_HEADER_WHITELIST = "^OIDC_CLAIM_(.+)$";
+    public static final int DEFAULT_HEADER_AUTH_IDENTITY_CACHE_MAX_SIZE = 10000;
+    public static final long DEFAULT_HEADER_AUTH_IDENTITY_CACHE_TTL = 60;
+    public static final String DEFAULT_HEADER_AUTH_RESERVED_USERNAME = "admin";
+    public static final int DEFAULT_HEADER_AUTH_VALIDATION_MEMO_SIZE = 10000;
+    public static final String DEFAULT_HEADER_AUTH_GROUPS_SEPARATOR = ",";
+    public static final String DEFAULT_HEADER_AUTH_GROUP_WHITELIST = "^[A-Za-z0-9_.-]+$";
+    public static final String DEFAULT_HEADER_AUTH_TICKET_COOKIE = "header-auth-ticket";
+    public static final long DEFAULT_HEADER_AUTH_TICKET_TTL = 300;
+    public static final String DEFAULT_HEADER_AUTH_JWT_HEADER = "OIDC_id_token";
+    public static final String DEFAULT_HEADER_AUTH_JWT_USERNAME_CLAIM = "email";
+    public static final String DEFAULT_HEADER_AUTH_JWT_CLAIM_PREFIX = "OIDC_CLAIM_";
+    public static final long DEFAULT_HEADER_AUTH_JWT_CLOCK_SKEW = 60;
+    public static final int DEFAULT_HEADER_AUTH_JWT_CACHE_MAX_SIZE = 10000;
+    public static final long DEFAULT_HEADER_AUTH_REJECTION_LOG_INTERVAL = 60;
+    public static final int DEFAULT_HEADER_AUTH_NEGATIVE_CACHE_MAX_SIZE = 10000;
+    public static final long DEFAULT_HEADER_AUTH_NEGATIVE_CACHE_TTL = 60;
+    public static final double DEFAULT_HEADER_AUTH_RATE_LIMIT_RATE = 1;
+    public static final int DEFAULT_HEADER_AUTH_RATE_LIMIT_BURST = 20;
+    public static final int DEFAULT_HEADER_AUTH_RATE_LIMIT_MAX_SOURCES = 10000;
+    public static final int DEFAULT_HEADER_AUTH_PROFILE_VALUE_MAX_LENGTH = 65536;
+    public static final String HEADER_AUTH_PROFILE_VALUE_OVERSIZED_DROP = "drop";
+    public static final String HEADER_AUTH_PROFILE_VALUE_OVERSIZED_TRUNCATE = "truncate";
+
+    @AttributeDefinition(name = "Path Prefix", description = "The request paths this configuration authenticates, e.g. /content/tenant-a. A request is handled by the configuration with the longest prefix covering its path; prefixes match whole path segments.")
+    String header_auth_path_prefix() default DEFAULT_HEADER_AUTH_PATH_PREFIX;
 
 	@AttributeDefinition(name = "Login Cookie", description = "The name of the login cookie (if there is one) that indicates that a user is logged in. This cookie will be destroyed on logout.")
     String header_auth_login_cookie() default DEFAULT_HEADER_AUTH_LOGIN_COOKIE;
@@ -54,4 +80,107 @@ public @interface HeaderAuthenticationHandlerConfig
 
     @AttributeDefinition(name = "User Profile Header Whitelist Pattern", description = "Permitted regex pattern for allowed user profile headers")
     String header_auth_user_profile_header_whitelist() default DEFAULT_HEADER_AUTH_USER_PROFILE_HEADER_WHITELIST;
+
+    @AttributeDefinition(name = "Identity Cache Enabled", description = "Cache validated identities keyed by remote user, shared secret digest and user profile fingerprint, so repeat requests skip validation and profile extraction.")
+    boolean header_auth_identity_cache_enabled() default false;
+
+    @AttributeDefinition(name = "Identity Cache Max Size", description = "Maximum number of validated identities kept in the identity cache.")
+    int header_auth_identity_cache_max_size() default DEFAULT_HEADER_AUTH_IDENTITY_CACHE_MAX_SIZE;
+
+    @AttributeDefinition(name = "Identity Cache TTL", description = "Time in seconds a validated identity is kept in the identity cache.")
+    long header_auth_identity_cache_ttl() default DEFAULT_HEADER_AUTH_IDENTITY_CACHE_TTL;
+
+    @AttributeDefinition(name = "Reserved Usernames", description = "Remote user names that are always rejected, compared ignoring case.")
+    String[] header_auth_reserved_usernames() default { DEFAULT_HEADER_AUTH_RESERVED_USERNAME };
+
+    @AttributeDefinition(name = "Validation Memo Size", description = "Maximum number of remembered profile header name validation decisions. Usernames and group ids are always validated, so that junk values cannot take up the memo. Set to 0 to disable.")
+    int header_auth_validation_memo_size() default DEFAULT_HEADER_AUTH_VALIDATION_MEMO_SIZE;
+
+    @AttributeDefinition(name = "Groups Header", description = "The HTTP header listing the groups of the user, e.g. OIDC_CLAIM_groups. When set, the user is made a member of exactly these groups of the Header External Identity Provider. Leave empty to disable.")
+    String header_auth_groups_header() default "";
+
+    @AttributeDefinition(name = "Groups Separator", description = "The separator between the group ids in the groups header.")
+    String header_auth_groups_separator() default DEFAULT_HEADER_AUTH_GROUPS_SEPARATOR;
+
+    @AttributeDefinition(name = "Group Whitelist Pattern", description = "Permitted regex pattern for group ids in the groups header. Other group ids are ignored.")
+    String header_auth_group_whitelist() default DEFAULT_HEADER_AUTH_GROUP_WHITELIST;
+
+    @AttributeDefinition(name = "Re-Auth Ticket Enabled", description = "After a successful header login, issue a signed, short-lived ticket cookie. Requests carrying a valid ticket for the same remote user and profile headers skip the validation and the user sync.")
+    boolean header_auth_ticket_enabled() default false;
+
+    @AttributeDefinition(name = "Re-Auth Ticket Cookie", description = "The name of the re-auth ticket cookie.")
+    String header_auth_ticket_cookie() default DEFAULT_HEADER_AUTH_TICKET_COOKIE;
+
+    @AttributeDefinition(name = "Re-Auth Ticket TTL", description = "Time in seconds a re-auth ticket is valid.")
+    long header_auth_ticket_ttl() default DEFAULT_HEADER_AUTH_TICKET_TTL;
+
+    @AttributeDefinition(name = "Re-Auth Ticket Secure", description = "Only send the re-auth ticket cookie over HTTPS. Disable only if the proxy talks to the client over plain HTTP.")
+    boolean header_auth_ticket_secure() default true;
+
+    @AttributeDefinition(name = "JWT Mode Enabled", description = "Authenticate requests by a signed JWT header, such as the ID token forwarded by mod_auth_openidc, instead of the shared secret and remote user headers. The identity and the user profile are read from the verified claims. Re-auth tickets and the identity cache are not used in this mode.")
+    boolean header_auth_jwt_enabled() default false;
+
+    @AttributeDefinition(name = "JWT Header", description = "The HTTP header carrying the JWT. A 'Bearer ' prefix is ignored.")
+    String header_auth_jwt_header() default DEFAULT_HEADER_AUTH_JWT_HEADER;
+
+    @AttributeDefinition(name = "JWKS", description = "The JWKS document with the public keys the JWT signature is verified with. Takes precedence over the JWKS file.")
+    String header_auth_jwt_jwks() default "";
+
+    @AttributeDefinition(name = "JWKS File", description = "Path of a file on the server with the JWKS document. Read when the configuration is activated; keys are never fetched over the network.")
+    String header_auth_jwt_jwks_file() default "";
+
+    @AttributeDefinition(name = "JWT Issuer", description = "The required 'iss' claim. Leave empty to accept any issuer.")
+    String header_auth_jwt_issuer() default "";
+
+    @AttributeDefinition(name = "JWT Audience", description = "The required 'aud' claim, e.g. the OIDC client id. Leave empty to accept any audience.")
+    String header_auth_jwt_audience() default "";
+
+    @AttributeDefinition(name = "JWT Username Claim", description = "The claim holding the user name. It must match the username whitelist pattern.")
+    String header_auth_jwt_username_claim() default DEFAULT_HEADER_AUTH_JWT_USERNAME_CLAIM;
+
+    @AttributeDefinition(name = "JWT Claim Prefix", description = "Prefix added to the claim names to form the user profile, so that the profile is the same as with the OIDC_CLAIM_* headers. Claims are filtered by the user profile header whitelist pattern.")
+    String header_auth_jwt_claim_prefix() default DEFAULT_HEADER_AUTH_JWT_CLAIM_PREFIX;
+
+    @AttributeDefinition(name = "JWT Clock Skew", description = "Tolerance in seconds for the 'exp' and 'nbf' checks.")
+    long header_auth_jwt_clock_skew() default DEFAULT_HEADER_AUTH_JWT_CLOCK_SKEW;
+
+    @AttributeDefinition(name = "JWT Cache Max Size", description = "Maximum number of verified tokens kept until they expire, keyed by their SHA-256 digest, so repeat requests skip the signature check.")
+    int header_auth_jwt_cache_max_size() default DEFAULT_HEADER_AUTH_JWT_CACHE_MAX_SIZE;
+
+    @AttributeDefinition(name = "Rejection Log Interval", description = "Minimum time in seconds between two warnings about rejected requests. Rejections in between are counted and reported in a summary. Set to 0 to log every rejection.")
+    long header_auth_rejection_log_interval() default DEFAULT_HEADER_AUTH_REJECTION_LOG_INTERVAL;
+
+    @AttributeDefinition(name = "Negative Cache Enabled", description = "Remember rejected remote user and shared secret combinations, or rejected tokens in JWT mode, so that repeats are rejected without validation.")
+    boolean header_auth_negative_cache_enabled() default false;
+
+    @AttributeDefinition(name = "Negative Cache Max Size", description = "Maximum number of rejections kept in the negative cache.")
+    int header_auth_negative_cache_max_size() default DEFAULT_HEADER_AUTH_NEGATIVE_CACHE_MAX_SIZE;
+
+    @AttributeDefinition(name = "Negative Cache TTL", description = "Time in seconds a rejection is kept in the negative cache.")
+    long header_auth_negative_cache_ttl() default DEFAULT_HEADER_AUTH_NEGATIVE_CACHE_TTL;
+
+    @AttributeDefinition(name = "Rate Limit Enabled", description = "Limit the rejected requests per client with a token bucket. Once a client used up its bucket, its requests with an invalid shared secret (or, in JWT mode, an oversized or known invalid token) are turned away without further processing until the bucket refills. Requests with a valid shared secret or token always pass.")
+    boolean header_auth_rate_limit_enabled() default false;
+
+    @AttributeDefinition(name = "Rate Limit Rate", description = "Rejected requests per second a client may send in the long run.")
+    double header_auth_rate_limit_rate() default DEFAULT_HEADER_AUTH_RATE_LIMIT_RATE;
+
+    @AttributeDefinition(name = "Rate Limit Burst", description = "Rejected requests a client may send in a burst.")
+    int header_auth_rate_limit_burst() default DEFAULT_HEADER_AUTH_RATE_LIMIT_BURST;
+
+    @AttributeDefinition(name = "Rate Limit Max Sources", description = "Maximum number of clients tracked by the rate limit.")
+    int header_auth_rate_limit_max_sources() default DEFAULT_HEADER_AUTH_RATE_LIMIT_MAX_SOURCES;
+
+    @AttributeDefinition(name = "Rate Limit Client Header", description = "Header set by the trusted proxy in front with the client address, e.g. X-Forwarded-For. Its last address keys the rate limit. If empty or missing from a request, the remote address of the connection is used.")
+    String header_auth_rate_limit_client_header() default "";
+
+    @AttributeDefinition(name = "Profile Value Max Length", description = "Maximum length of a user profile header or claim value, and of the groups header. Longer values, such as huge multi-valued claims, are dropped or truncated. Set to 0 to disable.")
+    int header_auth_profile_value_max_length() default DEFAULT_HEADER_AUTH_PROFILE_VALUE_MAX_LENGTH;
+
+    @AttributeDefinition(name = "Oversized Profile Values", description = "What to do with a profile value longer than the max length: drop the value from the profile, or truncate it to the complete comma-separated entries (group separators for the groups header) within the max length. A value without a separator within the max length is dropped. A dropped groups header leaves the group memberships unchanged.",
+            options = {
+                    @Option(label = "Drop", value = HEADER_AUTH_PROFILE_VALUE_OVERSIZED_DROP),
+                    @Option(label = "Truncate", value = HEADER_AUTH_PROFILE_VALUE_OVERSIZED_TRUNCATE)
+            })
+    String header_auth_profile_value_oversized() default HEADER_AUTH_PROFILE_VALUE_OVERSIZED_DROP;
 }
@@ -0,0 +1,232 @@
+package com.peregrine.sling.auth.header;
+
+/*-
+ * #%L
+ * peregrinecms-com-peregrine-sling-auth-header
+ * %%
+ * Copyright (C) 2020 headwire inc.
+ * %%
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+
+import org.apache.sling.auth.core.spi.AuthenticationFeedbackHandler;
+import org.apache.sling.auth.core.spi.AuthenticationHandler;
+import org.apache.sling.auth.core.spi.AuthenticationInfo;
+import org.osgi.framework.Constants;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.component.annotations.ReferenceCardinality;
+import org.osgi.service.component.annotations.ReferencePolicy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The authentication handler registered with Sling. It hands each request to the {@link HeaderAuthenticationHandler}
+ * configured for it: the tenant whose path prefix is the longest one covering the request path.
+ *
+ * The path prefixes are compiled into a {@link PathPrefixIndex} whenever a tenant comes or goes, so choosing the
+ * tenant costs the same with one or with thousands of configurations. Sling itself only sees this single handler at
+ * the root, instead of one handler per tenant it would check one after the other. If two tenants have the same path
+ * prefix, the one with the higher service ranking, or else the older one, is used.
+ */
+@Component(
+        service = { HeaderAuthenticationRouter.class, AuthenticationHandler.class },
+        property = {
+                AuthenticationHandler.PATH_PROPERTY + "=" + PathPrefixIndex.ROOT
+        },
+        immediate = true
+)
+public class HeaderAuthenticationRouter implements AuthenticationHandler, AuthenticationFeedbackHandler
+{
+    private final Logger logger = LoggerFactory.getLogger(HeaderAuthenticationRouter.class);
+
+    private static final Comparator<Tenant> BY_RANKING = Comparator.<Tenant>comparingInt(tenant -> tenant.ranking)
+            .reversed()
+            .thenComparingLong(tenant -> tenant.serviceId);
+
+    private final List<Tenant> tenants = new ArrayList<>();
+    private volatile PathPrefixIndex<HeaderAuthenticationHandler> index =
+            PathPrefixIndex.compile(Collections.emptyMap());
+    private volatile List<HeaderAuthenticationHandler> handlers = Collections.emptyList();
+
+    @Reference(cardinality = ReferenceCardinality.MULTIPLE, policy = ReferencePolicy.DYNAMIC)
+    protected void bindHandler(final HeaderAuthenticationHandler handler, final Map<String, Object> properties)
+    {
+        synchronized (tenants)
+        {
+            tenants.add(new Tenant(handler, properties));
+            compile();
+        }
+    }
+
+    protected void unbindHandler(final HeaderAuthenticationHandler handler)
+    {
+        synchronized (tenants)
+        {
+            tenants.removeIf(tenant -> tenant.handler == handler);
+            compile();
+        }
+    }
+
+    /**
+     * Rebuilds the index and the list of handlers from the bound tenants. Called with the tenants locked.
+     */
+    private void compile()
+    {
+        tenants.sort(BY_RANKING);
+        final Map<String, HeaderAuthenticationHandler> prefixes = new LinkedHashMap<>();
+        final List<HeaderAuthenticationHandler> ranked = new ArrayList<>(tenants.size());
+        for (Tenant tenant : tenants)
+        {
+            final String prefix = tenant.handler.getPathPrefix();
+            if (prefixes.putIfAbsent(prefix, tenant.handler) != null)
+            {
+                logger.warn("Ignoring Header Authentication Handler {} for path prefix {}: it is already handled by "
+                        + "another configuration", tenant.serviceId, prefix);
+            }
+            ranked.add(tenant.handler);
+        }
+        this.index = PathPrefixIndex.compile(prefixes);
+        this.handlers = Collections.unmodifiableList(ranked);
+        logger.debug("Routing {} path prefixes: {}", prefixes.size(), prefixes.keySet());
+    }
+
+    @Override
+    public AuthenticationInfo extractCredentials(final HttpServletRequest request, final HttpServletResponse response)
+    {
+        final HeaderAuthenticationHandler handler = route(request);
+        return handler != null ? handler.extractCredentials(request, response) : null;
+    }
+
+    @Override
+    public boolean requestCredentials(final HttpServletRequest request, final HttpServletResponse response)
+            throws IOException
+    {
+        final HeaderAuthenticationHandler handler = route(request);
+        return handler != null && handler.requestCredentials(request, response);
+    }
+
+    /**
+     * Deletes the cookies of all tenants, not just of the tenant the request belongs to. A ticket cookie is scoped to
+     * the path prefix of its tenant, so a logout on any other path, such as the logout servlet, would leave it behind.
+     * Cookies of the same name and path shared by several tenants are deleted once.
+     */
+    @Override
+    public void dropCredentials(final HttpServletRequest request, final HttpServletResponse response)
+            throws IOException
+    {
+        final Set<String> deleted = new HashSet<>();
+        for (HeaderAuthenticationHandler handler : handlers)
+        {
+            handler.dropCookies(response, deleted);
+        }
+    }
+
+    @Override
+    public void authenticationFailed(final HttpServletRequest request, final HttpServletResponse response,
+                                     final AuthenticationInfo authInfo)
+    {
+        final HeaderAuthenticationHandler handler = route(request);
+        if (handler != null)
+        {
+            handler.authenticationFailed(request, response, authInfo);
+        }
+    }
+
+    @Override
+    public boolean authenticationSucceeded(final HttpServletRequest request, final HttpServletResponse response,
+                                           final AuthenticationInfo authInfo)
+    {
+        final HeaderAuthenticationHandler handler = route(request);
+        return handler != null && handler.authenticationSucceeded(request, response, authInfo);
+    }
+
+    /**
+     * @return The handler of the tenant the request belongs to, or <code>null</code> if no path prefix covers it.
+     */
+    HeaderAuthenticationHandler route(final HttpServletRequest request)
+    {
+        return index.find(getPath(request));
+    }
+
+    /**
+     * @return The handlers of all tenants, highest ranking first.
+     */
+    public List<HeaderAuthenticationHandler> getHandlers()
+    {
+        return handlers;
+    }
+
+    /**
+     * @return The path prefixes of all tenants, highest ranking first.
+     */
+    public String[] getPathPrefixes()
+    {
+        final List<HeaderAuthenticationHandler> handlers = this.handlers;
+        final String[] prefixes = new String[handlers.size()];
+        for (int i = 0; i < prefixes.length; i++)
+        {
+            prefixes[i] = handlers.get(i).getPathPrefix();
+        }
+        return prefixes;
+    }
+
+    /**
+     * @return The request path the way Sling selects authentication handlers by: the servlet path and the path info,
+     * or the root if both are empty.
+     */
+    private static String getPath(final HttpServletRequest request)
+    {
+        final String servletPath = request.getServletPath();
+        final String pathInfo = request.getPathInfo();
+        if (servletPath == null || servletPath.isEmpty())
+        {
+            return pathInfo == null || pathInfo.isEmpty() ? PathPrefixIndex.ROOT : pathInfo;
+        }
+        return pathInfo != null ? servletPath + pathInfo : servletPath;
+    }
+
+    private static final class Tenant
+    {
+        private final HeaderAuthenticationHandler handler;
+        private final int ranking;
+        private final long serviceId;
+
+        private Tenant(final HeaderAuthenticationHandler handler, final Map<String, Object> properties)
+        {
+            this.handler = handler;
+            final Object ranking = properties.get(Constants.SERVICE_RANKING);
+            this.ranking = ranking instanceof Integer ? (Integer) ranking : 0;
+            final Object serviceId = properties.get(Constants.SERVICE_ID);
+            this.serviceId = serviceId instanceof Long ? (Long) serviceId : Long.MAX_VALUE;
+        }
+    }
+}
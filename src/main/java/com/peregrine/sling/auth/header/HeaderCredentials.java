@@ -26,20 +26,82 @@ package com.peregrine.sling.auth.header;
  */
 
 import javax.jcr.Credentials;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Map;
+import java.util.Set;
 
 /**
- *
+ * Credentials created by the {@link HeaderAuthenticationHandler} for a remote user. Instances are immutable and may
+ * be shared between requests and threads.
+ * <p>
+ * The handler captures the profile headers as a flat array of name/value pairs. The profile map is only built when
+ * {@link #getProfile()} is called, which is when the user is actually synced; a login of a user that is already in
+ * sync never needs it.
  */
 public class HeaderCredentials implements Credentials
 {
-    private String userId;
-    private Map<String, Object> profile;
+    private static final String[] NO_ENTRIES = new String[0];
+
+    private final String userId;
+    private final String[] profileEntries;
+    private final int profileEntryCount;
+    private volatile Map<String, Object> profile;
+    private long profileFingerprint;
+    private volatile boolean profileFingerprintComputed;
+    private final Set<String> groups;
+    private final boolean ticketed;
 
     public HeaderCredentials(String userId, Map<String, Object> profile)
+    {
+        this(userId, profile, null);
+    }
+
+    /**
+     * @param groups The ids of the groups the user is a member of, or <code>null</code> if group membership is not
+     * managed by the headers.
+     */
+    public HeaderCredentials(String userId, Map<String, Object> profile, Set<String> groups)
+    {
+        this.userId = userId;
+        this.profileEntries = NO_ENTRIES;
+        this.profileEntryCount = 0;
+        this.profile = profile != null ? Collections.unmodifiableMap(profile) : Collections.emptyMap();
+        this.groups = groups != null ? Collections.unmodifiableSet(groups) : null;
+        this.ticketed = false;
+    }
+
+    /**
+     * @param profileEntries Profile header names and values, alternating. The array is owned by the credentials from
+     * now on.
+     * @param profileEntryCount The number of name/value pairs used in <code>profileEntries</code>.
+     */
+    HeaderCredentials(String userId, String[] profileEntries, int profileEntryCount, Set<String> groups)
+    {
+        this.userId = userId;
+        this.profileEntries = profileEntries;
+        this.profileEntryCount = profileEntryCount;
+        this.groups = groups != null ? Collections.unmodifiableSet(groups) : null;
+        this.ticketed = false;
+    }
+
+    private HeaderCredentials(String userId)
     {
         this.userId = userId;
-        this.profile = profile;
+        this.profileEntries = NO_ENTRIES;
+        this.profileEntryCount = 0;
+        this.profile = Collections.emptyMap();
+        this.groups = null;
+        this.ticketed = true;
+    }
+
+    /**
+     * Creates credentials for a request that presented a valid re-auth ticket. The user was synced with the same
+     * profile when the ticket was issued, so these credentials carry no profile and are never synced.
+     */
+    static HeaderCredentials ticketed(String userId)
+    {
+        return new HeaderCredentials(userId);
     }
 
     public String getUserId()
@@ -47,8 +109,65 @@ public class HeaderCredentials implements Credentials
         return userId;
     }
 
+    /**
+     * @return The read-only user profile extracted from the request headers.
+     */
     public Map<String, Object> getProfile()
     {
-        return profile;
+        Map<String, Object> result = profile;
+        if (result == null)
+        {
+            final Map<String, Object> map = new HashMap<>(profileEntryCount * 4 / 3 + 1);
+            for (int i = 0; i < profileEntryCount; i++)
+            {
+                map.put(profileEntries[2 * i], profileEntries[2 * i + 1]);
+            }
+            profile = result = Collections.unmodifiableMap(map);
+        }
+        return result;
+    }
+
+    /**
+     * @return The order-independent {@link Fingerprint} of the user profile, computed without building the profile
+     * map and remembered afterwards.
+     */
+    long getProfileFingerprint()
+    {
+        if (!profileFingerprintComputed)
+        {
+            long fingerprint;
+            if (profile != null)
+            {
+                fingerprint = Fingerprint.of(profile);
+            }
+            else
+            {
+                fingerprint = Fingerprint.EMPTY;
+                for (int i = 0; i < profileEntryCount; i++)
+                {
+                    fingerprint = Fingerprint.add(fingerprint, profileEntries[2 * i], profileEntries[2 * i + 1]);
+                }
+            }
+            profileFingerprint = fingerprint;
+            profileFingerprintComputed = true;
+        }
+        return profileFingerprint;
+    }
+
+    /**
+     * @return The read-only ids of the groups extracted from the groups header, or <code>null</code> if group
+     * membership is not managed by the headers.
+     */
+    public Set<String> getGroups()
+    {
+        return groups;
+    }
+
+    /**
+     * @return <code>true</code> if the credentials were created from a re-auth ticket and the user sync is skipped.
+     */
+    public boolean isTicketed()
+    {
+        return ticketed;
     }
 }
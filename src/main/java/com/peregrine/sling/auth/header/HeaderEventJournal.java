@@ -0,0 +1,170 @@
+package com.peregrine.sling.auth.header;
+
+/*-
+ * #%L
+ * peregrinecms-com-peregrine-sling-auth-header
+ * %%
+ * Copyright (C) 2020 headwire inc.
+ * %%
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
+import org.osgi.service.metatype.annotations.Designate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Records the decisions of {@link HeaderAuthenticationHandler} and the syncs of {@link UserSynchronizer} in an
+ * {@link EventJournal}, so that login issues can be analyzed after the fact without debug logging. Recording is a
+ * no-op while the journal is disabled.
+ */
+@Component(
+        service = HeaderEventJournal.class,
+        immediate = true
+)
+@Designate(ocd = HeaderEventJournalConfig.class)
+public class HeaderEventJournal
+{
+    private final Logger logger = LoggerFactory.getLogger(HeaderEventJournal.class);
+
+    private static final long BYTES_PER_MB = 1024L * 1024L;
+
+    private volatile EventJournal journal;
+    private boolean extractEnabled;
+    private boolean syncEnabled;
+    private boolean retryEnabled;
+    private boolean skipEnabled;
+
+    @Activate
+    protected void activate(HeaderEventJournalConfig config)
+    {
+        logger.debug("Activating Header Event Journal");
+        final Set<String> types = new HashSet<>(Arrays.asList(config.header_journal_event_types() != null
+                ? config.header_journal_event_types() : new String[0]));
+        this.extractEnabled = types.contains(EventJournal.EXTRACT);
+        this.syncEnabled = types.contains(EventJournal.SYNC);
+        this.retryEnabled = types.contains(EventJournal.RETRY);
+        this.skipEnabled = types.contains(EventJournal.SKIP);
+        if (config.header_journal_enabled())
+        {
+            this.journal = new EventJournal(Paths.get(config.header_journal_file()),
+                    Math.max(1, config.header_journal_max_file_size()) * BYTES_PER_MB,
+                    config.header_journal_max_files(), config.header_journal_buffer_size());
+            logger.info("Recording events: {} in journal: {}", types, journal.getFile().toAbsolutePath());
+        }
+    }
+
+    @Deactivate
+    protected void deactivate()
+    {
+        final EventJournal closing = journal;
+        journal = null;
+        if (closing != null)
+        {
+            closing.close();
+        }
+    }
+
+    /**
+     * @param outcome <code>ACCEPTED</code>, <code>CACHED</code>, <code>TICKET</code> or the rejection reason.
+     */
+    void recordExtraction(final String outcome, final String userId, final String source)
+    {
+        final EventJournal current = journal;
+        if (current != null && extractEnabled)
+        {
+            current.recordExtraction(outcome, userId, source);
+        }
+    }
+
+    /**
+     * @param outcome The {@link org.apache.jackrabbit.oak.spi.security.authentication.external.SyncResult.Status}
+     * name, or <code>FAILED</code>.
+     * @param commitNanos The duration of the commit, or -1 if there was none.
+     */
+    void recordSync(final String userId, final String outcome, final int attempt, final long commitNanos)
+    {
+        final EventJournal current = journal;
+        if (current != null && syncEnabled)
+        {
+            current.recordSync(userId, outcome, attempt, commitNanos, null);
+        }
+    }
+
+    void recordSyncFailure(final String userId, final Exception e)
+    {
+        final EventJournal current = journal;
+        if (current != null && syncEnabled)
+        {
+            current.recordSync(userId, "FAILED", 0, -1, String.valueOf(e.getMessage()));
+        }
+    }
+
+    void recordRetry(final String userId, final int attempt, final long commitNanos, final Exception e)
+    {
+        final EventJournal current = journal;
+        if (current != null && retryEnabled)
+        {
+            current.recordRetry(userId, attempt, commitNanos, e.getMessage());
+        }
+    }
+
+    /**
+     * @param reason <code>TICKET</code> or <code>CACHED</code>.
+     */
+    void recordSkip(final String userId, final String reason)
+    {
+        final EventJournal current = journal;
+        if (current != null && skipEnabled)
+        {
+            current.recordSkip(userId, reason);
+        }
+    }
+
+    public boolean isEnabled()
+    {
+        return journal != null;
+    }
+
+    public long getWrittenCount()
+    {
+        final EventJournal current = journal;
+        return current != null ? current.getWrittenCount() : 0;
+    }
+
+    public long getDroppedCount()
+    {
+        final EventJournal current = journal;
+        return current != null ? current.getDroppedCount() : 0;
+    }
+
+    public int getPendingCount()
+    {
+        final EventJournal current = journal;
+        return current != null ? current.getPendingCount() : 0;
+    }
+}
@@ -0,0 +1,56 @@
+package com.peregrine.sling.auth.header;
+
+/*-
+ * #%L
+ * peregrinecms-com-peregrine-sling-auth-header
+ * %%
+ * Copyright (C) 2020 headwire inc.
+ * %%
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+
+import org.osgi.service.metatype.annotations.AttributeDefinition;
+import org.osgi.service.metatype.annotations.ObjectClassDefinition;
+
+@ObjectClassDefinition(name = "Header Event Journal Configuration", description = "Configuration options for the journal of authentication and sync events, written off the request threads to a rotating JSON Lines file.")
+public @interface HeaderEventJournalConfig
+{
+    public static final String DEFAULT_HEADER_JOURNAL_FILE = "logs/header-auth-journal.jsonl";
+    public static final int DEFAULT_HEADER_JOURNAL_MAX_FILE_SIZE = 64;
+    public static final int DEFAULT_HEADER_JOURNAL_MAX_FILES = 5;
+    public static final int DEFAULT_HEADER_JOURNAL_BUFFER_SIZE = 8192;
+
+    @AttributeDefinition(name = "Journal Enabled", description = "Record authentication and sync events in the journal file.")
+    boolean header_journal_enabled() default false;
+
+    @AttributeDefinition(name = "Journal File", description = "Path of the journal file, relative to the working directory of the JVM unless absolute. Rotated files get the suffix .1, .2 and so on.")
+    String header_journal_file() default DEFAULT_HEADER_JOURNAL_FILE;
+
+    @AttributeDefinition(name = "Journal Max File Size", description = "Size in MB after which the journal file is rotated.")
+    int header_journal_max_file_size() default DEFAULT_HEADER_JOURNAL_MAX_FILE_SIZE;
+
+    @AttributeDefinition(name = "Journal Max Files", description = "Number of rotated journal files kept in addition to the current file.")
+    int header_journal_max_files() default DEFAULT_HEADER_JOURNAL_MAX_FILES;
+
+    @AttributeDefinition(name = "Journal Buffer Size", description = "Number of events buffered for the journal writer. Events recorded while the buffer is full are dropped and counted.")
+    int header_journal_buffer_size() default DEFAULT_HEADER_JOURNAL_BUFFER_SIZE;
+
+    @AttributeDefinition(name = "Journal Event Types", description = "Types of events recorded: extract (the decision of the authentication handler), sync (the result of a user sync), retry (a failed sync commit) and skip (a login that did not need a sync).")
+    String[] header_journal_event_types() default { EventJournal.EXTRACT, EventJournal.SYNC, EventJournal.RETRY, EventJournal.SKIP };
+}
@@ -36,11 +36,16 @@ import org.slf4j.LoggerFactory;
 
 import javax.jcr.Credentials;
 import javax.security.auth.login.LoginException;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 @Component(
         name = "Header External Identity Provider",
-        service = ExternalIdentityProvider.class,
+        service = { ExternalIdentityProvider.class, HeaderExternalIdentityProvider.class },
         immediate = true
 )
 /**
@@ -54,9 +59,62 @@ public class HeaderExternalIdentityProvider implements ExternalIdentityProvider
 
     public static final String NAME = "HeaderExternalIdentityProvider";
 
-    private Map<String, Set<String>> userGroupMap = new HashMap<String, Set<String>>();
-    private Set<String> groupIds = new HashSet<String>();
-    private Map<String, Object> userProfile = new HashMap<String, Object>();
+    /**
+     * Path of a JSON Lines or CSV export listed by {@link #listUsers()}. See {@link ProfileImportReader} for the
+     * format.
+     */
+    public static final String IMPORT_FILE_PROPERTY = "header.idp.import.file";
+
+    /**
+     * Maximum number of interned {@link ExternalGroup} instances.
+     */
+    public static final String GROUP_CACHE_SIZE_PROPERTY = "header.idp.group.cache.size";
+    public static final int DEFAULT_GROUP_CACHE_SIZE = 10000;
+
+    /**
+     * Rules mapping profile claims to typed user properties. See {@link ClaimMapping} for the syntax.
+     */
+    public static final String CLAIM_MAPPING_PROPERTY = "header.idp.claim.mapping";
+
+    /**
+     * Prefix stripped from the names of claims without a mapping rule, e.g. <code>OIDC_CLAIM_</code>.
+     */
+    public static final String CLAIM_PREFIX_PROPERTY = "header.idp.claim.prefix";
+
+    /**
+     * Whether claims without a mapping rule are kept as user properties.
+     */
+    public static final String CLAIM_KEEP_UNMAPPED_PROPERTY = "header.idp.claim.keep.unmapped";
+
+    /**
+     * Maximum number of distinct entries of multi-valued claims interned and shared by all users.
+     */
+    public static final String CLAIM_INTERN_MAX_SIZE_PROPERTY = "header.idp.claim.intern.max.size";
+    public static final int DEFAULT_CLAIM_INTERN_MAX_SIZE = 10000;
+
+    /**
+     * Strategy for the intermediate path of new users: <code>none</code>, <code>hash</code> or <code>domain</code>.
+     * See {@link IntermediatePath}.
+     */
+    public static final String INTERMEDIATE_PATH_PROPERTY = "header.idp.intermediate.path";
+
+    /**
+     * Number of hash folder levels of the intermediate path.
+     */
+    public static final String INTERMEDIATE_PATH_HASH_LEVELS_PROPERTY = "header.idp.intermediate.path.hash.levels";
+    public static final int DEFAULT_INTERMEDIATE_PATH_HASH_LEVELS = 2;
+
+    /**
+     * Prefix of the external id of groups, so that {@link #getIdentity(ExternalIdentityRef)} can tell group refs from
+     * user refs without a repository lookup.
+     */
+    static final String GROUP_REF_PREFIX = "group:";
+
+    private volatile Path importFile;
+    private volatile ClaimMapping claimMapping = ClaimMapping.NONE;
+    private volatile IntermediatePath intermediatePath = IntermediatePath.NONE;
+    private volatile int groupCacheSize = DEFAULT_GROUP_CACHE_SIZE;
+    private final ConcurrentHashMap<String, ExternalGroup> groups = new ConcurrentHashMap<>();
 
     public HeaderExternalIdentityProvider()
     {
@@ -67,6 +125,7 @@ public class HeaderExternalIdentityProvider implements ExternalIdentityProvider
     public void activate(Map<String, Object> properties)
     {
         ConfigurationParameters config = ConfigurationParameters.of(properties);
+        configure(config);
         logger.info("Activated IDP: '{}' with config: '{}'", getName(), config);
     }
 
@@ -74,71 +133,78 @@ public class HeaderExternalIdentityProvider implements ExternalIdentityProvider
     public void modified(Map<String, Object> properties)
     {
         ConfigurationParameters config = ConfigurationParameters.of(properties);
+        configure(config);
         logger.info("Modified IDP: '{}' with config: '{}'", getName(), config);
     }
 
+    private void configure(final ConfigurationParameters config)
+    {
+        final String file = config.getConfigValue(IMPORT_FILE_PROPERTY, "");
+        importFile = file.trim().isEmpty() ? null : Paths.get(file.trim());
+        groupCacheSize = config.getConfigValue(GROUP_CACHE_SIZE_PROPERTY, DEFAULT_GROUP_CACHE_SIZE);
+        claimMapping = ClaimMapping.compile(config.getConfigValue(CLAIM_MAPPING_PROPERTY, new String[0]),
+                config.getConfigValue(CLAIM_PREFIX_PROPERTY, ""),
+                config.getConfigValue(CLAIM_KEEP_UNMAPPED_PROPERTY, true),
+                config.getConfigValue(CLAIM_INTERN_MAX_SIZE_PROPERTY, DEFAULT_CLAIM_INTERN_MAX_SIZE));
+        intermediatePath = IntermediatePath.compile(
+                config.getConfigValue(INTERMEDIATE_PATH_PROPERTY, IntermediatePath.NONE_STRATEGY),
+                config.getConfigValue(INTERMEDIATE_PATH_HASH_LEVELS_PROPERTY, DEFAULT_INTERMEDIATE_PATH_HASH_LEVELS));
+        groups.clear();
+    }
+
     @Override
     public String getName()
     {
         return NAME;
     }
 
+    /**
+     * @return The strategy placing new users below the path prefix of the sync handler. Also used by
+     * {@link HeaderUserPathMigrator} to move existing users.
+     */
+    IntermediatePath getIntermediatePathStrategy()
+    {
+        return intermediatePath;
+    }
+
     @Override
     public ExternalIdentity getIdentity(ExternalIdentityRef externalIdentityRef) throws ExternalIdentityException
     {
         if (getName().equals(externalIdentityRef.getProviderName()))
         {
             String id = externalIdentityRef.getId();
-            return getUser(id);
+            if (id.startsWith(GROUP_REF_PREFIX))
+            {
+                return getGroup(id.substring(GROUP_REF_PREFIX.length()));
+            }
+            // Groups created before group refs carried the prefix can only be told apart while they are interned
+            final ExternalGroup group = groups.get(id);
+            return group != null ? group : getUser(id);
         } else
         {
             return null;
         }
     }
 
+    /**
+     * Returns the user without any profile information. Use {@link #getUser(HeaderCredentials)} to get a user that
+     * carries the profile extracted from the request headers.
+     */
     @Override
     public ExternalUser getUser(final String userId) throws ExternalIdentityException
     {
-        return new ExternalUser()
-        {
-
-            @Override
-            public ExternalIdentityRef getExternalId()
-            {
-                return new ExternalIdentityRef(userId, getName());
-            }
-
-            @Override
-            public String getId()
-            {
-                return userId;
-            }
-
-            @Override
-            public String getPrincipalName()
-            {
-                return "p_" + getExternalId().getString();
-            }
-
-            @Override
-            public String getIntermediatePath()
-            {
-                return null;
-            }
-
-            @Override
-            public Iterable<ExternalIdentityRef> getDeclaredGroups() throws ExternalIdentityException
-            {
-                return ImmutableSet.of();
-            }
+        return new HeaderExternalUser(userId, Collections.emptyMap(), null);
+    }
 
-            @Override
-            public Map<String, ?> getProperties()
-            {
-                Map<String, Object> profile = getUserProfile();
-                return profile;
-            }
-        };
+    /**
+     * Returns the user identified by the credentials. The user carries the profile of the credentials, mapped to
+     * typed properties by the configured claim mapping, so that concurrent syncs of different users never share
+     * profile state.
+     */
+    public ExternalUser getUser(final HeaderCredentials credentials)
+    {
+        return new HeaderExternalUser(credentials.getUserId(), claimMapping.apply(credentials.getProfile()),
+                credentials.getGroups());
     }
 
     @Override
@@ -146,24 +212,73 @@ public class HeaderExternalIdentityProvider implements ExternalIdentityProvider
     {
         if (credentials instanceof HeaderCredentials)
         {
-            String userId = ((HeaderCredentials) credentials).getUserId();
-            return getUser(userId);
+            return getUser((HeaderCredentials) credentials);
         } else
         {
             throw new LoginException("Unsupported credentials");
         }
     }
 
+    /**
+     * Returns the group with the given id. Groups carry no properties or members, so instances are interned and
+     * shared. Once the configured number of groups is interned, new instances are created on every call.
+     */
     @Override
-    public ExternalGroup getGroup(String s) throws ExternalIdentityException
+    public ExternalGroup getGroup(String groupId) throws ExternalIdentityException
     {
-        return null;
+        if (groupId == null)
+        {
+            return null;
+        }
+
+        final ExternalGroup group = groups.get(groupId);
+        if (group != null)
+        {
+            return group;
+        }
+        if (groups.size() < groupCacheSize)
+        {
+            return groups.computeIfAbsent(groupId, HeaderExternalGroup::new);
+        }
+        return new HeaderExternalGroup(groupId);
     }
 
+    /**
+     * Streams the users of the configured import file, with the claim mapping applied to their profiles. The file is
+     * read lazily, one record per call to <code>next()</code>, and closed when the iterator is exhausted. The returned
+     * iterator is also {@link Closeable} so that callers that stop early can release the file.
+     *
+     * @throws UnsupportedOperationException if no import file is configured.
+     * @see #listProfiles()
+     */
     @Override
     public Iterator<ExternalUser> listUsers() throws ExternalIdentityException
     {
-        throw new UnsupportedOperationException("listUsers");
+        return new ImportedUsers(listProfiles());
+    }
+
+    /**
+     * Streams the unmapped profiles of the configured import file, as they would arrive in the request headers. Used
+     * by {@link HeaderUserImporter}, since the sync applies the claim mapping through {@link
+     * #getUser(HeaderCredentials)}.
+     *
+     * @throws UnsupportedOperationException if no import file is configured.
+     */
+    ProfileImportReader listProfiles() throws ExternalIdentityException
+    {
+        final Path file = importFile;
+        if (file == null)
+        {
+            throw new UnsupportedOperationException("listUsers");
+        }
+
+        try
+        {
+            return ProfileImportReader.open(file);
+        } catch (IOException e)
+        {
+            throw new ExternalIdentityException("Cannot read import file: " + file, e);
+        }
     }
 
     @Override
@@ -172,13 +287,163 @@ public class HeaderExternalIdentityProvider implements ExternalIdentityProvider
         throw new UnsupportedOperationException("listGroups");
     }
 
-    public void setUserProfile(Map<String, Object> userProfile)
+    /**
+     * Adapts the records of an import file to external users.
+     */
+    private final class ImportedUsers implements Iterator<ExternalUser>, Closeable
+    {
+        private final ProfileImportReader reader;
+
+        private ImportedUsers(final ProfileImportReader reader)
+        {
+            this.reader = reader;
+        }
+
+        @Override
+        public boolean hasNext()
+        {
+            return reader.hasNext();
+        }
+
+        @Override
+        public ExternalUser next()
+        {
+            return getUser(reader.next());
+        }
+
+        @Override
+        public void close()
+        {
+            reader.close();
+        }
+    }
+
+    /**
+     * An immutable external user. Its properties are the mapped profile it was created with.
+     */
+    private final class HeaderExternalUser implements ExternalUser
     {
-        this.userProfile = userProfile;
+        private final String userId;
+        private final Map<String, ?> profile;
+        private final Set<String> groupIds;
+
+        private HeaderExternalUser(final String userId, final Map<String, ?> profile, final Set<String> groupIds)
+        {
+            this.userId = userId;
+            this.profile = profile;
+            this.groupIds = groupIds;
+        }
+
+        @Override
+        public ExternalIdentityRef getExternalId()
+        {
+            return new ExternalIdentityRef(userId, getName());
+        }
+
+        @Override
+        public String getId()
+        {
+            return userId;
+        }
+
+        @Override
+        public String getPrincipalName()
+        {
+            return "p_" + getExternalId().getString();
+        }
+
+        /**
+         * @return The path of the user's folder relative to the path prefix of the sync handler. The sync handler only
+         * uses it to create new users; existing users are moved by {@link HeaderUserPathMigrator}.
+         */
+        @Override
+        public String getIntermediatePath()
+        {
+            return intermediatePath.of(userId);
+        }
+
+        /**
+         * @return The groups of the groups header, if any. Membership itself is applied as a delta by
+         * {@link UserSynchronizer}.
+         */
+        @Override
+        public Iterable<ExternalIdentityRef> getDeclaredGroups() throws ExternalIdentityException
+        {
+            if (groupIds == null || groupIds.isEmpty())
+            {
+                return ImmutableSet.of();
+            }
+
+            final List<ExternalIdentityRef> refs = new ArrayList<>(groupIds.size());
+            for (String groupId : groupIds)
+            {
+                refs.add(getGroup(groupId).getExternalId());
+            }
+            return refs;
+        }
+
+        @Override
+        public Map<String, ?> getProperties()
+        {
+            return profile;
+        }
     }
 
-    public Map<String, Object> getUserProfile()
+    /**
+     * An immutable external group. Members are not known to the provider; they are added by the user sync.
+     */
+    private final class HeaderExternalGroup implements ExternalGroup
     {
-        return userProfile;
+        private final String groupId;
+        private final ExternalIdentityRef externalId;
+
+        private HeaderExternalGroup(final String groupId)
+        {
+            this.groupId = groupId;
+            this.externalId = new ExternalIdentityRef(GROUP_REF_PREFIX + groupId, getName());
+        }
+
+        @Override
+        public ExternalIdentityRef getExternalId()
+        {
+            return externalId;
+        }
+
+        @Override
+        public String getId()
+        {
+            return groupId;
+        }
+
+        @Override
+        public String getPrincipalName()
+        {
+            // Kept independent of the external id, which gained its prefix after groups were first created
+            return "g_" + new ExternalIdentityRef(groupId, getName()).getString();
+        }
+
+        @Override
+        public String getIntermediatePath()
+        {
+            return null;
+        }
+
+        @Override
+        public Iterable<ExternalIdentityRef> getDeclaredGroups()
+        {
+            return ImmutableSet.of();
+        }
+
+        @Override
+        public Map<String, ?> getProperties()
+        {
+            return Collections.emptyMap();
+        }
+
+        @Override
+        public Iterable<ExternalIdentityRef> getDeclaredMembers()
+        {
+            return ImmutableSet.of();
+        }
     }
 }
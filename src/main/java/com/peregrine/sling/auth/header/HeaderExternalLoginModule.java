@@ -26,37 +26,31 @@ package com.peregrine.sling.auth.header;
  */
 
 import org.apache.jackrabbit.api.security.user.UserManager;
-import org.apache.jackrabbit.oak.api.CommitFailedException;
+import org.apache.jackrabbit.oak.api.ContentRepository;
 import org.apache.jackrabbit.oak.api.Root;
-import org.apache.jackrabbit.oak.namepath.NamePathMapper;
-import org.apache.jackrabbit.oak.plugins.value.jcr.ValueFactoryImpl;
 import org.apache.jackrabbit.oak.spi.security.authentication.AbstractLoginModule;
 import org.apache.jackrabbit.oak.spi.security.authentication.PreAuthenticatedLogin;
+import org.apache.jackrabbit.oak.spi.security.authentication.callback.RepositoryCallback;
 import org.apache.jackrabbit.oak.spi.security.authentication.external.*;
-import org.apache.jackrabbit.oak.spi.whiteboard.Whiteboard;
-import org.apache.jackrabbit.oak.spi.whiteboard.WhiteboardUtils;
-import org.osgi.service.component.annotations.Component;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.jcr.Credentials;
 import javax.jcr.SimpleCredentials;
-import javax.security.auth.Subject;
-import javax.security.auth.callback.CallbackHandler;
+import javax.security.auth.callback.Callback;
+import javax.security.auth.callback.UnsupportedCallbackException;
 import javax.security.auth.login.LoginException;
+import java.io.IOException;
 import java.util.HashSet;
-import java.util.Map;
 import java.util.Set;
 
-@Component(
-        name = "Header Login Module",
-        service = HeaderExternalLoginModule.class,
-        immediate = true
-)
+/**
+ * Pre-authenticates header authenticated users and syncs them into the repository. JAAS creates a new instance for
+ * every login through the {@link HeaderLoginModuleFactory}, which passes in the services it tracks.
+ */
 public class HeaderExternalLoginModule extends AbstractLoginModule
 {
     private final Logger logger = LoggerFactory.getLogger(HeaderExternalLoginModule.class);
-    private static final int MAX_SYNC_ATTEMPTS = 3;
 
     static Set<Class> SUPPORTED_CREDENTIALS = new HashSet<Class>();
 
@@ -65,14 +59,46 @@ public class HeaderExternalLoginModule extends AbstractLoginModule
         SUPPORTED_CREDENTIALS.add(HeaderCredentials.class);
     }
 
-    private ExternalIdentityProvider externalIdentityProvider;
+    private final ExternalIdentityProvider externalIdentityProvider;
+
+    private final SyncHandler syncHandler;
 
-    private SyncHandler syncHandler;
+    private final HeaderUserSyncService syncService;
 
-    private ExternalUser externalUser;
+    /**
+     * @param externalIdentityProvider The identity provider or <code>null</code> if it is not available.
+     * @param syncHandler The sync handler or <code>null</code> if it is not available.
+     * @param syncService The sync service or <code>null</code> if it is not available.
+     */
+    HeaderExternalLoginModule(final ExternalIdentityProvider externalIdentityProvider, final SyncHandler syncHandler,
+                              final HeaderUserSyncService syncService)
+    {
+        this.externalIdentityProvider = externalIdentityProvider;
+        this.syncHandler = syncHandler;
+        this.syncService = syncService;
+    }
 
-    public HeaderExternalLoginModule()
+    /**
+     * @return The content repository, obtained from the callback handler like the root and the security provider, or
+     * <code>null</code> if it is not available.
+     */
+    private ContentRepository getContentRepository()
     {
+        if (callbackHandler == null)
+        {
+            return null;
+        }
+
+        final RepositoryCallback callback = new RepositoryCallback();
+        try
+        {
+            callbackHandler.handle(new Callback[] { callback });
+            return callback.getContentRepository();
+        } catch (IOException | UnsupportedCallbackException e)
+        {
+            logger.debug("Unable to retrieve the content repository: {}", e.getMessage());
+            return null;
+        }
     }
 
     @Override
@@ -96,9 +122,24 @@ public class HeaderExternalLoginModule extends AbstractLoginModule
                 sharedState.put(SHARED_KEY_LOGIN_NAME, userId);
                 logger.debug("Adding pre-authenticated login user '{}' to shared state.", userId);
 
-                // TODO: Only sync user on first login?
                 // TODO: Can we wire the user sync instead of calling manually?
-                handleUserSync((HeaderCredentials)credentials);
+                final String profileFingerprint = syncService != null
+                        ? syncService.getProfileFingerprint((HeaderCredentials) credentials)
+                        : null;
+                if (((HeaderCredentials) credentials).isTicketed())
+                {
+                    logger.debug("User '{}' presented a re-auth ticket. Skipping user sync.", userId);
+                    journalSkip(userId, "TICKET");
+                }
+                else if (syncService != null && syncService.isSynced(userId, profileFingerprint))
+                {
+                    logger.debug("User '{}' was synced recently. Skipping user sync.", userId);
+                    journalSkip(userId, "CACHED");
+                }
+                else
+                {
+                    handleUserSync((HeaderCredentials)credentials, profileFingerprint);
+                }
             }
             else
             {
@@ -110,75 +151,54 @@ public class HeaderExternalLoginModule extends AbstractLoginModule
         return false;
     }
 
-    private void handleUserSync(final HeaderCredentials credentials)
+    private void handleUserSync(final HeaderCredentials credentials, final String profileFingerprint)
     {
         final String userId = credentials.getUserId();
 
         try
         {
-
-            SyncedIdentity syncedIdentity = null;
-            UserManager userMgr = getUserManager();
-            externalUser = externalIdentityProvider.getUser(userId);
-
-            if (userId != null && userMgr != null)
+            if (externalIdentityProvider == null || syncHandler == null)
             {
-                syncedIdentity = syncHandler.findIdentity(userMgr, userId);
-                if (syncedIdentity != null)
-                {
-                    logger.debug("Found identity: '{}' for user: '{}'", syncedIdentity, userId);
-                    return;
-                }
-
-                // Inject user profile
-                ((HeaderExternalIdentityProvider)externalIdentityProvider).setUserProfile(credentials.getProfile());
+                throw new SyncException("Cannot synchronize user. The identity provider '" +
+                        HeaderExternalIdentityProvider.NAME + "' or the sync handler is not available.");
+            }
 
-                Root root = getRoot();
-                if (null == root)
-                {
-                    throw new SyncException("Cannot synchronize user. root == null");
-                }
+            Root root = getRoot();
+            if (null == root)
+            {
+                throw new SyncException("Cannot synchronize user. root == null");
+            }
 
-                UserManager userManager = getUserManager();
-                if (userManager == null)
-                {
-                    throw new SyncException("Cannot synchronize user. userManager == null");
-                }
+            UserManager userManager = getUserManager();
+            if (userManager == null)
+            {
+                throw new SyncException("Cannot synchronize user. userManager == null");
+            }
 
-                int numAttempt = 0;
-                while (numAttempt++ < MAX_SYNC_ATTEMPTS)
+            UserSynchronizer synchronizer = new UserSynchronizer(externalIdentityProvider, syncHandler, syncService,
+                    getContentRepository(), getSecurityProvider());
+            synchronizer.sync(root, userManager, credentials, profileFingerprint, true);
+        } catch (Exception e)
+        {
+            logger.error("Error syncing user: '{}'", userId, e);
+            if (syncService != null)
+            {
+                syncService.recordSyncFailure();
+                final HeaderEventJournal journal = syncService.getEventJournal();
+                if (journal != null)
                 {
-                    SyncContext context = null;
-                    try
-                    {
-                        context = syncHandler.createContext(externalIdentityProvider, userManager,
-                                new ValueFactoryImpl(root, NamePathMapper.DEFAULT));
-                        // Note: The SyncContext will only create a user in the repository if you use the
-                        // DefaultSyncContext.sync(ExternalIdentity) method. It will NOT create a user if use
-                        // the DefaultSyncContext.sync(String) method.
-                        SyncResult syncResult = context.sync(externalUser);
-                        logger.debug("Synced user: '{}' wth status: '{}'", externalUser.getId(), syncResult.getStatus());
-
-                        root.commit();
-                        return;
-                    } catch (CommitFailedException e)
-                    {
-                        logger.error("Error syncing user: '{}'", userId, e);
-                        root.refresh();
-                    } finally
-                    {
-                        if (context != null)
-                        {
-                            context.close();
-                        }
-                    }
+                    journal.recordSyncFailure(userId, e);
                 }
-                throw new SyncException("User synchronization failed during commit after " + MAX_SYNC_ATTEMPTS + " attempts");
-
             }
-        } catch (Exception e)
+        }
+    }
+
+    private void journalSkip(final String userId, final String reason)
+    {
+        final HeaderEventJournal journal = syncService != null ? syncService.getEventJournal() : null;
+        if (journal != null)
         {
-            logger.error("Error syncing user: '{}'", userId, e);
+            journal.recordSkip(userId, reason);
         }
     }
 
@@ -190,56 +210,6 @@ public class HeaderExternalLoginModule extends AbstractLoginModule
         return false;
     }
 
-    @Override
-    public void initialize(Subject subject, CallbackHandler callbackHandler, Map<String, ?> sharedState, Map<String, ?> options)
-    {
-        // TODO: Refactor implementation to use DS instead of manually wiring with whiteboard.
-
-        super.initialize(subject, callbackHandler, sharedState, options);
-
-        // 1. Get Whiteboard
-        Whiteboard whiteboard = getWhiteboard();
-        if (null == whiteboard)
-        {
-            logger.error("Header login module needs Whiteboard.");
-            return;
-        }
-
-        // 2. Get Identity Provider Manager
-        ExternalIdentityProviderManager externalIdentityProviderManager = WhiteboardUtils.getService(whiteboard, ExternalIdentityProviderManager.class);
-        if (null == externalIdentityProviderManager)
-        {
-            logger.error("Header login module needs ExternalIdentityProviderManager.");
-            return;
-        }
-
-        // 3. get Identity Provider
-        externalIdentityProvider = externalIdentityProviderManager.getProvider(HeaderExternalIdentityProvider.NAME);
-        if (null == externalIdentityProvider)
-        {
-            logger.error("Header login module needs ExternalIdentityProvider. Can't get IDP with name: '{}'",
-                    HeaderExternalIdentityProvider.NAME);
-            return;
-        }
-
-        // 4. get Sync Manager
-        SyncManager syncManager = WhiteboardUtils.getService(whiteboard, SyncManager.class);
-        if (null == syncManager)
-        {
-            logger.error("Header login module needs SyncManager.");
-            return;
-        }
-
-        // 5. Get Sync Handler
-        String syncHandlerName = "default";
-        syncHandler = syncManager.getSyncHandler(syncHandlerName);
-        if (null == syncHandler)
-        {
-            logger.error("Header login module needs SyncHandler. Can't get SyncHandler: '{}'", syncHandlerName);
-            return;
-        }
-    }
-
     @Override
     public boolean abort() throws LoginException
     {
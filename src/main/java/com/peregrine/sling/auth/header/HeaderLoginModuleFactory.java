@@ -0,0 +1,99 @@
+package com.peregrine.sling.auth.header;
+
+/*-
+ * #%L
+ * peregrinecms-com-peregrine-sling-auth-header
+ * %%
+ * Copyright (C) 2020 headwire inc.
+ * %%
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+
+import org.apache.felix.jaas.LoginModuleFactory;
+import org.apache.jackrabbit.oak.spi.security.authentication.external.SyncHandler;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.component.annotations.ReferenceCardinality;
+import org.osgi.service.component.annotations.ReferencePolicy;
+import org.osgi.service.metatype.annotations.Designate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.security.auth.spi.LoginModule;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Registers the {@link HeaderExternalLoginModule} with Felix JAAS and hands each new login module the services it
+ * needs. The services are tracked for the lifetime of the factory and swapped atomically when they come and go, so
+ * creating a login module is a few field reads rather than a whiteboard lookup per login.
+ *
+ * The sync handler is chosen by the name configured in the {@link HeaderUserSyncService}, or
+ * {@value HeaderUserSyncServiceConfig#DEFAULT_HEADER_SYNC_HANDLER_NAME} if the sync service is not available.
+ */
+@Component(
+        name = "Header Login Module",
+        service = LoginModuleFactory.class,
+        property = {
+                LoginModuleFactory.JAAS_CONTROL_FLAG + "=" + HeaderLoginModuleFactoryConfig.DEFAULT_JAAS_CONTROL_FLAG,
+                LoginModuleFactory.JAAS_RANKING + ":Integer=" + HeaderLoginModuleFactoryConfig.DEFAULT_JAAS_RANKING,
+                LoginModuleFactory.JAAS_REALM_NAME + "=" + HeaderLoginModuleFactoryConfig.DEFAULT_JAAS_REALM_NAME
+        }
+)
+@Designate(ocd = HeaderLoginModuleFactoryConfig.class)
+public class HeaderLoginModuleFactory implements LoginModuleFactory
+{
+    private final Logger logger = LoggerFactory.getLogger(HeaderLoginModuleFactory.class);
+
+    @Reference(cardinality = ReferenceCardinality.OPTIONAL, policy = ReferencePolicy.DYNAMIC)
+    private volatile HeaderExternalIdentityProvider externalIdentityProvider;
+
+    @Reference(cardinality = ReferenceCardinality.OPTIONAL, policy = ReferencePolicy.DYNAMIC)
+    private volatile HeaderUserSyncService syncService;
+
+    private final ConcurrentHashMap<String, SyncHandler> syncHandlers = new ConcurrentHashMap<>();
+
+    @Activate
+    protected void activate(HeaderLoginModuleFactoryConfig config)
+    {
+        logger.debug("Activating Header Login Module Factory with ranking: {}", config.jaas_ranking());
+    }
+
+    @Reference(cardinality = ReferenceCardinality.MULTIPLE, policy = ReferencePolicy.DYNAMIC)
+    protected void bindSyncHandler(final SyncHandler syncHandler)
+    {
+        syncHandlers.put(syncHandler.getName(), syncHandler);
+    }
+
+    protected void unbindSyncHandler(final SyncHandler syncHandler)
+    {
+        syncHandlers.remove(syncHandler.getName(), syncHandler);
+    }
+
+    @Override
+    public LoginModule createLoginModule()
+    {
+        final HeaderUserSyncService syncService = this.syncService;
+        final String syncHandlerName = syncService != null
+                ? syncService.getSyncHandlerName()
+                : HeaderUserSyncServiceConfig.DEFAULT_HEADER_SYNC_HANDLER_NAME;
+        return new HeaderExternalLoginModule(externalIdentityProvider, syncHandlers.get(syncHandlerName),
+                syncService);
+    }
+}
@@ -0,0 +1,46 @@
+package com.peregrine.sling.auth.header;
+
+/*-
+ * #%L
+ * peregrinecms-com-peregrine-sling-auth-header
+ * %%
+ * Copyright (C) 2020 headwire inc.
+ * %%
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+
+import org.osgi.service.metatype.annotations.AttributeDefinition;
+import org.osgi.service.metatype.annotations.ObjectClassDefinition;
+
+@ObjectClassDefinition(name = "Header Login Module Factory Configuration", description = "JAAS registration of the Header Login Module.")
+public @interface HeaderLoginModuleFactoryConfig
+{
+    public static final String DEFAULT_JAAS_CONTROL_FLAG = "Sufficient";
+    public static final int DEFAULT_JAAS_RANKING = 5000;
+    public static final String DEFAULT_JAAS_REALM_NAME = "jackrabbit.oak";
+
+    @AttributeDefinition(name = "Control Flag", description = "JAAS control flag of the login module.")
+    String jaas_controlFlag() default DEFAULT_JAAS_CONTROL_FLAG;
+
+    @AttributeDefinition(name = "Ranking", description = "JAAS ranking of the login module. Must be higher than the ranking of the other login modules for this module to handle logins.")
+    int jaas_ranking() default DEFAULT_JAAS_RANKING;
+
+    @AttributeDefinition(name = "Realm Name", description = "JAAS realm of the login module.")
+    String jaas_realmName() default DEFAULT_JAAS_REALM_NAME;
+}
@@ -0,0 +1,294 @@
+package com.peregrine.sling.auth.header;
+
+/*-
+ * #%L
+ * peregrinecms-com-peregrine-sling-auth-header
+ * %%
+ * Copyright (C) 2020 headwire inc.
+ * %%
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+
+import org.apache.jackrabbit.oak.api.ContentRepository;
+import org.apache.jackrabbit.oak.spi.security.SecurityProvider;
+import org.apache.jackrabbit.oak.spi.security.authentication.external.ExternalIdentityProvider;
+import org.apache.jackrabbit.oak.spi.security.authentication.external.ExternalIdentityProviderManager;
+import org.apache.jackrabbit.oak.spi.security.authentication.external.SyncHandler;
+import org.apache.jackrabbit.oak.spi.security.authentication.external.SyncManager;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
+import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.metatype.annotations.Designate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Pre-provisions users by streaming their profiles from {@link HeaderExternalIdentityProvider#listProfiles()} into the
+ * sync handler. The import runs in the background and is started through JMX.
+ *
+ * Users are read one at a time and grouped into chunks of at most the commit size. Each chunk is synced by one of the
+ * workers in its own system session and commit. The work queue is bounded and the reading thread syncs a chunk itself
+ * when the queue is full, so reading never runs ahead of the workers by more than a few chunks.
+ */
+@Component(
+        service = HeaderUserImporterMBean.class,
+        property = {
+                "jmx.objectname=" + HeaderUserImporter.OBJECT_NAME
+        }
+)
+@Designate(ocd = HeaderUserImporterConfig.class)
+public class HeaderUserImporter implements HeaderUserImporterMBean
+{
+    private final Logger logger = LoggerFactory.getLogger(HeaderUserImporter.class);
+
+    public static final String OBJECT_NAME = "com.peregrine.sling.auth.header:type=HeaderUserImporter";
+
+    private static final int QUEUED_CHUNKS_PER_WORKER = 2;
+
+    @Reference
+    private ContentRepository contentRepository;
+
+    @Reference
+    private SecurityProvider securityProvider;
+
+    @Reference
+    private ExternalIdentityProviderManager externalIdentityProviderManager;
+
+    @Reference
+    private SyncManager syncManager;
+
+    @Reference
+    private HeaderUserSyncService syncService;
+
+    private int workers;
+    private int commitSize;
+    private int progressInterval;
+
+    private Thread importThread;
+    private volatile boolean cancelled;
+    private final LongAdder read = new LongAdder();
+    private final LongAdder processed = new LongAdder();
+    private final LongAdder synced = new LongAdder();
+    private volatile long startedAt;
+    private volatile long finishedAt;
+    private volatile String lastError;
+
+    @Activate
+    protected void activate(HeaderUserImporterConfig config)
+    {
+        logger.debug("Activating Header User Importer");
+        this.workers = Math.max(1, config.header_import_workers());
+        this.commitSize = Math.max(1, config.header_import_commit_size());
+        this.progressInterval = Math.max(1, config.header_import_progress_interval());
+    }
+
+    @Deactivate
+    protected void deactivate()
+    {
+        cancelImport();
+    }
+
+    @Override
+    public synchronized String startImport()
+    {
+        if (isRunning())
+        {
+            return "An import is already running";
+        }
+
+        final ExternalIdentityProvider externalIdentityProvider =
+                externalIdentityProviderManager.getProvider(HeaderExternalIdentityProvider.NAME);
+        final String syncHandlerName = syncService.getSyncHandlerName();
+        final SyncHandler syncHandler = syncManager.getSyncHandler(syncHandlerName);
+        if (!(externalIdentityProvider instanceof HeaderExternalIdentityProvider) || syncHandler == null)
+        {
+            return "IDP '" + HeaderExternalIdentityProvider.NAME + "' or SyncHandler '" + syncHandlerName +
+                    "' is not available";
+        }
+
+        final UserSynchronizer synchronizer = new UserSynchronizer(externalIdentityProvider, syncHandler, syncService,
+                contentRepository, securityProvider);
+        cancelled = false;
+        read.reset();
+        processed.reset();
+        synced.reset();
+        lastError = null;
+        startedAt = System.currentTimeMillis();
+        finishedAt = 0;
+        importThread = new Thread(() -> runImport((HeaderExternalIdentityProvider) externalIdentityProvider,
+                synchronizer), "header-user-import");
+        importThread.setDaemon(true);
+        importThread.start();
+        return "Import started";
+    }
+
+    @Override
+    public void cancelImport()
+    {
+        cancelled = true;
+    }
+
+    @Override
+    public synchronized boolean isRunning()
+    {
+        return importThread != null && importThread.isAlive();
+    }
+
+    @Override
+    public long getReadCount()
+    {
+        return read.sum();
+    }
+
+    @Override
+    public long getSyncedCount()
+    {
+        return synced.sum();
+    }
+
+    @Override
+    public long getFailedCount()
+    {
+        return processed.sum() - synced.sum();
+    }
+
+    @Override
+    public long getElapsedMillis()
+    {
+        if (startedAt == 0)
+        {
+            return 0;
+        }
+        return (finishedAt != 0 ? finishedAt : System.currentTimeMillis()) - startedAt;
+    }
+
+    @Override
+    public double getThroughput()
+    {
+        final long elapsed = getElapsedMillis();
+        return elapsed == 0 ? 0 : synced.sum() * 1000d / elapsed;
+    }
+
+    @Override
+    public String getLastError()
+    {
+        return lastError;
+    }
+
+    private void runImport(final HeaderExternalIdentityProvider externalIdentityProvider,
+                           final UserSynchronizer synchronizer)
+    {
+        logger.info("Starting import of users listed by IDP: '{}'", externalIdentityProvider.getName());
+        final ThreadPoolExecutor executor = createExecutor(workers);
+        ProfileImportReader users = null;
+        try
+        {
+            // The raw profiles, since the sync maps the claims of the credentials itself
+            users = externalIdentityProvider.listProfiles();
+            List<HeaderCredentials> chunk = new ArrayList<>(commitSize);
+            while (!cancelled && users.hasNext())
+            {
+                chunk.add(users.next());
+                read.increment();
+                if (chunk.size() == commitSize)
+                {
+                    submit(executor, synchronizer, chunk);
+                    chunk = new ArrayList<>(commitSize);
+                }
+                if (read.sum() % progressInterval == 0)
+                {
+                    logProgress();
+                }
+            }
+            if (!chunk.isEmpty())
+            {
+                submit(executor, synchronizer, chunk);
+            }
+
+            executor.shutdown();
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            lastError = "Interrupted";
+        } catch (Exception e)
+        {
+            logger.error("Error importing users", e);
+            lastError = e.toString();
+        } finally
+        {
+            executor.shutdownNow();
+            if (users != null)
+            {
+                users.close();
+            }
+            finishedAt = System.currentTimeMillis();
+        }
+
+        logger.info("{} import: read {} users, synced {}, failed {} in {} ms ({} users/s)",
+                cancelled ? "Cancelled" : "Finished", getReadCount(), getSyncedCount(), getFailedCount(),
+                getElapsedMillis(), String.format("%.1f", getThroughput()));
+    }
+
+    private void submit(final ThreadPoolExecutor executor, final UserSynchronizer synchronizer,
+                        final List<HeaderCredentials> chunk)
+    {
+        executor.execute(() -> {
+            try
+            {
+                synced.add(synchronizer.syncAllInSystemSession(chunk));
+            } catch (Exception e)
+            {
+                logger.error("Error importing {} users", chunk.size(), e);
+            } finally
+            {
+                processed.add(chunk.size());
+            }
+        });
+    }
+
+    private void logProgress()
+    {
+        logger.info("Import progress: read {} users, synced {}, failed {} ({} users/s)", getReadCount(),
+                getSyncedCount(), getFailedCount(), String.format("%.1f", getThroughput()));
+    }
+
+    /**
+     * @return An executor with a bounded queue that runs tasks on the submitting thread when the queue is full.
+     */
+    private static ThreadPoolExecutor createExecutor(final int threads)
+    {
+        final AtomicInteger threadCount = new AtomicInteger();
+        return new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(threads * QUEUED_CHUNKS_PER_WORKER), runnable -> {
+                    Thread thread = new Thread(runnable, "header-user-import-" + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }, new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+}
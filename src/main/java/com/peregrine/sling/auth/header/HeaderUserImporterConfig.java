@@ -0,0 +1,46 @@
+package com.peregrine.sling.auth.header;
+
+/*-
+ * #%L
+ * peregrinecms-com-peregrine-sling-auth-header
+ * %%
+ * Copyright (C) 2020 headwire inc.
+ * %%
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+
+import org.osgi.service.metatype.annotations.AttributeDefinition;
+import org.osgi.service.metatype.annotations.ObjectClassDefinition;
+
+@ObjectClassDefinition(name = "Header User Importer Configuration", description = "Configuration options for the bulk import of the users listed by the Header External Identity Provider.")
+public @interface HeaderUserImporterConfig
+{
+    public static final int DEFAULT_HEADER_IMPORT_WORKERS = 4;
+    public static final int DEFAULT_HEADER_IMPORT_COMMIT_SIZE = 100;
+    public static final int DEFAULT_HEADER_IMPORT_PROGRESS_INTERVAL = 10000;
+
+    @AttributeDefinition(name = "Workers", description = "Number of threads syncing imported users in parallel.")
+    int header_import_workers() default DEFAULT_HEADER_IMPORT_WORKERS;
+
+    @AttributeDefinition(name = "Commit Size", description = "Maximum number of users synced in one commit.")
+    int header_import_commit_size() default DEFAULT_HEADER_IMPORT_COMMIT_SIZE;
+
+    @AttributeDefinition(name = "Progress Interval", description = "Number of users read between two progress log messages.")
+    int header_import_progress_interval() default DEFAULT_HEADER_IMPORT_PROGRESS_INTERVAL;
+}
@@ -0,0 +1,73 @@
+package com.peregrine.sling.auth.header;
+
+/*-
+ * #%L
+ * peregrinecms-com-peregrine-sling-auth-header
+ * %%
+ * Copyright (C) 2020 headwire inc.
+ * %%
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+
+/**
+ * Management interface of {@link HeaderUserImporter}.
+ */
+public interface HeaderUserImporterMBean
+{
+    /**
+     * Starts importing the users listed by the Header External Identity Provider in the background.
+     *
+     * @return A message describing whether the import was started.
+     */
+    String startImport();
+
+    /**
+     * Stops reading users. Users already read are still synced.
+     */
+    void cancelImport();
+
+    boolean isRunning();
+
+    /**
+     * @return The number of users read from the identity provider by the current or last import.
+     */
+    long getReadCount();
+
+    /**
+     * @return The number of users synced by the current or last import.
+     */
+    long getSyncedCount();
+
+    /**
+     * @return The number of users that were read but could not be synced.
+     */
+    long getFailedCount();
+
+    long getElapsedMillis();
+
+    /**
+     * @return The number of users synced per second.
+     */
+    double getThroughput();
+
+    /**
+     * @return The error that ended the last import or <code>null</code>.
+     */
+    String getLastError();
+}
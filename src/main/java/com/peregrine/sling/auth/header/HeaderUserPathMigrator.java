@@ -0,0 +1,400 @@
+package com.peregrine.sling.auth.header;
+
+/*-
+ * #%L
+ * peregrinecms-com-peregrine-sling-auth-header
+ * %%
+ * Copyright (C) 2020 headwire inc.
+ * %%
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+
+import org.apache.jackrabbit.JcrConstants;
+import org.apache.jackrabbit.oak.api.CommitFailedException;
+import org.apache.jackrabbit.oak.api.ContentRepository;
+import org.apache.jackrabbit.oak.api.ContentSession;
+import org.apache.jackrabbit.oak.api.PropertyState;
+import org.apache.jackrabbit.oak.api.Root;
+import org.apache.jackrabbit.oak.api.Tree;
+import org.apache.jackrabbit.oak.api.Type;
+import org.apache.jackrabbit.oak.commons.PathUtils;
+import org.apache.jackrabbit.oak.spi.security.SecurityProvider;
+import org.apache.jackrabbit.oak.spi.security.authentication.SystemSubject;
+import org.apache.jackrabbit.oak.spi.security.authentication.external.ExternalIdentityRef;
+import org.apache.jackrabbit.oak.spi.security.authentication.external.basic.DefaultSyncContext;
+import org.apache.jackrabbit.oak.spi.security.user.UserConfiguration;
+import org.apache.jackrabbit.oak.spi.security.user.UserConstants;
+import org.apache.jackrabbit.util.Text;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
+import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.metatype.annotations.Designate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.security.auth.Subject;
+import java.security.PrivilegedExceptionAction;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Moves users that were synced without an intermediate path into the folders of the intermediate path strategy of
+ * {@link HeaderExternalIdentityProvider}, e.g. after the strategy was configured on a system with many users. The
+ * migration runs in the background and is started through JMX.
+ *
+ * The children of the path prefix are scanned in a snapshot of the repository, so moved users and new folders do not
+ * disturb the scan. Only users of the Header External Identity Provider are moved. Moves are committed in batches of
+ * at most the batch size; a batch that fails, e.g. because a user was synced at the same time, is retried one user
+ * per commit. Users keep their node, so their id, principal, memberships and properties are unchanged.
+ */
+@Component(
+        service = HeaderUserPathMigratorMBean.class,
+        property = {
+                "jmx.objectname=" + HeaderUserPathMigrator.OBJECT_NAME
+        }
+)
+@Designate(ocd = HeaderUserPathMigratorConfig.class)
+public class HeaderUserPathMigrator implements HeaderUserPathMigratorMBean
+{
+    private final Logger logger = LoggerFactory.getLogger(HeaderUserPathMigrator.class);
+
+    public static final String OBJECT_NAME = "com.peregrine.sling.auth.header:type=HeaderUserPathMigrator";
+
+    @Reference
+    private ContentRepository contentRepository;
+
+    @Reference
+    private SecurityProvider securityProvider;
+
+    @Reference
+    private HeaderExternalIdentityProvider externalIdentityProvider;
+
+    private String pathPrefix;
+    private int batchSize;
+    private long batchPauseMillis;
+    private int progressInterval;
+
+    private Thread migrationThread;
+    private volatile boolean cancelled;
+    private final LongAdder scanned = new LongAdder();
+    private final LongAdder moved = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private volatile long startedAt;
+    private volatile long finishedAt;
+    private volatile String lastError;
+
+    @Activate
+    protected void activate(HeaderUserPathMigratorConfig config)
+    {
+        logger.debug("Activating Header User Path Migrator");
+        this.pathPrefix = config.header_migrate_path_prefix();
+        this.batchSize = Math.max(1, config.header_migrate_batch_size());
+        this.batchPauseMillis = Math.max(0, config.header_migrate_batch_pause());
+        this.progressInterval = Math.max(1, config.header_migrate_progress_interval());
+    }
+
+    @Deactivate
+    protected void deactivate()
+    {
+        cancelMigration();
+    }
+
+    @Override
+    public synchronized String startMigration()
+    {
+        if (isRunning())
+        {
+            return "A migration is already running";
+        }
+
+        final IntermediatePath intermediatePath = externalIdentityProvider.getIntermediatePathStrategy();
+        if (!intermediatePath.isSharded())
+        {
+            return "No intermediate path strategy is configured in '" +
+                    HeaderExternalIdentityProvider.INTERMEDIATE_PATH_PROPERTY + "' of the IDP";
+        }
+
+        final String usersPath = securityProvider.getConfiguration(UserConfiguration.class).getParameters()
+                .getConfigValue(UserConstants.PARAM_USER_PATH, UserConstants.DEFAULT_USER_PATH);
+        final String parentPath = pathPrefix == null || pathPrefix.isEmpty()
+                ? usersPath : PathUtils.concat(usersPath, pathPrefix);
+        cancelled = false;
+        scanned.reset();
+        moved.reset();
+        failed.reset();
+        lastError = null;
+        startedAt = System.currentTimeMillis();
+        finishedAt = 0;
+        migrationThread = new Thread(() -> runMigration(parentPath, intermediatePath), "header-user-path-migration");
+        migrationThread.setDaemon(true);
+        migrationThread.start();
+        return "Migration of users below " + parentPath + " to intermediate paths: " + intermediatePath + " started";
+    }
+
+    @Override
+    public void cancelMigration()
+    {
+        cancelled = true;
+    }
+
+    @Override
+    public synchronized boolean isRunning()
+    {
+        return migrationThread != null && migrationThread.isAlive();
+    }
+
+    @Override
+    public long getScannedCount()
+    {
+        return scanned.sum();
+    }
+
+    @Override
+    public long getMovedCount()
+    {
+        return moved.sum();
+    }
+
+    @Override
+    public long getFailedCount()
+    {
+        return failed.sum();
+    }
+
+    @Override
+    public long getElapsedMillis()
+    {
+        if (startedAt == 0)
+        {
+            return 0;
+        }
+        return (finishedAt != 0 ? finishedAt : System.currentTimeMillis()) - startedAt;
+    }
+
+    @Override
+    public double getThroughput()
+    {
+        final long elapsed = getElapsedMillis();
+        return elapsed == 0 ? 0 : moved.sum() * 1000d / elapsed;
+    }
+
+    @Override
+    public String getLastError()
+    {
+        return lastError;
+    }
+
+    private void runMigration(final String parentPath, final IntermediatePath intermediatePath)
+    {
+        logger.info("Starting migration of users below: {} to intermediate paths: {}", parentPath, intermediatePath);
+        try (ContentSession session = Subject.doAs(SystemSubject.INSTANCE,
+                (PrivilegedExceptionAction<ContentSession>) () -> contentRepository.login(null, null)))
+        {
+            final Tree parent = session.getLatestRoot().getTree(parentPath);
+            if (!parent.exists())
+            {
+                lastError = "Path does not exist: " + parentPath;
+                return;
+            }
+
+            final Root root = session.getLatestRoot();
+            List<Move> batch = new ArrayList<>(batchSize);
+            for (Tree child : parent.getChildren())
+            {
+                if (cancelled)
+                {
+                    break;
+                }
+                scanned.increment();
+                final String userId = getUserId(child);
+                if (userId != null)
+                {
+                    final String folderPath = PathUtils.concat(parentPath, intermediatePath.of(userId));
+                    batch.add(new Move(child.getPath(), folderPath, child.getName()));
+                    if (batch.size() == batchSize)
+                    {
+                        moveBatch(root, batch);
+                        batch = new ArrayList<>(batchSize);
+                        pause();
+                    }
+                }
+                if (scanned.sum() % progressInterval == 0)
+                {
+                    logProgress();
+                }
+            }
+            if (!batch.isEmpty())
+            {
+                moveBatch(root, batch);
+            }
+        } catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            lastError = "Interrupted";
+        } catch (Exception e)
+        {
+            logger.error("Error migrating users", e);
+            lastError = e.toString();
+        } finally
+        {
+            finishedAt = System.currentTimeMillis();
+        }
+
+        logger.info("{} migration: scanned {} nodes, moved {} users, failed {} in {} ms ({} users/s)",
+                cancelled ? "Cancelled" : "Finished", getScannedCount(), getMovedCount(), getFailedCount(),
+                getElapsedMillis(), String.format("%.1f", getThroughput()));
+    }
+
+    /**
+     * @return The id of the user of this IDP at the given tree, or <code>null</code> if the tree is not such a user,
+     * e.g. an intermediate folder, a group or a local user.
+     */
+    private static String getUserId(final Tree tree)
+    {
+        final PropertyState primaryType = tree.getProperty(JcrConstants.JCR_PRIMARYTYPE);
+        if (primaryType == null || !UserConstants.NT_REP_USER.equals(primaryType.getValue(Type.NAME)))
+        {
+            return null;
+        }
+        final PropertyState externalId = tree.getProperty(DefaultSyncContext.REP_EXTERNAL_ID);
+        if (externalId == null || !HeaderExternalIdentityProvider.NAME.equals(
+                ExternalIdentityRef.fromString(externalId.getValue(Type.STRING)).getProviderName()))
+        {
+            return null;
+        }
+        final PropertyState authorizableId = tree.getProperty(UserConstants.REP_AUTHORIZABLE_ID);
+        return authorizableId != null ? authorizableId.getValue(Type.STRING)
+                : Text.unescapeIllegalJcrChars(tree.getName());
+    }
+
+    /**
+     * Moves the batch in one commit, or one user per commit if that fails.
+     */
+    private void moveBatch(final Root root, final List<Move> batch)
+    {
+        root.refresh();
+        int batchMoved = 0;
+        for (Move move : batch)
+        {
+            if (move.apply(root))
+            {
+                batchMoved++;
+            }
+        }
+        try
+        {
+            root.commit();
+            moved.add(batchMoved);
+            failed.add(batch.size() - batchMoved);
+            return;
+        } catch (CommitFailedException e)
+        {
+            logger.debug("Error moving batch of {} users, moving them one by one: {}", batch.size(), e.getMessage());
+            root.refresh();
+        }
+
+        for (Move move : batch)
+        {
+            try
+            {
+                if (move.apply(root))
+                {
+                    root.commit();
+                    moved.increment();
+                }
+                else
+                {
+                    failed.increment();
+                }
+            } catch (CommitFailedException e)
+            {
+                logger.warn("Error moving user: {} to: {}", move.sourcePath, move.folderPath, e);
+                root.refresh();
+                failed.increment();
+            }
+        }
+    }
+
+    private void pause() throws InterruptedException
+    {
+        if (batchPauseMillis > 0)
+        {
+            Thread.sleep(batchPauseMillis);
+        }
+    }
+
+    private void logProgress()
+    {
+        logger.info("Migration progress: scanned {} nodes, moved {} users, failed {} ({} users/s)", getScannedCount(),
+                getMovedCount(), getFailedCount(), String.format("%.1f", getThroughput()));
+    }
+
+    /**
+     * The move of a user node into its intermediate folder.
+     */
+    private static final class Move
+    {
+        final String sourcePath;
+        final String folderPath;
+        final String name;
+
+        private Move(final String sourcePath, final String folderPath, final String name)
+        {
+            this.sourcePath = sourcePath;
+            this.folderPath = folderPath;
+            this.name = name;
+        }
+
+        /**
+         * Adds the missing folders and moves the user, if it is still at its source path.
+         *
+         * @return <code>false</code> if the user cannot be moved, e.g. because it was removed in the meantime.
+         */
+        boolean apply(final Root root)
+        {
+            if (!root.getTree(sourcePath).exists())
+            {
+                return false;
+            }
+            getOrAddFolder(root, folderPath);
+            return root.move(sourcePath, PathUtils.concat(folderPath, name));
+        }
+
+        private static void getOrAddFolder(final Root root, final String path)
+        {
+            Tree tree = root.getTree(PathUtils.ROOT_PATH);
+            for (String name : PathUtils.elements(path))
+            {
+                final Tree child = tree.getChild(name);
+                if (child.exists())
+                {
+                    tree = child;
+                }
+                else
+                {
+                    tree = tree.addChild(name);
+                    tree.setProperty(JcrConstants.JCR_PRIMARYTYPE, UserConstants.NT_REP_AUTHORIZABLE_FOLDER,
+                            Type.NAME);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package com.peregrine.sling.auth.header;
+
+/*-
+ * #%L
+ * peregrinecms-com-peregrine-sling-auth-header
+ * %%
+ * Copyright (C) 2020 headwire inc.
+ * %%
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+
+import org.osgi.service.metatype.annotations.AttributeDefinition;
+import org.osgi.service.metatype.annotations.ObjectClassDefinition;
+
+@ObjectClassDefinition(name = "Header User Path Migrator Configuration", description = "Configuration options for moving users synced without an intermediate path into the folders of the intermediate path strategy of the Header External Identity Provider.")
+public @interface HeaderUserPathMigratorConfig
+{
+    public static final String DEFAULT_HEADER_MIGRATE_PATH_PREFIX = "tenants";
+    public static final int DEFAULT_HEADER_MIGRATE_BATCH_SIZE = 100;
+    public static final long DEFAULT_HEADER_MIGRATE_BATCH_PAUSE = 0;
+    public static final int DEFAULT_HEADER_MIGRATE_PROGRESS_INTERVAL = 10000;
+
+    @AttributeDefinition(name = "Path Prefix", description = "The user.pathPrefix of the sync handler. Users directly below this folder of the users path are moved.")
+    String header_migrate_path_prefix() default DEFAULT_HEADER_MIGRATE_PATH_PREFIX;
+
+    @AttributeDefinition(name = "Batch Size", description = "Maximum number of users moved in one commit.")
+    int header_migrate_batch_size() default DEFAULT_HEADER_MIGRATE_BATCH_SIZE;
+
+    @AttributeDefinition(name = "Batch Pause", description = "Time in milliseconds to pause between two batches, to leave room for logins on a live system.")
+    long header_migrate_batch_pause() default DEFAULT_HEADER_MIGRATE_BATCH_PAUSE;
+
+    @AttributeDefinition(name = "Progress Interval", description = "Number of users scanned between two progress log messages.")
+    int header_migrate_progress_interval() default DEFAULT_HEADER_MIGRATE_PROGRESS_INTERVAL;
+}
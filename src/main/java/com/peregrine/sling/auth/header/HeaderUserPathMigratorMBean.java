@@ -0,0 +1,74 @@
+package com.peregrine.sling.auth.header;
+
+/*-
+ * #%L
+ * peregrinecms-com-peregrine-sling-auth-header
+ * %%
+ * Copyright (C) 2020 headwire inc.
+ * %%
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+
+/**
+ * Management interface of {@link HeaderUserPathMigrator}.
+ */
+public interface HeaderUserPathMigratorMBean
+{
+    /**
+     * Starts moving the users below the path prefix into the folders of the configured intermediate path strategy
+     * in the background.
+     *
+     * @return A message describing whether the migration was started.
+     */
+    String startMigration();
+
+    /**
+     * Stops the migration after the current batch. Users already moved stay where they are.
+     */
+    void cancelMigration();
+
+    boolean isRunning();
+
+    /**
+     * @return The number of nodes below the path prefix looked at by the current or last migration.
+     */
+    long getScannedCount();
+
+    /**
+     * @return The number of users moved by the current or last migration.
+     */
+    long getMovedCount();
+
+    /**
+     * @return The number of users that could not be moved.
+     */
+    long getFailedCount();
+
+    long getElapsedMillis();
+
+    /**
+     * @return The number of users moved per second.
+     */
+    double getThroughput();
+
+    /**
+     * @return The error that ended the last migration or <code>null</code>.
+     */
+    String getLastError();
+}
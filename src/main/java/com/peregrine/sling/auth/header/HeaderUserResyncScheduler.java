@@ -0,0 +1,289 @@
+package com.peregrine.sling.auth.header;
+
+/*-
+ * #%L
+ * peregrinecms-com-peregrine-sling-auth-header
+ * %%
+ * Copyright (C) 2020 headwire inc.
+ * %%
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+
+import org.apache.jackrabbit.api.security.user.Authorizable;
+import org.apache.jackrabbit.api.security.user.Query;
+import org.apache.jackrabbit.api.security.user.QueryBuilder;
+import org.apache.jackrabbit.api.security.user.User;
+import org.apache.jackrabbit.api.security.user.UserManager;
+import org.apache.jackrabbit.oak.api.ContentRepository;
+import org.apache.jackrabbit.oak.api.ContentSession;
+import org.apache.jackrabbit.oak.api.Root;
+import org.apache.jackrabbit.oak.namepath.NamePathMapper;
+import org.apache.jackrabbit.oak.plugins.value.jcr.ValueFactoryImpl;
+import org.apache.jackrabbit.oak.spi.security.SecurityProvider;
+import org.apache.jackrabbit.oak.spi.security.authentication.SystemSubject;
+import org.apache.jackrabbit.oak.spi.security.authentication.external.ExternalIdentityProvider;
+import org.apache.jackrabbit.oak.spi.security.authentication.external.ExternalIdentityProviderManager;
+import org.apache.jackrabbit.oak.spi.security.authentication.external.SyncHandler;
+import org.apache.jackrabbit.oak.spi.security.authentication.external.SyncManager;
+import org.apache.jackrabbit.oak.spi.security.authentication.external.basic.DefaultSyncContext;
+import org.apache.jackrabbit.oak.spi.security.user.UserConfiguration;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
+import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.metatype.annotations.Designate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.Value;
+import javax.jcr.ValueFactory;
+import javax.security.auth.Subject;
+import java.security.PrivilegedExceptionAction;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Resyncs users of the {@link HeaderExternalIdentityProvider} in the background so that their profile and membership
+ * are kept up to date without a login. Runs are triggered by the Sling scheduler whiteboard.
+ *
+ * Each run pages through the users whose last sync is older than the configured max age, ordered by id. The users of
+ * a page are split into chunks of at most the commit size, which are resynced in parallel by the workers, each chunk
+ * in its own session and commit. The next page is only read once the current page is done, so a run never holds more
+ * than one page in memory.
+ *
+ * A user is resynced from the profile snapshot stored with its last sync. Users without a snapshot are skipped.
+ */
+@Component(
+        service = Runnable.class,
+        property = {
+                "scheduler.expression=" + HeaderUserResyncSchedulerConfig.DEFAULT_SCHEDULER_EXPRESSION,
+                "scheduler.concurrent:Boolean=false"
+        }
+)
+@Designate(ocd = HeaderUserResyncSchedulerConfig.class)
+public class HeaderUserResyncScheduler implements Runnable
+{
+    private final Logger logger = LoggerFactory.getLogger(HeaderUserResyncScheduler.class);
+
+    private static final long SHUTDOWN_TIMEOUT_SECONDS = 10;
+
+    @Reference
+    private ContentRepository contentRepository;
+
+    @Reference
+    private SecurityProvider securityProvider;
+
+    @Reference
+    private ExternalIdentityProviderManager externalIdentityProviderManager;
+
+    @Reference
+    private SyncManager syncManager;
+
+    @Reference
+    private HeaderUserSyncService syncService;
+
+    private boolean enabled;
+    private long maxAgeMillis;
+    private int pageSize;
+    private int workers;
+    private int commitSize;
+    private volatile boolean running;
+
+    @Activate
+    protected void activate(HeaderUserResyncSchedulerConfig config)
+    {
+        logger.debug("Activating Header User Resync Scheduler");
+        this.enabled = config.header_resync_enabled();
+        this.maxAgeMillis = TimeUnit.SECONDS.toMillis(config.header_resync_max_age());
+        this.pageSize = Math.max(1, config.header_resync_page_size());
+        this.workers = Math.max(1, config.header_resync_workers());
+        this.commitSize = Math.max(1, config.header_resync_commit_size());
+        this.running = true;
+
+        if (enabled && !syncService.isProfileSnapshotEnabled())
+        {
+            logger.warn("Profile snapshots are disabled in the Header User Sync Service. Only users synced while " +
+                    "they were enabled will be resynced.");
+        }
+    }
+
+    @Deactivate
+    protected void deactivate()
+    {
+        running = false;
+    }
+
+    @Override
+    public void run()
+    {
+        if (!enabled)
+        {
+            return;
+        }
+
+        final ExternalIdentityProvider externalIdentityProvider =
+                externalIdentityProviderManager.getProvider(HeaderExternalIdentityProvider.NAME);
+        final String syncHandlerName = syncService.getSyncHandlerName();
+        final SyncHandler syncHandler = syncManager.getSyncHandler(syncHandlerName);
+        if (externalIdentityProvider == null || syncHandler == null)
+        {
+            logger.warn("Skipping user resync. IDP: '{}' or SyncHandler: '{}' is not available.",
+                    HeaderExternalIdentityProvider.NAME, syncHandlerName);
+            return;
+        }
+
+        final UserSynchronizer synchronizer = new UserSynchronizer(externalIdentityProvider, syncHandler, syncService,
+                contentRepository, securityProvider);
+        final ExecutorService executor = createExecutor(workers);
+        final long start = System.currentTimeMillis();
+        int pages = 0;
+        int staleUsers = 0;
+        int resyncedUsers = 0;
+        try
+        {
+            final ContentSession session = Subject.doAs(SystemSubject.INSTANCE,
+                    (PrivilegedExceptionAction<ContentSession>) () -> contentRepository.login(null, null));
+            try
+            {
+                final Root root = session.getLatestRoot();
+                final UserManager userManager = securityProvider.getConfiguration(UserConfiguration.class)
+                        .getUserManager(root, NamePathMapper.DEFAULT);
+                final ValueFactory valueFactory = new ValueFactoryImpl(root, NamePathMapper.DEFAULT);
+                final Calendar cutoff = Calendar.getInstance();
+                cutoff.setTimeInMillis(start - maxAgeMillis);
+
+                String lastUserId = null;
+                List<String> page;
+                while (running && !(page = nextPage(userManager, valueFactory, cutoff, lastUserId)).isEmpty())
+                {
+                    pages++;
+                    staleUsers += page.size();
+                    resyncedUsers += resyncPage(executor, synchronizer, page);
+                    lastUserId = page.get(page.size() - 1);
+                }
+            } finally
+            {
+                session.close();
+            }
+        } catch (Exception e)
+        {
+            logger.error("Error resyncing users", e);
+        } finally
+        {
+            shutdown(executor);
+        }
+
+        logger.info("Resynced {} of {} stale users in {} pages in {} ms", resyncedUsers, staleUsers, pages,
+                System.currentTimeMillis() - start);
+    }
+
+    /**
+     * @return The ids of the next stale users after <code>lastUserId</code>, in id order.
+     */
+    private List<String> nextPage(final UserManager userManager, final ValueFactory valueFactory,
+                                  final Calendar cutoff, final String lastUserId) throws RepositoryException
+    {
+        final Value bound = lastUserId != null ? valueFactory.createValue(lastUserId) : null;
+        final Value cutoffValue = valueFactory.createValue(cutoff);
+        final Iterator<Authorizable> authorizables = userManager.findAuthorizables(new Query()
+        {
+            @Override
+            public <T> void build(final QueryBuilder<T> builder)
+            {
+                builder.setSelector(User.class);
+                builder.setCondition(builder.and(
+                        builder.like("@" + DefaultSyncContext.REP_EXTERNAL_ID, "%;" + HeaderExternalIdentityProvider.NAME),
+                        builder.lt("@" + DefaultSyncContext.REP_LAST_SYNCED, cutoffValue)));
+                builder.setSortOrder("@rep:authorizableId", QueryBuilder.Direction.ASCENDING);
+                builder.setLimit(bound, pageSize);
+            }
+        });
+
+        final List<String> userIds = new ArrayList<>(pageSize);
+        while (authorizables.hasNext())
+        {
+            userIds.add(authorizables.next().getID());
+        }
+        return userIds;
+    }
+
+    /**
+     * Resyncs the users of a page in chunks of at most the commit size and waits for all chunks to complete.
+     *
+     * @return The number of users that were resynced.
+     */
+    private int resyncPage(final ExecutorService executor, final UserSynchronizer synchronizer,
+                           final List<String> page) throws InterruptedException
+    {
+        final List<Future<Integer>> chunks = new ArrayList<>();
+        for (int i = 0; i < page.size(); i += commitSize)
+        {
+            final List<String> chunk = page.subList(i, Math.min(i + commitSize, page.size()));
+            chunks.add(executor.submit(() -> synchronizer.resyncInSystemSession(chunk)));
+        }
+
+        int resynced = 0;
+        for (Future<Integer> chunk : chunks)
+        {
+            try
+            {
+                resynced += chunk.get();
+            } catch (ExecutionException e)
+            {
+                logger.error("Error resyncing users", e.getCause());
+            }
+        }
+        return resynced;
+    }
+
+    private static ExecutorService createExecutor(final int threads)
+    {
+        final AtomicInteger threadCount = new AtomicInteger();
+        return Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "header-user-resync-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    private void shutdown(final ExecutorService executor)
+    {
+        executor.shutdown();
+        try
+        {
+            if (!executor.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS))
+            {
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e)
+        {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package com.peregrine.sling.auth.header;
+
+/*-
+ * #%L
+ * peregrinecms-com-peregrine-sling-auth-header
+ * %%
+ * Copyright (C) 2020 headwire inc.
+ * %%
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+
+import org.osgi.service.metatype.annotations.AttributeDefinition;
+import org.osgi.service.metatype.annotations.ObjectClassDefinition;
+
+@ObjectClassDefinition(name = "Header User Resync Scheduler Configuration", description = "Configuration options for the scheduled background resync of header authenticated users.")
+public @interface HeaderUserResyncSchedulerConfig
+{
+    public static final String DEFAULT_SCHEDULER_EXPRESSION = "0 0 2 * * ?";
+    public static final long DEFAULT_HEADER_RESYNC_MAX_AGE = 86400;
+    public static final int DEFAULT_HEADER_RESYNC_PAGE_SIZE = 1000;
+    public static final int DEFAULT_HEADER_RESYNC_WORKERS = 2;
+    public static final int DEFAULT_HEADER_RESYNC_COMMIT_SIZE = 100;
+
+    @AttributeDefinition(name = "Resync Enabled", description = "Periodically resync users of the Header External Identity Provider from their profile snapshot. Requires the profile snapshot of the Header User Sync Service.")
+    boolean header_resync_enabled() default false;
+
+    @AttributeDefinition(name = "Schedule", description = "Quartz cron expression of the resync runs.")
+    String scheduler_expression() default DEFAULT_SCHEDULER_EXPRESSION;
+
+    @AttributeDefinition(name = "Max Age", description = "Time in seconds after its last sync a user is considered stale and resynced.")
+    long header_resync_max_age() default DEFAULT_HEADER_RESYNC_MAX_AGE;
+
+    @AttributeDefinition(name = "Page Size", description = "Number of stale users read from the repository at a time.")
+    int header_resync_page_size() default DEFAULT_HEADER_RESYNC_PAGE_SIZE;
+
+    @AttributeDefinition(name = "Workers", description = "Number of threads resyncing the users of a page in parallel.")
+    int header_resync_workers() default DEFAULT_HEADER_RESYNC_WORKERS;
+
+    @AttributeDefinition(name = "Commit Size", description = "Maximum number of users resynced in one commit.")
+    int header_resync_commit_size() default DEFAULT_HEADER_RESYNC_COMMIT_SIZE;
+}
@@ -0,0 +1,829 @@
+package com.peregrine.sling.auth.header;
+
+/*-
+ * #%L
+ * peregrinecms-com-peregrine-sling-auth-header
+ * %%
+ * Copyright (C) 2020 headwire inc.
+ * %%
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+
+import org.apache.jackrabbit.oak.spi.security.authentication.external.SyncResult;
+import org.apache.sling.api.resource.observation.ExternalResourceChangeListener;
+import org.apache.sling.api.resource.observation.ResourceChange;
+import org.apache.sling.api.resource.observation.ResourceChangeListener;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
+import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.component.annotations.ReferenceCardinality;
+import org.osgi.service.component.annotations.ReferencePolicy;
+import org.osgi.service.metatype.annotations.Designate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Holds the node-local state shared by all {@link HeaderExternalLoginModule} instances. JAAS creates a new login module
+ * for every login, so anything that must survive between logins lives here.
+ *
+ * The service remembers which users were recently synced, along with the path of their authorizable, so that the
+ * login module can skip the repository lookup for them. Entries are dropped when they expire or when the user node
+ * (or one of its ancestors) is removed on this or any other cluster node.
+ *
+ * When profile fingerprint resync is enabled, a fingerprint of the user profile headers is stored on each synced
+ * user. A user is only considered up to date while the fingerprint of the incoming profile matches.
+ *
+ * When asynchronous resync is enabled, resyncs of existing users are queued on a bounded executor. Resyncs are
+ * deduplicated per user and always use the most recently submitted profile. If the queue is full the submission is
+ * rejected and the caller syncs synchronously.
+ *
+ * When batched new user sync is enabled, the syncs of new users are coalesced by a {@link UserSyncBatcher} and
+ * committed together, while each login waits for the commit of its batch.
+ *
+ * Syncs are coordinated per user through a fixed set of striped locks, so that the parallel requests of a new user
+ * do not race to create it and fail with commit conflicts. In cluster mode, the first sync of a user is also
+ * coordinated across cluster nodes through a {@link ClusterSyncLease}.
+ */
+@Component(
+        service = { HeaderUserSyncService.class, ResourceChangeListener.class },
+        property = {
+                ResourceChangeListener.PATHS + "=" + HeaderUserSyncService.USERS_PATH,
+                ResourceChangeListener.CHANGES + "=REMOVED"
+        },
+        immediate = true
+)
+@Designate(ocd = HeaderUserSyncServiceConfig.class)
+public class HeaderUserSyncService implements ResourceChangeListener, ExternalResourceChangeListener
+{
+    private final Logger logger = LoggerFactory.getLogger(HeaderUserSyncService.class);
+
+    static final String USERS_PATH = "/home/users";
+    static final String PROFILE_FINGERPRINT_PROPERTY = "headerProfileFingerprint";
+    static final String PROFILE_SNAPSHOT_PROPERTY = "headerProfile";
+    static final String GROUPS_SNAPSHOT_PROPERTY = "headerGroups";
+    static final String GROUPS_FINGERPRINT_PROPERTY = "headerGroupsFingerprint";
+    static final String GROUPS_FINGERPRINT_NAME = "groups";
+
+    private static final long SHUTDOWN_TIMEOUT_SECONDS = 10;
+    private static final long EXECUTOR_KEEP_ALIVE_SECONDS = 60;
+
+    private ExpiringCache<String, SyncedUser> syncedUsers;
+    private String syncHandlerName;
+    private boolean profileFingerprintEnabled;
+    private boolean profileSnapshotEnabled;
+
+    private ThreadPoolExecutor executor;
+    private final ConcurrentHashMap<String, PendingSync> pendingSyncs = new ConcurrentHashMap<>();
+    private final LongAdder asyncSubmitted = new LongAdder();
+    private final LongAdder asyncDeduplicated = new LongAdder();
+    private final LongAdder asyncRejected = new LongAdder();
+    private final LongAdder asyncCompleted = new LongAdder();
+    private final LongAdder asyncFailed = new LongAdder();
+    private final LatencyTimer asyncLatency = new LatencyTimer();
+
+    private UserSyncBatcher batcher;
+    private long batchTimeoutMillis;
+    private final LongAdder batchFallbacks = new LongAdder();
+
+    private Lock[] syncLocks;
+    private final LongAdder contendedSyncs = new LongAdder();
+    private final LongAdder piggybackedSyncs = new LongAdder();
+    private final LongAdder commitRetries = new LongAdder();
+    private ClusterSyncLease clusterSyncLease;
+
+    @Reference(cardinality = ReferenceCardinality.OPTIONAL, policy = ReferencePolicy.DYNAMIC)
+    private volatile HeaderEventJournal eventJournal;
+
+    private final LatencyTimer syncTimer = new LatencyTimer();
+    private final LongAdder syncFailures = new LongAdder();
+    private final Map<SyncResult.Status, LongAdder> syncResults = createSyncResultCounters();
+
+    @Activate
+    protected void activate(HeaderUserSyncServiceConfig config)
+    {
+        logger.debug("Activating Header User Sync Service");
+        this.syncedUsers = config.header_sync_cache_enabled()
+                ? new ExpiringCache<>(config.header_sync_cache_max_size(), config.header_sync_cache_ttl(), TimeUnit.SECONDS)
+                : null;
+        this.syncHandlerName = config.header_sync_handler_name();
+        this.profileFingerprintEnabled = config.header_sync_profile_fingerprint_enabled();
+        this.profileSnapshotEnabled = config.header_sync_profile_snapshot_enabled();
+        final int queueSize = Math.max(1, config.header_sync_async_queue_size());
+        this.executor = config.header_sync_async_enabled()
+                ? createExecutor(config.header_sync_async_threads(), queueSize)
+                : null;
+        // A batch of at most zero users disables batching
+        this.batcher = config.header_sync_batch_enabled() && config.header_sync_batch_max_size() > 0
+                ? new UserSyncBatcher(config.header_sync_batch_max_size(), config.header_sync_batch_window(), queueSize)
+                : null;
+        this.batchTimeoutMillis = config.header_sync_batch_timeout();
+        this.syncLocks = config.header_sync_lock_enabled()
+                ? createLocks(config.header_sync_lock_stripes())
+                : null;
+        this.clusterSyncLease = config.header_sync_cluster_lease_enabled()
+                ? new ClusterSyncLease(TimeUnit.SECONDS.toMillis(config.header_sync_cluster_lease_ttl()),
+                        config.header_sync_cluster_lease_wait(), config.header_sync_cluster_lease_poll())
+                : null;
+    }
+
+    @Deactivate
+    protected void deactivate()
+    {
+        if (syncedUsers != null)
+        {
+            logger.debug("Deactivating Header User Sync Service with synced user cache: {}", syncedUsers);
+            syncedUsers.invalidateAll();
+        }
+
+        if (executor != null)
+        {
+            logger.debug("Shutting down asynchronous resync executor with {} queued resyncs", executor.getQueue().size());
+            executor.shutdown();
+            try
+            {
+                if (!executor.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS))
+                {
+                    logger.warn("Asynchronous resyncs did not complete in time. Dropping {} queued resyncs",
+                            executor.shutdownNow().size());
+                }
+            } catch (InterruptedException e)
+            {
+                executor.shutdownNow();
+                Thread.currentThread().interrupt();
+            }
+            pendingSyncs.clear();
+        }
+
+        if (batcher != null)
+        {
+            batcher.close();
+        }
+    }
+
+    /**
+     * @param credentials
+     * @return The fingerprint of the user profile and groups carried by the credentials, or <code>null</code> if
+     * profile fingerprint resync is disabled.
+     */
+    public String getProfileFingerprint(final HeaderCredentials credentials)
+    {
+        return getProfileFingerprint(credentials, Fingerprint.of(GROUPS_FINGERPRINT_NAME, credentials.getGroups()));
+    }
+
+    /**
+     * @param groupsFingerprint The groups component of the fingerprint. Used for credentials that do not carry the
+     *                          groups of the user, such as imported profiles.
+     * @see #getProfileFingerprint(HeaderCredentials)
+     */
+    String getProfileFingerprint(final HeaderCredentials credentials, final long groupsFingerprint)
+    {
+        if (!profileFingerprintEnabled)
+        {
+            return null;
+        }
+        return Fingerprint.toHex(credentials.getProfileFingerprint() + groupsFingerprint);
+    }
+
+    /**
+     * @return The name of the sync handler used to sync users.
+     */
+    public String getSyncHandlerName()
+    {
+        return syncHandlerName;
+    }
+
+    /**
+     * @return <code>true</code> if the profile headers are stored on each synced user.
+     */
+    public boolean isProfileSnapshotEnabled()
+    {
+        return profileSnapshotEnabled;
+    }
+
+    /**
+     * @param userId
+     * @param profileFingerprint The fingerprint of the incoming profile or <code>null</code>.
+     * @return <code>true</code> if the user was synced on this node recently with the same profile and the sync can
+     * be skipped.
+     */
+    public boolean isSynced(final String userId, final String profileFingerprint)
+    {
+        if (syncedUsers == null)
+        {
+            return false;
+        }
+
+        final SyncedUser syncedUser = syncedUsers.get(userId);
+        return syncedUser != null && Objects.equals(syncedUser.profileFingerprint, profileFingerprint);
+    }
+
+    /**
+     * Remembers that the user exists in the repository at the given path.
+     *
+     * @param userId
+     * @param path The path of the user's authorizable node.
+     * @param profileFingerprint The fingerprint of the profile the user was synced with or <code>null</code>.
+     */
+    public void markSynced(final String userId, final String path, final String profileFingerprint)
+    {
+        if (syncedUsers != null && path != null)
+        {
+            syncedUsers.put(userId, new SyncedUser(path, profileFingerprint));
+        }
+    }
+
+    /**
+     * Queues a resync of an existing user on the background executor. If a resync is already queued or running for the
+     * user, the pending profile is replaced with the given one and the task of the user syncs it next.
+     *
+     * @param synchronizer The synchronizer that runs the resync in its own system session.
+     * @param credentials
+     * @param profileFingerprint
+     * @return <code>true</code> if the resync was queued and <code>false</code> if asynchronous resync is disabled or
+     * the queue is full, in which case the caller should sync synchronously.
+     */
+    boolean submit(final UserSynchronizer synchronizer, final HeaderCredentials credentials,
+                          final String profileFingerprint)
+    {
+        if (executor == null)
+        {
+            return false;
+        }
+
+        final String userId = credentials.getUserId();
+        final PendingSync pendingSync = new PendingSync(synchronizer, credentials, profileFingerprint);
+        if (pendingSyncs.put(userId, pendingSync) != null)
+        {
+            asyncDeduplicated.increment();
+            return true;
+        }
+
+        try
+        {
+            executor.execute(() -> runPendingSyncs(userId));
+            asyncSubmitted.increment();
+            return true;
+        } catch (RejectedExecutionException e)
+        {
+            // No task runs for the user, so also drop the profiles deduplicated onto this entry in the meantime; the
+            // user is not marked as synced and is resynced on a later login
+            pendingSyncs.remove(userId);
+            asyncRejected.increment();
+            logger.debug("Asynchronous resync queue is full. Rejected resync of user: '{}'", userId);
+            return false;
+        }
+    }
+
+    /**
+     * @param userId
+     * @return The lock that guards the sync of the user or <code>null</code> if per-user locking is disabled.
+     */
+    Lock getSyncLock(final String userId)
+    {
+        if (syncLocks == null)
+        {
+            return null;
+        }
+
+        int hash = userId.hashCode();
+        hash ^= hash >>> 16;
+        return syncLocks[hash & (syncLocks.length - 1)];
+    }
+
+    /**
+     * @return The lease coordinating the first sync of users across cluster nodes, or <code>null</code> if cluster
+     * mode is disabled.
+     */
+    ClusterSyncLease getClusterSyncLease()
+    {
+        return clusterSyncLease;
+    }
+
+    /**
+     * @return The journal recording sync events, or <code>null</code> if there is none.
+     */
+    HeaderEventJournal getEventJournal()
+    {
+        return eventJournal;
+    }
+
+    void recordContendedSync()
+    {
+        contendedSyncs.increment();
+    }
+
+    void recordPiggybackedSync()
+    {
+        piggybackedSyncs.increment();
+    }
+
+    void recordCommitRetry()
+    {
+        commitRetries.increment();
+    }
+
+    /**
+     * @return The number of syncs that had to wait for another thread holding the same lock stripe.
+     */
+    public long getContendedSyncCount()
+    {
+        return contendedSyncs.sum();
+    }
+
+    /**
+     * @return The number of syncs skipped because another thread synced the same user while waiting. Each of these
+     * would otherwise have raced to create or update the user and likely failed its commit.
+     */
+    public long getPiggybackedSyncCount()
+    {
+        return piggybackedSyncs.sum();
+    }
+
+    /**
+     * @return The number of sync commits that failed and were retried.
+     */
+    public long getCommitRetryCount()
+    {
+        return commitRetries.sum();
+    }
+
+    /**
+     * @return The number of cluster sync leases claimed by this node.
+     */
+    public long getClusterLeaseClaimedCount()
+    {
+        return clusterSyncLease != null ? clusterSyncLease.getClaimedCount() : 0;
+    }
+
+    /**
+     * @return The number of first syncs that found the lease held by another cluster node and waited for it.
+     */
+    public long getClusterLeaseLostCount()
+    {
+        return clusterSyncLease != null ? clusterSyncLease.getLostCount() : 0;
+    }
+
+    /**
+     * @return The number of waits for another cluster node that timed out.
+     */
+    public long getClusterLeaseWaitTimeoutCount()
+    {
+        return clusterSyncLease != null ? clusterSyncLease.getWaitTimeoutCount() : 0;
+    }
+
+    /**
+     * @return The timer of all syncs, from the user lookup to the commit.
+     */
+    LatencyTimer getSyncTimer()
+    {
+        return syncTimer;
+    }
+
+    void recordSyncResult(final SyncResult.Status status)
+    {
+        syncResults.get(status).increment();
+    }
+
+    void recordSyncFailure()
+    {
+        syncFailures.increment();
+    }
+
+    public long getSyncCount()
+    {
+        return syncTimer.getCount();
+    }
+
+    public double getSyncMeanMillis()
+    {
+        return syncTimer.getMeanMillis();
+    }
+
+    public double getSyncMaxMillis()
+    {
+        return syncTimer.getMaxMillis();
+    }
+
+    public long getSyncFailureCount()
+    {
+        return syncFailures.sum();
+    }
+
+    /**
+     * @return The number of sync results by {@link SyncResult.Status} name.
+     */
+    public Map<String, Long> getSyncResultCounts()
+    {
+        final Map<String, Long> counts = new LinkedHashMap<>();
+        for (Map.Entry<SyncResult.Status, LongAdder> entry : syncResults.entrySet())
+        {
+            counts.put(entry.getKey().name(), entry.getValue().sum());
+        }
+        return counts;
+    }
+
+    public int getSyncedUserCacheSize()
+    {
+        return syncedUsers != null ? syncedUsers.size() : 0;
+    }
+
+    public long getSyncedUserCacheHitCount()
+    {
+        return syncedUsers != null ? syncedUsers.getHitCount() : 0;
+    }
+
+    public long getSyncedUserCacheMissCount()
+    {
+        return syncedUsers != null ? syncedUsers.getMissCount() : 0;
+    }
+
+    public long getSyncedUserCacheEvictionCount()
+    {
+        return syncedUsers != null ? syncedUsers.getEvictionCount() : 0;
+    }
+
+    /**
+     * Resets all counters and timers. Cached state is kept.
+     */
+    public void resetCounters()
+    {
+        asyncSubmitted.reset();
+        asyncDeduplicated.reset();
+        asyncRejected.reset();
+        asyncCompleted.reset();
+        asyncFailed.reset();
+        asyncLatency.reset();
+        batchFallbacks.reset();
+        contendedSyncs.reset();
+        piggybackedSyncs.reset();
+        commitRetries.reset();
+        syncTimer.reset();
+        syncFailures.reset();
+        syncResults.values().forEach(LongAdder::reset);
+        if (syncedUsers != null)
+        {
+            syncedUsers.resetStats();
+        }
+        if (batcher != null)
+        {
+            batcher.resetStats();
+        }
+        if (clusterSyncLease != null)
+        {
+            clusterSyncLease.resetStats();
+        }
+    }
+
+    /**
+     * @return <code>true</code> if new users are synced in batches.
+     */
+    boolean isBatchEnabled()
+    {
+        return batcher != null;
+    }
+
+    /**
+     * Adds a new user to the next batch and waits for the batch to be committed.
+     *
+     * @param synchronizer The synchronizer that runs the batch in its own system session.
+     * @param credentials
+     * @param profileFingerprint
+     * @return <code>true</code> if the user was committed as part of a batch and <code>false</code> if batching is
+     * disabled, the batch queue is full, the batch failed or timed out, in which case the caller should sync the user
+     * on its own.
+     */
+    boolean syncInBatch(final UserSynchronizer synchronizer, final HeaderCredentials credentials,
+                        final String profileFingerprint)
+    {
+        if (batcher == null)
+        {
+            return false;
+        }
+
+        final CompletableFuture<Void> result = batcher.submit(synchronizer, credentials, profileFingerprint);
+        if (result == null)
+        {
+            batchFallbacks.increment();
+            return false;
+        }
+
+        try
+        {
+            result.get(batchTimeoutMillis, TimeUnit.MILLISECONDS);
+            return true;
+        } catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | TimeoutException e)
+        {
+            logger.debug("Batched sync of user: '{}' did not complete", credentials.getUserId(), e);
+        }
+        batchFallbacks.increment();
+        return false;
+    }
+
+    public int getBatchQueueDepth()
+    {
+        return batcher != null ? batcher.getQueueDepth() : 0;
+    }
+
+    public long getBatchCount()
+    {
+        return batcher != null ? batcher.getBatchCount() : 0;
+    }
+
+    public long getBatchedUserCount()
+    {
+        return batcher != null ? batcher.getBatchedUserCount() : 0;
+    }
+
+    public double getMeanBatchSize()
+    {
+        return batcher != null ? batcher.getMeanBatchSize() : 0;
+    }
+
+    public long getMaxBatchSize()
+    {
+        return batcher != null ? batcher.getMaxBatchSize() : 0;
+    }
+
+    /**
+     * @return The mean time in milliseconds to sync and commit a batch.
+     */
+    public double getMeanBatchCommitLatencyMillis()
+    {
+        return batcher != null ? batcher.getMeanCommitLatencyMillis() : 0;
+    }
+
+    public double getMaxBatchCommitLatencyMillis()
+    {
+        return batcher != null ? batcher.getMaxCommitLatencyMillis() : 0;
+    }
+
+    /**
+     * @return The number of times a batch was split apart after a failed commit.
+     */
+    public long getBatchSplitCount()
+    {
+        return batcher != null ? batcher.getSplitCount() : 0;
+    }
+
+    /**
+     * @return The number of logins of a new user that waited for the batch entry of a concurrent login of the same
+     * user.
+     */
+    public long getBatchCoalescedCount()
+    {
+        return batcher != null ? batcher.getCoalescedCount() : 0;
+    }
+
+    /**
+     * @return The number of new users that were not synced as part of a batch and fell back to a regular sync.
+     */
+    public long getBatchFallbackCount()
+    {
+        return batchFallbacks.sum();
+    }
+
+    /**
+     * @return The number of resyncs waiting for a background thread.
+     */
+    public int getAsyncQueueDepth()
+    {
+        return executor != null ? executor.getQueue().size() : 0;
+    }
+
+    public long getAsyncSubmittedCount()
+    {
+        return asyncSubmitted.sum();
+    }
+
+    public long getAsyncDeduplicatedCount()
+    {
+        return asyncDeduplicated.sum();
+    }
+
+    public long getAsyncRejectedCount()
+    {
+        return asyncRejected.sum();
+    }
+
+    public long getAsyncCompletedCount()
+    {
+        return asyncCompleted.sum();
+    }
+
+    public long getAsyncFailedCount()
+    {
+        return asyncFailed.sum();
+    }
+
+    /**
+     * @return The mean time in milliseconds between queueing a resync and its completion.
+     */
+    public double getAsyncMeanLatencyMillis()
+    {
+        return asyncLatency.getMeanMillis();
+    }
+
+    /**
+     * @return The longest time in milliseconds between queueing a resync and its completion.
+     */
+    public double getAsyncMaxLatencyMillis()
+    {
+        return asyncLatency.getMaxMillis();
+    }
+
+    /**
+     * Runs the pending resync of the user, and then those submitted for the user while it ran. The entry of the user
+     * stays in place until its task is done, so that concurrent submits are deduplicated onto it.
+     */
+    private void runPendingSyncs(final String userId)
+    {
+        PendingSync pendingSync = pendingSyncs.get(userId);
+        try
+        {
+            while (pendingSync != null)
+            {
+                runPendingSync(userId, pendingSync);
+                pendingSync = pendingSyncs.remove(userId, pendingSync) ? null : pendingSyncs.get(userId);
+            }
+        } finally
+        {
+            if (pendingSync != null)
+            {
+                // The task failed and nothing else would run what is pending for the user
+                pendingSyncs.remove(userId);
+            }
+        }
+    }
+
+    private void runPendingSync(final String userId, final PendingSync pendingSync)
+    {
+        try
+        {
+            pendingSync.synchronizer.syncInSystemSession(pendingSync.credentials, pendingSync.profileFingerprint);
+            asyncCompleted.increment();
+        } catch (Exception e)
+        {
+            asyncFailed.increment();
+            logger.error("Error in asynchronous resync of user: '{}'", userId, e);
+        } finally
+        {
+            asyncLatency.recordSince(pendingSync.submittedAt);
+        }
+    }
+
+    private static Map<SyncResult.Status, LongAdder> createSyncResultCounters()
+    {
+        final Map<SyncResult.Status, LongAdder> counters = new EnumMap<>(SyncResult.Status.class);
+        for (SyncResult.Status status : SyncResult.Status.values())
+        {
+            counters.put(status, new LongAdder());
+        }
+        return counters;
+    }
+
+    private static Lock[] createLocks(final int stripes)
+    {
+        int size = 1;
+        while (size < stripes)
+        {
+            size <<= 1;
+        }
+
+        final Lock[] locks = new Lock[size];
+        for (int i = 0; i < size; i++)
+        {
+            locks[i] = new ReentrantLock();
+        }
+        return locks;
+    }
+
+    private static ThreadPoolExecutor createExecutor(final int threads, final int queueSize)
+    {
+        final AtomicInteger threadCount = new AtomicInteger();
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads,
+                EXECUTOR_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new ArrayBlockingQueue<>(queueSize), runnable -> {
+                    Thread thread = new Thread(runnable, "header-user-sync-" + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Forgets a single user so that the next login runs the full user sync again.
+     *
+     * @param userId
+     */
+    public void invalidate(final String userId)
+    {
+        if (syncedUsers != null)
+        {
+            syncedUsers.invalidate(userId);
+        }
+    }
+
+    /**
+     * Forgets all users.
+     */
+    public void invalidateAll()
+    {
+        if (syncedUsers != null)
+        {
+            syncedUsers.invalidateAll();
+        }
+    }
+
+    @Override
+    public void onChange(final List<ResourceChange> changes)
+    {
+        if (syncedUsers == null)
+        {
+            return;
+        }
+
+        for (ResourceChange change : changes)
+        {
+            final String removedPath = change.getPath();
+            logger.debug("Invalidating synced users at or below removed path: '{}'", removedPath);
+            syncedUsers.invalidateIf((userId, syncedUser) -> isSameOrDescendant(syncedUser.path, removedPath));
+        }
+    }
+
+    private static boolean isSameOrDescendant(final String path, final String ancestor)
+    {
+        return path.equals(ancestor) ||
+                (path.startsWith(ancestor) && path.charAt(ancestor.length()) == '/');
+    }
+
+    ExpiringCache<String, SyncedUser> getSyncedUsers()
+    {
+        return syncedUsers;
+    }
+
+    private static final class PendingSync
+    {
+        private final UserSynchronizer synchronizer;
+        private final HeaderCredentials credentials;
+        private final String profileFingerprint;
+        private final long submittedAt = System.nanoTime();
+
+        private PendingSync(final UserSynchronizer synchronizer, final HeaderCredentials credentials,
+                            final String profileFingerprint)
+        {
+            this.synchronizer = synchronizer;
+            this.credentials = credentials;
+            this.profileFingerprint = profileFingerprint;
+        }
+    }
+
+    static final class SyncedUser
+    {
+        private final String path;
+        private final String profileFingerprint;
+
+        private SyncedUser(final String path, final String profileFingerprint)
+        {
+            this.path = path;
+            this.profileFingerprint = profileFingerprint;
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package com.peregrine.sling.auth.header;
+
+/*-
+ * #%L
+ * peregrinecms-com-peregrine-sling-auth-header
+ * %%
+ * Copyright (C) 2020 headwire inc.
+ * %%
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+
+import org.osgi.service.metatype.annotations.AttributeDefinition;
+import org.osgi.service.metatype.annotations.ObjectClassDefinition;
+
+@ObjectClassDefinition(name = "Header User Sync Service Configuration", description = "Configuration options for the user synchronization performed by the Header Login Module.")
+public @interface HeaderUserSyncServiceConfig
+{
+    public static final int DEFAULT_HEADER_SYNC_CACHE_MAX_SIZE = 10000;
+    public static final long DEFAULT_HEADER_SYNC_CACHE_TTL = 300;
+    public static final int DEFAULT_HEADER_SYNC_ASYNC_THREADS = 2;
+    public static final int DEFAULT_HEADER_SYNC_ASYNC_QUEUE_SIZE = 1000;
+    public static final int DEFAULT_HEADER_SYNC_BATCH_MAX_SIZE = 50;
+    public static final long DEFAULT_HEADER_SYNC_BATCH_WINDOW = 20;
+    public static final long DEFAULT_HEADER_SYNC_BATCH_TIMEOUT = 5000;
+    public static final long DEFAULT_HEADER_SYNC_CLUSTER_LEASE_TTL = 30;
+    public static final long DEFAULT_HEADER_SYNC_CLUSTER_LEASE_WAIT = 5000;
+    public static final long DEFAULT_HEADER_SYNC_CLUSTER_LEASE_POLL = 100;
+    public static final int DEFAULT_HEADER_SYNC_LOCK_STRIPES = 256;
+    public static final String DEFAULT_HEADER_SYNC_HANDLER_NAME = "default";
+
+    @AttributeDefinition(name = "Sync Handler Name", description = "Name of the sync handler used to sync users, i.e. the handler-name of a Default Sync Handler configuration.")
+    String header_sync_handler_name() default DEFAULT_HEADER_SYNC_HANDLER_NAME;
+
+    @AttributeDefinition(name = "Synced User Cache Enabled", description = "Remember users that were recently synced on this node and skip the repository lookup for them on subsequent logins.")
+    boolean header_sync_cache_enabled() default true;
+
+    @AttributeDefinition(name = "Synced User Cache Max Size", description = "Maximum number of recently synced users remembered on this node.")
+    int header_sync_cache_max_size() default DEFAULT_HEADER_SYNC_CACHE_MAX_SIZE;
+
+    @AttributeDefinition(name = "Synced User Cache TTL", description = "Time in seconds a synced user is remembered before the repository is consulted again.")
+    long header_sync_cache_ttl() default DEFAULT_HEADER_SYNC_CACHE_TTL;
+
+    @AttributeDefinition(name = "Profile Fingerprint Resync Enabled", description = "Store a fingerprint of the user profile headers on each synced user and resync the user whenever the fingerprint changes. When disabled, existing users are never resynced on login.")
+    boolean header_sync_profile_fingerprint_enabled() default false;
+
+    @AttributeDefinition(name = "Profile Snapshot Enabled", description = "Store the user profile headers on each synced user so that the scheduled resync can resync the user without a login.")
+    boolean header_sync_profile_snapshot_enabled() default false;
+
+    @AttributeDefinition(name = "Asynchronous Resync Enabled", description = "Resync existing users on a background executor instead of the login request. New users are always synced during the login because they must exist before the login can complete.")
+    boolean header_sync_async_enabled() default false;
+
+    @AttributeDefinition(name = "Asynchronous Resync Threads", description = "Number of background threads used for asynchronous resyncs.")
+    int header_sync_async_threads() default DEFAULT_HEADER_SYNC_ASYNC_THREADS;
+
+    @AttributeDefinition(name = "Asynchronous Resync Queue Size", description = "Maximum number of queued asynchronous resyncs, and of new users waiting for a batch. When a queue is full, the sync runs during the login.")
+    int header_sync_async_queue_size() default DEFAULT_HEADER_SYNC_ASYNC_QUEUE_SIZE;
+
+    @AttributeDefinition(name = "Batched New User Sync Enabled", description = "Gather the syncs of new users arriving at about the same time and commit them together. Logins wait for the commit of their batch.")
+    boolean header_sync_batch_enabled() default false;
+
+    @AttributeDefinition(name = "Batch Max Size", description = "Maximum number of new users committed in one batch. 0 or less disables batching.")
+    int header_sync_batch_max_size() default DEFAULT_HEADER_SYNC_BATCH_MAX_SIZE;
+
+    @AttributeDefinition(name = "Batch Window", description = "Time in milliseconds to wait for more new users after the first user of a batch arrived.")
+    long header_sync_batch_window() default DEFAULT_HEADER_SYNC_BATCH_WINDOW;
+
+    @AttributeDefinition(name = "Batch Timeout", description = "Time in milliseconds a login waits for its batch to be committed before it syncs the user on its own.")
+    long header_sync_batch_timeout() default DEFAULT_HEADER_SYNC_BATCH_TIMEOUT;
+
+    @AttributeDefinition(name = "Per-User Sync Locking Enabled", description = "Let only one thread sync a given user at a time. Threads that wait for the sync of the same user reuse its result instead of racing to create the user.")
+    boolean header_sync_lock_enabled() default true;
+
+    @AttributeDefinition(name = "Sync Lock Stripes", description = "Number of locks users are spread across. Rounded up to a power of two.")
+    int header_sync_lock_stripes() default DEFAULT_HEADER_SYNC_LOCK_STRIPES;
+
+    @AttributeDefinition(name = "Cluster Sync Lease Enabled", description = "Coordinate the first sync of a user across cluster nodes sharing a DocumentNodeStore. The node that claims the user's lease in the repository syncs it; the others wait for it instead of racing to create the user.")
+    boolean header_sync_cluster_lease_enabled() default false;
+
+    @AttributeDefinition(name = "Cluster Sync Lease TTL", description = "Time in seconds after which a lease that was not released, e.g. by a crashed node, may be taken over.")
+    long header_sync_cluster_lease_ttl() default DEFAULT_HEADER_SYNC_CLUSTER_LEASE_TTL;
+
+    @AttributeDefinition(name = "Cluster Sync Lease Wait", description = "Maximum time in milliseconds a login waits for the node holding the lease before it syncs the user on its own. Capped at a quarter of the lease TTL. Changes of other nodes become visible with the background read of the DocumentNodeStore, about once a second by default.")
+    long header_sync_cluster_lease_wait() default DEFAULT_HEADER_SYNC_CLUSTER_LEASE_WAIT;
+
+    @AttributeDefinition(name = "Cluster Sync Lease Poll Interval", description = "Time in milliseconds between two checks while waiting for the node holding the lease.")
+    long header_sync_cluster_lease_poll() default DEFAULT_HEADER_SYNC_CLUSTER_LEASE_POLL;
+}
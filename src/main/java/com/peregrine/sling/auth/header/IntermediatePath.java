@@ -0,0 +1,148 @@
+package com.peregrine.sling.auth.header;
+
+/*-
+ * #%L
+ * peregrinecms-com-peregrine-sling-auth-header
+ * %%
+ * Copyright (C) 2020 headwire inc.
+ * %%
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+
+import org.apache.jackrabbit.util.Text;
+
+import java.util.Locale;
+
+/**
+ * Computes the intermediate path of a synced user below the <code>user.pathPrefix</code> of the sync handler, so that
+ * users are spread over folders instead of all being children of a single node. Strategies:
+ * <ul>
+ *     <li><code>none</code>: no intermediate path, all users are created directly below the path prefix.</li>
+ *     <li><code>hash</code>: one folder level per hash level, named by two hex digits of a hash of the user id, e.g.
+ *     <code>3f/a7</code>. Each level splits the users into 256 folders.</li>
+ *     <li><code>domain</code>: a folder named by the lower-cased email domain of the user id, followed by the hash
+ *     levels, e.g. <code>example.com/3f</code>. User ids without a domain go to <code>_</code>.</li>
+ * </ul>
+ * The hash is FNV-1a ({@link Fingerprint#of(CharSequence)}), so a user id always maps to the same path, on every
+ * cluster node and across restarts.
+ */
+final class IntermediatePath
+{
+    static final String NONE_STRATEGY = "none";
+    static final String HASH_STRATEGY = "hash";
+    static final String DOMAIN_STRATEGY = "domain";
+
+    /** All users directly below the path prefix. */
+    static final IntermediatePath NONE = new IntermediatePath(false, false, 0);
+
+    static final int MAX_HASH_LEVELS = 4;
+
+    private static final String NO_DOMAIN_FOLDER = "_";
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final boolean sharded;
+    private final boolean domain;
+    private final int hashLevels;
+
+    private IntermediatePath(final boolean sharded, final boolean domain, final int hashLevels)
+    {
+        this.sharded = sharded;
+        this.domain = domain;
+        this.hashLevels = hashLevels;
+    }
+
+    /**
+     * @param strategy One of <code>none</code>, <code>hash</code> or <code>domain</code>.
+     * @param hashLevels Number of hash folder levels, at least 1 for <code>hash</code> and at most
+     * {@link #MAX_HASH_LEVELS}.
+     * @throws IllegalArgumentException if the strategy is unknown or the number of levels is out of range.
+     */
+    static IntermediatePath compile(final String strategy, final int hashLevels)
+    {
+        final String name = strategy == null ? NONE_STRATEGY : strategy.trim().toLowerCase(Locale.ROOT);
+        switch (name)
+        {
+            case "":
+            case NONE_STRATEGY:
+                return NONE;
+            case HASH_STRATEGY:
+                if (hashLevels < 1 || hashLevels > MAX_HASH_LEVELS)
+                {
+                    throw new IllegalArgumentException("Hash levels must be between 1 and " + MAX_HASH_LEVELS +
+                            ": " + hashLevels);
+                }
+                return new IntermediatePath(true, false, hashLevels);
+            case DOMAIN_STRATEGY:
+                if (hashLevels < 0 || hashLevels > MAX_HASH_LEVELS)
+                {
+                    throw new IllegalArgumentException("Hash levels must be between 0 and " + MAX_HASH_LEVELS +
+                            ": " + hashLevels);
+                }
+                return new IntermediatePath(true, true, hashLevels);
+            default:
+                throw new IllegalArgumentException("Unknown intermediate path strategy: " + strategy);
+        }
+    }
+
+    /**
+     * @return <code>false</code> if users are not sharded at all.
+     */
+    boolean isSharded()
+    {
+        return sharded;
+    }
+
+    /**
+     * @return The relative intermediate path of the user, or <code>null</code> if users are not sharded.
+     */
+    String of(final String userId)
+    {
+        if (!sharded)
+        {
+            return null;
+        }
+
+        final StringBuilder path = new StringBuilder(domain ? 32 : hashLevels * 3);
+        if (domain)
+        {
+            final int at = userId.lastIndexOf('@');
+            final String folder = at >= 0 && at < userId.length() - 1
+                    ? userId.substring(at + 1).toLowerCase(Locale.ROOT) : NO_DOMAIN_FOLDER;
+            path.append(Text.escapeIllegalJcrChars(folder));
+        }
+
+        final long hash = Fingerprint.of(userId);
+        for (int level = 0; level < hashLevels; level++)
+        {
+            if (path.length() > 0)
+            {
+                path.append('/');
+            }
+            final int bucket = (int) (hash >>> (56 - level * 8)) & 0xff;
+            path.append(HEX[bucket >>> 4]).append(HEX[bucket & 0xf]);
+        }
+        return path.toString();
+    }
+
+    @Override
+    public String toString()
+    {
+        return !sharded ? NONE_STRATEGY : (domain ? DOMAIN_STRATEGY : HASH_STRATEGY) + "/" + hashLevels;
+    }
+}
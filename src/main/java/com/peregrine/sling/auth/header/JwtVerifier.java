@@ -0,0 +1,446 @@
+package com.peregrine.sling.auth.header;
+
+/*-
+ * #%L
+ * peregrinecms-com-peregrine-sling-auth-header
+ * %%
+ * Copyright (C) 2020 headwire inc.
+ * %%
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+
+import org.apache.jackrabbit.oak.commons.json.JsopReader;
+import org.apache.jackrabbit.oak.commons.json.JsopTokenizer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.AlgorithmParameters;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.MessageDigest;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.spec.ECGenParameterSpec;
+import java.security.spec.ECParameterSpec;
+import java.security.spec.ECPoint;
+import java.security.spec.ECPublicKeySpec;
+import java.security.spec.RSAPublicKeySpec;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Verifies signed JWTs, such as the ID token forwarded by mod_auth_openidc, against the public keys of a JWKS. The
+ * keys are parsed once; verification never goes to the network. Supported algorithms are RS256, RS384, RS512,
+ * ES256, ES384 and ES512.
+ * <p>
+ * A token is valid if its signature verifies with the key named by its <code>kid</code> (or the only key, if the
+ * JWKS has a single key and the token names none), it has not expired, it is not used before its
+ * <code>nbf</code>, and its issuer and audience match the configured ones, if any.
+ */
+final class JwtVerifier
+{
+    private static final Logger logger = LoggerFactory.getLogger(JwtVerifier.class);
+
+    /** Tokens longer than this are rejected before they are decoded. */
+    static final int MAX_TOKEN_LENGTH = 16384;
+
+    private static final Base64.Decoder DECODER = Base64.getUrlDecoder();
+
+    private final Map<String, PublicKey> keysById;
+    private final PublicKey singleKey;
+    private final String issuer;
+    private final String audience;
+    private final long clockSkewMillis;
+    private final ThreadLocal<MessageDigest> digests = ThreadLocal.withInitial(JwtVerifier::createDigest);
+
+    /**
+     * @param jwks The JWKS document.
+     * @param issuer The required <code>iss</code>, or <code>null</code> to accept any issuer.
+     * @param audience The required <code>aud</code>, or <code>null</code> to accept any audience.
+     * @param clockSkewMillis Tolerance for the <code>exp</code> and <code>nbf</code> checks.
+     * @throws IllegalArgumentException if the JWKS is malformed or has no usable signing key.
+     */
+    JwtVerifier(final String jwks, final String issuer, final String audience, final long clockSkewMillis)
+    {
+        this.keysById = new HashMap<>();
+        final List<PublicKey> keys = new ArrayList<>();
+        final JsopTokenizer tokenizer = new JsopTokenizer(jwks);
+        final Map<String, Object> document = readObject(tokenizer);
+        tokenizer.read(JsopReader.END);
+        if (!(document.get("keys") instanceof List))
+        {
+            throw new IllegalArgumentException("JWKS has no keys");
+        }
+
+        for (Object jwk : (List<?>) document.get("keys"))
+        {
+            final JsopTokenizer keyTokenizer = new JsopTokenizer(jwk.toString());
+            final Map<String, Object> key = readObject(keyTokenizer);
+            if (key.containsKey("use") && !"sig".equals(key.get("use")))
+            {
+                continue;
+            }
+            try
+            {
+                final PublicKey publicKey = toPublicKey(key);
+                keys.add(publicKey);
+                if (key.get("kid") != null)
+                {
+                    keysById.put(key.get("kid").toString(), publicKey);
+                }
+            } catch (GeneralSecurityException | IllegalArgumentException e)
+            {
+                logger.warn("Ignoring JWK: '{}': {}", key.get("kid"), e.getMessage());
+            }
+        }
+
+        if (keys.isEmpty())
+        {
+            throw new IllegalArgumentException("JWKS has no usable signing key");
+        }
+        this.singleKey = keys.size() == 1 ? keys.get(0) : null;
+        this.issuer = issuer;
+        this.audience = audience;
+        this.clockSkewMillis = clockSkewMillis;
+    }
+
+    /**
+     * @return The claims of the token if it is valid.
+     * @throws IllegalArgumentException if the token is malformed or not valid, with the reason as message.
+     */
+    Token verify(final String token, final long now)
+    {
+        if (token.length() > MAX_TOKEN_LENGTH)
+        {
+            throw new IllegalArgumentException("Token too long");
+        }
+        final int payloadStart = token.indexOf('.');
+        final int signatureStart = token.indexOf('.', payloadStart + 1);
+        if (payloadStart <= 0 || signatureStart < 0 || token.indexOf('.', signatureStart + 1) >= 0)
+        {
+            throw new IllegalArgumentException("Not a signed JWT");
+        }
+
+        final Map<String, Object> header = decodeObject(token.substring(0, payloadStart));
+        final Algorithm algorithm = Algorithm.of(header.get("alg"));
+        final PublicKey key = header.get("kid") != null ? keysById.get(header.get("kid").toString()) : singleKey;
+        if (key == null)
+        {
+            throw new IllegalArgumentException("Unknown key: " + header.get("kid"));
+        }
+        if (!algorithm.verify(key, token.substring(0, signatureStart).getBytes(StandardCharsets.US_ASCII),
+                DECODER.decode(token.substring(signatureStart + 1))))
+        {
+            throw new IllegalArgumentException("Invalid signature");
+        }
+
+        final Map<String, Object> claims = decodeObject(token.substring(payloadStart + 1, signatureStart));
+        final long expiresAt = getSeconds(claims, "exp") * 1000;
+        if (expiresAt <= 0)
+        {
+            throw new IllegalArgumentException("Missing exp");
+        }
+        if (now - clockSkewMillis >= expiresAt)
+        {
+            throw new IllegalArgumentException("Expired");
+        }
+        if (claims.containsKey("nbf") && now + clockSkewMillis < getSeconds(claims, "nbf") * 1000)
+        {
+            throw new IllegalArgumentException("Not yet valid");
+        }
+        if (issuer != null && !issuer.equals(claims.get("iss")))
+        {
+            throw new IllegalArgumentException("Invalid issuer: " + claims.get("iss"));
+        }
+        if (audience != null && !getValues(claims.get("aud")).contains(audience))
+        {
+            throw new IllegalArgumentException("Invalid audience: " + claims.get("aud"));
+        }
+        return new Token(Collections.unmodifiableMap(claims), expiresAt + clockSkewMillis);
+    }
+
+    /**
+     * @return A cache key for the token: its SHA-256 digest.
+     */
+    ByteBuffer digest(final String token)
+    {
+        return ByteBuffer.wrap(digests.get().digest(token.getBytes(StandardCharsets.US_ASCII)));
+    }
+
+    private static Map<String, Object> decodeObject(final String part)
+    {
+        final JsopTokenizer tokenizer = new JsopTokenizer(new String(DECODER.decode(part), StandardCharsets.UTF_8));
+        final Map<String, Object> object = readObject(tokenizer);
+        tokenizer.read(JsopReader.END);
+        return object;
+    }
+
+    /**
+     * Reads a JSON object. Strings, numbers and booleans are read as strings, arrays as lists of strings, and nested
+     * objects as their raw JSON. <code>null</code> values are left out.
+     */
+    private static Map<String, Object> readObject(final JsopTokenizer tokenizer)
+    {
+        final Map<String, Object> object = new LinkedHashMap<>();
+        tokenizer.read('{');
+        if (!tokenizer.matches('}'))
+        {
+            do
+            {
+                final String name = tokenizer.readString();
+                tokenizer.read(':');
+                final Object value;
+                if (tokenizer.matches('['))
+                {
+                    final List<String> values = new ArrayList<>();
+                    if (!tokenizer.matches(']'))
+                    {
+                        do
+                        {
+                            final String element = readValue(tokenizer);
+                            if (element != null)
+                            {
+                                values.add(element);
+                            }
+                        } while (tokenizer.matches(','));
+                        tokenizer.read(']');
+                    }
+                    value = values;
+                }
+                else
+                {
+                    value = readValue(tokenizer);
+                }
+                if (value != null)
+                {
+                    object.put(name, value);
+                }
+            } while (tokenizer.matches(','));
+            tokenizer.read('}');
+        }
+        return object;
+    }
+
+    private static String readValue(final JsopTokenizer tokenizer)
+    {
+        final String raw = tokenizer.readRawValue();
+        if (raw.startsWith("\""))
+        {
+            return JsopTokenizer.decodeQuoted(raw);
+        }
+        return "null".equals(raw) ? null : raw;
+    }
+
+    private static long getSeconds(final Map<String, Object> claims, final String name)
+    {
+        final Object value = claims.get(name);
+        if (value == null)
+        {
+            return 0;
+        }
+        try
+        {
+            return (long) Double.parseDouble(value.toString());
+        } catch (NumberFormatException e)
+        {
+            throw new IllegalArgumentException("Invalid " + name + ": " + value);
+        }
+    }
+
+    private static List<?> getValues(final Object value)
+    {
+        if (value == null)
+        {
+            return Collections.emptyList();
+        }
+        return value instanceof List ? (List<?>) value : Collections.singletonList(value);
+    }
+
+    private static PublicKey toPublicKey(final Map<String, Object> jwk) throws GeneralSecurityException
+    {
+        final Object type = jwk.get("kty");
+        if ("RSA".equals(type))
+        {
+            return KeyFactory.getInstance("RSA").generatePublic(
+                    new RSAPublicKeySpec(toInteger(jwk, "n"), toInteger(jwk, "e")));
+        }
+        if ("EC".equals(type))
+        {
+            final String curve;
+            if ("P-256".equals(jwk.get("crv")))
+            {
+                curve = "secp256r1";
+            }
+            else if ("P-384".equals(jwk.get("crv")))
+            {
+                curve = "secp384r1";
+            }
+            else if ("P-521".equals(jwk.get("crv")))
+            {
+                curve = "secp521r1";
+            }
+            else
+            {
+                throw new IllegalArgumentException("Unsupported curve: " + jwk.get("crv"));
+            }
+            final AlgorithmParameters parameters = AlgorithmParameters.getInstance("EC");
+            parameters.init(new ECGenParameterSpec(curve));
+            return KeyFactory.getInstance("EC").generatePublic(new ECPublicKeySpec(
+                    new ECPoint(toInteger(jwk, "x"), toInteger(jwk, "y")),
+                    parameters.getParameterSpec(ECParameterSpec.class)));
+        }
+        throw new IllegalArgumentException("Unsupported key type: " + type);
+    }
+
+    private static BigInteger toInteger(final Map<String, Object> jwk, final String name)
+    {
+        final Object value = jwk.get(name);
+        if (value == null)
+        {
+            throw new IllegalArgumentException("Missing " + name);
+        }
+        return new BigInteger(1, DECODER.decode(value.toString()));
+    }
+
+    private static MessageDigest createDigest()
+    {
+        try
+        {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (GeneralSecurityException e)
+        {
+            throw new IllegalStateException("Cannot create SHA-256", e);
+        }
+    }
+
+    /**
+     * A verified token.
+     */
+    static final class Token
+    {
+        private final Map<String, Object> claims;
+        private final long expiresAt;
+
+        private Token(final Map<String, Object> claims, final long expiresAt)
+        {
+            this.claims = claims;
+            this.expiresAt = expiresAt;
+        }
+
+        /**
+         * @return The read-only claims. Values are strings, or lists of strings for array claims.
+         */
+        Map<String, Object> getClaims()
+        {
+            return claims;
+        }
+
+        /**
+         * @return The time in milliseconds until which the token is accepted.
+         */
+        long getExpiresAt()
+        {
+            return expiresAt;
+        }
+    }
+
+    /**
+     * The supported JWS algorithms.
+     */
+    private enum Algorithm
+    {
+        RS256("SHA256withRSA", 0),
+        RS384("SHA384withRSA", 0),
+        RS512("SHA512withRSA", 0),
+        ES256("SHA256withECDSA", 32),
+        ES384("SHA384withECDSA", 48),
+        ES512("SHA512withECDSA", 66);
+
+        private final String signatureAlgorithm;
+        private final int ecFieldSize;
+
+        Algorithm(final String signatureAlgorithm, final int ecFieldSize)
+        {
+            this.signatureAlgorithm = signatureAlgorithm;
+            this.ecFieldSize = ecFieldSize;
+        }
+
+        static Algorithm of(final Object name)
+        {
+            for (Algorithm algorithm : values())
+            {
+                if (algorithm.name().equals(name))
+                {
+                    return algorithm;
+                }
+            }
+            throw new IllegalArgumentException("Unsupported algorithm: " + name);
+        }
+
+        boolean verify(final PublicKey key, final byte[] content, final byte[] signature)
+        {
+            try
+            {
+                final Signature verifier = Signature.getInstance(signatureAlgorithm);
+                verifier.initVerify(key);
+                verifier.update(content);
+                return verifier.verify(ecFieldSize > 0 ? toDer(signature, ecFieldSize) : signature);
+            } catch (GeneralSecurityException e)
+            {
+                // Also thrown for a key of the wrong type
+                logger.debug("Cannot verify {} signature: {}", this, e.getMessage());
+                return false;
+            }
+        }
+
+        /**
+         * Converts a JWS ECDSA signature, the concatenated R and S values, to the DER encoding used by Java.
+         */
+        private static byte[] toDer(final byte[] signature, final int fieldSize)
+        {
+            if (signature.length != 2 * fieldSize)
+            {
+                throw new IllegalArgumentException("Invalid signature length");
+            }
+            final byte[] r = new BigInteger(1, Arrays.copyOfRange(signature, 0, fieldSize)).toByteArray();
+            final byte[] s = new BigInteger(1, Arrays.copyOfRange(signature, fieldSize, signature.length)).toByteArray();
+            final int length = 2 + r.length + 2 + s.length;
+
+            final ByteBuffer der = ByteBuffer.allocate(3 + length);
+            der.put((byte) 0x30);
+            if (length > 127)
+            {
+                der.put((byte) 0x81);
+            }
+            der.put((byte) length);
+            der.put((byte) 0x02).put((byte) r.length).put(r);
+            der.put((byte) 0x02).put((byte) s.length).put(s);
+            return Arrays.copyOf(der.array(), der.position());
+        }
+    }
+}
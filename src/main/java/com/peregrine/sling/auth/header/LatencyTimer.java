@@ -0,0 +1,83 @@
+package com.peregrine.sling.auth.header;
+
+/*-
+ * #%L
+ * peregrinecms-com-peregrine-sling-auth-header
+ * %%
+ * Copyright (C) 2020 headwire inc.
+ * %%
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A contention-free timer that tracks the count, mean and maximum of recorded durations.
+ */
+final class LatencyTimer
+{
+    private static final double NANOS_PER_MILLI = 1000000d;
+
+    private final LongAdder count = new LongAdder();
+    private final LongAdder totalNanos = new LongAdder();
+    private final LongAccumulator maxNanos = new LongAccumulator(Long::max, 0);
+
+    void record(final long nanos)
+    {
+        count.increment();
+        totalNanos.add(nanos);
+        maxNanos.accumulate(nanos);
+    }
+
+    /**
+     * Records the time elapsed since the given {@link System#nanoTime()}.
+     *
+     * @return The recorded duration in nanoseconds.
+     */
+    long recordSince(final long startNanos)
+    {
+        final long nanos = System.nanoTime() - startNanos;
+        record(nanos);
+        return nanos;
+    }
+
+    long getCount()
+    {
+        return count.sum();
+    }
+
+    double getMeanMillis()
+    {
+        final long n = count.sum();
+        return n == 0 ? 0 : totalNanos.sum() / (double) n / NANOS_PER_MILLI;
+    }
+
+    double getMaxMillis()
+    {
+        return maxNanos.get() / NANOS_PER_MILLI;
+    }
+
+    void reset()
+    {
+        count.reset();
+        totalNanos.reset();
+        maxNanos.reset();
+    }
+}
@@ -0,0 +1,210 @@
+package com.peregrine.sling.auth.header;
+
+/*-
+ * #%L
+ * peregrinecms-com-peregrine-sling-auth-header
+ * %%
+ * Copyright (C) 2020 headwire inc.
+ * %%
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Maps request paths to the value of the longest configured path prefix that covers them. Prefixes match whole path
+ * segments: <code>/content/a</code> covers <code>/content/a</code> and <code>/content/a/page.html</code>, but not
+ * <code>/content/ab</code>.
+ *
+ * The prefixes are compiled into a trie of path segments with an open-addressed table per node, so a lookup costs one
+ * table probe per segment of the request path, however many prefixes there are, and allocates nothing. Instances are
+ * immutable; a changed set of prefixes is compiled into a new index.
+ */
+final class PathPrefixIndex<T>
+{
+    static final String ROOT = "/";
+
+    private final Node root;
+    private final int size;
+
+    private PathPrefixIndex(final Node root, final int size)
+    {
+        this.root = root;
+        this.size = size;
+    }
+
+    /**
+     * @param prefixes The values by path prefix. Prefixes are normalized with {@link #normalize(String)}; of two
+     * prefixes that normalize to the same path, the first one in iteration order wins.
+     */
+    static <T> PathPrefixIndex<T> compile(final Map<String, T> prefixes)
+    {
+        final Builder root = new Builder();
+        int size = 0;
+        for (Map.Entry<String, T> entry : prefixes.entrySet())
+        {
+            final String prefix = normalize(entry.getKey());
+            Builder node = root;
+            if (!ROOT.equals(prefix))
+            {
+                for (String segment : prefix.substring(1).split("/"))
+                {
+                    node = node.children.computeIfAbsent(segment, key -> new Builder());
+                }
+            }
+            if (node.value == null)
+            {
+                node.value = entry.getValue();
+                size++;
+            }
+        }
+        return new PathPrefixIndex<>(root.build(), size);
+    }
+
+    /**
+     * @return The prefix as an absolute path without a trailing slash, or {@value #ROOT} for an empty prefix.
+     */
+    static String normalize(final String prefix)
+    {
+        String path = prefix != null ? prefix.trim() : "";
+        if (!path.startsWith("/"))
+        {
+            path = "/" + path;
+        }
+        while (path.length() > 1 && path.endsWith("/"))
+        {
+            path = path.substring(0, path.length() - 1);
+        }
+        return path;
+    }
+
+    /**
+     * @return The value of the longest prefix covering the path, or <code>null</code> if there is none.
+     */
+    @SuppressWarnings("unchecked")
+    T find(final String path)
+    {
+        Node node = root;
+        Object match = root.value;
+        final int length = path.length();
+        int start = length > 0 && path.charAt(0) == '/' ? 1 : length;
+        while (node.keys != null && start < length)
+        {
+            int end = path.indexOf('/', start);
+            if (end < 0)
+            {
+                end = length;
+            }
+            node = node.child(path, start, end);
+            if (node == null)
+            {
+                break;
+            }
+            if (node.value != null)
+            {
+                match = node.value;
+            }
+            start = end + 1;
+        }
+        return (T) match;
+    }
+
+    int size()
+    {
+        return size;
+    }
+
+    /**
+     * Spreads the higher bits of a <code>String</code> hash code to the lower ones used for the table index.
+     */
+    private static int spread(final int hash)
+    {
+        return hash ^ (hash >>> 16);
+    }
+
+    private static final class Node
+    {
+        private final Object value;
+        private final String[] keys;
+        private final Node[] children;
+
+        private Node(final Object value, final String[] keys, final Node[] children)
+        {
+            this.value = value;
+            this.keys = keys;
+            this.children = children;
+        }
+
+        /**
+         * Looks up the child for the segment between <code>start</code> and <code>end</code> without creating a
+         * substring. The hash is computed like {@link String#hashCode()}.
+         */
+        private Node child(final String path, final int start, final int end)
+        {
+            int hash = 0;
+            for (int i = start; i < end; i++)
+            {
+                hash = 31 * hash + path.charAt(i);
+            }
+
+            final int length = end - start;
+            final int mask = keys.length - 1;
+            for (int i = spread(hash) & mask; keys[i] != null; i = (i + 1) & mask)
+            {
+                final String key = keys[i];
+                if (key.length() == length && path.regionMatches(start, key, 0, length))
+                {
+                    return children[i];
+                }
+            }
+            return null;
+        }
+    }
+
+    private static final class Builder
+    {
+        private Object value;
+        private final Map<String, Builder> children = new HashMap<>();
+
+        private Node build()
+        {
+            if (children.isEmpty())
+            {
+                return new Node(value, null, null);
+            }
+
+            // At most half full, so that every probe sequence ends at an empty slot
+            final int capacity = Integer.highestOneBit(children.size() * 2 - 1) << 1;
+            final String[] keys = new String[capacity];
+            final Node[] nodes = new Node[capacity];
+            for (Map.Entry<String, Builder> entry : children.entrySet())
+            {
+                int i = spread(entry.getKey().hashCode()) & (capacity - 1);
+                while (keys[i] != null)
+                {
+                    i = (i + 1) & (capacity - 1);
+                }
+                keys[i] = entry.getKey();
+                nodes[i] = entry.getValue().build();
+            }
+            return new Node(value, keys, nodes);
+        }
+    }
+}
@@ -0,0 +1,280 @@
+package com.peregrine.sling.auth.header;
+
+/*-
+ * #%L
+ * peregrinecms-com-peregrine-sling-auth-header
+ * %%
+ * Copyright (C) 2020 headwire inc.
+ * %%
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+
+import org.apache.jackrabbit.oak.commons.json.JsopReader;
+import org.apache.jackrabbit.oak.commons.json.JsopTokenizer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * Streams users and their profiles from an export file, one record at a time. Two formats are supported, chosen by
+ * the file extension:
+ * <ul>
+ *     <li><code>.csv</code>: a header row naming the columns, followed by one user per row. Fields may be quoted with
+ *     double quotes, but may not span lines.</li>
+ *     <li>anything else: JSON Lines, one flat JSON object per line with string, number or boolean values.</li>
+ * </ul>
+ * The user id is read from the {@value #ID_FIELD} field, all other non-empty fields form the profile. Malformed
+ * records are logged and skipped. The file is closed once the last record was read.
+ */
+final class ProfileImportReader implements Iterator<HeaderCredentials>, Closeable
+{
+    private final Logger logger = LoggerFactory.getLogger(ProfileImportReader.class);
+
+    static final String ID_FIELD = "id";
+
+    private final Path file;
+    private final BufferedReader reader;
+    private final boolean csv;
+    private String[] columns;
+    private HeaderCredentials next;
+    private long lineNumber;
+    private long skipped;
+    private boolean closed;
+
+    private ProfileImportReader(final Path file, final BufferedReader reader, final boolean csv)
+    {
+        this.file = file;
+        this.reader = reader;
+        this.csv = csv;
+    }
+
+    static ProfileImportReader open(final Path file) throws IOException
+    {
+        final boolean csv = file.getFileName().toString().toLowerCase().endsWith(".csv");
+        return new ProfileImportReader(file, Files.newBufferedReader(file, StandardCharsets.UTF_8), csv);
+    }
+
+    @Override
+    public boolean hasNext()
+    {
+        if (next == null && !closed)
+        {
+            try
+            {
+                next = readNext();
+            } catch (IOException e)
+            {
+                close();
+                throw new UncheckedIOException("Error reading " + file + " at line " + lineNumber, e);
+            }
+        }
+        return next != null;
+    }
+
+    @Override
+    public HeaderCredentials next()
+    {
+        if (!hasNext())
+        {
+            throw new NoSuchElementException();
+        }
+        final HeaderCredentials credentials = next;
+        next = null;
+        return credentials;
+    }
+
+    /**
+     * @return The number of malformed records skipped so far.
+     */
+    long getSkippedCount()
+    {
+        return skipped;
+    }
+
+    @Override
+    public void close()
+    {
+        if (!closed)
+        {
+            closed = true;
+            try
+            {
+                reader.close();
+            } catch (IOException e)
+            {
+                logger.debug("Error closing {}", file, e);
+            }
+        }
+    }
+
+    private HeaderCredentials readNext() throws IOException
+    {
+        String line;
+        while ((line = reader.readLine()) != null)
+        {
+            lineNumber++;
+            if (line.trim().isEmpty())
+            {
+                continue;
+            }
+
+            try
+            {
+                if (csv && columns == null)
+                {
+                    columns = parseCsv(line).toArray(new String[0]);
+                    continue;
+                }
+
+                final Map<String, Object> profile = csv ? parseCsvRecord(line) : parseJson(line);
+                final Object userId = profile.remove(ID_FIELD);
+                if (userId == null || userId.toString().trim().isEmpty())
+                {
+                    throw new IllegalArgumentException("Missing " + ID_FIELD);
+                }
+                return new HeaderCredentials(userId.toString(), profile);
+            } catch (IllegalArgumentException e)
+            {
+                skipped++;
+                logger.warn("Skipping malformed record in {} at line {}: {}", file, lineNumber, e.getMessage());
+            }
+        }
+        close();
+        return null;
+    }
+
+    private Map<String, Object> parseCsvRecord(final String line)
+    {
+        final List<String> fields = parseCsv(line);
+        if (fields.size() > columns.length)
+        {
+            throw new IllegalArgumentException("Expected " + columns.length + " fields but got " + fields.size());
+        }
+
+        final Map<String, Object> profile = new HashMap<>();
+        for (int i = 0; i < fields.size(); i++)
+        {
+            if (!fields.get(i).isEmpty())
+            {
+                profile.put(columns[i], fields.get(i));
+            }
+        }
+        return profile;
+    }
+
+    private static List<String> parseCsv(final String line)
+    {
+        final List<String> fields = new ArrayList<>();
+        final StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++)
+        {
+            final char c = line.charAt(i);
+            if (quoted)
+            {
+                if (c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"')
+                {
+                    field.append('"');
+                    i++;
+                }
+                else if (c == '"')
+                {
+                    quoted = false;
+                }
+                else
+                {
+                    field.append(c);
+                }
+            }
+            else if (c == '"' && field.length() == 0)
+            {
+                quoted = true;
+            }
+            else if (c == ',')
+            {
+                fields.add(field.toString());
+                field.setLength(0);
+            }
+            else
+            {
+                field.append(c);
+            }
+        }
+        if (quoted)
+        {
+            throw new IllegalArgumentException("Unterminated quoted field");
+        }
+        fields.add(field.toString());
+        return fields;
+    }
+
+    private static Map<String, Object> parseJson(final String line)
+    {
+        final JsopTokenizer tokenizer = new JsopTokenizer(line);
+        final Map<String, Object> profile = new HashMap<>();
+        tokenizer.read('{');
+        if (!tokenizer.matches('}'))
+        {
+            do
+            {
+                final String name = tokenizer.readString();
+                tokenizer.read(':');
+                final String value = readJsonValue(tokenizer);
+                if (value != null && !value.isEmpty())
+                {
+                    profile.put(name, value);
+                }
+            } while (tokenizer.matches(','));
+            tokenizer.read('}');
+        }
+        tokenizer.read(JsopReader.END);
+        return profile;
+    }
+
+    private static String readJsonValue(final JsopTokenizer tokenizer)
+    {
+        switch (tokenizer.read())
+        {
+            case JsopReader.STRING:
+            case JsopReader.NUMBER:
+                return tokenizer.getToken();
+            case JsopReader.TRUE:
+                return "true";
+            case JsopReader.FALSE:
+                return "false";
+            case JsopReader.NULL:
+                return null;
+            default:
+                throw new IllegalArgumentException("Unsupported value: " + tokenizer.getToken());
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package com.peregrine.sling.auth.header;
+
+/*-
+ * #%L
+ * peregrinecms-com-peregrine-sling-auth-header
+ * %%
+ * Copyright (C) 2020 headwire inc.
+ * %%
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Base64;
+
+/**
+ * Issues and verifies HMAC-SHA256 signed re-auth tickets. A ticket binds a remote user and the fingerprint of its
+ * profile headers to an expiry time:
+ *
+ * <pre>base64url(userId) "." expiry "." profileFingerprint "." base64url(hmac)</pre>
+ *
+ * The signing key is derived from the shared secret, so all cluster nodes configured with the same secret accept each
+ * other's tickets, and changing the secret invalidates all tickets.
+ */
+final class ReauthTicket
+{
+    private static final String ALGORITHM = "HmacSHA256";
+    private static final char SEPARATOR = '.';
+
+    private static final Base64.Encoder ENCODER = Base64.getUrlEncoder().withoutPadding();
+    private static final Base64.Decoder DECODER = Base64.getUrlDecoder();
+
+    private final SecretKeySpec key;
+    private final long ttlMillis;
+    private final ThreadLocal<Mac> macs;
+
+    ReauthTicket(final String sharedSecret, final long ttlMillis)
+    {
+        this.key = new SecretKeySpec(("header-auth-ticket:" + sharedSecret).getBytes(StandardCharsets.UTF_8),
+                ALGORITHM);
+        this.ttlMillis = ttlMillis;
+        this.macs = ThreadLocal.withInitial(this::createMac);
+    }
+
+    /**
+     * @return A ticket for the user that expires after the configured TTL.
+     */
+    String issue(final String userId, final long profileFingerprint, final long now)
+    {
+        final String payload = ENCODER.encodeToString(userId.getBytes(StandardCharsets.UTF_8)) + SEPARATOR +
+                (now + ttlMillis) + SEPARATOR + Fingerprint.toHex(profileFingerprint);
+        return payload + SEPARATOR + ENCODER.encodeToString(sign(payload));
+    }
+
+    /**
+     * @return <code>true</code> if the ticket is well-formed, correctly signed, not expired and was issued for the
+     * given user and profile fingerprint.
+     */
+    boolean verify(final String ticket, final String userId, final long profileFingerprint, final long now)
+    {
+        if (ticket == null)
+        {
+            return false;
+        }
+
+        final int signatureStart = ticket.lastIndexOf(SEPARATOR);
+        final int fingerprintStart = signatureStart > 0 ? ticket.lastIndexOf(SEPARATOR, signatureStart - 1) : -1;
+        final int expiryStart = fingerprintStart > 0 ? ticket.lastIndexOf(SEPARATOR, fingerprintStart - 1) : -1;
+        if (expiryStart <= 0)
+        {
+            return false;
+        }
+
+        try
+        {
+            final String payload = ticket.substring(0, signatureStart);
+            final byte[] signature = DECODER.decode(ticket.substring(signatureStart + 1));
+            if (!MessageDigest.isEqual(sign(payload), signature))
+            {
+                return false;
+            }
+
+            final long expiry = Long.parseLong(ticket.substring(expiryStart + 1, fingerprintStart));
+            final String ticketUserId = new String(DECODER.decode(ticket.substring(0, expiryStart)),
+                    StandardCharsets.UTF_8);
+            return now < expiry && userId.equals(ticketUserId) &&
+                    Fingerprint.toHex(profileFingerprint).equals(ticket.substring(fingerprintStart + 1, signatureStart));
+        } catch (IllegalArgumentException e)
+        {
+            // Malformed base64 or expiry
+            return false;
+        }
+    }
+
+    long getTtlMillis()
+    {
+        return ttlMillis;
+    }
+
+    private byte[] sign(final String payload)
+    {
+        return macs.get().doFinal(payload.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private Mac createMac()
+    {
+        try
+        {
+            final Mac mac = Mac.getInstance(ALGORITHM);
+            mac.init(key);
+            return mac;
+        } catch (GeneralSecurityException e)
+        {
+            throw new IllegalStateException("Cannot create " + ALGORITHM, e);
+        }
+    }
+}
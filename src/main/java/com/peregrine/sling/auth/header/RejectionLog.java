@@ -0,0 +1,139 @@
+package com.peregrine.sling.auth.header;
+
+/*-
+ * #%L
+ * peregrinecms-com-peregrine-sling-auth-header
+ * %%
+ * Copyright (C) 2020 headwire inc.
+ * %%
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+
+import org.slf4j.Logger;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Rate-limited warnings for rejected requests. The first rejection after a quiet interval is logged right away;
+ * later ones are counted by reason and reported in a single summary with the next rejection after the interval, or
+ * on {@link #flush()}. A flood of bad requests thus costs one log line per interval instead of one per request.
+ */
+final class RejectionLog
+{
+    /**
+     * Why a request was rejected.
+     */
+    enum Reason
+    {
+        SECRET("invalid secret"),
+        USERNAME("invalid username"),
+        TOKEN("invalid token"),
+        THROTTLED("too many rejected requests from source");
+
+        private final String description;
+
+        Reason(final String description)
+        {
+            this.description = description;
+        }
+
+        @Override
+        public String toString()
+        {
+            return description;
+        }
+    }
+
+    private final Logger logger;
+    private final long intervalNanos;
+    private final LongAdder[] counts = new LongAdder[Reason.values().length];
+    private final AtomicLong nextReportAt;
+
+    /**
+     * @param logger The logger to write to.
+     * @param interval The minimum time between two warnings, or 0 to log every rejection.
+     */
+    RejectionLog(final Logger logger, final long interval, final TimeUnit unit)
+    {
+        this.logger = logger;
+        this.intervalNanos = unit.toNanos(interval);
+        this.nextReportAt = new AtomicLong(System.nanoTime());
+        for (int i = 0; i < counts.length; i++)
+        {
+            counts[i] = new LongAdder();
+        }
+    }
+
+    void record(final Reason reason, final String username, final String remoteAddress)
+    {
+        if (intervalNanos == 0)
+        {
+            logger.warn("Rejected request with {} for remote user: '{}' from: {}", reason, username, remoteAddress);
+            return;
+        }
+
+        counts[reason.ordinal()].increment();
+        final long now = System.nanoTime();
+        final long reportAt = nextReportAt.get();
+        if (now - reportAt >= 0 && nextReportAt.compareAndSet(reportAt, now + intervalNanos))
+        {
+            report(reason, username, remoteAddress);
+        }
+    }
+
+    /**
+     * Reports the rejections counted since the last warning, if any.
+     */
+    void flush()
+    {
+        report(null, null, null);
+    }
+
+    private void report(final Reason reason, final String username, final String remoteAddress)
+    {
+        long total = 0;
+        final StringBuilder summary = new StringBuilder();
+        for (Reason each : Reason.values())
+        {
+            final long count = counts[each.ordinal()].sumThenReset();
+            if (count > 0)
+            {
+                summary.append(summary.length() > 0 ? ", " : "").append(each).append(": ").append(count);
+                total += count;
+            }
+        }
+        if (total == 0)
+        {
+            return;
+        }
+
+        if (reason != null)
+        {
+            logger.warn("Rejected {} request(s) since the last report ({}). Latest: {} for remote user: '{}' from: {}. " +
+                    "This is either a configuration error or a malicious request", total, summary, reason, username,
+                    remoteAddress);
+        }
+        else
+        {
+            logger.warn("Rejected {} request(s) since the last report ({})", total, summary);
+        }
+    }
+}
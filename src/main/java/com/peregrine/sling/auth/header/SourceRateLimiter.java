@@ -0,0 +1,117 @@
+package com.peregrine.sling.auth.header;
+
+/*-
+ * #%L
+ * peregrinecms-com-peregrine-sling-auth-header
+ * %%
+ * Copyright (C) 2020 headwire inc.
+ * %%
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Per-source token buckets for rejected requests. Each rejection of a source takes a token from its bucket, which
+ * refills at a steady rate up to its burst size. A source with an empty bucket is limited: its requests are turned
+ * away before any header is processed. Valid requests take no tokens, so a source is only limited while it keeps
+ * sending bad requests.
+ * <p>
+ * A bucket is a single {@link AtomicLong} holding the time at which it will be full again (GCRA), so checks and
+ * updates never lock. The number of tracked sources is bounded; when the bound is reached, full buckets are dropped,
+ * and if that is not enough, all buckets are.
+ */
+final class SourceRateLimiter
+{
+    private final long refillNanos;
+    private final long burstNanos;
+    private final int maxSources;
+    private final ConcurrentHashMap<String, AtomicLong> buckets = new ConcurrentHashMap<>();
+
+    /**
+     * @param ratePerSecond Tokens refilled per second.
+     * @param burst Size of a bucket.
+     * @param maxSources Maximum number of tracked sources.
+     */
+    SourceRateLimiter(final double ratePerSecond, final int burst, final int maxSources)
+    {
+        if (ratePerSecond <= 0 || burst <= 0 || maxSources <= 0)
+        {
+            throw new IllegalArgumentException("Rate, burst and max sources must be greater than 0");
+        }
+        this.refillNanos = (long) (TimeUnit.SECONDS.toNanos(1) / ratePerSecond);
+        this.burstNanos = refillNanos * burst;
+        this.maxSources = maxSources;
+    }
+
+    /**
+     * @return <code>true</code> if the source has no tokens left.
+     */
+    boolean isLimited(final String source, final long now)
+    {
+        final AtomicLong bucket = buckets.get(source);
+        return bucket != null && bucket.get() - now > burstNanos - refillNanos;
+    }
+
+    /**
+     * Takes a token from the bucket of the source.
+     */
+    void charge(final String source, final long now)
+    {
+        AtomicLong bucket = buckets.get(source);
+        if (bucket == null)
+        {
+            if (buckets.size() >= maxSources)
+            {
+                prune(now);
+            }
+            bucket = buckets.computeIfAbsent(source, key -> new AtomicLong(now));
+        }
+
+        long fullAt;
+        do
+        {
+            fullAt = bucket.get();
+        } while (!bucket.compareAndSet(fullAt, Math.min(Math.max(fullAt, now) + refillNanos, now + burstNanos)));
+    }
+
+    int size()
+    {
+        return buckets.size();
+    }
+
+    private void prune(final long now)
+    {
+        final Iterator<AtomicLong> iterator = buckets.values().iterator();
+        while (iterator.hasNext())
+        {
+            if (iterator.next().get() - now <= 0)
+            {
+                iterator.remove();
+            }
+        }
+        if (buckets.size() >= maxSources)
+        {
+            buckets.clear();
+        }
+    }
+}
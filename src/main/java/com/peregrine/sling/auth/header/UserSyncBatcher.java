@@ -0,0 +1,272 @@
+package com.peregrine.sling.auth.header;
+
+/*-
+ * #%L
+ * peregrinecms-com-peregrine-sling-auth-header
+ * %%
+ * Copyright (C) 2020 headwire inc.
+ * %%
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Coalesces the syncs of new users into batches that are applied in a single commit. A single daemon thread waits for
+ * the first pending sync, then gathers more for up to the batch window or until the batch is full, and hands the
+ * batch to {@link UserSynchronizer#syncBatchInSystemSession(List)}. Login threads wait for the batch their sync was
+ * part of to be committed. Logins of a user that is already pending with the same profile wait for that entry instead
+ * of adding another one. When a user is pending with different profiles, the batch applies the last one.
+ */
+final class UserSyncBatcher implements Runnable
+{
+    private final Logger logger = LoggerFactory.getLogger(UserSyncBatcher.class);
+
+    private static final long NANOS_PER_MILLI = 1000000L;
+
+    private final int maxBatchSize;
+    private final long windowNanos;
+    private final LinkedBlockingQueue<Entry> queue;
+    private final ConcurrentHashMap<String, Entry> pending = new ConcurrentHashMap<>();
+    private final Thread thread;
+    private volatile boolean running = true;
+
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder batchedUsers = new LongAdder();
+    private final LongAdder splits = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+    private final LatencyTimer commitLatency = new LatencyTimer();
+    private final LongAccumulator maxBatchSizeSeen = new LongAccumulator(Long::max, 0);
+
+    UserSyncBatcher(final int maxBatchSize, final long windowMillis, final int queueSize)
+    {
+        this.maxBatchSize = maxBatchSize;
+        this.windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMillis);
+        this.queue = new LinkedBlockingQueue<>(queueSize);
+        this.thread = new Thread(this, "header-user-sync-batcher");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Adds a new user to the next batch.
+     *
+     * @return A future completed when the batch containing the user was committed, or <code>null</code> if the queue
+     * is full and the caller should sync the user on its own.
+     */
+    CompletableFuture<Void> submit(final UserSynchronizer synchronizer, final HeaderCredentials credentials,
+                                   final String profileFingerprint)
+    {
+        final Entry entry = new Entry(synchronizer, credentials, profileFingerprint);
+        final Entry existing = pending.putIfAbsent(credentials.getUserId(), entry);
+        if (existing != null)
+        {
+            if (Objects.equals(existing.profileFingerprint, profileFingerprint))
+            {
+                coalesced.increment();
+                return existing.result;
+            }
+            // A different profile is queued after the pending one and becomes the entry later logins wait for
+            if (running && queue.offer(entry))
+            {
+                pending.replace(credentials.getUserId(), existing, entry);
+                return entry.result;
+            }
+            return null;
+        }
+        if (running && queue.offer(entry))
+        {
+            return entry.result;
+        }
+        pending.remove(credentials.getUserId(), entry);
+        return null;
+    }
+
+    void close()
+    {
+        running = false;
+        thread.interrupt();
+        Entry entry;
+        while ((entry = queue.poll()) != null)
+        {
+            entry.result.completeExceptionally(new IllegalStateException("User sync batcher was closed"));
+        }
+        pending.clear();
+    }
+
+    @Override
+    public void run()
+    {
+        while (running)
+        {
+            try
+            {
+                final List<Entry> batch = nextBatch();
+                processBatch(batch);
+            } catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private List<Entry> nextBatch() throws InterruptedException
+    {
+        final List<Entry> batch = new ArrayList<>(maxBatchSize);
+        batch.add(queue.take());
+
+        final long deadline = System.nanoTime() + windowNanos;
+        while (batch.size() < maxBatchSize)
+        {
+            final long remaining = deadline - System.nanoTime();
+            if (remaining <= 0)
+            {
+                break;
+            }
+            final Entry entry = queue.poll(remaining, TimeUnit.NANOSECONDS);
+            if (entry == null)
+            {
+                break;
+            }
+            batch.add(entry);
+            queue.drainTo(batch, maxBatchSize - batch.size());
+        }
+        return batch;
+    }
+
+    private void processBatch(final List<Entry> batch)
+    {
+        final long start = System.nanoTime();
+        try
+        {
+            splits.add(batch.get(0).synchronizer.syncBatchInSystemSession(batch));
+        } catch (Exception e)
+        {
+            logger.error("Error syncing batch of {} users", batch.size(), e);
+            for (Entry entry : batch)
+            {
+                entry.result.completeExceptionally(e);
+            }
+        } finally
+        {
+            for (Entry entry : batch)
+            {
+                pending.remove(entry.credentials.getUserId(), entry);
+            }
+            final long latency = commitLatency.recordSince(start);
+            batches.increment();
+            batchedUsers.add(batch.size());
+            maxBatchSizeSeen.accumulate(batch.size());
+            logger.debug("Synced batch of {} users in {} ms", batch.size(), latency / NANOS_PER_MILLI);
+        }
+    }
+
+    int getQueueDepth()
+    {
+        return queue.size();
+    }
+
+    long getBatchCount()
+    {
+        return batches.sum();
+    }
+
+    long getBatchedUserCount()
+    {
+        return batchedUsers.sum();
+    }
+
+    /**
+     * @return The number of times a batch was split apart after a commit conflict.
+     */
+    long getSplitCount()
+    {
+        return splits.sum();
+    }
+
+    /**
+     * @return The number of logins that waited for a pending entry of the same user instead of adding their own.
+     */
+    long getCoalescedCount()
+    {
+        return coalesced.sum();
+    }
+
+    double getMeanBatchSize()
+    {
+        final long count = batches.sum();
+        return count == 0 ? 0 : batchedUsers.sum() / (double) count;
+    }
+
+    long getMaxBatchSize()
+    {
+        return maxBatchSizeSeen.get();
+    }
+
+    double getMeanCommitLatencyMillis()
+    {
+        return commitLatency.getMeanMillis();
+    }
+
+    double getMaxCommitLatencyMillis()
+    {
+        return commitLatency.getMaxMillis();
+    }
+
+    void resetStats()
+    {
+        batches.reset();
+        batchedUsers.reset();
+        splits.reset();
+        coalesced.reset();
+        maxBatchSizeSeen.reset();
+        commitLatency.reset();
+    }
+
+    /**
+     * A pending sync of a new user. The result is completed by {@link UserSynchronizer} once the user was committed.
+     */
+    static final class Entry
+    {
+        final UserSynchronizer synchronizer;
+        final HeaderCredentials credentials;
+        final String profileFingerprint;
+        final CompletableFuture<Void> result = new CompletableFuture<>();
+
+        private Entry(final UserSynchronizer synchronizer, final HeaderCredentials credentials,
+                      final String profileFingerprint)
+        {
+            this.synchronizer = synchronizer;
+            this.credentials = credentials;
+            this.profileFingerprint = profileFingerprint;
+        }
+    }
+}
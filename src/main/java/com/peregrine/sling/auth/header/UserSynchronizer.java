@@ -0,0 +1,873 @@
+package com.peregrine.sling.auth.header;
+
+/*-
+ * #%L
+ * peregrinecms-com-peregrine-sling-auth-header
+ * %%
+ * Copyright (C) 2020 headwire inc.
+ * %%
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+
+import org.apache.jackrabbit.api.security.user.Authorizable;
+import org.apache.jackrabbit.api.security.user.Group;
+import org.apache.jackrabbit.api.security.user.UserManager;
+import org.apache.jackrabbit.oak.api.CommitFailedException;
+import org.apache.jackrabbit.oak.api.ContentRepository;
+import org.apache.jackrabbit.oak.api.ContentSession;
+import org.apache.jackrabbit.oak.api.Root;
+import org.apache.jackrabbit.oak.namepath.NamePathMapper;
+import org.apache.jackrabbit.oak.plugins.value.jcr.ValueFactoryImpl;
+import org.apache.jackrabbit.oak.spi.security.SecurityProvider;
+import org.apache.jackrabbit.oak.spi.security.authentication.SystemSubject;
+import org.apache.jackrabbit.oak.spi.security.authentication.external.*;
+import org.apache.jackrabbit.oak.spi.security.authentication.external.basic.DefaultSyncContext;
+import org.apache.jackrabbit.oak.spi.security.user.UserConfiguration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.jcr.RepositoryException;
+import javax.jcr.Value;
+import javax.jcr.ValueFactory;
+import javax.security.auth.Subject;
+import java.security.PrivilegedActionException;
+import java.security.PrivilegedExceptionAction;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * Synchronizes a header authenticated user into the repository using the configured {@link SyncHandler}. This is
+ * used by the {@link HeaderExternalLoginModule} during login and by the {@link HeaderUserSyncService} when the sync
+ * runs in the background.
+ */
+final class UserSynchronizer
+{
+    private final Logger logger = LoggerFactory.getLogger(UserSynchronizer.class);
+
+    static final int MAX_SYNC_ATTEMPTS = 3;
+
+    /** Separates the header name from its value in the profile snapshot. Header names cannot contain it. */
+    private static final char SNAPSHOT_SEPARATOR = '=';
+
+    private final ExternalIdentityProvider externalIdentityProvider;
+    private final SyncHandler syncHandler;
+    private final HeaderUserSyncService syncService;
+    private final ContentRepository contentRepository;
+    private final SecurityProvider securityProvider;
+
+    /**
+     * @param syncService The sync service or <code>null</code> if it is not available.
+     * @param contentRepository Repository used for background syncs, may be <code>null</code> if those are not needed.
+     * @param securityProvider Security provider used for background syncs, may be <code>null</code>.
+     */
+    UserSynchronizer(final ExternalIdentityProvider externalIdentityProvider, final SyncHandler syncHandler,
+                     final HeaderUserSyncService syncService, final ContentRepository contentRepository,
+                     final SecurityProvider securityProvider)
+    {
+        this.externalIdentityProvider = externalIdentityProvider;
+        this.syncHandler = syncHandler;
+        this.syncService = syncService;
+        this.contentRepository = contentRepository;
+        this.securityProvider = securityProvider;
+    }
+
+    /**
+     * Creates the user in the repository if it does not exist yet. When a profile fingerprint is given, an existing
+     * user is resynced if the fingerprint stored on it differs, and the new fingerprint is stored with the sync.
+     *
+     * An existing user does not need to be resynced before the login can complete, so when <code>allowAsync</code>
+     * is set the resync is handed to the sync service if it accepts it. New users must exist before the
+     * pre-authenticated login can complete, so they are either added to a batch that is committed while the caller
+     * waits, without holding a sync lock, or synced immediately.
+     *
+     * @param root
+     * @param userManager
+     * @param credentials
+     * @param profileFingerprint The fingerprint of the incoming profile or <code>null</code> if disabled.
+     * Only one thread per user (or rather per lock stripe) syncs at a time. A thread that had to wait for another
+     * thread syncing the same user reuses its result if that thread synced the same profile.
+     *
+     * @param allowAsync <code>true</code> if the sync may be handed to the sync service.
+     */
+    void sync(final Root root, final UserManager userManager, final HeaderCredentials credentials,
+              final String profileFingerprint, final boolean allowAsync)
+            throws RepositoryException, ExternalIdentityException, SyncException
+    {
+        if (syncService == null)
+        {
+            syncLocked(root, userManager, credentials, profileFingerprint, allowAsync);
+            return;
+        }
+
+        final long start = System.nanoTime();
+        try
+        {
+            syncStriped(root, userManager, credentials, profileFingerprint, allowAsync);
+        } finally
+        {
+            syncService.getSyncTimer().recordSince(start);
+        }
+    }
+
+    private void syncStriped(final Root root, final UserManager userManager, final HeaderCredentials credentials,
+                             final String profileFingerprint, final boolean allowAsync)
+            throws RepositoryException, ExternalIdentityException, SyncException
+    {
+        final String userId = credentials.getUserId();
+        if (allowAsync && syncService.isBatchEnabled() && !syncService.isSynced(userId, profileFingerprint) &&
+                syncNewUserInBatch(root, userManager, credentials, profileFingerprint))
+        {
+            return;
+        }
+
+        final Lock lock = syncService.getSyncLock(userId);
+        if (lock == null)
+        {
+            syncLocked(root, userManager, credentials, profileFingerprint, allowAsync);
+            return;
+        }
+
+        if (!lock.tryLock())
+        {
+            syncService.recordContendedSync();
+            lock.lock();
+        }
+        try
+        {
+            if (syncService.isSynced(userId, profileFingerprint))
+            {
+                // Another thread synced the user while this one was waiting
+                syncService.recordPiggybackedSync();
+                logger.debug("User '{}' was synced by another thread. Skipping user sync.", userId);
+                return;
+            }
+            // Make changes committed by other threads visible
+            root.refresh();
+            syncLocked(root, userManager, credentials, profileFingerprint, allowAsync);
+        } finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Adds a new user to the next batch and waits for it to be committed. This runs before the stripe lock is taken,
+     * so a login waiting for its batch never holds up the logins of unrelated users on the same stripe. Concurrent
+     * logins of the same new user share one batch entry. In cluster mode, the user is only batched by the node that
+     * claims its lease; the other nodes wait for it here.
+     *
+     * @return <code>true</code> if the user was committed in a batch and <code>false</code> if it already exists, the
+     * lease is held by another node or the batch did not complete, in which case the caller syncs the user itself.
+     */
+    private boolean syncNewUserInBatch(final Root root, final UserManager userManager,
+                                       final HeaderCredentials credentials, final String profileFingerprint)
+            throws RepositoryException
+    {
+        final String userId = credentials.getUserId();
+        if (syncHandler.findIdentity(userManager, userId) != null)
+        {
+            return false;
+        }
+
+        final ClusterSyncLease clusterLease = syncService.getClusterSyncLease();
+        if (clusterLease != null && !clusterLease.claim(root, userId))
+        {
+            // Wait for the other node outside the stripe lock; the caller then syncs the user as it finds it
+            clusterLease.awaitRelease(root, userId, () -> exists(userManager, userId));
+            return false;
+        }
+        try
+        {
+            if (syncService.syncInBatch(this, credentials, profileFingerprint))
+            {
+                logger.debug("Synced user: '{}' in batch", userId);
+                return true;
+            }
+            // The batch may have partially succeeded in the meantime
+            root.refresh();
+            return false;
+        } finally
+        {
+            if (clusterLease != null)
+            {
+                clusterLease.release(root, userId);
+            }
+        }
+    }
+
+    /**
+     * Syncs the user. In cluster mode, a new user is only synced by the cluster node that claims its lease; the other
+     * nodes wait for it and then carry on with the user as they find it.
+     */
+    private void syncLocked(final Root root, final UserManager userManager, final HeaderCredentials credentials,
+                            final String profileFingerprint, final boolean allowAsync)
+            throws RepositoryException, ExternalIdentityException, SyncException
+    {
+        final String userId = credentials.getUserId();
+        SyncedIdentity syncedIdentity = syncHandler.findIdentity(userManager, userId);
+        final ClusterSyncLease clusterLease = syncService != null ? syncService.getClusterSyncLease() : null;
+        if (syncedIdentity != null || clusterLease == null)
+        {
+            syncIdentity(root, userManager, credentials, profileFingerprint, allowAsync, syncedIdentity);
+            return;
+        }
+
+        if (!clusterLease.claim(root, userId))
+        {
+            // If the other node did not sync the user in time, it is synced locally
+            final boolean synced = clusterLease.awaitRelease(root, userId, () -> exists(userManager, userId));
+            syncedIdentity = syncHandler.findIdentity(userManager, userId);
+            logger.debug("Sync lease of user: '{}' is held by another cluster node. Synced by it: {}. Found identity: "
+                    + "'{}'", userId, synced, syncedIdentity);
+            syncIdentity(root, userManager, credentials, profileFingerprint, allowAsync, syncedIdentity);
+            return;
+        }
+
+        try
+        {
+            syncIdentity(root, userManager, credentials, profileFingerprint, allowAsync, null);
+        } finally
+        {
+            clusterLease.release(root, userId);
+        }
+    }
+
+    private static boolean exists(final UserManager userManager, final String userId)
+    {
+        try
+        {
+            return userManager.getAuthorizable(userId) != null;
+        } catch (RepositoryException e)
+        {
+            return false;
+        }
+    }
+
+    private void syncIdentity(final Root root, final UserManager userManager, final HeaderCredentials credentials,
+                              final String profileFingerprint, final boolean allowAsync,
+                              final SyncedIdentity syncedIdentity)
+            throws RepositoryException, ExternalIdentityException, SyncException
+    {
+        final String userId = credentials.getUserId();
+        if (syncedIdentity != null)
+        {
+            if (!isProfileChanged(userManager, syncedIdentity, profileFingerprint))
+            {
+                logger.debug("Found identity: '{}' for user: '{}'", syncedIdentity, userId);
+                markSynced(userManager, userId, profileFingerprint);
+                return;
+            }
+
+            if (allowAsync && syncService != null && syncService.submit(this, credentials, profileFingerprint))
+            {
+                logger.debug("Profile changed for identity: '{}'. Queued resync of user: '{}'", syncedIdentity, userId);
+                return;
+            }
+            logger.debug("Profile changed for identity: '{}'. Resyncing user: '{}'", syncedIdentity, userId);
+        }
+
+        // Only now is the profile of the credentials materialized
+        final ExternalUser externalUser = ((HeaderExternalIdentityProvider) externalIdentityProvider).getUser(credentials);
+        int numAttempt = 0;
+        while (numAttempt++ < MAX_SYNC_ATTEMPTS)
+        {
+            SyncContext context = null;
+            long commitStart = System.nanoTime();
+            try
+            {
+                ValueFactory valueFactory = new ValueFactoryImpl(root, NamePathMapper.DEFAULT);
+                context = syncHandler.createContext(externalIdentityProvider, userManager, valueFactory);
+                // An existing user is only synced again because its profile changed, so bypass the
+                // expiration time of the sync handler.
+                context.setForceUserSync(syncedIdentity != null);
+                // Note: The SyncContext will only create a user in the repository if you use the
+                // DefaultSyncContext.sync(ExternalIdentity) method. It will NOT create a user if use
+                // the DefaultSyncContext.sync(String) method.
+                SyncResult syncResult = context.sync(externalUser);
+                logger.debug("Synced user: '{}' wth status: '{}'", externalUser.getId(), syncResult.getStatus());
+
+                syncGroups(userManager, valueFactory, context, credentials);
+                storeProfile(userManager, valueFactory, credentials, profileFingerprint);
+                commitStart = System.nanoTime();
+                root.commit();
+                final long commitNanos = System.nanoTime() - commitStart;
+                recordSyncResult(syncResult.getStatus());
+                final HeaderEventJournal journal = getEventJournal();
+                if (journal != null)
+                {
+                    journal.recordSync(userId, syncResult.getStatus().name(), numAttempt, commitNanos);
+                }
+                markSynced(userManager, userId, profileFingerprint);
+                return;
+            } catch (CommitFailedException e)
+            {
+                logger.error("Error syncing user: '{}'", userId, e);
+                if (syncService != null)
+                {
+                    syncService.recordCommitRetry();
+                }
+                final HeaderEventJournal journal = getEventJournal();
+                if (journal != null)
+                {
+                    journal.recordRetry(userId, numAttempt, System.nanoTime() - commitStart, e);
+                }
+                root.refresh();
+            } finally
+            {
+                if (context != null)
+                {
+                    context.close();
+                }
+            }
+        }
+        throw new SyncException("User synchronization failed during commit after " + MAX_SYNC_ATTEMPTS + " attempts");
+    }
+
+    /**
+     * Syncs the user in a new system session. This is used for syncs that run outside of a login.
+     */
+    void syncInSystemSession(final HeaderCredentials credentials, final String profileFingerprint) throws Exception
+    {
+        if (contentRepository == null || securityProvider == null)
+        {
+            throw new SyncException("Cannot synchronize user outside of a login. No content repository available.");
+        }
+
+        final ContentSession session = openSystemSession();
+        try
+        {
+            final Root root = session.getLatestRoot();
+            final UserManager userManager = securityProvider.getConfiguration(UserConfiguration.class)
+                    .getUserManager(root, NamePathMapper.DEFAULT);
+            sync(root, userManager, credentials, profileFingerprint, false);
+        } finally
+        {
+            session.close();
+        }
+    }
+
+    /**
+     * Syncs a batch of new users in a new system session and completes the result of each entry.
+     *
+     * @return The number of times the batch had to be split apart after a failed commit.
+     */
+    int syncBatchInSystemSession(final List<UserSyncBatcher.Entry> batch) throws Exception
+    {
+        if (contentRepository == null || securityProvider == null)
+        {
+            throw new SyncException("Cannot synchronize users outside of a login. No content repository available.");
+        }
+
+        final ContentSession session = openSystemSession();
+        try
+        {
+            final Root root = session.getLatestRoot();
+            final UserManager userManager = securityProvider.getConfiguration(UserConfiguration.class)
+                    .getUserManager(root, NamePathMapper.DEFAULT);
+            return syncBatch(root, userManager, batch);
+        } finally
+        {
+            session.close();
+        }
+    }
+
+    /**
+     * Syncs all users of the batch and commits them at once. If the commit fails, the batch is split in half and each
+     * half is retried on its own until a failing user is isolated. The result of that user is completed exceptionally
+     * so its login can fall back to a regular sync.
+     */
+    private int syncBatch(final Root root, final UserManager userManager, final List<UserSyncBatcher.Entry> batch)
+    {
+        // Entries are queued in login order, so the last entry of a user carries its newest profile
+        final Map<String, UserSyncBatcher.Entry> latest = new LinkedHashMap<>();
+        for (UserSyncBatcher.Entry entry : batch)
+        {
+            latest.put(entry.credentials.getUserId(), entry);
+        }
+
+        SyncContext context = null;
+        try
+        {
+            ValueFactory valueFactory = new ValueFactoryImpl(root, NamePathMapper.DEFAULT);
+            context = syncHandler.createContext(externalIdentityProvider, userManager, valueFactory);
+            final List<SyncResult.Status> statuses = new ArrayList<>(latest.size());
+            for (UserSyncBatcher.Entry entry : latest.values())
+            {
+                SyncResult syncResult = context.sync(
+                        ((HeaderExternalIdentityProvider) externalIdentityProvider).getUser(entry.credentials));
+                logger.debug("Synced user: '{}' wth status: '{}'", entry.credentials.getUserId(),
+                        syncResult.getStatus());
+                statuses.add(syncResult.getStatus());
+                syncGroups(userManager, valueFactory, context, entry.credentials);
+                storeProfile(userManager, valueFactory, entry.credentials, entry.profileFingerprint);
+            }
+            final long commitStart = System.nanoTime();
+            root.commit();
+            final long commitNanos = System.nanoTime() - commitStart;
+            statuses.forEach(this::recordSyncResult);
+            journalSyncResults(new ArrayList<>(latest.keySet()), statuses, commitNanos);
+        } catch (Exception e)
+        {
+            root.refresh();
+            if (batch.size() == 1)
+            {
+                logger.debug("Error syncing user: '{}' in batch", batch.get(0).credentials.getUserId(), e);
+                batch.get(0).result.completeExceptionally(e);
+                return 0;
+            }
+
+            logger.debug("Error committing batch of {} users. Splitting batch.", batch.size(), e);
+            final int half = batch.size() / 2;
+            return 1 + syncBatch(root, userManager, batch.subList(0, half))
+                    + syncBatch(root, userManager, batch.subList(half, batch.size()));
+        } finally
+        {
+            if (context != null)
+            {
+                context.close();
+            }
+        }
+
+        // Only the profiles that were written are recorded, earlier entries of a user complete with the newest profile
+        for (UserSyncBatcher.Entry entry : latest.values())
+        {
+            try
+            {
+                markSynced(userManager, entry.credentials.getUserId(), entry.profileFingerprint);
+            } catch (RepositoryException e)
+            {
+                logger.debug("Could not record user: '{}' as synced", entry.credentials.getUserId(), e);
+            }
+        }
+        for (UserSyncBatcher.Entry entry : batch)
+        {
+            entry.result.complete(null);
+        }
+        return 0;
+    }
+
+    /**
+     * Resyncs existing users from their profile snapshot in a new system session. Users without a profile snapshot
+     * are skipped.
+     *
+     * @return The number of users that were resynced.
+     * @see #syncAll(Root, UserManager, List)
+     */
+    int resyncInSystemSession(final List<String> userIds) throws Exception
+    {
+        if (contentRepository == null || securityProvider == null)
+        {
+            throw new SyncException("Cannot synchronize users outside of a login. No content repository available.");
+        }
+
+        final ContentSession session = openSystemSession();
+        try
+        {
+            final Root root = session.getLatestRoot();
+            final UserManager userManager = securityProvider.getConfiguration(UserConfiguration.class)
+                    .getUserManager(root, NamePathMapper.DEFAULT);
+            final List<HeaderCredentials> users = new ArrayList<>(userIds.size());
+            for (String userId : userIds)
+            {
+                final Authorizable authorizable = userManager.getAuthorizable(userId);
+                final Map<String, Object> profile = authorizable != null ? readProfileSnapshot(authorizable) : null;
+                if (profile != null)
+                {
+                    users.add(new HeaderCredentials(userId, profile, readGroupsSnapshot(authorizable)));
+                }
+                else
+                {
+                    logger.debug("No profile snapshot for user: '{}'. Skipping resync.", userId);
+                }
+            }
+            return syncAll(root, userManager, users);
+        } finally
+        {
+            session.close();
+        }
+    }
+
+    /**
+     * Syncs the given users in a new system session, creating new users and updating existing ones.
+     *
+     * @return The number of users that were synced.
+     * @see #syncAll(Root, UserManager, List)
+     */
+    int syncAllInSystemSession(final List<HeaderCredentials> users) throws Exception
+    {
+        if (contentRepository == null || securityProvider == null)
+        {
+            throw new SyncException("Cannot synchronize users outside of a login. No content repository available.");
+        }
+
+        final ContentSession session = openSystemSession();
+        try
+        {
+            final Root root = session.getLatestRoot();
+            final UserManager userManager = securityProvider.getConfiguration(UserConfiguration.class)
+                    .getUserManager(root, NamePathMapper.DEFAULT);
+            return syncAll(root, userManager, users);
+        } finally
+        {
+            session.close();
+        }
+    }
+
+    /**
+     * Force syncs all users and commits them at once. If the commit fails, the users are split in half and retried
+     * until the failing user is isolated and skipped.
+     */
+    private int syncAll(final Root root, final UserManager userManager, final List<HeaderCredentials> users)
+    {
+        if (users.isEmpty())
+        {
+            return 0;
+        }
+
+        SyncContext context = null;
+        try
+        {
+            ValueFactory valueFactory = new ValueFactoryImpl(root, NamePathMapper.DEFAULT);
+            context = syncHandler.createContext(externalIdentityProvider, userManager, valueFactory);
+            context.setForceUserSync(true);
+            final List<SyncResult.Status> statuses = new ArrayList<>(users.size());
+            final List<String> userIds = new ArrayList<>(users.size());
+            for (HeaderCredentials credentials : users)
+            {
+                SyncResult syncResult = context.sync(
+                        ((HeaderExternalIdentityProvider) externalIdentityProvider).getUser(credentials));
+                logger.debug("Synced user: '{}' wth status: '{}'", credentials.getUserId(), syncResult.getStatus());
+                statuses.add(syncResult.getStatus());
+                userIds.add(credentials.getUserId());
+                syncGroups(userManager, valueFactory, context, credentials);
+                storeProfile(userManager, valueFactory, credentials, getProfileFingerprint(userManager, credentials));
+            }
+            final long commitStart = System.nanoTime();
+            root.commit();
+            final long commitNanos = System.nanoTime() - commitStart;
+            statuses.forEach(this::recordSyncResult);
+            journalSyncResults(userIds, statuses, commitNanos);
+            return statuses.size();
+        } catch (Exception e)
+        {
+            root.refresh();
+            if (users.size() == 1)
+            {
+                logger.warn("Error syncing user: '{}'", users.get(0).getUserId(), e);
+                return 0;
+            }
+
+            logger.debug("Error committing {} users. Splitting users.", users.size(), e);
+            final int half = users.size() / 2;
+            return syncAll(root, userManager, users.subList(0, half))
+                    + syncAll(root, userManager, users.subList(half, users.size()));
+        } finally
+        {
+            if (context != null)
+            {
+                context.close();
+            }
+        }
+    }
+
+    private ContentSession openSystemSession() throws PrivilegedActionException
+    {
+        return Subject.doAs(SystemSubject.INSTANCE,
+                (PrivilegedExceptionAction<ContentSession>) () -> contentRepository.login(null, null));
+    }
+
+    /**
+     * Records the user as synced so that subsequent logins on this node can skip the user sync.
+     */
+    private void markSynced(final UserManager userManager, final String userId, final String profileFingerprint)
+            throws RepositoryException
+    {
+        if (syncService != null)
+        {
+            Authorizable authorizable = userManager.getAuthorizable(userId);
+            if (authorizable != null)
+            {
+                syncService.markSynced(userId, authorizable.getPath(), profileFingerprint);
+            }
+        }
+    }
+
+    private void recordSyncResult(final SyncResult.Status status)
+    {
+        if (syncService != null)
+        {
+            syncService.recordSyncResult(status);
+        }
+    }
+
+    /**
+     * Records the results of users synced in one commit in the event journal, if there is one.
+     */
+    private void journalSyncResults(final List<String> userIds, final List<SyncResult.Status> statuses,
+                                    final long commitNanos)
+    {
+        final HeaderEventJournal journal = getEventJournal();
+        if (journal != null)
+        {
+            for (int i = 0; i < userIds.size(); i++)
+            {
+                journal.recordSync(userIds.get(i), statuses.get(i).name(), 1, commitNanos);
+            }
+        }
+    }
+
+    private HeaderEventJournal getEventJournal()
+    {
+        return syncService != null ? syncService.getEventJournal() : null;
+    }
+
+    /**
+     * Determines if an existing user, synced by this identity provider, was synced with a different profile.
+     *
+     * @return <code>true</code> if the stored profile fingerprint differs from the given one and <code>false</code>
+     * otherwise or if profile fingerprints are disabled.
+     */
+    private boolean isProfileChanged(final UserManager userManager, final SyncedIdentity syncedIdentity,
+                                     final String profileFingerprint) throws RepositoryException
+    {
+        final ExternalIdentityRef externalIdRef = syncedIdentity.getExternalIdRef();
+        if (profileFingerprint == null || externalIdRef == null ||
+                !HeaderExternalIdentityProvider.NAME.equals(externalIdRef.getProviderName()))
+        {
+            return false;
+        }
+
+        final Authorizable authorizable = userManager.getAuthorizable(syncedIdentity.getId());
+        if (authorizable == null)
+        {
+            return false;
+        }
+
+        final Value[] values = authorizable.getProperty(HeaderUserSyncService.PROFILE_FINGERPRINT_PROPERTY);
+        return values == null || values.length != 1 || !profileFingerprint.equals(values[0].getString());
+    }
+
+    /**
+     * Makes the user a member of exactly the groups of the credentials, among the groups of this identity provider.
+     * Only the difference to the stored membership is written: the user is removed from groups it left and added to
+     * groups it joined, creating them if needed. Nothing is read or written when the groups fingerprint stored on the
+     * user matches. Memberships in groups of other providers or in local groups are never changed.
+     */
+    private void syncGroups(final UserManager userManager, final ValueFactory valueFactory, final SyncContext context,
+                            final HeaderCredentials credentials)
+            throws RepositoryException, ExternalIdentityException, SyncException
+    {
+        final Set<String> groupIds = credentials.getGroups();
+        if (groupIds == null)
+        {
+            return;
+        }
+
+        final Authorizable user = userManager.getAuthorizable(credentials.getUserId());
+        if (user == null)
+        {
+            return;
+        }
+
+        final String fingerprint = Fingerprint.toHex(
+                Fingerprint.of(HeaderUserSyncService.GROUPS_FINGERPRINT_NAME, groupIds));
+        final Value[] storedFingerprint = user.getProperty(HeaderUserSyncService.GROUPS_FINGERPRINT_PROPERTY);
+        if (storedFingerprint != null && storedFingerprint.length == 1 &&
+                fingerprint.equals(storedFingerprint[0].getString()))
+        {
+            return;
+        }
+
+        final Set<String> joined = new HashSet<>(groupIds);
+        int left = 0;
+        final Iterator<Group> memberOf = user.declaredMemberOf();
+        while (memberOf.hasNext())
+        {
+            final Group group = memberOf.next();
+            if (isHeaderGroup(group) && !joined.remove(group.getID()))
+            {
+                group.removeMember(user);
+                left++;
+            }
+        }
+
+        for (String groupId : joined)
+        {
+            Authorizable group = userManager.getAuthorizable(groupId);
+            if (group == null)
+            {
+                context.sync(externalIdentityProvider.getGroup(groupId));
+                group = userManager.getAuthorizable(groupId);
+            }
+            if (group != null && group.isGroup() && isHeaderGroup(group))
+            {
+                ((Group) group).addMember(user);
+            }
+            else
+            {
+                logger.warn("Not adding user: '{}' to '{}'. It is not a group of this identity provider.",
+                        credentials.getUserId(), groupId);
+            }
+        }
+
+        user.setProperty(HeaderUserSyncService.GROUPS_FINGERPRINT_PROPERTY, valueFactory.createValue(fingerprint));
+        logger.debug("Synced groups of user: '{}'. Joined {}, left {}.", credentials.getUserId(), joined.size(), left);
+    }
+
+    /**
+     * @return <code>true</code> if the authorizable was synced from this identity provider.
+     */
+    private static boolean isHeaderGroup(final Authorizable group) throws RepositoryException
+    {
+        final Value[] values = group.getProperty(DefaultSyncContext.REP_EXTERNAL_ID);
+        if (values == null || values.length != 1)
+        {
+            return false;
+        }
+        final ExternalIdentityRef ref = ExternalIdentityRef.fromString(values[0].getString());
+        return HeaderExternalIdentityProvider.NAME.equals(ref.getProviderName());
+    }
+
+    /**
+     * @return The profile fingerprint to store for the credentials. If they do not carry the groups of the user, the
+     * groups component is taken from the stored groups fingerprint, since the group memberships are left unchanged.
+     */
+    private String getProfileFingerprint(final UserManager userManager, final HeaderCredentials credentials)
+            throws RepositoryException
+    {
+        if (syncService == null)
+        {
+            return null;
+        }
+        if (credentials.getGroups() != null)
+        {
+            return syncService.getProfileFingerprint(credentials);
+        }
+
+        final Authorizable authorizable = userManager.getAuthorizable(credentials.getUserId());
+        final Value[] groupsFingerprint = authorizable != null
+                ? authorizable.getProperty(HeaderUserSyncService.GROUPS_FINGERPRINT_PROPERTY) : null;
+        return syncService.getProfileFingerprint(credentials,
+                groupsFingerprint != null && groupsFingerprint.length == 1
+                        ? Fingerprint.fromHex(groupsFingerprint[0].getString()) : Fingerprint.EMPTY);
+    }
+
+    /**
+     * Stores the profile fingerprint and, if enabled, the profile snapshot on the synced user. The groups are stored
+     * with the snapshot only if the credentials carry them.
+     */
+    private void storeProfile(final UserManager userManager, final ValueFactory valueFactory,
+                              final HeaderCredentials credentials, final String profileFingerprint)
+            throws RepositoryException
+    {
+        final boolean storeSnapshot = syncService != null && syncService.isProfileSnapshotEnabled();
+        if (profileFingerprint == null && !storeSnapshot)
+        {
+            return;
+        }
+
+        final Authorizable authorizable = userManager.getAuthorizable(credentials.getUserId());
+        if (authorizable == null)
+        {
+            return;
+        }
+
+        if (profileFingerprint != null)
+        {
+            authorizable.setProperty(HeaderUserSyncService.PROFILE_FINGERPRINT_PROPERTY,
+                    valueFactory.createValue(profileFingerprint));
+        }
+        if (storeSnapshot)
+        {
+            final List<Value> values = new ArrayList<>();
+            for (Map.Entry<String, ?> entry : credentials.getProfile().entrySet())
+            {
+                values.add(valueFactory.createValue(entry.getKey() + SNAPSHOT_SEPARATOR + entry.getValue()));
+            }
+            authorizable.setProperty(HeaderUserSyncService.PROFILE_SNAPSHOT_PROPERTY, values.toArray(new Value[0]));
+
+            final Set<String> groupIds = credentials.getGroups();
+            if (groupIds != null)
+            {
+                final Value[] groups = new Value[groupIds.size()];
+                int i = 0;
+                for (String groupId : groupIds)
+                {
+                    groups[i++] = valueFactory.createValue(groupId);
+                }
+                authorizable.setProperty(HeaderUserSyncService.GROUPS_SNAPSHOT_PROPERTY, groups);
+            }
+        }
+    }
+
+    /**
+     * Reads the profile snapshot stored by {@link #storeProfile}.
+     *
+     * @return The stored profile or <code>null</code> if the user has no snapshot.
+     */
+    static Map<String, Object> readProfileSnapshot(final Authorizable authorizable) throws RepositoryException
+    {
+        final Value[] values = authorizable.getProperty(HeaderUserSyncService.PROFILE_SNAPSHOT_PROPERTY);
+        if (values == null)
+        {
+            return null;
+        }
+
+        final Map<String, Object> profile = new HashMap<>();
+        for (Value value : values)
+        {
+            final String entry = value.getString();
+            final int separator = entry.indexOf(SNAPSHOT_SEPARATOR);
+            if (separator > 0)
+            {
+                profile.put(entry.substring(0, separator), entry.substring(separator + 1));
+            }
+        }
+        return profile;
+    }
+
+    /**
+     * Reads the groups stored with the profile snapshot by {@link #storeProfile}.
+     *
+     * @return The stored groups or <code>null</code> if the user has none, in which case the group memberships are
+     * left unchanged by a resync.
+     */
+    static Set<String> readGroupsSnapshot(final Authorizable authorizable) throws RepositoryException
+    {
+        final Value[] values = authorizable.getProperty(HeaderUserSyncService.GROUPS_SNAPSHOT_PROPERTY);
+        if (values == null)
+        {
+            return null;
+        }
+
+        final Set<String> groupIds = new HashSet<>();
+        for (Value value : values)
+        {
+            groupIds.add(value.getString());
+        }
+        return groupIds;
+    }
+}
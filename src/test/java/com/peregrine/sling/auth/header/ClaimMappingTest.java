@@ -0,0 +1,79 @@
+package com.peregrine.sling.auth.header;
+
+/*-
+ * #%L
+ * peregrinecms-com-peregrine-sling-auth-header
+ * %%
+ * Copyright (C) 2020 headwire inc.
+ * %%
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+
+
+import org.junit.Test;
+
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ClaimMappingTest
+{
+    private final ClaimMapping mapping = ClaimMapping.compile(new String[] {
+            "updated=OIDC_CLAIM_updated_at;type=date",
+            "email=OIDC_CLAIM_email"
+    }, "", false, 0);
+
+    @Test
+    public void datesAreParsedFromEpochSecondsAndIsoDateTimes()
+    {
+        final Calendar epoch = (Calendar) mapping.apply(profile("1600000000")).get("updated");
+        assertEquals(1600000000000L, epoch.getTimeInMillis());
+
+        final Calendar iso = (Calendar) mapping.apply(profile("2020-09-13T12:26:40Z")).get("updated");
+        assertEquals(1600000000000L, iso.getTimeInMillis());
+    }
+
+    @Test
+    public void datesOutOfRangeAreLeftOut()
+    {
+        final Map<String, ?> properties = mapping.apply(profile("99999999999999999"));
+        assertFalse(properties.containsKey("updated"));
+        assertEquals("user@example.com", properties.get("email"));
+    }
+
+    @Test
+    public void malformedDatesAreLeftOut()
+    {
+        final Map<String, ?> properties = mapping.apply(profile("yesterday"));
+        assertFalse(properties.containsKey("updated"));
+        assertTrue(properties.containsKey("email"));
+    }
+
+    private static Map<String, Object> profile(final String updatedAt)
+    {
+        final Map<String, Object> profile = new HashMap<>();
+        profile.put("OIDC_CLAIM_updated_at", updatedAt);
+        profile.put("OIDC_CLAIM_email", "user@example.com");
+        return profile;
+    }
+}
@@ -0,0 +1,205 @@
+package com.peregrine.sling.auth.header;
+
+/*-
+ * #%L
+ * peregrinecms-com-peregrine-sling-auth-header
+ * %%
+ * Copyright (C) 2020 headwire inc.
+ * %%
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+
+
+import org.apache.jackrabbit.oak.api.ContentSession;
+import org.apache.jackrabbit.oak.api.Root;
+import org.apache.jackrabbit.oak.plugins.document.DocumentNodeStore;
+import org.apache.jackrabbit.oak.plugins.document.DocumentNodeStoreBuilder;
+import org.apache.jackrabbit.oak.plugins.document.memory.MemoryDocumentStore;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs the first sync of a user on two cluster nodes sharing a document store.
+ */
+public class ClusterSyncLeaseTest
+{
+    private static final String USER_ID = "user@example.com";
+    private static final long TTL_SECONDS = 8;
+    private static final long MAX_WAIT_MILLIS = TimeUnit.SECONDS.toMillis(TTL_SECONDS) / 4;
+
+    private final List<DocumentNodeStore> nodeStores = new ArrayList<>();
+    private final List<HeaderUserSyncService> syncServices = new ArrayList<>();
+    private Fixtures.Repository node1;
+    private Fixtures.Repository node2;
+    private ClusterSyncLease node1Lease;
+
+    @Before
+    public void setUp()
+    {
+        final MemoryDocumentStore documentStore = new MemoryDocumentStore();
+        node1 = node(documentStore, 1);
+        node2 = node(documentStore, 2);
+        node1Lease = new ClusterSyncLease(TimeUnit.SECONDS.toMillis(TTL_SECONDS), 0, 10);
+    }
+
+    @After
+    public void tearDown()
+    {
+        for (HeaderUserSyncService syncService : syncServices)
+        {
+            syncService.deactivate();
+        }
+        for (int i = nodeStores.size() - 1; i >= 0; i--)
+        {
+            nodeStores.get(i).dispose();
+        }
+    }
+
+    @Test
+    public void waitForAStuckLeaseHolderIsBoundedByAFractionOfTheTtl() throws Exception
+    {
+        // Node 1 claims the lease of the new user and neither syncs the user nor releases the lease
+        try (ContentSession session = node1.login())
+        {
+            assertTrue(node1Lease.claim(session.getLatestRoot(), USER_ID));
+        }
+        runBackgroundOperations();
+
+        final HeaderUserSyncService syncService = syncService(true);
+        final long start = System.nanoTime();
+        sync(node2, syncService);
+        final long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        assertTrue("Waited " + elapsed + " ms", elapsed >= MAX_WAIT_MILLIS);
+        assertTrue("Waited " + elapsed + " ms", elapsed < TimeUnit.SECONDS.toMillis(TTL_SECONDS));
+        assertEquals(1, syncService.getClusterLeaseLostCount());
+        assertEquals(1, syncService.getClusterLeaseWaitTimeoutCount());
+        assertTrue("Synced locally", exists(node2));
+    }
+
+    @Test
+    public void waiterUsesTheUserSyncedByTheLeaseHolder() throws Exception
+    {
+        try (ContentSession session = node1.login())
+        {
+            assertTrue(node1Lease.claim(session.getLatestRoot(), USER_ID));
+        }
+        runBackgroundOperations();
+
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try
+        {
+            // Node 1 syncs the user while node 2 waits for it
+            final Future<?> holder = executor.submit(() -> {
+                Thread.sleep(100);
+                sync(node1, syncService(false));
+                try (ContentSession session = node1.login())
+                {
+                    node1Lease.release(session.getLatestRoot(), USER_ID);
+                }
+                return null;
+            });
+
+            final HeaderUserSyncService syncService = syncService(true);
+            sync(node2, syncService);
+            holder.get(1, TimeUnit.MINUTES);
+
+            assertEquals(1, syncService.getClusterLeaseLostCount());
+            assertEquals(0, syncService.getClusterLeaseClaimedCount());
+            assertEquals(0, syncService.getClusterLeaseWaitTimeoutCount());
+            assertTrue(exists(node2));
+        } finally
+        {
+            executor.shutdownNow();
+        }
+    }
+
+    private Fixtures.Repository node(final MemoryDocumentStore documentStore, final int clusterId)
+    {
+        final DocumentNodeStore nodeStore = DocumentNodeStoreBuilder.newDocumentNodeStoreBuilder()
+                .setDocumentStore(documentStore)
+                .setClusterId(clusterId)
+                .setAsyncDelay(10)
+                .build();
+        nodeStores.add(nodeStore);
+        final Fixtures.Repository repository = new Fixtures.Repository(nodeStore);
+        // Make the initial content visible to the next node
+        nodeStore.runBackgroundOperations();
+        return repository;
+    }
+
+    private void runBackgroundOperations()
+    {
+        for (DocumentNodeStore nodeStore : nodeStores)
+        {
+            nodeStore.runBackgroundOperations();
+        }
+    }
+
+    private HeaderUserSyncService syncService(final boolean clusterLease)
+    {
+        final Map<String, Object> config = new HashMap<>();
+        config.put("header_sync_cache_enabled", false);
+        config.put("header_sync_cluster_lease_enabled", clusterLease);
+        config.put("header_sync_cluster_lease_ttl", TTL_SECONDS);
+        config.put("header_sync_cluster_lease_wait", TimeUnit.MINUTES.toMillis(1));
+        config.put("header_sync_cluster_lease_poll", 10L);
+        final HeaderUserSyncService syncService = Fixtures.syncService(config);
+        synchronized (syncServices)
+        {
+            syncServices.add(syncService);
+        }
+        return syncService;
+    }
+
+    private static void sync(final Fixtures.Repository node, final HeaderUserSyncService syncService) throws Exception
+    {
+        final UserSynchronizer synchronizer = node.synchronizer(Fixtures.identityProvider(Collections.emptyMap()),
+                Fixtures.syncHandler(Collections.emptyMap()), syncService);
+        try (ContentSession session = node.login())
+        {
+            final Root root = session.getLatestRoot();
+            final HeaderCredentials credentials = new HeaderCredentials(USER_ID, new HashMap<>());
+            synchronizer.sync(root, node.userManager(root), credentials, syncService.getProfileFingerprint(credentials),
+                    false);
+        }
+    }
+
+    private static boolean exists(final Fixtures.Repository node) throws Exception
+    {
+        try (ContentSession session = node.login())
+        {
+            return node.userManager(session.getLatestRoot()).getAuthorizable(USER_ID) != null;
+        }
+    }
+}
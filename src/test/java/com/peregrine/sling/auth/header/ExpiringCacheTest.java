@@ -0,0 +1,125 @@
+package com.peregrine.sling.auth.header;
+
+/*-
+ * #%L
+ * peregrinecms-com-peregrine-sling-auth-header
+ * %%
+ * Copyright (C) 2020 headwire inc.
+ * %%
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ExpiringCacheTest
+{
+    private static final int MAX_SIZE = 1000;
+    private static final int LOW_WATERMARK = MAX_SIZE - MAX_SIZE / 8;
+
+    @Test
+    public void evictsInBatchesDownToTheLowWatermark()
+    {
+        final ExpiringCache<Integer, String> cache = new ExpiringCache<>(MAX_SIZE, 1, TimeUnit.HOURS);
+        for (int i = 0; i < MAX_SIZE; i++)
+        {
+            cache.put(i, "value-" + i);
+        }
+        assertEquals(MAX_SIZE, cache.size());
+        assertEquals(0, cache.getEvictionCount());
+
+        cache.put(MAX_SIZE, "value-" + MAX_SIZE);
+        assertEquals(LOW_WATERMARK, cache.size());
+        assertEquals(MAX_SIZE + 1 - LOW_WATERMARK, cache.getEvictionCount());
+
+        // The next inserts up to the maximum do not evict again
+        for (int i = LOW_WATERMARK; i < MAX_SIZE; i++)
+        {
+            cache.put(MAX_SIZE + 1 + i, "value");
+        }
+        assertEquals(MAX_SIZE, cache.size());
+        assertEquals(MAX_SIZE + 1 - LOW_WATERMARK, cache.getEvictionCount());
+    }
+
+    @Test
+    public void staysBoundedUnderChurnAtCapacity()
+    {
+        final ExpiringCache<Integer, String> cache = new ExpiringCache<>(MAX_SIZE, 1, TimeUnit.HOURS);
+        final int inserts = 100 * MAX_SIZE;
+        for (int i = 0; i < inserts; i++)
+        {
+            cache.put(i, "value");
+            assertTrue(cache.size() <= MAX_SIZE);
+        }
+        assertEquals(inserts - cache.size(), cache.getEvictionCount());
+        // About one eviction pass per eighth of the capacity, not one per insert
+        assertTrue(cache.size() >= LOW_WATERMARK);
+    }
+
+    @Test
+    public void purgesExpiredEntriesBeforeLiveOnes() throws InterruptedException
+    {
+        final ExpiringCache<Integer, String> cache = new ExpiringCache<>(MAX_SIZE, 1, TimeUnit.HOURS);
+        for (int i = 0; i < MAX_SIZE; i++)
+        {
+            cache.put(i, "short", 1, TimeUnit.MILLISECONDS);
+        }
+        Thread.sleep(5);
+        cache.put(-1, "live");
+        assertEquals(1, cache.size());
+        assertEquals("live", cache.get(-1));
+        assertNull(cache.get(0));
+    }
+
+    @Test
+    public void staysBoundedWithConcurrentWriters() throws InterruptedException
+    {
+        final ExpiringCache<String, String> cache = new ExpiringCache<>(MAX_SIZE, 1, TimeUnit.HOURS);
+        final int threads = 8;
+        final List<Thread> writers = new ArrayList<>();
+        for (int t = 0; t < threads; t++)
+        {
+            final int id = t;
+            writers.add(new Thread(() -> {
+                for (int i = 0; i < 20 * MAX_SIZE; i++)
+                {
+                    cache.put(id + "-" + i, "value");
+                }
+            }));
+        }
+        for (Thread writer : writers)
+        {
+            writer.start();
+        }
+        for (Thread writer : writers)
+        {
+            writer.join();
+        }
+        // Writers may skip an eviction in progress, but the next put brings the size back under the maximum
+        cache.put("last", "value");
+        assertTrue("size " + cache.size(), cache.size() <= MAX_SIZE);
+    }
+}
@@ -0,0 +1,189 @@
+package com.peregrine.sling.auth.header;
+
+/*-
+ * #%L
+ * peregrinecms-com-peregrine-sling-auth-header
+ * %%
+ * Copyright (C) 2020 headwire inc.
+ * %%
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+
+import org.apache.jackrabbit.api.security.user.UserManager;
+import org.apache.jackrabbit.oak.InitialContent;
+import org.apache.jackrabbit.oak.Oak;
+import org.apache.jackrabbit.oak.api.ContentRepository;
+import org.apache.jackrabbit.oak.api.ContentSession;
+import org.apache.jackrabbit.oak.api.Root;
+import org.apache.jackrabbit.oak.namepath.NamePathMapper;
+import org.apache.jackrabbit.oak.plugins.index.property.PropertyIndexEditorProvider;
+import org.apache.jackrabbit.oak.plugins.index.property.PropertyIndexProvider;
+import org.apache.jackrabbit.oak.plugins.nodetype.TypeEditorProvider;
+import org.apache.jackrabbit.oak.security.internal.SecurityProviderBuilder;
+import org.apache.jackrabbit.oak.spi.security.ConfigurationParameters;
+import org.apache.jackrabbit.oak.spi.security.SecurityProvider;
+import org.apache.jackrabbit.oak.spi.security.authentication.SystemSubject;
+import org.apache.jackrabbit.oak.spi.security.authentication.external.basic.DefaultSyncConfig;
+import org.apache.jackrabbit.oak.spi.security.authentication.external.impl.DefaultSyncHandler;
+import org.apache.jackrabbit.oak.spi.security.authentication.external.impl.principal.ExternalPrincipalConfiguration;
+import org.apache.jackrabbit.oak.spi.security.principal.CompositePrincipalConfiguration;
+import org.apache.jackrabbit.oak.spi.security.principal.PrincipalConfiguration;
+import org.apache.jackrabbit.oak.spi.security.user.UserConfiguration;
+import org.apache.jackrabbit.oak.spi.state.NodeStore;
+
+import javax.security.auth.Subject;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Field;
+import java.lang.reflect.Proxy;
+import java.security.PrivilegedExceptionAction;
+import java.util.Map;
+
+/**
+ * Shared fixtures for the tests: OSGi configurations and an in-memory Oak repository with the default security setup
+ * plus the external identity support that syncs rely on.
+ */
+final class Fixtures
+{
+    private Fixtures()
+    {
+    }
+
+    /**
+     * Creates an instance of a configuration annotation that returns the given values and the defaults otherwise.
+     * Keys are the method names of the annotation.
+     */
+    @SuppressWarnings("unchecked")
+    static <A extends Annotation> A config(final Class<A> type, final Map<String, Object> values)
+    {
+        return (A) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type }, (proxy, method, args) -> {
+            if ("annotationType".equals(method.getName()))
+            {
+                return type;
+            }
+            if (values.containsKey(method.getName()))
+            {
+                return values.get(method.getName());
+            }
+            if (method.getDefaultValue() != null)
+            {
+                return method.getDefaultValue();
+            }
+            if ("hashCode".equals(method.getName()))
+            {
+                return System.identityHashCode(proxy);
+            }
+            if ("equals".equals(method.getName()))
+            {
+                return proxy == args[0];
+            }
+            return type.getSimpleName() + values;
+        });
+    }
+
+    /**
+     * Sets a field of a component, as the declarative services runtime does for its references.
+     */
+    static void inject(final Object component, final String field, final Object value) throws Exception
+    {
+        final Field target = component.getClass().getDeclaredField(field);
+        target.setAccessible(true);
+        target.set(component, value);
+    }
+
+    /**
+     * @param propertyMapping User properties by the name of the profile claim they are synced from.
+     */
+    static DefaultSyncHandler syncHandler(final Map<String, String> propertyMapping)
+    {
+        DefaultSyncConfig config = new DefaultSyncConfig();
+        config.setName("default");
+        config.user().setPathPrefix("tenants");
+        config.user().setPropertyMapping(propertyMapping);
+        return new DefaultSyncHandler(config);
+    }
+
+    static HeaderExternalIdentityProvider identityProvider(final Map<String, Object> properties)
+    {
+        HeaderExternalIdentityProvider provider = new HeaderExternalIdentityProvider();
+        provider.activate(properties);
+        return provider;
+    }
+
+    static HeaderUserSyncService syncService(final Map<String, Object> values)
+    {
+        HeaderUserSyncService service = new HeaderUserSyncService();
+        service.activate(config(HeaderUserSyncServiceConfig.class, values));
+        return service;
+    }
+
+    /**
+     * An in-memory Oak repository with the default security setup and the external principal configuration, which
+     * indexes and protects the <code>rep:externalId</code> the sync handler stamps on synced users.
+     */
+    static final class Repository
+    {
+        final SecurityProvider securityProvider;
+        final ContentRepository contentRepository;
+
+        Repository()
+        {
+            this(new Oak());
+        }
+
+        /**
+         * A repository on the given node store, e.g. one node of a DocumentNodeStore cluster.
+         */
+        Repository(final NodeStore nodeStore)
+        {
+            this(new Oak(nodeStore));
+        }
+
+        private Repository(final Oak oak)
+        {
+            securityProvider = SecurityProviderBuilder.newBuilder().with(ConfigurationParameters.EMPTY).build();
+            ((CompositePrincipalConfiguration) securityProvider.getConfiguration(PrincipalConfiguration.class))
+                    .addConfiguration(new ExternalPrincipalConfiguration(securityProvider));
+            // The type editor compiles the built-in node types, without it no residual property can be set
+            contentRepository = oak
+                    .with(new InitialContent())
+                    .with(new TypeEditorProvider())
+                    .with(new PropertyIndexEditorProvider())
+                    .with(new PropertyIndexProvider())
+                    .with(securityProvider)
+                    .createContentRepository();
+        }
+
+        ContentSession login() throws Exception
+        {
+            return Subject.doAs(SystemSubject.INSTANCE,
+                    (PrivilegedExceptionAction<ContentSession>) () -> contentRepository.login(null, null));
+        }
+
+        UserManager userManager(final Root root)
+        {
+            return securityProvider.getConfiguration(UserConfiguration.class).getUserManager(root, NamePathMapper.DEFAULT);
+        }
+
+        UserSynchronizer synchronizer(final HeaderExternalIdentityProvider provider, final DefaultSyncHandler handler,
+                                      final HeaderUserSyncService syncService)
+        {
+            return new UserSynchronizer(provider, handler, syncService, contentRepository, securityProvider);
+        }
+    }
+}
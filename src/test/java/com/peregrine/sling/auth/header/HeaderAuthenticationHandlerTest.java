@@ -0,0 +1,239 @@
+package com.peregrine.sling.auth.header;
+
+/*-
+ * #%L
+ * peregrinecms-com-peregrine-sling-auth-header
+ * %%
+ * Copyright (C) 2020 headwire inc.
+ * %%
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+
+
+import org.apache.sling.auth.core.spi.AuthenticationInfo;
+import org.junit.Test;
+
+import javax.servlet.http.HttpServletRequest;
+import java.lang.reflect.Proxy;
+import java.security.GeneralSecurityException;
+import java.security.KeyPairGenerator;
+import java.security.interfaces.RSAPublicKey;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class HeaderAuthenticationHandlerTest
+{
+    private static final String SHARED_SECRET = "secret";
+    private static final String CLIENT_HEADER = "X-Forwarded-For";
+    private static final String PROXY_ADDRESS = "10.0.0.4";
+    private static final String GROUPS_HEADER = "X-Groups";
+
+    private HeaderAuthenticationHandler handler;
+
+    @Test
+    public void validRequestsPassWhenTheBucketIsEmpty()
+    {
+        handler = rateLimitedHandler();
+        exhaustBucket("192.0.2.1");
+
+        assertNull(handler.extractCredentials(request("192.0.2.1", "wrong"), null));
+        assertEquals(1, handler.getThrottledCount());
+        assertNotNull(handler.extractCredentials(request("192.0.2.1", SHARED_SECRET), null));
+        assertEquals(1, handler.getThrottledCount());
+    }
+
+    @Test
+    public void bucketsAreKeyedOnTheForwardedClientAddress()
+    {
+        handler = rateLimitedHandler();
+        exhaustBucket("192.0.2.1");
+
+        assertNull(handler.extractCredentials(request("192.0.2.2", "wrong"), null));
+        assertEquals(0, handler.getThrottledCount());
+        assertNull(handler.extractCredentials(request("192.0.2.1", "wrong"), null));
+        assertEquals(1, handler.getThrottledCount());
+    }
+
+    @Test
+    public void unseenTokensAreThrottledBeforeVerification() throws Exception
+    {
+        handler = rateLimitedJwtHandler();
+        for (int i = 0; i < 2; i++)
+        {
+            assertNull(handler.extractCredentials(tokenRequest("192.0.2.1", "forged." + i + ".token"), null));
+        }
+        assertEquals(2, handler.getRejectedTokenCount());
+
+        assertNull(handler.extractCredentials(tokenRequest("192.0.2.1", "forged.2.token"), null));
+        assertEquals(1, handler.getThrottledCount());
+        assertEquals(2, handler.getRejectedTokenCount());
+    }
+
+    @Test
+    public void oversizedValuesAreTruncatedAfterTheLastCompleteEntry()
+    {
+        handler = profileLimitedHandler(HeaderAuthenticationHandlerConfig.HEADER_AUTH_PROFILE_VALUE_OVERSIZED_TRUNCATE);
+        final Map<String, String> headers = headers(SHARED_SECRET);
+        headers.put("OIDC_CLAIM_roles", "reader,writer,administrator");
+        headers.put("OIDC_CLAIM_picture", "https://example.com/a-very-long-picture-url");
+        headers.put(GROUPS_HEADER, "readers,writers,administrators");
+
+        final HeaderCredentials credentials = credentials(headers);
+        assertEquals("reader,writer", credentials.getProfile().get("OIDC_CLAIM_roles"));
+        assertNull(credentials.getProfile().get("OIDC_CLAIM_picture"));
+        assertEquals(new HashSet<>(Arrays.asList("readers", "writers")), credentials.getGroups());
+        assertEquals(3, handler.getOversizedProfileValueCount());
+    }
+
+    @Test
+    public void droppedGroupsLeaveTheMembershipsUnchanged()
+    {
+        handler = profileLimitedHandler(HeaderAuthenticationHandlerConfig.HEADER_AUTH_PROFILE_VALUE_OVERSIZED_DROP);
+        final Map<String, String> headers = headers(SHARED_SECRET);
+        headers.put(GROUPS_HEADER, "readers,writers,administrators");
+
+        assertNull(credentials(headers).getGroups());
+
+        headers.put(GROUPS_HEADER, "readers");
+        assertEquals(Collections.singleton("readers"), credentials(headers).getGroups());
+    }
+
+    private static HeaderAuthenticationHandler rateLimitedHandler()
+    {
+        final Map<String, Object> values = new HashMap<>();
+        values.put("header_auth_rate_limit_enabled", true);
+        values.put("header_auth_rate_limit_rate", 0.001);
+        values.put("header_auth_rate_limit_burst", 2);
+        values.put("header_auth_rate_limit_client_header", CLIENT_HEADER);
+        return handler(values);
+    }
+
+    private static HeaderAuthenticationHandler rateLimitedJwtHandler() throws GeneralSecurityException
+    {
+        final KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        final RSAPublicKey key = (RSAPublicKey) generator.generateKeyPair().getPublic();
+        final Base64.Encoder encoder = Base64.getUrlEncoder().withoutPadding();
+        final Map<String, Object> values = new HashMap<>();
+        values.put("header_auth_rate_limit_enabled", true);
+        values.put("header_auth_rate_limit_rate", 0.001);
+        values.put("header_auth_rate_limit_burst", 2);
+        values.put("header_auth_rate_limit_client_header", CLIENT_HEADER);
+        values.put("header_auth_jwt_enabled", true);
+        values.put("header_auth_jwt_jwks", "{\"keys\":[{\"kty\":\"RSA\",\"n\":\""
+                + encoder.encodeToString(key.getModulus().toByteArray()) + "\",\"e\":\""
+                + encoder.encodeToString(key.getPublicExponent().toByteArray()) + "\"}]}");
+        return handler(values);
+    }
+
+    private static HeaderAuthenticationHandler profileLimitedHandler(final String oversized)
+    {
+        final Map<String, Object> values = new HashMap<>();
+        values.put("header_auth_profile_value_max_length", 20);
+        values.put("header_auth_profile_value_oversized", oversized);
+        values.put("header_auth_groups_header", GROUPS_HEADER);
+        return handler(values);
+    }
+
+    private static HeaderAuthenticationHandler handler(final Map<String, Object> values)
+    {
+        values.put("header_auth_shared_secret", SHARED_SECRET);
+        final HeaderAuthenticationHandler handler = new HeaderAuthenticationHandler();
+        handler.activate(Fixtures.config(HeaderAuthenticationHandlerConfig.class, values), null);
+        return handler;
+    }
+
+    private HeaderCredentials credentials(final Map<String, String> headers)
+    {
+        final AuthenticationInfo authInfo = handler.extractCredentials(request(headers), null);
+        assertNotNull(authInfo);
+        return (HeaderCredentials) authInfo.get("user.jcr.credentials");
+    }
+
+    private void exhaustBucket(final String client)
+    {
+        for (int i = 0; i < 2; i++)
+        {
+            assertNull(handler.extractCredentials(request(client, "wrong"), null));
+        }
+        assertEquals(2, handler.getRejectedSecretCount());
+        assertEquals(0, handler.getThrottledCount());
+    }
+
+    /**
+     * @return A request forwarded by the proxy for the given client, with the client address appended last.
+     */
+    private static HttpServletRequest request(final String client, final String sharedSecret)
+    {
+        final Map<String, String> headers = headers(sharedSecret);
+        headers.put(CLIENT_HEADER, "203.0.113.9, " + client);
+        return request(headers);
+    }
+
+    private static HttpServletRequest tokenRequest(final String client, final String token)
+    {
+        final Map<String, String> headers = new HashMap<>();
+        headers.put(HeaderAuthenticationHandlerConfig.DEFAULT_HEADER_AUTH_JWT_HEADER, token);
+        headers.put(CLIENT_HEADER, "203.0.113.9, " + client);
+        return request(headers);
+    }
+
+    private static Map<String, String> headers(final String sharedSecret)
+    {
+        final Map<String, String> headers = new HashMap<>();
+        headers.put(HeaderAuthenticationHandlerConfig.HEADER_AUTH_SHARED_SECRET_HEADER, sharedSecret);
+        headers.put(HeaderAuthenticationHandlerConfig.DEFAULT_HEADER_AUTH_REMOTE_USER_HEADER, "user@example.com");
+        return headers;
+    }
+
+    private static HttpServletRequest request(final Map<String, String> headers)
+    {
+        return (HttpServletRequest) Proxy.newProxyInstance(HeaderAuthenticationHandlerTest.class.getClassLoader(),
+                new Class<?>[] { HttpServletRequest.class }, (proxy, method, args) -> {
+                    switch (method.getName())
+                    {
+                        case "getHeader":
+                            return headers.get((String) args[0]);
+                        case "getHeaderNames":
+                            return Collections.enumeration(headers.keySet());
+                        case "getRemoteAddr":
+                            return PROXY_ADDRESS;
+                        case "getRequestURI":
+                        case "getPathInfo":
+                            return "/content/site/index.html";
+                        case "getContextPath":
+                            return "";
+                        case "hashCode":
+                            return System.identityHashCode(proxy);
+                        case "equals":
+                            return proxy == args[0];
+                        default:
+                            return null;
+                    }
+                });
+    }
+}
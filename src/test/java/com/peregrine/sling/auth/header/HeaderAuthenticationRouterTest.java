@@ -0,0 +1,123 @@
+package com.peregrine.sling.auth.header;
+
+/*-
+ * #%L
+ * peregrinecms-com-peregrine-sling-auth-header
+ * %%
+ * Copyright (C) 2020 headwire inc.
+ * %%
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+
+
+import org.junit.Test;
+import org.osgi.framework.Constants;
+
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class HeaderAuthenticationRouterTest
+{
+    @Test
+    public void logoutDeletesTheCookiesOfAllTenants() throws Exception
+    {
+        final HeaderAuthenticationRouter router = new HeaderAuthenticationRouter();
+        router.bindHandler(handler("/content/a"), Collections.singletonMap(Constants.SERVICE_ID, 1L));
+        router.bindHandler(handler("/content/b"), Collections.singletonMap(Constants.SERVICE_ID, 2L));
+
+        final List<String> setCookies = new ArrayList<>();
+        final List<Cookie> cookies = new ArrayList<>();
+        router.dropCredentials(request("/system/sling/logout"), response(setCookies, cookies));
+
+        assertEquals(2, setCookies.size());
+        assertTrue(setCookies.get(0), setCookies.get(0).startsWith("header-auth-ticket=; Max-Age=0; Path=/content/a;"));
+        assertTrue(setCookies.get(1), setCookies.get(1).startsWith("header-auth-ticket=; Max-Age=0; Path=/content/b;"));
+        // The login cookie shared by both tenants is deleted once
+        assertEquals(1, cookies.size());
+        assertEquals(HeaderAuthenticationHandlerConfig.DEFAULT_HEADER_AUTH_LOGIN_COOKIE, cookies.get(0).getName());
+        assertEquals(0, cookies.get(0).getMaxAge());
+    }
+
+    private static HeaderAuthenticationHandler handler(final String pathPrefix)
+    {
+        final Map<String, Object> values = new HashMap<>();
+        values.put("header_auth_path_prefix", pathPrefix);
+        values.put("header_auth_shared_secret", "secret");
+        values.put("header_auth_ticket_enabled", true);
+        final HeaderAuthenticationHandler handler = new HeaderAuthenticationHandler();
+        handler.activate(Fixtures.config(HeaderAuthenticationHandlerConfig.class, values), null);
+        return handler;
+    }
+
+    private static HttpServletRequest request(final String path)
+    {
+        return (HttpServletRequest) Proxy.newProxyInstance(HeaderAuthenticationRouterTest.class.getClassLoader(),
+                new Class<?>[] { HttpServletRequest.class }, (proxy, method, args) -> {
+                    switch (method.getName())
+                    {
+                        case "getServletPath":
+                            return path;
+                        case "hashCode":
+                            return System.identityHashCode(proxy);
+                        case "equals":
+                            return proxy == args[0];
+                        default:
+                            return null;
+                    }
+                });
+    }
+
+    /**
+     * @return A response that collects the <code>Set-Cookie</code> headers and the cookies added to it.
+     */
+    private static HttpServletResponse response(final List<String> setCookies, final List<Cookie> cookies)
+    {
+        return (HttpServletResponse) Proxy.newProxyInstance(HeaderAuthenticationRouterTest.class.getClassLoader(),
+                new Class<?>[] { HttpServletResponse.class }, (proxy, method, args) -> {
+                    switch (method.getName())
+                    {
+                        case "addHeader":
+                            if ("Set-Cookie".equals(args[0]))
+                            {
+                                setCookies.add((String) args[1]);
+                            }
+                            return null;
+                        case "addCookie":
+                            cookies.add((Cookie) args[0]);
+                            return null;
+                        case "hashCode":
+                            return System.identityHashCode(proxy);
+                        case "equals":
+                            return proxy == args[0];
+                        default:
+                            return null;
+                    }
+                });
+    }
+}
@@ -0,0 +1,73 @@
+package com.peregrine.sling.auth.header;
+
+/*-
+ * #%L
+ * peregrinecms-com-peregrine-sling-auth-header
+ * %%
+ * Copyright (C) 2020 headwire inc.
+ * %%
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+
+
+import org.apache.jackrabbit.oak.spi.security.authentication.external.ExternalGroup;
+import org.apache.jackrabbit.oak.spi.security.authentication.external.ExternalIdentity;
+import org.apache.jackrabbit.oak.spi.security.authentication.external.ExternalIdentityRef;
+import org.apache.jackrabbit.oak.spi.security.authentication.external.ExternalUser;
+import org.junit.Test;
+
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class HeaderExternalIdentityProviderTest
+{
+    @Test
+    public void groupRefsResolveToGroupsWhenTheGroupIsNotInterned() throws Exception
+    {
+        final ExternalIdentityRef ref = Fixtures.identityProvider(Collections.emptyMap()).getGroup("team")
+                .getExternalId();
+
+        // A fresh provider, as after a restart or a modified configuration
+        final ExternalIdentity identity = Fixtures.identityProvider(Collections.emptyMap()).getIdentity(ref);
+        assertTrue(identity instanceof ExternalGroup);
+        assertEquals("team", identity.getId());
+        assertEquals(ref, identity.getExternalId());
+    }
+
+    @Test
+    public void userRefsResolveToUsers() throws Exception
+    {
+        final HeaderExternalIdentityProvider provider = Fixtures.identityProvider(Collections.emptyMap());
+        final ExternalIdentityRef ref = provider.getUser("user@example.com").getExternalId();
+
+        final ExternalIdentity identity = Fixtures.identityProvider(Collections.emptyMap()).getIdentity(ref);
+        assertTrue(identity instanceof ExternalUser);
+        assertEquals("user@example.com", identity.getId());
+    }
+
+    @Test
+    public void groupPrincipalNamesDoNotDependOnTheRefPrefix() throws Exception
+    {
+        final ExternalGroup group = Fixtures.identityProvider(Collections.emptyMap()).getGroup("team");
+        assertEquals("g_" + new ExternalIdentityRef("team", HeaderExternalIdentityProvider.NAME).getString(),
+                group.getPrincipalName());
+    }
+}
@@ -0,0 +1,133 @@
+package com.peregrine.sling.auth.header;
+
+/*-
+ * #%L
+ * peregrinecms-com-peregrine-sling-auth-header
+ * %%
+ * Copyright (C) 2020 headwire inc.
+ * %%
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+
+
+import org.apache.jackrabbit.api.security.user.Authorizable;
+import org.apache.jackrabbit.api.security.user.UserManager;
+import org.apache.jackrabbit.oak.api.ContentSession;
+import org.apache.jackrabbit.oak.spi.security.authentication.external.ExternalIdentityProviderManager;
+import org.apache.jackrabbit.oak.spi.security.authentication.external.SyncManager;
+import org.apache.jackrabbit.oak.spi.security.authentication.external.impl.DefaultSyncHandler;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.jcr.Value;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class HeaderUserImporterTest
+{
+    private Path importFile;
+    private HeaderUserSyncService syncService;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        importFile = Files.createTempFile("header-import", ".jsonl");
+        syncService = Fixtures.syncService(Collections.singletonMap("header_sync_cache_enabled", false));
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        syncService.deactivate();
+        Files.deleteIfExists(importFile);
+    }
+
+    @Test
+    public void importAppliesTheClaimMappingOnce() throws Exception
+    {
+        Files.write(importFile, Arrays.asList(
+                "{\"id\": \"one@example.com\", \"OIDC_CLAIM_email\": \"one@example.com\", \"OIDC_CLAIM_age\": \"42\"}",
+                "{\"id\": \"two@example.com\", \"OIDC_CLAIM_email\": \"two@example.com\", \"OIDC_CLAIM_age\": \"7\"}"
+        ), StandardCharsets.UTF_8);
+
+        final Map<String, Object> properties = new HashMap<>();
+        properties.put(HeaderExternalIdentityProvider.IMPORT_FILE_PROPERTY, importFile.toString());
+        properties.put(HeaderExternalIdentityProvider.CLAIM_MAPPING_PROPERTY, new String[] {
+                "mail=OIDC_CLAIM_email",
+                "age=OIDC_CLAIM_age;type=long"
+        });
+        properties.put(HeaderExternalIdentityProvider.CLAIM_KEEP_UNMAPPED_PROPERTY, false);
+        final HeaderExternalIdentityProvider provider = Fixtures.identityProvider(properties);
+
+        final Map<String, String> propertyMapping = new HashMap<>();
+        propertyMapping.put("profile/email", "mail");
+        propertyMapping.put("profile/age", "age");
+        final DefaultSyncHandler syncHandler = Fixtures.syncHandler(propertyMapping);
+
+        final Fixtures.Repository repository = new Fixtures.Repository();
+        final HeaderUserImporter importer = new HeaderUserImporter();
+        Fixtures.inject(importer, "contentRepository", repository.contentRepository);
+        Fixtures.inject(importer, "securityProvider", repository.securityProvider);
+        Fixtures.inject(importer, "externalIdentityProviderManager",
+                (ExternalIdentityProviderManager) name -> provider);
+        Fixtures.inject(importer, "syncManager", (SyncManager) name -> syncHandler);
+        Fixtures.inject(importer, "syncService", syncService);
+        importer.activate(Fixtures.config(HeaderUserImporterConfig.class, Collections.emptyMap()));
+
+        assertEquals("Import started", importer.startImport());
+        final long deadline = System.currentTimeMillis() + 60000;
+        while (importer.isRunning() && System.currentTimeMillis() < deadline)
+        {
+            Thread.sleep(10);
+        }
+
+        assertNull(importer.getLastError());
+        assertEquals(0, importer.getFailedCount());
+        assertEquals(2, importer.getSyncedCount());
+        try (ContentSession session = repository.login())
+        {
+            final UserManager userManager = repository.userManager(session.getLatestRoot());
+            final Authorizable one = userManager.getAuthorizable("one@example.com");
+            assertNotNull(one);
+            assertEquals("one@example.com", single(one.getProperty("profile/email")).getString());
+            assertEquals(42, single(one.getProperty("profile/age")).getLong());
+            final Authorizable two = userManager.getAuthorizable("two@example.com");
+            assertNotNull(two);
+            assertEquals("two@example.com", single(two.getProperty("profile/email")).getString());
+            assertEquals(7, single(two.getProperty("profile/age")).getLong());
+        }
+    }
+
+    private static Value single(final Value[] values)
+    {
+        assertNotNull(values);
+        assertEquals(1, values.length);
+        return values[0];
+    }
+}
@@ -0,0 +1,135 @@
+package com.peregrine.sling.auth.header;
+
+/*-
+ * #%L
+ * peregrinecms-com-peregrine-sling-auth-header
+ * %%
+ * Copyright (C) 2020 headwire inc.
+ * %%
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+
+
+import org.apache.jackrabbit.api.security.user.Authorizable;
+import org.apache.jackrabbit.oak.api.ContentSession;
+import org.junit.Test;
+
+import javax.jcr.Value;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.Lock;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class HeaderUserSyncServiceTest
+{
+    @Test
+    public void batchSizeOfZeroDisablesBatching()
+    {
+        final Map<String, Object> config = new HashMap<>();
+        config.put("header_sync_batch_enabled", true);
+        config.put("header_sync_batch_max_size", 0);
+        config.put("header_sync_async_queue_size", 0);
+        final HeaderUserSyncService syncService = Fixtures.syncService(config);
+        try
+        {
+            assertFalse(syncService.isBatchEnabled());
+        } finally
+        {
+            syncService.deactivate();
+        }
+    }
+
+    @Test
+    public void fullQueueRejectsResyncsWithoutLeavingThemPending() throws Exception
+    {
+        final Map<String, Object> config = new HashMap<>();
+        config.put("header_sync_cache_enabled", false);
+        config.put("header_sync_async_enabled", true);
+        config.put("header_sync_async_threads", 1);
+        config.put("header_sync_async_queue_size", 1);
+        config.put("header_sync_lock_stripes", 1);
+        final HeaderUserSyncService syncService = Fixtures.syncService(config);
+        final Fixtures.Repository repository = new Fixtures.Repository();
+        final UserSynchronizer synchronizer = repository.synchronizer(Fixtures.identityProvider(Collections.emptyMap()),
+                Fixtures.syncHandler(Collections.singletonMap("profile/email", "OIDC_CLAIM_email")), syncService);
+        try
+        {
+            // With a single lock stripe, holding it keeps the only worker busy with the first resync
+            final Lock lock = syncService.getSyncLock("running@example.com");
+            lock.lock();
+            try
+            {
+                assertTrue(syncService.submit(synchronizer, credentials("running@example.com", "running"), null));
+                await(() -> syncService.getAsyncQueueDepth() == 0);
+                assertTrue(syncService.submit(synchronizer, credentials("queued@example.com", "first"), null));
+
+                assertFalse(syncService.submit(synchronizer, credentials("rejected@example.com", "first"), null));
+                assertTrue(syncService.submit(synchronizer, credentials("queued@example.com", "last"), null));
+                assertFalse(syncService.submit(synchronizer, credentials("rejected@example.com", "last"), null));
+                assertEquals(2, syncService.getAsyncRejectedCount());
+                assertEquals(1, syncService.getAsyncDeduplicatedCount());
+            } finally
+            {
+                lock.unlock();
+            }
+            await(() -> syncService.getAsyncCompletedCount() == 2);
+
+            // The rejected user was not left pending, so its next resync is queued instead of deduplicated
+            assertTrue(syncService.submit(synchronizer, credentials("rejected@example.com", "next"), null));
+            await(() -> syncService.getAsyncCompletedCount() == 3);
+            assertEquals(3, syncService.getAsyncSubmittedCount());
+            assertEquals(1, syncService.getAsyncDeduplicatedCount());
+            assertEquals(0, syncService.getAsyncFailedCount());
+
+            try (ContentSession session = repository.login())
+            {
+                final Authorizable queued = repository.userManager(session.getLatestRoot())
+                        .getAuthorizable("queued@example.com");
+                assertNotNull(queued);
+                final Value[] email = queued.getProperty("profile/email");
+                assertNotNull(email);
+                assertEquals("last", email[0].getString());
+            }
+        } finally
+        {
+            syncService.deactivate();
+        }
+    }
+
+    private static HeaderCredentials credentials(final String userId, final String email)
+    {
+        return new HeaderCredentials(userId, Collections.singletonMap("OIDC_CLAIM_email", email));
+    }
+
+    private static void await(final BooleanSupplier condition) throws InterruptedException
+    {
+        final long deadline = System.currentTimeMillis() + 60000;
+        while (!condition.getAsBoolean() && System.currentTimeMillis() < deadline)
+        {
+            Thread.sleep(10);
+        }
+        assertTrue(condition.getAsBoolean());
+    }
+}
@@ -0,0 +1,226 @@
+package com.peregrine.sling.auth.header;
+
+/*-
+ * #%L
+ * peregrinecms-com-peregrine-sling-auth-header
+ * %%
+ * Copyright (C) 2020 headwire inc.
+ * %%
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+
+import org.apache.jackrabbit.api.security.user.Authorizable;
+import org.apache.jackrabbit.api.security.user.Group;
+import org.apache.jackrabbit.api.security.user.UserManager;
+import org.apache.jackrabbit.oak.api.ContentSession;
+import org.apache.jackrabbit.oak.api.Root;
+import org.apache.jackrabbit.oak.spi.security.authentication.external.ExternalIdentityRef;
+import org.apache.jackrabbit.oak.spi.security.authentication.external.ExternalUser;
+import org.junit.Test;
+
+import javax.jcr.Value;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+/**
+ * Runs the identity provider and the user sync for many users with distinct profiles and groups at the same time, and
+ * checks that no user ever ends up with the properties or groups of another.
+ */
+public class ProfileIsolationTest
+{
+    private static final int THREADS = 8;
+    private static final int USERS_PER_THREAD = 25;
+    private static final int ROUNDS = 200;
+
+    @Test
+    public void concurrentUsersOfTheIdentityProviderKeepTheirProfiles() throws Exception
+    {
+        final Map<String, Object> properties = new HashMap<>();
+        properties.put(HeaderExternalIdentityProvider.CLAIM_MAPPING_PROPERTY, new String[] {
+                "email=OIDC_CLAIM_email",
+                "roles=OIDC_CLAIM_roles;split=,"
+        });
+        final HeaderExternalIdentityProvider provider = Fixtures.identityProvider(properties);
+
+        runConcurrently(thread -> {
+            for (int round = 0; round < ROUNDS; round++)
+            {
+                for (int i = 0; i < USERS_PER_THREAD; i++)
+                {
+                    final String userId = userId(thread, i);
+                    final ExternalUser user = provider.getUser(credentials(thread, userId));
+                    assertEquals(userId, user.getId());
+                    assertEquals(userId, user.getProperties().get("email"));
+                    assertEquals("Name " + userId, user.getProperties().get("OIDC_CLAIM_name"));
+                    assertEquals(Arrays.asList("reader", "role-" + userId), user.getProperties().get("roles"));
+                    final Set<String> groupIds = new HashSet<>();
+                    for (ExternalIdentityRef ref : user.getDeclaredGroups())
+                    {
+                        // Group refs carry a prefix, so resolve them to compare the group ids
+                        groupIds.add(provider.getIdentity(ref).getId());
+                    }
+                    assertEquals(Collections.singleton(group(thread)), groupIds);
+                }
+            }
+            return null;
+        });
+    }
+
+    @Test
+    public void concurrentSyncsStoreEachUsersOwnProfileAndGroups() throws Exception
+    {
+        final Fixtures.Repository repository = new Fixtures.Repository();
+        final Map<String, String> propertyMapping = new HashMap<>();
+        propertyMapping.put("profile/email", "OIDC_CLAIM_email");
+        propertyMapping.put("profile/name", "OIDC_CLAIM_name");
+        final Map<String, Object> config = new HashMap<>();
+        config.put("header_sync_cache_enabled", false);
+        final HeaderUserSyncService syncService = Fixtures.syncService(config);
+        final UserSynchronizer synchronizer = repository.synchronizer(
+                Fixtures.identityProvider(Collections.emptyMap()), Fixtures.syncHandler(propertyMapping), syncService);
+
+        // Create the path prefix folder up front, so that the threads do not all conflict on it
+        try (ContentSession session = repository.login())
+        {
+            final Root root = session.getLatestRoot();
+            synchronizer.sync(root, repository.userManager(root), credentials(-1, "warmup@example.com"), null, false);
+        }
+
+        runConcurrently(thread -> {
+            try (ContentSession session = repository.login())
+            {
+                final Root root = session.getLatestRoot();
+                final UserManager userManager = repository.userManager(root);
+                for (int i = 0; i < USERS_PER_THREAD; i++)
+                {
+                    final HeaderCredentials credentials = credentials(thread, userId(thread, i));
+                    synchronizer.sync(root, userManager, credentials, syncService.getProfileFingerprint(credentials),
+                            false);
+                }
+            }
+            return null;
+        });
+
+        try (ContentSession session = repository.login())
+        {
+            final UserManager userManager = repository.userManager(session.getLatestRoot());
+            for (int thread = 0; thread < THREADS; thread++)
+            {
+                for (int i = 0; i < USERS_PER_THREAD; i++)
+                {
+                    final String userId = userId(thread, i);
+                    final Authorizable user = userManager.getAuthorizable(userId);
+                    assertNotNull(userId, user);
+                    assertEquals(userId, single(user.getProperty("profile/email")));
+                    assertEquals("Name " + userId, single(user.getProperty("profile/name")));
+                    assertEquals(userId, Collections.singleton(group(thread)), groupIds(user));
+                }
+            }
+        } finally
+        {
+            syncService.deactivate();
+        }
+    }
+
+    private interface Task
+    {
+        Void run(int thread) throws Exception;
+    }
+
+    /**
+     * Runs the task on all threads at once and rethrows the first failure.
+     */
+    private static void runConcurrently(final Task task) throws Exception
+    {
+        final ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try
+        {
+            final CyclicBarrier start = new CyclicBarrier(THREADS);
+            final List<Future<Void>> results = new ArrayList<>();
+            for (int thread = 0; thread < THREADS; thread++)
+            {
+                final int id = thread;
+                results.add(executor.submit((Callable<Void>) () -> {
+                    start.await();
+                    return task.run(id);
+                }));
+            }
+            for (Future<Void> result : results)
+            {
+                result.get(2, TimeUnit.MINUTES);
+            }
+        } finally
+        {
+            executor.shutdownNow();
+        }
+    }
+
+    private static String userId(final int thread, final int index)
+    {
+        return "user" + thread + "-" + index + "@example.com";
+    }
+
+    private static String group(final int thread)
+    {
+        return "team-" + thread;
+    }
+
+    private static HeaderCredentials credentials(final int thread, final String userId)
+    {
+        final Map<String, Object> profile = new HashMap<>();
+        profile.put("OIDC_CLAIM_email", userId);
+        profile.put("OIDC_CLAIM_name", "Name " + userId);
+        profile.put("OIDC_CLAIM_roles", "reader,role-" + userId);
+        return new HeaderCredentials(userId, profile, Collections.singleton(group(thread)));
+    }
+
+    private static String single(final Value[] values) throws Exception
+    {
+        assertNotNull(values);
+        assertEquals(1, values.length);
+        return values[0].getString();
+    }
+
+    private static Set<String> groupIds(final Authorizable user) throws Exception
+    {
+        final Set<String> groupIds = new HashSet<>();
+        final Iterator<Group> memberOf = user.declaredMemberOf();
+        while (memberOf.hasNext())
+        {
+            groupIds.add(memberOf.next().getID());
+        }
+        return groupIds;
+    }
+}
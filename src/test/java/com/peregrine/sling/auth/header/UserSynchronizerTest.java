@@ -0,0 +1,197 @@
+package com.peregrine.sling.auth.header;
+
+/*-
+ * #%L
+ * peregrinecms-com-peregrine-sling-auth-header
+ * %%
+ * Copyright (C) 2020 headwire inc.
+ * %%
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ * #L%
+ */
+
+
+import org.apache.jackrabbit.api.security.user.Authorizable;
+import org.apache.jackrabbit.api.security.user.Group;
+import org.apache.jackrabbit.oak.api.ContentSession;
+import org.apache.jackrabbit.oak.api.Root;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.jcr.Value;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class UserSynchronizerTest
+{
+    private static final String USER_ID = "user@example.com";
+    private static final Set<String> GROUPS = new HashSet<>(Arrays.asList("readers", "writers"));
+
+    private Fixtures.Repository repository;
+    private HeaderUserSyncService syncService;
+    private UserSynchronizer synchronizer;
+
+    @Before
+    public void setUp()
+    {
+        repository = new Fixtures.Repository();
+        final Map<String, Object> config = new HashMap<>();
+        config.put("header_sync_cache_enabled", false);
+        config.put("header_sync_profile_fingerprint_enabled", true);
+        config.put("header_sync_profile_snapshot_enabled", true);
+        syncService = Fixtures.syncService(config);
+        synchronizer = repository.synchronizer(Fixtures.identityProvider(Collections.emptyMap()),
+                Fixtures.syncHandler(Collections.singletonMap("profile/email", "OIDC_CLAIM_email")), syncService);
+    }
+
+    @After
+    public void tearDown()
+    {
+        syncService.deactivate();
+    }
+
+    @Test
+    public void resyncRestoresTheGroupsOfTheSnapshot() throws Exception
+    {
+        final HeaderCredentials credentials = new HeaderCredentials(USER_ID, profile(), GROUPS);
+        login(credentials);
+
+        assertEquals(1, synchronizer.resyncInSystemSession(Collections.singletonList(USER_ID)));
+
+        assertGroupsAndFingerprint(credentials);
+    }
+
+    @Test
+    public void syncWithoutGroupsKeepsTheGroupsOfTheFingerprint() throws Exception
+    {
+        final HeaderCredentials credentials = new HeaderCredentials(USER_ID, profile(), GROUPS);
+        login(credentials);
+
+        assertEquals(1, synchronizer.syncAllInSystemSession(
+                Collections.singletonList(new HeaderCredentials(USER_ID, profile()))));
+
+        assertGroupsAndFingerprint(credentials);
+    }
+
+    @Test
+    public void batchAppliesAndRecordsTheLastProfileOfAUser() throws Exception
+    {
+        final Map<String, Object> config = new HashMap<>();
+        config.put("header_sync_profile_fingerprint_enabled", true);
+        final HeaderUserSyncService cachingSyncService = Fixtures.syncService(config);
+        final UserSynchronizer cachingSynchronizer = repository.synchronizer(
+                Fixtures.identityProvider(Collections.emptyMap()),
+                Fixtures.syncHandler(Collections.singletonMap("profile/email", "OIDC_CLAIM_email")),
+                cachingSyncService);
+        final HeaderCredentials first = new HeaderCredentials(USER_ID, profile("first@example.com"));
+        final HeaderCredentials last = new HeaderCredentials(USER_ID, profile("last@example.com"));
+        final String firstFingerprint = cachingSyncService.getProfileFingerprint(first);
+        final String lastFingerprint = cachingSyncService.getProfileFingerprint(last);
+        // A long window puts both logins of the user into the same batch
+        final UserSyncBatcher batcher = new UserSyncBatcher(10, 1000, 10);
+        try
+        {
+            final CompletableFuture<Void> firstResult = batcher.submit(cachingSynchronizer, first, firstFingerprint);
+            final CompletableFuture<Void> lastResult = batcher.submit(cachingSynchronizer, last, lastFingerprint);
+            firstResult.get(1, TimeUnit.MINUTES);
+            lastResult.get(1, TimeUnit.MINUTES);
+        } finally
+        {
+            batcher.close();
+        }
+
+        try (ContentSession session = repository.login())
+        {
+            final Authorizable user = repository.userManager(session.getLatestRoot()).getAuthorizable(USER_ID);
+            assertNotNull(user);
+            assertEquals("last@example.com", single(user.getProperty("profile/email")));
+            assertEquals(lastFingerprint, single(user.getProperty(HeaderUserSyncService.PROFILE_FINGERPRINT_PROPERTY)));
+        }
+        assertTrue(cachingSyncService.isSynced(USER_ID, lastFingerprint));
+        assertFalse(cachingSyncService.isSynced(USER_ID, firstFingerprint));
+        cachingSyncService.deactivate();
+    }
+
+    private void login(final HeaderCredentials credentials) throws Exception
+    {
+        try (ContentSession session = repository.login())
+        {
+            final Root root = session.getLatestRoot();
+            synchronizer.sync(root, repository.userManager(root), credentials,
+                    syncService.getProfileFingerprint(credentials), false);
+        }
+    }
+
+    /**
+     * Asserts that the user is in the groups of the credentials and has their profile fingerprint.
+     */
+    private void assertGroupsAndFingerprint(final HeaderCredentials credentials) throws Exception
+    {
+        try (ContentSession session = repository.login())
+        {
+            final Authorizable user = repository.userManager(session.getLatestRoot()).getAuthorizable(USER_ID);
+            assertNotNull(user);
+            assertEquals(credentials.getGroups(), groupIds(user));
+            assertEquals(syncService.getProfileFingerprint(credentials),
+                    single(user.getProperty(HeaderUserSyncService.PROFILE_FINGERPRINT_PROPERTY)));
+        }
+    }
+
+    private static Map<String, Object> profile()
+    {
+        return profile(USER_ID);
+    }
+
+    private static Map<String, Object> profile(final String email)
+    {
+        final Map<String, Object> profile = new HashMap<>();
+        profile.put("OIDC_CLAIM_email", email);
+        return profile;
+    }
+
+    private static String single(final Value[] values) throws Exception
+    {
+        assertNotNull(values);
+        assertEquals(1, values.length);
+        return values[0].getString();
+    }
+
+    private static Set<String> groupIds(final Authorizable user) throws Exception
+    {
+        final Set<String> groupIds = new HashSet<>();
+        final Iterator<Group> memberOf = user.declaredMemberOf();
+        while (memberOf.hasNext())
+        {
+            groupIds.add(memberOf.next().getID());
+        }
+        return groupIds;
+    }
+}